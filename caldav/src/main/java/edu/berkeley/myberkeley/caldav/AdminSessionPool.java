@@ -0,0 +1,248 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Administrative sessions lent to embedded connectors, so that each connector need not log in. A
+ * session is only ever lent to one borrower at a time. At most maxLent sessions are out at once; a
+ * borrower beyond that waits up to waitMillis for a session to come back, then fails. At most maxIdle
+ * sessions are kept between loans; others are logged out when they come back. Loans held for longer
+ * than leakMillis are logged as probable leaks, once each.
+ */
+public class AdminSessionPool implements EmbeddedCalDav.SessionRelease {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdminSessionPool.class);
+
+  public static final int DEFAULT_MAX_IDLE = 10;
+  public static final int DEFAULT_MAX_LENT = 50;
+  public static final long DEFAULT_WAIT_MILLIS = 10 * 1000;
+  public static final long DEFAULT_LEAK_MILLIS = 5 * 60 * 1000;
+
+  private final Repository repository;
+
+  private final int maxIdle;
+
+  private final int maxLent;
+
+  private final long waitMillis;
+
+  private final long leakMillis;
+
+  private final LinkedList<Session> idle = new LinkedList<Session>();
+
+  /**
+   * Lent sessions and the time each was lent.
+   */
+  private final Map<Session, Long> leased = new IdentityHashMap<Session, Long>();
+
+  private final Map<Session, Boolean> reportedLeaks = new IdentityHashMap<Session, Boolean>();
+
+  /**
+   * Loans whose session is still being logged in; they count against maxLent.
+   */
+  private int loggingIn;
+
+  private boolean shutdown;
+
+  private long logins;
+
+  private long loans;
+
+  private long leaks;
+
+  private long waits;
+
+  private long refusals;
+
+  public AdminSessionPool(Repository repository, int maxIdle, long leakMillis) {
+    this(repository, maxIdle, DEFAULT_MAX_LENT, DEFAULT_WAIT_MILLIS, leakMillis);
+  }
+
+  /**
+   * @param maxLent most sessions lent at once; zero or less for no limit
+   */
+  public AdminSessionPool(Repository repository, int maxIdle, int maxLent, long waitMillis, long leakMillis) {
+    this.repository = repository;
+    this.maxIdle = maxIdle;
+    this.maxLent = maxLent;
+    this.waitMillis = waitMillis;
+    this.leakMillis = leakMillis;
+  }
+
+  /**
+   * @throws StorageClientException if no session came back within waitMillis while maxLent were out
+   */
+  public Session borrow() throws StorageClientException, AccessDeniedException {
+    Session session;
+    synchronized (this) {
+      checkShutdown();
+      long now = System.currentTimeMillis();
+      checkLeaks(now);
+      if (isFull()) {
+        this.waits++;
+        long deadline = now + this.waitMillis;
+        while (isFull()) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            this.refusals++;
+            throw new StorageClientException("All " + this.maxLent + " calendar sessions are lent; gave up after " +
+                this.waitMillis + "ms");
+          }
+          try {
+            wait(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageClientException("Interrupted waiting for a calendar session", e);
+          }
+          checkShutdown();
+        }
+      }
+      session = this.idle.poll();
+      if (session == null) {
+        this.logins++;
+        this.loggingIn++;
+      }
+    }
+    if (session == null) {
+      try {
+        session = this.repository.loginAdministrative();
+      } finally {
+        synchronized (this) {
+          this.loggingIn--;
+          if (session == null) {
+            notifyAll();
+          } else {
+            this.loans++;
+            this.leased.put(session, System.currentTimeMillis());
+          }
+        }
+      }
+      return session;
+    }
+    synchronized (this) {
+      this.loans++;
+      this.leased.put(session, System.currentTimeMillis());
+    }
+    return session;
+  }
+
+  /**
+   * Take back a lent session. Sessions which the pool did not lend are ignored.
+   */
+  public void release(Session session) {
+    boolean keep;
+    synchronized (this) {
+      if (this.leased.remove(session) == null) {
+        LOGGER.warn("Ignoring release of a session which was not lent by the pool");
+        return;
+      }
+      this.reportedLeaks.remove(session);
+      notifyAll();
+      keep = !this.shutdown && this.idle.size() < this.maxIdle;
+      if (keep) {
+        this.idle.addFirst(session);
+      }
+    }
+    if (!keep) {
+      logout(session);
+    }
+  }
+
+  /**
+   * Log out the idle sessions. Sessions which are still lent are logged out as they come back.
+   */
+  public void shutdown() {
+    LinkedList<Session> toClose;
+    synchronized (this) {
+      this.shutdown = true;
+      notifyAll();
+      toClose = new LinkedList<Session>(this.idle);
+      this.idle.clear();
+      if (!this.leased.isEmpty()) {
+        LOGGER.warn("Shutting down session pool with {} sessions still lent", this.leased.size());
+      }
+    }
+    for (Session session : toClose) {
+      logout(session);
+    }
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    long now = System.currentTimeMillis();
+    checkLeaks(now);
+    int overdue = 0;
+    for (Long since : this.leased.values()) {
+      if (now - since > this.leakMillis) {
+        overdue++;
+      }
+    }
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("leased", this.leased.size());
+    stats.put("idle", this.idle.size());
+    stats.put("maxIdle", this.maxIdle);
+    stats.put("maxLent", this.maxLent);
+    stats.put("logins", this.logins);
+    stats.put("loans", this.loans);
+    stats.put("overdue", overdue);
+    stats.put("leaks", this.leaks);
+    stats.put("waits", this.waits);
+    stats.put("refusals", this.refusals);
+    return stats;
+  }
+
+  private void checkShutdown() {
+    if (this.shutdown) {
+      throw new IllegalStateException("Session pool has been shut down");
+    }
+  }
+
+  private boolean isFull() {
+    return this.maxLent > 0 && this.leased.size() + this.loggingIn >= this.maxLent;
+  }
+
+  private void checkLeaks(long now) {
+    for (Map.Entry<Session, Long> entry : this.leased.entrySet()) {
+      if (now - entry.getValue() > this.leakMillis && !this.reportedLeaks.containsKey(entry.getKey())) {
+        this.reportedLeaks.put(entry.getKey(), Boolean.TRUE);
+        this.leaks++;
+        LOGGER.warn("Calendar session lent {}ms ago has not been released; is a connector left unclosed?",
+            now - entry.getValue());
+      }
+    }
+  }
+
+  private static void logout(Session session) {
+    try {
+      session.logout();
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.BadRequestException;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalDavUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Protects request threads from a slow or failing calendar server. Calls run on a bounded pool (the
+ * bulkhead) and are abandoned after a per-operation timeout. A circuit breaker keeps the outcome of the
+ * most recent calls; once enough of them have failed or been slow it opens, and calls fail fast with a
+ * CalDavUnavailableException until a single probe call succeeds.
+ */
+public class CalDavCallGuard {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalDavCallGuard.class);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final ThreadPoolExecutor executor;
+
+  private final int minimumCalls;
+
+  private final int failureRatePercent;
+
+  private final long slowCallMillis;
+
+  private final long openMillis;
+
+  private final boolean[] window;
+
+  private int windowPosition;
+
+  private int windowCount;
+
+  private int windowFailures;
+
+  private State state = State.CLOSED;
+
+  private long openedAt;
+
+  private boolean probeInFlight;
+
+  private long calls;
+
+  private long failures;
+
+  private long slowCalls;
+
+  private long timeouts;
+
+  private long rejectedOpen;
+
+  private long rejectedBulkhead;
+
+  /**
+   * @param maxConcurrentCalls calls which may be in progress at once
+   * @param windowSize number of recent calls the breaker looks at
+   * @param minimumCalls calls needed in the window before the breaker can open
+   * @param failureRatePercent percentage of failed or slow calls in the window which opens the breaker
+   * @param slowCallMillis a successful call taking this long counts against the server
+   * @param openMillis how long the breaker stays open before a probe call is let through
+   */
+  public CalDavCallGuard(int maxConcurrentCalls, int windowSize, int minimumCalls, int failureRatePercent,
+                         long slowCallMillis, long openMillis) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(0, maxConcurrentCalls, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CalDAV call " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    this.window = new boolean[windowSize];
+    this.minimumCalls = minimumCalls;
+    this.failureRatePercent = failureRatePercent;
+    this.slowCallMillis = slowCallMillis;
+    this.openMillis = openMillis;
+  }
+
+  public <T> T call(String operation, Callable<T> callable, long timeoutMillis) throws CalDavException, IOException {
+    boolean probe = acquirePermission(operation);
+    Future<T> future;
+    try {
+      future = this.executor.submit(callable);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        this.rejectedBulkhead++;
+        if (probe) {
+          this.probeInFlight = false;
+        }
+      }
+      throw new CalDavUnavailableException("Too many calendar server calls in progress; rejected " + operation, e);
+    }
+    long start = System.currentTimeMillis();
+    boolean failed = true;
+    boolean interrupted = false;
+    try {
+      T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      failed = false;
+      return result;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      synchronized (this) {
+        this.timeouts++;
+      }
+      throw new CalDavUnavailableException(operation + " timed out after " + timeoutMillis + "ms", e);
+    } catch (InterruptedException e) {
+      // says nothing about the server either way
+      interrupted = true;
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new CalDavUnavailableException("Interrupted waiting for " + operation, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BadRequestException && ((BadRequestException) cause).getStatusCode() < 500) {
+        // the server answered; the request was at fault
+        failed = false;
+      }
+      if (cause instanceof CalDavException) {
+        throw (CalDavException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CalDavException("Error running " + operation, cause);
+    } finally {
+      if (interrupted) {
+        abandonCall(probe);
+      } else {
+        recordOutcome(operation, probe, failed, System.currentTimeMillis() - start);
+      }
+    }
+  }
+
+  public synchronized State getState() {
+    if (this.state == State.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis) {
+      return State.HALF_OPEN;
+    }
+    return this.state;
+  }
+
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("state", getState().toString());
+    stats.put("active", this.executor.getActiveCount());
+    stats.put("maxConcurrent", this.executor.getMaximumPoolSize());
+    stats.put("calls", this.calls);
+    stats.put("failures", this.failures);
+    stats.put("slowCalls", this.slowCalls);
+    stats.put("timeouts", this.timeouts);
+    stats.put("rejectedOpen", this.rejectedOpen);
+    stats.put("rejectedBulkhead", this.rejectedBulkhead);
+    stats.put("windowFailures", this.windowFailures);
+    stats.put("windowCalls", this.windowCount);
+    return stats;
+  }
+
+  /**
+   * @return true if this call is the single probe let through while the breaker is half open
+   */
+  private synchronized boolean acquirePermission(String operation) throws CalDavUnavailableException {
+    this.calls++;
+    if (this.state == State.OPEN) {
+      if (System.currentTimeMillis() - this.openedAt < this.openMillis) {
+        this.rejectedOpen++;
+        throw new CalDavUnavailableException("Calendar server circuit is open; rejected " + operation, null);
+      }
+      this.state = State.HALF_OPEN;
+      this.probeInFlight = false;
+    }
+    if (this.state == State.HALF_OPEN) {
+      if (this.probeInFlight) {
+        this.rejectedOpen++;
+        throw new CalDavUnavailableException("Calendar server circuit is half open; rejected " + operation, null);
+      }
+      this.probeInFlight = true;
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void abandonCall(boolean probe) {
+    if (probe) {
+      this.probeInFlight = false;
+    }
+  }
+
+  private synchronized void recordOutcome(String operation, boolean probe, boolean failed, long elapsed) {
+    boolean slow = elapsed >= this.slowCallMillis;
+    if (failed) {
+      this.failures++;
+    }
+    if (slow) {
+      this.slowCalls++;
+    }
+    boolean bad = failed || slow;
+    if (probe) {
+      this.probeInFlight = false;
+      if (bad) {
+        open(operation);
+      } else {
+        LOGGER.info("Calendar server circuit closed after successful {}", operation);
+        this.state = State.CLOSED;
+        resetWindow();
+      }
+      return;
+    }
+    if (this.state != State.CLOSED) {
+      // a call admitted before the breaker opened; only the probe decides when it closes
+      return;
+    }
+    if (this.windowCount == this.window.length) {
+      if (this.window[this.windowPosition]) {
+        this.windowFailures--;
+      }
+    } else {
+      this.windowCount++;
+    }
+    this.window[this.windowPosition] = bad;
+    if (bad) {
+      this.windowFailures++;
+    }
+    this.windowPosition = (this.windowPosition + 1) % this.window.length;
+    if (this.windowCount >= this.minimumCalls
+        && this.windowFailures * 100 >= this.failureRatePercent * this.windowCount) {
+      open(operation);
+    }
+  }
+
+  private void open(String operation) {
+    LOGGER.warn("Calendar server circuit opened after {}; {} of the last {} calls failed or were slow",
+        new Object[] {operation, this.windowFailures, this.windowCount});
+    this.state = State.OPEN;
+    this.openedAt = System.currentTimeMillis();
+    resetWindow();
+  }
+
+  private void resetWindow() {
+    this.windowPosition = 0;
+    this.windowCount = 0;
+    this.windowFailures = 0;
+  }
+}
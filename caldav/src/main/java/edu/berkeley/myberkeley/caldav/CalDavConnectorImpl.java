@@ -23,27 +23,26 @@ package edu.berkeley.myberkeley.caldav;
 import edu.berkeley.myberkeley.caldav.api.BadRequestException;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
 import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
 import edu.berkeley.myberkeley.caldav.api.CalendarURI;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
-import edu.berkeley.myberkeley.caldav.report.CalDavConstants;
 import edu.berkeley.myberkeley.caldav.report.CalendarMultiGetReportInfo;
 import edu.berkeley.myberkeley.caldav.report.CalendarQueryReportInfo;
 import edu.berkeley.myberkeley.caldav.report.Filter;
 import edu.berkeley.myberkeley.caldav.report.RequestCalendarData;
-import edu.berkeley.myberkeley.caldav.report.TimeRange;
+import edu.berkeley.myberkeley.caldav.report.SyncCollectionReportInfo;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
-import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.TimeZone;
 import net.fortuna.ical4j.model.TimeZoneRegistry;
 
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpClientError;
+import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.URI;
@@ -55,7 +54,6 @@ import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.jackrabbit.webdav.DavException;
-import org.apache.jackrabbit.webdav.MultiStatus;
 import org.apache.jackrabbit.webdav.MultiStatusResponse;
 import org.apache.jackrabbit.webdav.Status;
 import org.apache.jackrabbit.webdav.client.methods.AclMethod;
@@ -71,10 +69,12 @@ import org.apache.jackrabbit.webdav.security.AclProperty;
 import org.apache.jackrabbit.webdav.security.Principal;
 import org.apache.jackrabbit.webdav.security.Privilege;
 import org.apache.jackrabbit.webdav.version.report.ReportInfo;
+import org.apache.sling.commons.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
@@ -83,10 +83,15 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -97,7 +102,9 @@ public class CalDavConnectorImpl implements CalDavConnector {
   private static final Set<Integer> ALLOWABLE_HTTP_STATUS_CODES = new HashSet<Integer>(Arrays.asList(
           HttpStatus.SC_OK, HttpStatus.SC_CREATED, HttpStatus.SC_NO_CONTENT, HttpStatus.SC_MULTI_STATUS));
 
-  private final HttpClient client = new HttpClient();
+  private final CalDavHttpTransport transport;
+
+  private final HttpState httpState;
 
   private final URI serverRoot;
 
@@ -107,11 +114,46 @@ public class CalDavConnectorImpl implements CalDavConnector {
 
   private final String owner;
 
+  private final CalendarCache cache;
+
+  private final CalendarSyncStateStore syncStates;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private CalendarQueryBuilder queryBuilder = new CalendarQueryBuilder(false);
+
+  private int multiGetChunkSize = DEFAULT_MULTIGET_CHUNK_SIZE;
+
+  private int multiGetParallelism = 1;
+
+  private ExecutorService multiGetExecutor;
+
+  static final int DEFAULT_MULTIGET_CHUNK_SIZE = 100;
+
+  static final int MAX_PATCH_ATTEMPTS = 3;
+
+  private static final String VALID_SYNC_TOKEN = "valid-sync-token";
+
+  private static final String SUPPORTED_REPORT = "supported-report";
+
   public CalDavConnectorImpl(String username, String password, URI serverRoot, URI userHome, String owner) {
-    HttpState httpState = new HttpState();
+    this(CalDavHttpTransport.getShared(), null, null, username, password, serverRoot, userHome, owner);
+  }
+
+  /**
+   * @param transport shared connection pool; this connector's credentials are sent with each of its requests
+   * @param cache shared cache of parsed search results, or null to always fetch full calendar data
+   * @param syncStates shared sync-collection state, or null to always list the calendar home with PROPFIND
+   */
+  public CalDavConnectorImpl(CalDavHttpTransport transport, CalendarCache cache, CalendarSyncStateStore syncStates,
+                             String username, String password, URI serverRoot, URI userHome, String owner) {
+    this.transport = transport;
+    this.transport.connectorOpened();
+    this.cache = cache;
+    this.syncStates = syncStates;
+    this.httpState = new HttpState();
     Credentials credentials = new UsernamePasswordCredentials(username, password);
-    httpState.setCredentials(AuthScope.ANY, credentials);
-    this.client.setState(httpState);
+    this.httpState.setCredentials(AuthScope.ANY, credentials);
     this.serverRoot = serverRoot;
     this.userHome = userHome;
     this.username = username;
@@ -119,11 +161,112 @@ public class CalDavConnectorImpl implements CalDavConnector {
   }
 
   /**
-   * Returns the user's calendar entries (all of them) as a set of URIs
-   * by doing a PROPFIND on a user calendar home, eg:
+   * Send category conditions to the server as calendar-query prop-filters, instead of only filtering in
+   * memory. Leave this off for servers with known category search bugs.
+   */
+  public void setServerSideFilters(boolean serverSideFilters) {
+    this.queryBuilder = new CalendarQueryBuilder(serverSideFilters);
+  }
+
+  /**
+   * @param chunkSize number of hrefs in each calendar-multiget request made by iterateCalendars
+   * @param parallelism number of chunks which may be fetched ahead of the consumer
+   * @param executor runs chunk fetches; if null, chunks are fetched one at a time on the consuming thread
+   */
+  public void setMultiGetOptions(int chunkSize, int parallelism, ExecutorService executor) {
+    this.multiGetChunkSize = chunkSize;
+    this.multiGetParallelism = parallelism;
+    this.multiGetExecutor = executor;
+  }
+
+  /**
+   * The server's own ETags and sync tokens are per entry or need a request, so no store version is kept.
+   */
+  public long getStoreVersion() {
+    return 0;
+  }
+
+  /**
+   * Returns the user's calendar entries (all of them) as a set of URIs. If sync state is available,
+   * only the changes since the last call are fetched with a sync-collection report; otherwise this
+   * does a PROPFIND on a user calendar home, eg:
    * http://test.media.berkeley.edu:8080/ucaldav/user/vbede/calendar/
    */
   public List<CalendarURI> getCalendarUris() throws CalDavException, IOException {
+    if (this.syncStates != null && !this.syncStates.isUnsupported()) {
+      CalendarSyncState state = this.syncStates.getState(this.userHome.toString());
+      synchronized (state) {
+        if (syncCalendarUris(state)) {
+          List<CalendarURI> uris = new ArrayList<CalendarURI>(state.getEtags().size());
+          for (Map.Entry<String, String> entry : state.getEtags().entrySet()) {
+            try {
+              CalendarURI calUri = new CalendarURI(new URI(this.serverRoot, entry.getKey(), false), entry.getValue());
+              calUri.setEntityTag(entry.getValue());
+              uris.add(calUri);
+            } catch (ParseException pe) {
+              throw new CalDavException("Invalid etag date", pe);
+            }
+          }
+          return uris;
+        }
+      }
+    }
+    return propFindCalendarUris();
+  }
+
+  /**
+   * Bring the sync state up to date, starting over if the server rejects the saved token. Other errors,
+   * such as an unknown user or an unavailable server, are thrown without touching the sync state.
+   *
+   * @return false if the server does not support sync-collection
+   */
+  private boolean syncCalendarUris(CalendarSyncState state) throws CalDavException, IOException {
+    final Map<String, String> changed = new HashMap<String, String>();
+    final List<String> removed = new ArrayList<String>();
+    boolean incremental = (state.getSyncToken() != null);
+    CalDavMultiStatusParser parser;
+    try {
+      parser = streamReport(new SyncCollectionReportInfo(state.getSyncToken()),
+              new CalDavMultiStatusParser.ResponseHandler() {
+                public boolean handleResponse(String href, int status, String etag, String calendarData) {
+                  if (href != null && href.endsWith(".ics")) {
+                    if (status == HttpStatus.SC_NOT_FOUND) {
+                      removed.add(href);
+                    } else if (etag != null) {
+                      changed.put(href, etag);
+                    }
+                  }
+                  return true;
+                }
+              });
+    } catch (BadRequestException e) {
+      String condition = e.getErrorCondition();
+      if (incremental && VALID_SYNC_TOKEN.equals(condition)) {
+        LOGGER.info("Sync token rejected for {}, starting a full sync", this.userHome);
+        this.syncStates.recordRejectedToken();
+        state.reset();
+        return syncCalendarUris(state);
+      }
+      if (e.getStatusCode() == HttpStatus.SC_FORBIDDEN || e.getStatusCode() == HttpStatus.SC_NOT_IMPLEMENTED ||
+          VALID_SYNC_TOKEN.equals(condition) || SUPPORTED_REPORT.equals(condition)) {
+        LOGGER.warn("Server does not support sync-collection on {}, falling back to PROPFIND; status = {}, " +
+                "condition = {}", new Object[] {this.userHome, e.getStatusCode(), condition});
+        this.syncStates.markUnsupported();
+        return false;
+      }
+      throw e;
+    }
+    if (parser.getSyncToken() == null) {
+      LOGGER.warn("No sync-token returned for {}, falling back to PROPFIND", this.userHome);
+      this.syncStates.markUnsupported();
+      return false;
+    }
+    state.apply(parser.getSyncToken(), changed, removed);
+    this.syncStates.recordSync(incremental);
+    return true;
+  }
+
+  private List<CalendarURI> propFindCalendarUris() throws CalDavException, IOException {
     List<CalendarURI> uris = new ArrayList<CalendarURI>();
     try {
       PropFindMethod propFind = executeMethod(new PropFindMethod(this.userHome.toString()));
@@ -138,6 +281,7 @@ public class CalDavConnectorImpl implements CalDavConnector {
               CalendarURI calUri = new CalendarURI(
                       new URI(this.serverRoot, response.getHref(), false),
                       etag.getValue().toString());
+              calUri.setEntityTag(etag.getValue().toString());
               uris.add(calUri);
             } catch (ParseException pe) {
               throw new CalDavException("Invalid etag date", pe);
@@ -161,9 +305,13 @@ public class CalDavConnectorImpl implements CalDavConnector {
   }
 
   /**
-   * Write the specified calendar at the specified URI, deleting the previous entry if one already exists at the URI.
+   * Write the specified calendar at the specified URI, replacing the previous entry in a single conditional PUT.
+   * A new entry is created only if the URI is null; its permissions are restricted after creation, while an
+   * existing entry keeps the ACL it was given then. If the entry changed on the server since its ETag was read,
+   * the write is refused with a BadRequestException carrying status 412, so that the concurrent change is not
+   * overwritten; re-read the entry and apply the change to the current version.
    *
-   * @return The URI of the calendar entry.
+   * @return The URI of the calendar entry, carrying the ETag of the written version if the server returned one.
    */
   public CalendarURI modifyCalendar(CalendarURI uri, Calendar calendar) throws CalDavException, IOException {
     if (uri == null) {
@@ -173,9 +321,20 @@ public class CalDavConnectorImpl implements CalDavConnector {
       } catch (URIException uie) {
         throw new CalDavException("Unexpected URIException", uie);
       }
-    } else {
-      deleteCalendar(uri);
+      PutMethod put = buildPut(uri, calendar);
+      put.setRequestHeader("If-None-Match", "*");
+      executeMethod(put);
+      restrictPermissions(uri);
+      return withResponseEtag(uri, put);
     }
+
+    PutMethod put = buildPut(uri, calendar);
+    put.setRequestHeader("If-Match", (uri.getEntityTag() != null) ? uri.getEntityTag() : "*");
+    executeMethod(put);
+    return withResponseEtag(uri, put);
+  }
+
+  private PutMethod buildPut(CalendarURI uri, Calendar calendar) throws CalDavException {
     PutMethod put = new PutMethod(uri.toString());
     try {
       if (LOGGER.isDebugEnabled()) {
@@ -185,9 +344,32 @@ public class CalDavConnectorImpl implements CalDavConnector {
     } catch (UnsupportedEncodingException uee) {
       throw new CalDavException("Got unsupported encoding exception, does this server not like UTF-8?", uee);
     }
-    executeMethod(put);
-    restrictPermissions(uri);
-    return uri;
+    return put;
+  }
+
+  private CalendarURI withResponseEtag(CalendarURI uri, PutMethod put) throws CalDavException {
+    Header etagHeader = put.getResponseHeader("ETag");
+    if (etagHeader == null) {
+      uri.setEntityTag(null);
+      return uri;
+    }
+    return toCalendarUri(uri, etagHeader.getValue());
+  }
+
+  private CalendarURI toCalendarUri(URI uri, String etag) throws CalDavException {
+    CalendarURI calendarUri;
+    try {
+      try {
+        calendarUri = new CalendarURI(uri, etag);
+      } catch (ParseException pe) {
+        LOGGER.debug("ETag {} is not a date, using the current time instead", etag);
+        calendarUri = new CalendarURI(uri, new DateTime());
+      }
+    } catch (URIException uie) {
+      throw new CalDavException("Unexpected URIException", uie);
+    }
+    calendarUri.setEntityTag(etag);
+    return calendarUri;
   }
 
   /**
@@ -198,6 +380,61 @@ public class CalDavConnectorImpl implements CalDavConnector {
     executeMethod(deleteMethod);
   }
 
+  /**
+   * CalDAV has no partial update, so the entries are fetched in one multiget and each changed one is
+   * written back whole.
+   */
+  public List<CalendarURI> patchCalendars(List<CalendarPatch> patches) throws CalDavException, IOException {
+    List<CalendarURI> uris = new ArrayList<CalendarURI>(patches.size());
+    for (CalendarPatch patch : patches) {
+      uris.add(patch.getUri());
+    }
+    Map<CalendarURI, CalendarWrapper> wrappers = new HashMap<CalendarURI, CalendarWrapper>();
+    for (CalendarWrapper wrapper : getCalendars(uris)) {
+      wrappers.put(wrapper.getUri(), wrapper);
+    }
+    List<CalendarURI> patched = new ArrayList<CalendarURI>(patches.size());
+    for (CalendarPatch patch : patches) {
+      CalendarURI patchedUri = patchCalendar(patch, wrappers.get(patch.getUri()));
+      if (patchedUri != null) {
+        patched.add(patchedUri);
+      }
+    }
+    return patched;
+  }
+
+  /**
+   * Write one patched entry. If someone else changed it since it was read, the current version is read
+   * again and the patch applied to that instead, up to MAX_PATCH_ATTEMPTS times.
+   *
+   * @return the written URI, or null if the entry is missing or needed no change
+   */
+  private CalendarURI patchCalendar(CalendarPatch patch, CalendarWrapper wrapper) throws CalDavException, IOException {
+    for (int attempt = 1; ; attempt++) {
+      if (wrapper == null) {
+        LOGGER.warn("Skipping update of missing calendar {}", patch.getUri());
+        return null;
+      }
+      try {
+        if (!patch.applyTo(wrapper)) {
+          return null;
+        }
+      } catch (JSONException e) {
+        throw new CalDavException("Could not apply " + patch, e);
+      }
+      try {
+        return modifyCalendar(wrapper.getUri(), wrapper.getCalendar());
+      } catch (BadRequestException e) {
+        if (e.getStatusCode() != HttpStatus.SC_PRECONDITION_FAILED || attempt >= MAX_PATCH_ATTEMPTS) {
+          throw e;
+        }
+        LOGGER.info("{} changed on the server; reapplying {}", patch.getUri(), patch);
+        List<CalendarWrapper> current = getCalendars(Arrays.asList(patch.getUri()));
+        wrapper = current.isEmpty() ? null : current.get(0);
+      }
+    }
+  }
+
   /**
    * Get calendar entries by their URIs. Use the output of #getCalendarUris as the input to this method.
    */
@@ -213,24 +450,48 @@ public class CalDavConnectorImpl implements CalDavConnector {
     return search(reportInfo);
   }
 
-  public List<CalendarWrapper> searchByDate(CalendarSearchCriteria criteria) throws CalDavException, IOException {
-    Filter vcalComp = new Filter("VCALENDAR");
-    Filter subcomponent = new Filter(criteria.getType().toString());
-    subcomponent.setTimeRange(new TimeRange(criteria.getStart(), criteria.getEnd()));
-    vcalComp.setCompFilter(Arrays.asList(subcomponent));
+  public Iterator<CalendarWrapper> iterateCalendars(List<CalendarURI> uris) throws CalDavException, IOException {
+    return new ChunkedCalendarIterator(uris, this.multiGetChunkSize, this.multiGetParallelism, this.multiGetExecutor,
+            new ChunkedCalendarIterator.ChunkLoader() {
+              public List<CalendarWrapper> load(List<CalendarURI> chunk) throws CalDavException, IOException {
+                return getCalendars(chunk);
+              }
+            });
+  }
 
-    ReportInfo reportInfo = new CalendarQueryReportInfo(new RequestCalendarData(), vcalComp);
-    List<CalendarWrapper> rawResults = search(reportInfo);
+  public List<CalendarWrapper> searchByDate(CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    Filter vcalComp = this.queryBuilder.buildSearchFilter(criteria);
+    List<CalendarWrapper> rawResults;
+    if (this.cache != null) {
+      rawResults = searchWithCache(vcalComp);
+    } else {
+      rawResults = search(new CalendarQueryReportInfo(new RequestCalendarData(), vcalComp));
+    }
     CalendarResultProcessor processor = new CalendarResultProcessor(rawResults, criteria);
     return processor.processResults();
   }
 
-  public boolean hasOverdueTasks() throws CalDavException, IOException {
-    ReportMethod report = null;
+  public CalendarSearchResult searchPage(CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    return CalendarSearchResult.page(searchByDate(criteria), criteria);
+  }
 
-    Filter vcalComp = new Filter("VCALENDAR");
-    Filter subcomponent = new Filter(Component.VTODO);
+  /**
+   * The remote server keeps no summary, so this reads every entry.
+   */
+  public CalendarSummary getSummary() throws CalDavException, IOException {
+    CalendarSummary summary = new CalendarSummary();
+    for (CalendarWrapper wrapper : getCalendars(getCalendarUris())) {
+      summary.add(wrapper);
+    }
+    return summary;
+  }
 
+  public CalendarDashboard getDashboard(CalendarSearchCriteria eventCriteria, CalendarSearchCriteria taskCriteria)
+      throws CalDavException, IOException {
+    return CalendarDashboard.load(this, eventCriteria, taskCriteria);
+  }
+
+  public boolean hasOverdueTasks() throws CalDavException, IOException {
     Date midnightToday = new Date();
     midnightToday = DateUtils.setHours(midnightToday, 0);
     midnightToday = DateUtils.setMinutes(midnightToday, 0);
@@ -239,105 +500,169 @@ public class CalDavConnectorImpl implements CalDavConnector {
     DateFormat utcFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
     TimeZoneRegistry registry = new CalendarBuilder().getRegistry();
     TimeZone gmt = registry.getTimeZone("Europe/London");
+    DateTime endTime = new DateTime(midnightToday);
     try {
-      DateTime endTime = new DateTime(utcFormat.format(midnightToday), gmt);
-      subcomponent.setTimeRange(new TimeRange(new DateTime(0), endTime));
+      endTime = new DateTime(utcFormat.format(midnightToday), gmt);
       LOGGER.info("End time for overdue task search = " + endTime.toString());
     } catch (ParseException ignored) {
       // won't happen since we formatted the date ourselves
     }
 
-    vcalComp.setCompFilter(Arrays.asList(subcomponent));
-    ReportInfo reportInfo = new CalendarQueryReportInfo(new RequestCalendarData(), vcalComp);
+    ReportInfo reportInfo = new CalendarQueryReportInfo(this.queryBuilder.buildOverdueCalendarData(),
+            this.queryBuilder.buildOverdueFilter(endTime));
 
-    try {
-      report = new ReportMethod(this.userHome.toString(), reportInfo);
+    final CalendarBuilder builder = new CalendarBuilder();
+    final boolean[] found = new boolean[]{false};
+    LOGGER.debug("Doing calendar search for overdue tasks");
+    streamReport(reportInfo, new CalDavMultiStatusParser.ResponseHandler() {
+      public boolean handleResponse(String href, int status, String etag, String calendarData) throws CalDavException {
+        if (etag == null || calendarData == null) {
+          return true;
+        }
+        CalendarWrapper wrapper = buildWrapper(builder, href, etag, calendarData);
+        if (!wrapper.isCompleted() && !wrapper.isArchived()) {
+          found[0] = true;
+          return false;
+        }
+        return true;
+      }
+    });
+    return found[0];
+  }
 
-      ByteArrayOutputStream requestOut = new ByteArrayOutputStream();
-      report.getRequestEntity().writeRequest(requestOut);
-      LOGGER.debug("Doing calendar search for overdue tasks; Request body: " + requestOut.toString("utf-8"));
-
-      executeMethod(report);
-
-      MultiStatus multiStatus = report.getResponseBodyAsMultiStatus();
-      for (MultiStatusResponse response : multiStatus.getResponses()) {
-        DavPropertySet propSet = response.getProperties(HttpServletResponse.SC_OK);
-        DavProperty etag = propSet.get(DavPropertyName.GETETAG);
-        if (etag != null) {
-          DavProperty prop = propSet.get(
-                  CalDavConstants.CALDAV_XML_CALENDAR_DATA, CalDavConstants.CALDAV_NAMESPACE);
-          CalendarBuilder builder = new CalendarBuilder();
-          net.fortuna.ical4j.model.Calendar calendar = builder.build(
-                  new StringReader(prop.getValue().toString()));
-          CalendarWrapper wrapper = new CalendarWrapper(
-                  calendar,
-                  new URI(this.serverRoot, response.getHref(), false),
-                  etag.getValue().toString());
-          if (!wrapper.isCompleted() && !wrapper.isArchived()) {
-            return true;
-          }
+  private List<CalendarWrapper> search(ReportInfo reportInfo) throws CalDavException, IOException {
+    final List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
+    final CalendarBuilder builder = new CalendarBuilder();
+    LOGGER.debug("Doing calendar search");
+    streamReport(reportInfo, new CalDavMultiStatusParser.ResponseHandler() {
+      public boolean handleResponse(String href, int status, String etag, String calendarData) throws CalDavException {
+        if (calendarData != null) {
+          calendars.add(buildWrapper(builder, href, etag, calendarData));
         }
+        return true;
       }
+    });
+    return calendars;
+  }
 
-    } catch (DavException de) {
-      throw new CalDavException("Got a webdav exception", de);
-    } catch (ParserException pe) {
-      throw new CalDavException("Invalid calendar data", pe);
-    } finally {
-      if (report != null) {
-        report.releaseConnection();
+  /**
+   * Ask only for the hrefs and ETags of matching entries, then multiget the calendar data of those which
+   * are not already cached at their current ETag.
+   */
+  private List<CalendarWrapper> searchWithCache(Filter filter) throws CalDavException, IOException {
+    final List<String> hrefs = new ArrayList<String>();
+    final Map<String, CalendarWrapper> wrappers = new HashMap<String, CalendarWrapper>();
+    final List<String> misses = new ArrayList<String>();
+    LOGGER.debug("Doing ETag-only calendar search");
+    streamReport(new CalendarQueryReportInfo(null, filter), new CalDavMultiStatusParser.ResponseHandler() {
+      public boolean handleResponse(String href, int status, String etag, String calendarData) {
+        if (href == null || etag == null) {
+          return true;
+        }
+        hrefs.add(href);
+        CalendarWrapper cached = cache.get(href, etag);
+        if (cached != null) {
+          wrappers.put(href, cached);
+        } else {
+          misses.add(href);
+        }
+        return true;
       }
+    });
+    if (!misses.isEmpty()) {
+      final CalendarBuilder builder = new CalendarBuilder();
+      LOGGER.debug("Fetching {} of {} calendars not found in cache", misses.size(), hrefs.size());
+      streamReport(new CalendarMultiGetReportInfo(new RequestCalendarData(), misses),
+              new CalDavMultiStatusParser.ResponseHandler() {
+                public boolean handleResponse(String href, int status, String etag, String calendarData)
+                        throws CalDavException {
+                  if (calendarData != null) {
+                    CalendarWrapper wrapper = buildWrapper(builder, href, etag, calendarData);
+                    cache.put(href, etag, wrapper, calendarData.length());
+                    wrappers.put(href, wrapper);
+                  }
+                  return true;
+                }
+              });
     }
-
-    return false;
+    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>(hrefs.size());
+    for (String href : hrefs) {
+      CalendarWrapper wrapper = wrappers.get(href);
+      if (wrapper != null) {
+        calendars.add(wrapper);
+      }
+    }
+    return calendars;
   }
 
-  private List<CalendarWrapper> search(ReportInfo reportInfo) throws CalDavException, IOException {
-    ReportMethod report = null;
-    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
-
+  private CalendarWrapper buildWrapper(CalendarBuilder builder, String href, String etag, String calendarData)
+          throws CalDavException {
     try {
-      String reportURL = this.userHome.toString();
-      report = new ReportMethod(reportURL, reportInfo);
+      Calendar calendar = builder.build(new StringReader(calendarData));
+      CalendarURI calUri = new CalendarURI(new URI(this.serverRoot, href, false), etag);
+      calUri.setEntityTag(etag);
+      return new CalendarWrapper(calendar, calUri, null);
+    } catch (ParserException pe) {
+      throw new CalDavException("Invalid calendar data", pe);
+    } catch (ParseException pe) {
+      throw new CalDavException("Invalid etag date", pe);
+    } catch (IOException ioe) {
+      throw new CalDavException("Could not read calendar data", ioe);
+    }
+  }
 
+  /**
+   * Run a REPORT and hand each response to the handler as the body streams in. If the handler stops early,
+   * the connection is aborted instead of reading the rest of the body.
+   */
+  private CalDavMultiStatusParser streamReport(ReportInfo reportInfo, CalDavMultiStatusParser.ResponseHandler handler)
+          throws CalDavException, IOException {
+    CalDavMultiStatusParser parser = new CalDavMultiStatusParser();
+    StreamingReportMethod report = new StreamingReportMethod(this.userHome.toString(), reportInfo);
+    if (LOGGER.isDebugEnabled()) {
       ByteArrayOutputStream requestOut = new ByteArrayOutputStream();
       report.getRequestEntity().writeRequest(requestOut);
-      LOGGER.debug("Doing calendar search; Request body: " + requestOut.toString("utf-8"));
-
-      executeMethod(report);
-
-      MultiStatus multiStatus = report.getResponseBodyAsMultiStatus();
-      for (MultiStatusResponse response : multiStatus.getResponses()) {
-        DavPropertySet propSet = response.getProperties(HttpServletResponse.SC_OK);
-        DavProperty etag = propSet.get(DavPropertyName.GETETAG);
-        DavProperty prop = propSet.get(
-                CalDavConstants.CALDAV_XML_CALENDAR_DATA, CalDavConstants.CALDAV_NAMESPACE);
-        if (prop != null) {
-          CalendarBuilder builder = new CalendarBuilder();
-          net.fortuna.ical4j.model.Calendar calendar = builder.build(
-                  new StringReader(prop.getValue().toString()));
-          calendars.add(new CalendarWrapper(
-                  calendar,
-                  new URI(this.serverRoot, response.getHref(), false),
-                  etag.getValue().toString()));
-        }
+      LOGGER.debug("Request body: " + requestOut.toString("utf-8"));
+    }
+    try {
+      this.transport.execute(report, this.httpState);
+      logRequest(report);
+      if (!ALLOWABLE_HTTP_STATUS_CODES.contains(report.getStatusCode())) {
+        InputStream errorBody = report.getResponseBodyAsStream();
+        String condition = (errorBody != null) ? CalDavMultiStatusParser.parseErrorCondition(errorBody) : null;
+        throw new BadRequestException("Bad request on uri " + report.getURI() + "; statusLine=" +
+                report.getStatusLine().toString() + "; condition=" + condition, report.getStatusCode(), condition);
       }
-    } catch (DavException de) {
-      throw new CalDavException("Got a webdav exception", de);
-    } catch (ParserException pe) {
-      throw new CalDavException("Invalid calendar data", pe);
-    } finally {
-      if (report != null) {
-        report.releaseConnection();
+      InputStream in = report.getResponseBodyAsStream();
+      if (in != null && !parser.parse(in, handler)) {
+        report.abort();
       }
+    } catch (HttpClientError hce) {
+      throw new CalDavException("Error running " + report.getName(), hce);
+    } finally {
+      report.releaseConnection();
+    }
+    return parser;
+  }
+
+  /**
+   * A REPORT whose multistatus body is left on the wire for CalDavMultiStatusParser, rather than being
+   * parsed into a DOM as soon as the method executes.
+   */
+  private static class StreamingReportMethod extends ReportMethod {
+    StreamingReportMethod(String uri, ReportInfo reportInfo) throws IOException {
+      super(uri, reportInfo);
+    }
+
+    @Override
+    protected void processResponseBody(HttpState httpState, HttpConnection httpConnection) {
+      // the body is consumed by the caller
     }
-    return calendars;
   }
 
   private <T extends DavMethod> T executeMethod(T method) throws CalDavException, IOException {
     try {
-      method.getParams().setSoTimeout(30000);
-      this.client.executeMethod(method);
+      this.transport.execute(method, this.httpState);
       logRequest(method);
       checkStatus(method);
     } catch (HttpClientError hce) {
@@ -406,8 +731,7 @@ public class CalDavConnectorImpl implements CalDavConnector {
   public void ensureCalendarStore() {
     GetMethod getMethod = new GetMethod(userHome.toString());
     try {
-      getMethod.getParams().setSoTimeout(30000);
-      this.client.executeMethod(getMethod);
+      this.transport.execute(getMethod, this.httpState);
     } catch (IOException e) {
       LOGGER.error("Error running " + getMethod.getName() + ": " + e.getMessage());
     } finally {
@@ -415,4 +739,15 @@ public class CalDavConnectorImpl implements CalDavConnector {
     }
   }
 
+  /**
+   * Let the shared HTTP transport know this connector is done with it, so that a retired transport can
+   * be shut down once drained. Closing twice does nothing more.
+   */
+  @Override
+  public void close() {
+    if (this.closed.compareAndSet(false, true)) {
+      this.transport.connectorClosed();
+    }
+  }
+
 }
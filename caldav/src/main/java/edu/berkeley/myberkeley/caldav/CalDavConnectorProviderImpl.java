@@ -27,6 +27,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
@@ -37,12 +38,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component(label = "MyBerkeley :: CalDavConnectorProvider",
         description = "Provider for CalDav server authentication information",
         immediate = false, metatype = true, policy = ConfigurationPolicy.REQUIRE)
-@Service(value = CalDavConnectorProviderImpl.class)
-public class CalDavConnectorProviderImpl implements CalDavConnectorProvider {
+@Service(value = {CalDavConnectorProviderImpl.class, CalDavStatsSource.class})
+public class CalDavConnectorProviderImpl implements CalDavConnectorProvider, CalDavStatsSource {
   private static final Logger LOGGER = LoggerFactory.getLogger(CalDavConnectorProviderImpl.class);
 
   @org.apache.felix.scr.annotations.Property(value = "admin", label = "CalDav Admin Username")
@@ -54,12 +61,128 @@ public class CalDavConnectorProviderImpl implements CalDavConnectorProvider {
   @org.apache.felix.scr.annotations.Property(label = "CalDav Server Root")
   protected static final String PROP_SERVER_ROOT = "caldavconnectorprovider.serverroot";
 
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+      label = "Max Connections Per Host")
+  protected static final String PROP_MAX_CONNECTIONS_PER_HOST = "caldavconnectorprovider.maxconnectionsperhost";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavHttpTransport.DEFAULT_MAX_TOTAL_CONNECTIONS,
+      label = "Max Total Connections")
+  protected static final String PROP_MAX_TOTAL_CONNECTIONS = "caldavconnectorprovider.maxtotalconnections";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavHttpTransport.DEFAULT_CONNECT_TIMEOUT,
+      label = "Connect Timeout (ms)")
+  protected static final String PROP_CONNECT_TIMEOUT = "caldavconnectorprovider.connecttimeout";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavHttpTransport.DEFAULT_READ_TIMEOUT,
+      label = "Read Timeout (ms)")
+  protected static final String PROP_READ_TIMEOUT = "caldavconnectorprovider.readtimeout";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CalDavHttpTransport.DEFAULT_POOL_TIMEOUT,
+      label = "Connection Pool Wait Timeout (ms)")
+  protected static final String PROP_POOL_TIMEOUT = "caldavconnectorprovider.pooltimeout";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CalDavHttpTransport.DEFAULT_IDLE_TIMEOUT,
+      label = "Idle Connection Timeout (ms)")
+  protected static final String PROP_IDLE_TIMEOUT = "caldavconnectorprovider.idletimeout";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CalDavConnectorProviderImpl.DEFAULT_CACHE_MAX_BYTES,
+      label = "Parsed Calendar Cache Size (bytes)", description = "0 disables the cache")
+  protected static final String PROP_CACHE_MAX_BYTES = "caldavconnectorprovider.cachemaxbytes";
+
+  static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024L * 1024L;
+
+  @org.apache.felix.scr.annotations.Property(boolValue = true, label = "Use WebDAV Sync",
+      description = "List calendars with incremental sync-collection reports where the server supports them")
+  protected static final String PROP_SYNC_COLLECTION = "caldavconnectorprovider.synccollection";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavConnectorProviderImpl.DEFAULT_SYNC_STATE_MAX_USERS,
+      label = "Max Users With Sync State")
+  protected static final String PROP_SYNC_STATE_MAX_USERS = "caldavconnectorprovider.syncstatemaxusers";
+
+  static final int DEFAULT_SYNC_STATE_MAX_USERS = 10000;
+
+  @org.apache.felix.scr.annotations.Property(boolValue = false, label = "Server-Side Category Filters",
+      description = "Filter searches by category on the CalDAV server; leave off for servers with category search bugs")
+  protected static final String PROP_SERVER_SIDE_FILTERS = "caldavconnectorprovider.serversidefilters";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavConnectorProviderImpl.DEFAULT_MAX_CONCURRENT_CALLS,
+      label = "Max Concurrent Calls", description = "Calls to the CalDAV server in progress at once; 0 turns off " +
+      "the concurrency limit, operation timeouts and circuit breaker")
+  protected static final String PROP_MAX_CONCURRENT_CALLS = "caldavconnectorprovider.maxconcurrentcalls";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CalDavConnectorProviderImpl.DEFAULT_READ_OPERATION_TIMEOUT,
+      label = "Read Operation Timeout (ms)")
+  protected static final String PROP_READ_OPERATION_TIMEOUT = "caldavconnectorprovider.readoperationtimeout";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CalDavConnectorProviderImpl.DEFAULT_WRITE_OPERATION_TIMEOUT,
+      label = "Write Operation Timeout (ms)")
+  protected static final String PROP_WRITE_OPERATION_TIMEOUT = "caldavconnectorprovider.writeoperationtimeout";
+
+  @org.apache.felix.scr.annotations.Property(intValue = 20, label = "Circuit Breaker Window Size")
+  protected static final String PROP_BREAKER_WINDOW_SIZE = "caldavconnectorprovider.breakerwindowsize";
+
+  @org.apache.felix.scr.annotations.Property(intValue = 10, label = "Circuit Breaker Minimum Calls")
+  protected static final String PROP_BREAKER_MINIMUM_CALLS = "caldavconnectorprovider.breakerminimumcalls";
+
+  @org.apache.felix.scr.annotations.Property(intValue = 50, label = "Circuit Breaker Failure Rate (%)",
+      description = "Percentage of failed or slow calls which opens the circuit")
+  protected static final String PROP_BREAKER_FAILURE_RATE = "caldavconnectorprovider.breakerfailurerate";
+
+  @org.apache.felix.scr.annotations.Property(longValue = 5000, label = "Circuit Breaker Slow Call (ms)")
+  protected static final String PROP_BREAKER_SLOW_CALL_MILLIS = "caldavconnectorprovider.breakerslowcallmillis";
+
+  @org.apache.felix.scr.annotations.Property(longValue = 30000, label = "Circuit Breaker Open Duration (ms)")
+  protected static final String PROP_BREAKER_OPEN_MILLIS = "caldavconnectorprovider.breakeropenmillis";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavConnectorImpl.DEFAULT_MULTIGET_CHUNK_SIZE,
+      label = "Multiget Chunk Size", description = "Entries fetched per calendar-multiget when iterating large sets")
+  protected static final String PROP_MULTIGET_CHUNK_SIZE = "caldavconnectorprovider.multigetchunksize";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CalDavConnectorProviderImpl.DEFAULT_MULTIGET_PARALLELISM,
+      label = "Multiget Parallelism", description = "Chunks fetched concurrently when iterating large sets")
+  protected static final String PROP_MULTIGET_PARALLELISM = "caldavconnectorprovider.multigetparallelism";
+
+  static final int DEFAULT_MULTIGET_PARALLELISM = 4;
+
+  static final int DEFAULT_MAX_CONCURRENT_CALLS = 20;
+
+  static final long DEFAULT_READ_OPERATION_TIMEOUT = 10000;
+
+  static final long DEFAULT_WRITE_OPERATION_TIMEOUT = 15000;
+
+  /**
+   * How long a replaced transport is given to finish the requests still using it.
+   */
+  static final long TRANSPORT_DRAIN_MILLIS = 120000;
+
   String adminUsername;
 
   String adminPassword;
 
   String calDavServerRoot;
 
+  boolean serverSideFilters;
+
+  private CalDavHttpTransport transport;
+
+  private boolean shutDown;
+
+  private volatile CalendarCache cache;
+
+  private volatile CalendarSyncStateStore syncStates;
+
+  private volatile CalDavCallGuard guard;
+
+  private ExecutorService multiGetExecutor;
+
+  private int multiGetChunkSize = CalDavConnectorImpl.DEFAULT_MULTIGET_CHUNK_SIZE;
+
+  private int multiGetParallelism = DEFAULT_MULTIGET_PARALLELISM;
+
+  private long readOperationTimeout = DEFAULT_READ_OPERATION_TIMEOUT;
+
+  private long writeOperationTimeout = DEFAULT_WRITE_OPERATION_TIMEOUT;
+
 @SuppressWarnings({"UnusedDeclaration"})
 @Activate
 @Modified
@@ -72,17 +195,200 @@ protected void activate(ComponentContext componentContext) throws Exception {
     if (this.calDavServerRoot == null) {
       throw new ComponentException("Will not activate without " + PROP_SERVER_ROOT + " configuration");
     }
+    CalDavHttpTransport newTransport = new CalDavHttpTransport(
+        PropertiesUtil.toInteger(props.get(PROP_MAX_CONNECTIONS_PER_HOST), CalDavHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST),
+        PropertiesUtil.toInteger(props.get(PROP_MAX_TOTAL_CONNECTIONS), CalDavHttpTransport.DEFAULT_MAX_TOTAL_CONNECTIONS),
+        PropertiesUtil.toInteger(props.get(PROP_CONNECT_TIMEOUT), CalDavHttpTransport.DEFAULT_CONNECT_TIMEOUT),
+        PropertiesUtil.toInteger(props.get(PROP_READ_TIMEOUT), CalDavHttpTransport.DEFAULT_READ_TIMEOUT),
+        PropertiesUtil.toLong(props.get(PROP_POOL_TIMEOUT), CalDavHttpTransport.DEFAULT_POOL_TIMEOUT),
+        PropertiesUtil.toLong(props.get(PROP_IDLE_TIMEOUT), CalDavHttpTransport.DEFAULT_IDLE_TIMEOUT));
+    this.serverSideFilters = PropertiesUtil.toBoolean(props.get(PROP_SERVER_SIDE_FILTERS), false);
+    long cacheMaxBytes = PropertiesUtil.toLong(props.get(PROP_CACHE_MAX_BYTES), DEFAULT_CACHE_MAX_BYTES);
+    this.cache = (cacheMaxBytes > 0) ? new CalendarCache(cacheMaxBytes) : null;
+    boolean syncCollection = PropertiesUtil.toBoolean(props.get(PROP_SYNC_COLLECTION), true);
+    this.syncStates = syncCollection ? new CalendarSyncStateStore(PropertiesUtil.toInteger(
+        props.get(PROP_SYNC_STATE_MAX_USERS), DEFAULT_SYNC_STATE_MAX_USERS)) : null;
+    this.multiGetChunkSize = PropertiesUtil.toInteger(props.get(PROP_MULTIGET_CHUNK_SIZE),
+        CalDavConnectorImpl.DEFAULT_MULTIGET_CHUNK_SIZE);
+    this.multiGetParallelism = PropertiesUtil.toInteger(props.get(PROP_MULTIGET_PARALLELISM),
+        DEFAULT_MULTIGET_PARALLELISM);
+    this.readOperationTimeout = PropertiesUtil.toLong(props.get(PROP_READ_OPERATION_TIMEOUT),
+        DEFAULT_READ_OPERATION_TIMEOUT);
+    this.writeOperationTimeout = PropertiesUtil.toLong(props.get(PROP_WRITE_OPERATION_TIMEOUT),
+        DEFAULT_WRITE_OPERATION_TIMEOUT);
+    int maxConcurrentCalls = PropertiesUtil.toInteger(props.get(PROP_MAX_CONCURRENT_CALLS),
+        DEFAULT_MAX_CONCURRENT_CALLS);
+    CalDavCallGuard newGuard = null;
+    if (maxConcurrentCalls > 0) {
+      newGuard = new CalDavCallGuard(maxConcurrentCalls,
+          PropertiesUtil.toInteger(props.get(PROP_BREAKER_WINDOW_SIZE), 20),
+          PropertiesUtil.toInteger(props.get(PROP_BREAKER_MINIMUM_CALLS), 10),
+          PropertiesUtil.toInteger(props.get(PROP_BREAKER_FAILURE_RATE), 50),
+          PropertiesUtil.toLong(props.get(PROP_BREAKER_SLOW_CALL_MILLIS), 5000),
+          PropertiesUtil.toLong(props.get(PROP_BREAKER_OPEN_MILLIS), 30000));
+    }
+    CalDavHttpTransport oldTransport;
+    CalDavCallGuard oldGuard;
+    ExecutorService oldMultiGetExecutor;
+    synchronized (this) {
+      oldTransport = this.transport;
+      this.transport = newTransport;
+      this.shutDown = false;
+      oldGuard = this.guard;
+      this.guard = newGuard;
+      oldMultiGetExecutor = this.multiGetExecutor;
+      this.multiGetExecutor = null;
+    }
+    if (oldTransport != null) {
+      retire(oldTransport, oldGuard, oldMultiGetExecutor);
+    }
   }
 
-  public CalDavConnector getAdminConnector(String owner) throws IOException {
-    return new CalDavConnectorImpl(this.adminUsername, this.adminPassword,
-            new URI(this.calDavServerRoot, false),
-            new URI(this.calDavServerRoot + "/ucaldav/user/" + owner + "/calendar/", false), owner);
+  @SuppressWarnings({"UnusedDeclaration"})
+  @Deactivate
+  protected void deactivate(ComponentContext componentContext) {
+    shutdown();
+    // connectors built without a provider live no longer than the bundle
+    CalDavHttpTransport.shutdownShared();
+  }
+
+  /**
+   * Close pooled connections. Callers which construct a provider outside of OSGi should call this when done.
+   * The provider hands out no more connectors afterwards.
+   */
+  void shutdown() {
+    this.cache = null;
+    this.syncStates = null;
+    CalDavHttpTransport oldTransport;
+    CalDavCallGuard oldGuard;
+    ExecutorService oldMultiGetExecutor;
+    synchronized (this) {
+      oldTransport = this.transport;
+      this.transport = null;
+      this.shutDown = true;
+      oldGuard = this.guard;
+      this.guard = null;
+      oldMultiGetExecutor = this.multiGetExecutor;
+      this.multiGetExecutor = null;
+    }
+    if (oldTransport != null) {
+      oldTransport.shutdown();
+    }
+    if (oldGuard != null) {
+      oldGuard.shutdown();
+    }
+    if (oldMultiGetExecutor != null) {
+      oldMultiGetExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Shut down a replaced transport, with the call guard and multiget threads which went with it, once
+   * the connectors still using it are done, so that reconfiguring does not break requests in progress.
+   */
+  private void retire(final CalDavHttpTransport oldTransport, final CalDavCallGuard oldGuard,
+                      final ExecutorService oldMultiGetExecutor) {
+    Thread drain = new Thread("CalDAV transport drain") {
+      @Override
+      public void run() {
+        try {
+          if (!oldTransport.awaitIdle(TRANSPORT_DRAIN_MILLIS)) {
+            LOGGER.warn("Shutting down replaced CalDAV transport with connections still in use: {}",
+                oldTransport.getStats());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          oldTransport.shutdown();
+          if (oldGuard != null) {
+            oldGuard.shutdown();
+          }
+          if (oldMultiGetExecutor != null) {
+            oldMultiGetExecutor.shutdown();
+          }
+        }
+      }
+    };
+    drain.setDaemon(true);
+    drain.start();
+  }
+
+  /**
+   * The current transport; a provider constructed outside of OSGi gets a default one on first use.
+   */
+  synchronized CalDavHttpTransport getTransport() throws IOException {
+    if (this.shutDown) {
+      throw new IOException("CalDAV connector provider has been shut down");
+    }
+    if (this.transport == null) {
+      this.transport = new CalDavHttpTransport();
+    }
+    return this.transport;
+  }
+
+  synchronized ExecutorService getMultiGetExecutor() {
+    if (this.multiGetExecutor == null && this.multiGetParallelism > 1) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      this.multiGetExecutor = Executors.newFixedThreadPool(this.multiGetParallelism, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "CalDAV multiget " + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return this.multiGetExecutor;
   }
 
-  public CalDavConnector getConnector(String username) throws IOException {
-    return new CalDavConnectorImpl(username, username,
+  public String getStatsName() {
+    return "caldavConnectorProvider";
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    CalDavHttpTransport currentTransport;
+    synchronized (this) {
+      currentTransport = this.transport;
+    }
+    if (currentTransport != null) {
+      putStats(stats, "transport.", currentTransport.getStats());
+    }
+    CalendarCache currentCache = this.cache;
+    if (currentCache != null) {
+      putStats(stats, "cache.", currentCache.getStats());
+    }
+    CalendarSyncStateStore currentSyncStates = this.syncStates;
+    if (currentSyncStates != null) {
+      putStats(stats, "sync.", currentSyncStates.getStats());
+    }
+    CalDavCallGuard currentGuard = this.guard;
+    if (currentGuard != null) {
+      putStats(stats, "breaker.", currentGuard.getStats());
+    }
+    return stats;
+  }
+
+  private CalDavConnector guard(CalDavConnector connector) {
+    CalDavCallGuard currentGuard = this.guard;
+    if (currentGuard == null) {
+      return connector;
+    }
+    return new ResilientCalDavConnector(connector, currentGuard, this.readOperationTimeout, this.writeOperationTimeout);
+  }
+
+  private void putStats(Map<String, Object> stats, String prefix, Map<String, Object> source) {
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      stats.put(prefix + entry.getKey(), entry.getValue());
+    }
+  }
+
+  public CalDavConnector getAdminConnector(String owner) throws IOException {
+    CalDavConnectorImpl connector = new CalDavConnectorImpl(getTransport(), this.cache, this.syncStates,
+            this.adminUsername, this.adminPassword,
             new URI(this.calDavServerRoot, false),
-            new URI(this.calDavServerRoot + "/ucaldav/user/" + username + "/calendar/", false), username);
+            new URI(this.calDavServerRoot + "/ucaldav/user/" + owner + "/calendar/", false), owner);
+    connector.setServerSideFilters(this.serverSideFilters);
+    connector.setMultiGetOptions(this.multiGetChunkSize, this.multiGetParallelism, getMultiGetExecutor());
+    return guard(connector);
   }
 }
@@ -0,0 +1,242 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pooled HTTP transport shared by all CalDavConnectorImpl instances of a provider.
+ * Connections are kept alive between requests and evicted once idle. Credentials are
+ * not held by the transport; each connector passes its own HttpState on every request,
+ * so one pool can serve all users.
+ */
+public class CalDavHttpTransport {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalDavHttpTransport.class);
+
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+  public static final long DEFAULT_POOL_TIMEOUT = 5000;
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  private final StatsConnectionManager connectionManager;
+  private final HttpClient client;
+  private final IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+  /**
+   * Connectors constructed on this transport and not yet closed.
+   */
+  private final AtomicInteger openConnectors = new AtomicInteger();
+
+  private static CalDavHttpTransport shared;
+
+  /**
+   * A transport with default limits and no idle eviction thread, shared by connectors which are not
+   * handed one by a provider. It lives until shutdownShared is called, after which the next caller
+   * gets a new one.
+   */
+  public static synchronized CalDavHttpTransport getShared() {
+    if (shared == null) {
+      shared = new CalDavHttpTransport();
+    }
+    return shared;
+  }
+
+  /**
+   * Close the shared transport's pooled connections, if it was ever used.
+   */
+  public static synchronized void shutdownShared() {
+    if (shared != null) {
+      shared.shutdown();
+      shared = null;
+    }
+  }
+
+  /**
+   * A transport with default limits and no idle eviction thread, for short-lived or standalone connectors.
+   */
+  public CalDavHttpTransport() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT,
+        DEFAULT_READ_TIMEOUT, DEFAULT_POOL_TIMEOUT, 0);
+  }
+
+  /**
+   * @param maxConnectionsPerHost connections to a single CalDAV server
+   * @param maxTotalConnections connections across all hosts
+   * @param connectTimeout millis to wait for a TCP connection to be established
+   * @param readTimeout millis to wait for data on an open connection
+   * @param poolTimeout millis to wait for a pooled connection to become free
+   * @param idleTimeout millis after which an unused connection is closed; 0 disables eviction
+   */
+  public CalDavHttpTransport(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeout,
+                             int readTimeout, long poolTimeout, long idleTimeout) {
+    this.connectionManager = new StatsConnectionManager();
+    HttpConnectionManagerParams params = this.connectionManager.getParams();
+    params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    params.setMaxTotalConnections(maxTotalConnections);
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
+    params.setStaleCheckingEnabled(true);
+    this.client = new HttpClient(this.connectionManager);
+    this.client.getParams().setConnectionManagerTimeout(poolTimeout);
+    this.client.getParams().setAuthenticationPreemptive(true);
+    if (idleTimeout > 0) {
+      this.idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+      this.idleConnectionTimeoutThread.setName("CalDavHttpTransport idle connection reaper");
+      this.idleConnectionTimeoutThread.setConnectionTimeout(idleTimeout);
+      this.idleConnectionTimeoutThread.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+      this.idleConnectionTimeoutThread.addConnectionManager(this.connectionManager);
+      this.idleConnectionTimeoutThread.start();
+    } else {
+      this.idleConnectionTimeoutThread = null;
+    }
+    LOGGER.info("Started CalDAV transport; maxConnectionsPerHost = {}, maxTotalConnections = {}, connectTimeout = {}, " +
+        "readTimeout = {}, poolTimeout = {}, idleTimeout = {}", new Object[] {maxConnectionsPerHost,
+        maxTotalConnections, connectTimeout, readTimeout, poolTimeout, idleTimeout});
+  }
+
+  /**
+   * Run the method with the caller's credentials. The caller is responsible for releasing the
+   * method's connection.
+   */
+  public int execute(HttpMethod method, HttpState state) throws IOException {
+    return this.client.executeMethod(null, method, state);
+  }
+
+  void connectorOpened() {
+    this.openConnectors.incrementAndGet();
+  }
+
+  void connectorClosed() {
+    this.openConnectors.decrementAndGet();
+  }
+
+  /**
+   * Wait until every connector on this transport has been closed and every connection returned to the
+   * pool, or until maxWaitMillis have passed.
+   *
+   * @return true if the transport is idle
+   */
+  public boolean awaitIdle(long maxWaitMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + maxWaitMillis;
+    while (!isIdle()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      Thread.sleep(Math.min(remaining, 100));
+    }
+    return true;
+  }
+
+  private boolean isIdle() {
+    return this.openConnectors.get() <= 0 && this.connectionManager.isIdle();
+  }
+
+  public void shutdown() {
+    if (this.idleConnectionTimeoutThread != null) {
+      this.idleConnectionTimeoutThread.shutdown();
+    }
+    this.connectionManager.shutdown();
+    LOGGER.info("Shut down CalDAV transport");
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = this.connectionManager.getStats();
+    stats.put("connectors", this.openConnectors.get());
+    return stats;
+  }
+
+  /**
+   * Keeps track of leased connections and of callers waiting for one.
+   */
+  private static class StatsConnectionManager extends MultiThreadedHttpConnectionManager {
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong poolTimeoutCount = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+        throws ConnectionPoolTimeoutException {
+      long start = System.currentTimeMillis();
+      this.pending.incrementAndGet();
+      try {
+        HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+        this.leased.incrementAndGet();
+        this.leaseCount.incrementAndGet();
+        return connection;
+      } catch (ConnectionPoolTimeoutException e) {
+        this.poolTimeoutCount.incrementAndGet();
+        throw e;
+      } finally {
+        this.pending.decrementAndGet();
+        long waited = System.currentTimeMillis() - start;
+        this.totalWaitMillis.addAndGet(waited);
+        if (waited > this.maxWaitMillis.get()) {
+          this.maxWaitMillis.set(waited);
+        }
+      }
+    }
+
+    @Override
+    public void releaseConnection(HttpConnection conn) {
+      super.releaseConnection(conn);
+      this.leased.decrementAndGet();
+    }
+
+    boolean isIdle() {
+      return this.leased.get() <= 0 && this.pending.get() <= 0;
+    }
+
+    Map<String, Object> getStats() {
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      int leasedNow = this.leased.get();
+      int pooled = getConnectionsInPool();
+      long leases = this.leaseCount.get();
+      stats.put("leased", leasedNow);
+      stats.put("idle", Math.max(0, pooled - leasedNow));
+      stats.put("pending", this.pending.get());
+      stats.put("maxTotal", getParams().getMaxTotalConnections());
+      stats.put("leases", leases);
+      stats.put("poolTimeouts", this.poolTimeoutCount.get());
+      stats.put("averageWaitMillis", (leases > 0) ? (this.totalWaitMillis.get() / leases) : 0);
+      stats.put("maxWaitMillis", this.maxWaitMillis.get());
+      return stats;
+    }
+  }
+}
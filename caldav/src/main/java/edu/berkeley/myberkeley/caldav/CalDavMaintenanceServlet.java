@@ -0,0 +1,281 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import com.google.common.collect.ImmutableList;
+import edu.berkeley.myberkeley.api.dynamiclist.DynamicListService;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Admin operations on the embedded calendar stores.
+ * <ul>
+ *   <li>action=reindex: queue every calendar indexed in an older format for reindexing, and build any
+ *   summary which is missing or whose earliest due date is stale. Calendars which batched indexing
+ *   gave up on after Solr failures are queued again too. Searches find calendars in either
+ *   index format meanwhile. Once it reports nothing left to queue and Solr has caught up, structured
+ *   queries can be turned on in the EmbeddedCalDavProvider configuration for faster searches.</li>
+ *   <li>action=reindexRecurring: queue every recurring calendar for reindexing, so that its indexed
+ *   occurrences are expanded around the current date. Run it at least once a term.</li>
+ *   <li>action=repairSummary: recount the per-user summaries from the stores.</li>
+ *   <li>action=repairTimeIndex: build or rebuild the per-user time indexes used by date range searches.
+ *   Stores without one, such as those created before it existed, are searched by reading every calendar
+ *   until this has been run for them.</li>
+ *   <li>action=recode: rewrite calendars still stored as JSON in the compact CalendarWrapperCodec
+ *   form. This runs in the background under an admin session; progress goes to the log.</li>
+ * </ul>
+ */
+@SlingServlet(methods = { "POST" }, paths = {"/system/myberkeley/calDavMaintenance"},
+    generateService = true, generateComponent = true)
+public class CalDavMaintenanceServlet extends SlingAllMethodsServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalDavMaintenanceServlet.class);
+  private static final long serialVersionUID = 2896401530813460178L;
+
+  public enum REQUEST_PARAMS {
+    action,
+    userIds
+  }
+
+  public enum ACTIONS {
+    reindex,
+    reindexRecurring,
+    repairSummary,
+    repairTimeIndex,
+    recode
+  }
+
+  static final int RECODE_BATCH_SIZE = 50;
+  static final long RECODE_PAUSE_MILLIS = 1000;
+
+  @Reference
+  DynamicListService dynamicListService;
+
+  @Reference
+  Repository repository;
+
+  @Reference
+  EmbeddedCalDavIndexingHandler indexingHandler;
+
+  private ExecutorService recodeExecutor;
+
+  @Deactivate
+  protected synchronized void deactivate() {
+    if (this.recodeExecutor != null) {
+      this.recodeExecutor.shutdownNow();
+      this.recodeExecutor = null;
+    }
+  }
+
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!"admin".equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    String actionParam = request.getParameter(REQUEST_PARAMS.action.toString());
+    final ACTIONS action;
+    try {
+      action = ACTIONS.valueOf(actionParam);
+    } catch (RuntimeException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown " + REQUEST_PARAMS.action.toString() +
+          ": " + actionParam);
+      return;
+    }
+    String[] userIdsParam = request.getParameterValues(REQUEST_PARAMS.userIds.toString());
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(
+          javax.jcr.Session.class));
+      final Iterable<String> userIds;
+      if (userIdsParam == null || ((userIdsParam.length == 1) &&
+          (CalDavMigrator.ALL_USER_IDS_PARAM_VALUE.equals(userIdsParam[0])))) {
+        userIds = dynamicListService.getAllUserIds(session);
+      } else {
+        userIds = ImmutableList.copyOf(userIdsParam);
+      }
+      switch (action) {
+        case reindex:
+          reindex(session, userIds, response);
+          break;
+        case reindexRecurring:
+          reindexRecurring(session, userIds, response);
+          break;
+        case repairSummary:
+          repairSummary(session, userIds, response);
+          break;
+        case repairTimeIndex:
+          repairTimeIndex(session, userIds, response);
+          break;
+        case recode:
+          recode(ImmutableList.copyOf(userIds), response);
+          break;
+      }
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  private void reindex(Session session, Iterable<String> userIds, SlingHttpServletResponse response) {
+    long total = 0;
+    long summaries = 0;
+    for (String userId : userIds) {
+      try {
+        EmbeddedCalDav calDav = new EmbeddedCalDav(userId, session);
+        int count = calDav.reindex(EmbeddedCalDavIndexingHandler.INDEX_FORMAT);
+        if (count > 0) {
+          CalDavMigrator.writeToResponse("User " + userId + " queued " + count + " tasks and events", response);
+        }
+        total += count;
+        if (calDav.ensureSummary()) {
+          summaries++;
+        }
+      } catch (IOException e) {
+        LOGGER.error("Could not reindex calendars of " + userId, e);
+        CalDavMigrator.writeToResponse("User " + userId + " failed: " + e.getMessage(), response);
+      }
+    }
+    int retried = this.indexingHandler.retryAbandoned();
+    CalDavMigrator.writeToResponse("Queued a total of " + total + " tasks and events for reindexing; built " +
+        summaries + " summaries; retried " + retried + " abandoned by the indexer", response);
+  }
+
+  private void reindexRecurring(Session session, Iterable<String> userIds, SlingHttpServletResponse response) {
+    long total = 0;
+    for (String userId : userIds) {
+      try {
+        total += new EmbeddedCalDav(userId, session).reindexRecurring();
+      } catch (IOException e) {
+        LOGGER.error("Could not reindex recurring calendars of " + userId, e);
+        CalDavMigrator.writeToResponse("User " + userId + " failed: " + e.getMessage(), response);
+      }
+    }
+    CalDavMigrator.writeToResponse("Queued a total of " + total + " recurring tasks and events for reindexing",
+        response);
+  }
+
+  private void repairSummary(Session session, Iterable<String> userIds, SlingHttpServletResponse response) {
+    long total = 0;
+    for (String userId : userIds) {
+      try {
+        CalendarSummary summary = new EmbeddedCalDav(userId, session).rebuildSummary();
+        total += summary.getCount(CalendarSummary.COUNTS.total);
+      } catch (IOException e) {
+        LOGGER.error("Could not rebuild calendar summary of " + userId, e);
+        CalDavMigrator.writeToResponse("User " + userId + " failed: " + e.getMessage(), response);
+      }
+    }
+    CalDavMigrator.writeToResponse("Rebuilt summaries over a total of " + total + " tasks and events", response);
+  }
+
+  private void repairTimeIndex(Session session, Iterable<String> userIds, SlingHttpServletResponse response) {
+    long total = 0;
+    for (String userId : userIds) {
+      try {
+        CalendarIntervalIndex timeIndex = new EmbeddedCalDav(userId, session).rebuildTimeIndex();
+        if (timeIndex != null) {
+          total += timeIndex.size();
+        }
+      } catch (StorageClientException e) {
+        LOGGER.error("Could not rebuild time index of " + userId, e);
+        CalDavMigrator.writeToResponse("User " + userId + " failed: " + e.getMessage(), response);
+      } catch (AccessDeniedException e) {
+        LOGGER.error("Could not rebuild time index of " + userId, e);
+        CalDavMigrator.writeToResponse("User " + userId + " failed: " + e.getMessage(), response);
+      }
+    }
+    CalDavMigrator.writeToResponse("Rebuilt time indexes over a total of " + total + " tasks and events", response);
+  }
+
+  private void recode(final List<String> userIds, SlingHttpServletResponse response) {
+    getRecodeExecutor().execute(new Runnable() {
+      public void run() {
+        long total = 0;
+        Session adminSession = null;
+        try {
+          adminSession = repository.loginAdministrative();
+          for (String userId : userIds) {
+            if (Thread.currentThread().isInterrupted()) {
+              break;
+            }
+            try {
+              int count = new EmbeddedCalDav(userId, adminSession).recode(RECODE_BATCH_SIZE, RECODE_PAUSE_MILLIS);
+              if (count > 0) {
+                LOGGER.info("User {} recoded {} tasks and events", userId, count);
+              }
+              total += count;
+            } catch (IOException e) {
+              LOGGER.error("Could not recode calendars of " + userId, e);
+            }
+          }
+        } catch (StorageClientException e) {
+          LOGGER.error(e.getMessage(), e);
+        } catch (AccessDeniedException e) {
+          LOGGER.error(e.getMessage(), e);
+        } finally {
+          if (adminSession != null) {
+            try {
+              adminSession.logout();
+            } catch (ClientPoolException e) {
+              LOGGER.warn(e.getMessage(), e);
+            }
+          }
+        }
+        LOGGER.info("Recoded a total of {} tasks and events", total);
+      }
+    });
+    CalDavMigrator.writeToResponse("Recoding tasks and events of " + userIds.size() + " users in the background",
+        response);
+  }
+
+  private synchronized ExecutorService getRecodeExecutor() {
+    if (this.recodeExecutor == null) {
+      this.recodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "CalDAV recoder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return this.recodeExecutor;
+  }
+}
@@ -43,6 +43,7 @@ import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 @SlingServlet(methods = { "POST" }, paths = {"/system/myberkeley/calDavMigrator"},
@@ -64,26 +65,49 @@ public class CalDavMigrator extends SlingAllMethodsServlet {
 
   /**
    * @return number of records migrated
+   * @throws CalDavException or IOException if reading from the old server failed part way; records
+   * migrated before then are kept
    */
   public long migrateCalDav(String owner, CalDavConnectorProvider fromCalDavProvider) throws IOException, CalDavException {
     long count = 0;
     CalDavConnector fromCalDav = fromCalDavProvider.getAdminConnector(owner);
-    CalDavConnector toCalDav = toCalDavProvider.getAdminConnector(owner);
-    List<CalendarURI> fromCalendarUris = fromCalDav.getCalendarUris();
-    LOGGER.info("Owner {} has {} calendar records", owner, fromCalendarUris.size());
-    List<CalendarWrapper> fromWrappers = fromCalDav.getCalendars(fromCalendarUris);
-    for (CalendarWrapper fromWrapper : fromWrappers) {
+    try {
+      CalDavConnector toCalDav = toCalDavProvider.getAdminConnector(owner);
       try {
-        // Normalize the imported calendar format.
-        LOGGER.debug(" from calendar {} : {}", count, fromWrapper);
-        JSONObject fromJson = fromWrapper.toJSON();
-        CalendarWrapper toWrapper = new CalendarWrapper(fromJson);
-        LOGGER.debug("  to calendar : {}", toWrapper);
-        toCalDav.putCalendar(toWrapper.getCalendar());
-        count++;
-      } catch (JSONException e) {
-        LOGGER.error(e.getMessage(), e);
+        List<CalendarURI> fromCalendarUris = fromCalDav.getCalendarUris();
+        LOGGER.info("Owner {} has {} calendar records", owner, fromCalendarUris.size());
+        Iterator<CalendarWrapper> fromWrappers = fromCalDav.iterateCalendars(fromCalendarUris);
+        try {
+          while (fromWrappers.hasNext()) {
+            CalendarWrapper fromWrapper = fromWrappers.next();
+            try {
+              // Normalize the imported calendar format.
+              LOGGER.debug(" from calendar {} : {}", count, fromWrapper);
+              JSONObject fromJson = fromWrapper.toJSON();
+              CalendarWrapper toWrapper = new CalendarWrapper(fromJson);
+              LOGGER.debug("  to calendar : {}", toWrapper);
+              toCalDav.putCalendar(toWrapper.getCalendar());
+              count++;
+            } catch (JSONException e) {
+              LOGGER.error(e.getMessage(), e);
+            }
+          }
+        } catch (IllegalStateException e) {
+          // The chunked iterator reports fetch failures unchecked.
+          LOGGER.error("Owner {} failed after {} calendar records were migrated", owner, count);
+          Throwable cause = e.getCause();
+          if (cause instanceof CalDavException) {
+            throw (CalDavException) cause;
+          } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          throw new CalDavException("Failed to read calendars of " + owner, e);
+        }
+      } finally {
+        toCalDav.close();
       }
+    } finally {
+      fromCalDav.close();
     }
     return count;
   }
@@ -111,6 +135,7 @@ public class CalDavMigrator extends SlingAllMethodsServlet {
     calDavConnectorProvider.calDavServerRoot = calDavServer;
     final Iterable<String> userIds;
     long totalMigrationCount = 0;
+    int failedUserCount = 0;
     try {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(
           javax.jcr.Session.class));
@@ -120,18 +145,29 @@ public class CalDavMigrator extends SlingAllMethodsServlet {
         userIds = ImmutableList.copyOf(userIdsParam);
       }
       for (String userId : userIds) {
-        final long migrationCount = migrateCalDav(userId, calDavConnectorProvider);
-        writeToResponse("User " + userId + " migrated " + migrationCount + " tasks and events", response);
-        totalMigrationCount += migrationCount;
+        try {
+          final long migrationCount = migrateCalDav(userId, calDavConnectorProvider);
+          writeToResponse("User " + userId + " migrated " + migrationCount + " tasks and events", response);
+          totalMigrationCount += migrationCount;
+        } catch (CalDavException e) {
+          LOGGER.error("Migration failed for user " + userId, e);
+          writeToResponse("User " + userId + " FAILED: " + e.getMessage(), response);
+          failedUserCount++;
+        } catch (IOException e) {
+          LOGGER.error("Migration failed for user " + userId, e);
+          writeToResponse("User " + userId + " FAILED: " + e.getMessage(), response);
+          failedUserCount++;
+        }
       }
     } catch (StorageClientException e) {
       LOGGER.error(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       LOGGER.error(e.getMessage(), e);
-    } catch (CalDavException e) {
-      LOGGER.error(e.getMessage(), e);
+    } finally {
+      calDavConnectorProvider.shutdown();
     }
-    writeToResponse("Migrated a total of " + totalMigrationCount + " tasks and events", response);
+    writeToResponse("Migrated a total of " + totalMigrationCount + " tasks and events; " + failedUserCount +
+        " users failed", response);
   }
 
   static void writeToResponse(String msg, SlingHttpServletResponse response) {
@@ -0,0 +1,206 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.report.CalDavConstants;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a WebDAV multistatus body one response element at a time, without building a DOM. Only the
+ * href, status, getetag and calendar-data of each response are kept, and only until the handler has
+ * seen them.
+ */
+public class CalDavMultiStatusParser {
+
+  private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+  }
+
+  private static final String DAV_NAMESPACE = DavConstants.NAMESPACE.getURI();
+
+  private static final String CALDAV_NAMESPACE = CalDavConstants.CALDAV_NAMESPACE.getURI();
+
+  private String syncToken;
+
+  public interface ResponseHandler {
+    /**
+     * @param href the href of the response
+     * @param status the status of the successful propstat, or of the response itself if it had none
+     * @param etag the getetag value, or null
+     * @param calendarData the calendar-data value, or null
+     * @return false to stop reading the rest of the body
+     */
+    boolean handleResponse(String href, int status, String etag, String calendarData) throws CalDavException;
+  }
+
+  /**
+   * @return false if the handler stopped the parse before the end of the body
+   */
+  public boolean parse(InputStream in, ResponseHandler handler) throws CalDavException, IOException {
+    XMLStreamReader reader = null;
+    try {
+      reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+      String href = null;
+      String etag = null;
+      String calendarData = null;
+      int responseStatus = 0;
+      int propStatStatus = 0;
+      String propStatEtag = null;
+      String propStatCalendarData = null;
+      boolean inPropStat = false;
+      boolean inResponse = false;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+          continue;
+        }
+        String namespace = reader.getNamespaceURI();
+        String name = reader.getLocalName();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          if (DAV_NAMESPACE.equals(namespace)) {
+            if (DavConstants.XML_RESPONSE.equals(name)) {
+              inResponse = true;
+              href = null;
+              etag = null;
+              calendarData = null;
+              responseStatus = 0;
+            } else if (DavConstants.XML_PROPSTAT.equals(name)) {
+              inPropStat = true;
+              propStatStatus = 0;
+              propStatEtag = null;
+              propStatCalendarData = null;
+            } else if (DavConstants.XML_HREF.equals(name) && href == null && !inPropStat) {
+              href = reader.getElementText().trim();
+            } else if (DavConstants.XML_STATUS.equals(name)) {
+              int status = parseStatusLine(reader.getElementText());
+              if (inPropStat) {
+                propStatStatus = status;
+              } else {
+                responseStatus = status;
+              }
+            } else if (DavConstants.PROPERTY_GETETAG.equals(name) && inPropStat) {
+              propStatEtag = reader.getElementText().trim();
+            } else if (CalDavConstants.DAV_XML_SYNC_TOKEN.equals(name) && !inResponse) {
+              this.syncToken = reader.getElementText().trim();
+            }
+          } else if (CALDAV_NAMESPACE.equals(namespace) && CalDavConstants.CALDAV_XML_CALENDAR_DATA.equals(name)
+                  && inPropStat) {
+            propStatCalendarData = reader.getElementText();
+          }
+        } else if (DAV_NAMESPACE.equals(namespace)) {
+          if (DavConstants.XML_PROPSTAT.equals(name)) {
+            inPropStat = false;
+            if (propStatStatus == HttpStatus.SC_OK || propStatStatus == 0) {
+              responseStatus = HttpStatus.SC_OK;
+              etag = propStatEtag;
+              calendarData = propStatCalendarData;
+            } else if (responseStatus == 0) {
+              responseStatus = propStatStatus;
+            }
+          } else if (DavConstants.XML_RESPONSE.equals(name)) {
+            inResponse = false;
+            if (!handler.handleResponse(href, responseStatus, etag, calendarData)) {
+              return false;
+            }
+          }
+        }
+      }
+      return true;
+    } catch (XMLStreamException e) {
+      throw new CalDavException("Invalid multistatus response", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException ignored) {
+          // nothing left to clean up
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the sync-token of a sync-collection report, once the body has been parsed
+   */
+  public String getSyncToken() {
+    return this.syncToken;
+  }
+
+  /**
+   * Read the precondition or postcondition named in a DAV:error body, such as "valid-sync-token".
+   *
+   * @return the local name of the condition element, or null if the body is not a DAV:error
+   */
+  static String parseErrorCondition(InputStream in) {
+    XMLStreamReader reader = null;
+    try {
+      reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+      boolean inError = false;
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+          if (inError) {
+            return reader.getLocalName();
+          }
+          if (!DAV_NAMESPACE.equals(reader.getNamespaceURI()) || !"error".equals(reader.getLocalName())) {
+            return null;
+          }
+          inError = true;
+        }
+      }
+    } catch (XMLStreamException e) {
+      // not an XML error body
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException ignored) {
+          // nothing more to read
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Extract the code from a status line such as "HTTP/1.1 200 OK".
+   */
+  static int parseStatusLine(String statusLine) {
+    String[] parts = statusLine.trim().split("\\s+");
+    if (parts.length >= 2) {
+      try {
+        return Integer.parseInt(parts[1]);
+      } catch (NumberFormatException ignored) {
+        // fall through
+      }
+    }
+    return 0;
+  }
+}
@@ -23,21 +23,25 @@ package edu.berkeley.myberkeley.caldav;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnectorProvider;
 import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalDavUnavailableException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
 import edu.berkeley.myberkeley.caldav.api.CalendarURI;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
 import net.fortuna.ical4j.model.DateTime;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.URI;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONString;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,16 +50,21 @@ import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
-@Service(value = Servlet.class)
+@Service(value = {Servlet.class, CalDavStatsSource.class})
 @SlingServlet(paths = {"/system/myberkeley/caldav"}, methods = {"GET", "POST"}, generateComponent = true, generateService = true)
 
-public class CalDavProxyServlet extends SlingAllMethodsServlet {
+public class CalDavProxyServlet extends SlingAllMethodsServlet implements CalDavStatsSource {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CalDavProxyServlet.class);
 
@@ -69,9 +78,35 @@ public class CalDavProxyServlet extends SlingAllMethodsServlet {
     mode,
     start_date,
     end_date,
-    sort
+    sort,
+    offset,
+    limit
   }
 
+  static final String DASHBOARD_SELECTOR = "dashboard";
+
+  static final String SUMMARY_SELECTOR = "summary";
+
+  static final String TIDY_SELECTOR = "tidy";
+
+  /**
+   * Responses with at least this many calendars are gzipped for clients which accept it; each
+   * calendar is about a kilobyte of JSON.
+   */
+  static final int GZIP_MIN_RESULTS = 10;
+
+  /**
+   * Responses also change with the clock, through default date ranges and the overdue flag, so an
+   * ETag only holds for this long even if the store is untouched.
+   */
+  static final long ETAG_PERIOD_MILLIS = 5 * 60 * 1000;
+
+  private final AtomicLong gets = new AtomicLong();
+
+  private final AtomicLong conditionalGets = new AtomicLong();
+
+  private final AtomicLong notModifiedCount = new AtomicLong();
+
   public enum POST_PARAMS {
     calendars
   }
@@ -87,7 +122,14 @@ public class CalDavProxyServlet extends SlingAllMethodsServlet {
 
     try {
       CalDavConnector connector = this.calDavConnectorProvider.getAdminConnector(request.getRemoteUser());
-      updateCalendars(request, connector);
+      try {
+        updateCalendars(request, connector);
+      } finally {
+        connector.close();
+      }
+    } catch (CalDavUnavailableException e) {
+      LOGGER.warn("Calendar server unavailable: " + e.getMessage());
+      response.sendError(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getMessage());
     } catch (Exception e) {
       LOGGER.error("Exception fetching calendar", e);
       response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR);
@@ -108,18 +150,122 @@ public class CalDavProxyServlet extends SlingAllMethodsServlet {
       return;
     }
 
+    CalendarSearchCriteria criteria;
+    CalendarSearchCriteria taskCriteria = null;
+    try {
+      criteria = getCalendarSearchCriteria(request);
+      if (hasSelector(request, DASHBOARD_SELECTOR)) {
+        taskCriteria = getCalendarSearchCriteria(request);
+      }
+    } catch (InvalidParameterException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
     CalDavConnector connector = this.calDavConnectorProvider.getAdminConnector(request.getRemoteUser());
+    try {
+      this.gets.incrementAndGet();
+      String entityTag = getEntityTag(request, connector);
+      if (entityTag != null) {
+        response.setHeader("ETag", entityTag);
+        if (isNotModified(request, entityTag)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+      }
 
-    CalendarSearchCriteria criteria = getCalendarSearchCriteria(request);
+      if (hasSelector(request, SUMMARY_SELECTOR)) {
+        handleSummary(request, response, connector);
+      } else if (hasSelector(request, DASHBOARD_SELECTOR)) {
+        criteria.setType(CalendarSearchCriteria.TYPE.VEVENT);
+        taskCriteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+        handleDashboard(request, response, connector, criteria, taskCriteria);
+      } else {
+        handleGet(request, response, connector, criteria);
+      }
+    } finally {
+      connector.close();
+    }
+  }
 
+  /**
+   * An ETag for the response, made from the user's store version, the request's selectors and
+   * parameters, and the current ETAG_PERIOD_MILLIS period. Null if the connector has no store version.
+   */
+  protected String getEntityTag(SlingHttpServletRequest request, CalDavConnector connector) {
+    long storeVersion;
     try {
-      handleGet(response, connector, criteria);
-    } finally {
-      response.getWriter().close();
+      storeVersion = connector.getStoreVersion();
+    } catch (CalDavException e) {
+      LOGGER.warn("Could not read calendar store version: " + e.getMessage());
+      return null;
+    } catch (IOException e) {
+      LOGGER.warn("Could not read calendar store version: " + e.getMessage());
+      return null;
+    }
+    if (storeVersion <= 0) {
+      return null;
+    }
+    RequestPathInfo pathInfo = request.getRequestPathInfo();
+    String selectors = (pathInfo == null) ? null : pathInfo.getSelectorString();
+    String key = request.getRemoteUser() + "|" + selectors + "|" + request.getQueryString();
+    return "\"" + Long.toString(storeVersion, 36) + "-" +
+        Long.toString(System.currentTimeMillis() / ETAG_PERIOD_MILLIS, 36) + "-" +
+        Integer.toHexString(key.hashCode()) + "\"";
+  }
+
+  /**
+   * Whether If-None-Match names the current ETag, counting conditional requests for the stats.
+   */
+  private boolean isNotModified(SlingHttpServletRequest request, String entityTag) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    this.conditionalGets.incrementAndGet();
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (entityTag.equals(candidate) || "*".equals(candidate)) {
+        this.notModifiedCount.incrementAndGet();
+        return true;
+      }
     }
+    return false;
+  }
+
+  public String getStatsName() {
+    return "caldavProxy";
   }
 
-  protected CalendarSearchCriteria getCalendarSearchCriteria(SlingHttpServletRequest request) throws ServletException {
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long all = this.gets.get();
+    long notModified = this.notModifiedCount.get();
+    stats.put("gets", all);
+    stats.put("conditionalGets", this.conditionalGets.get());
+    stats.put("notModified", notModified);
+    stats.put("notModifiedRatio", (all > 0) ? ((double) notModified / all) : 0.0);
+    return stats;
+  }
+
+  private static boolean hasSelector(SlingHttpServletRequest request, String selector) {
+    RequestPathInfo pathInfo = request.getRequestPathInfo();
+    String[] selectors = (pathInfo == null) ? null : pathInfo.getSelectors();
+    if (selectors != null) {
+      for (String requestSelector : selectors) {
+        if (selector.equals(requestSelector)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  protected CalendarSearchCriteria getCalendarSearchCriteria(SlingHttpServletRequest request)
+      throws ServletException, InvalidParameterException {
     CalendarSearchCriteria criteria = new CalendarSearchCriteria();
 
     // apply non-default values from request if they're available
@@ -154,54 +300,271 @@ public class CalDavProxyServlet extends SlingAllMethodsServlet {
       criteria.setSort(CalendarSearchCriteria.SORT.valueOf(sort.getString()));
     }
 
+    RequestParameter offset = request.getRequestParameter(REQUEST_PARAMS.offset.toString());
+    if (offset != null) {
+      criteria.setOffset(parseCount(REQUEST_PARAMS.offset, offset));
+    }
+    RequestParameter limit = request.getRequestParameter(REQUEST_PARAMS.limit.toString());
+    if (limit != null) {
+      criteria.setLimit(parseCount(REQUEST_PARAMS.limit, limit));
+    }
+
     return criteria;
   }
 
-  protected void handleGet(SlingHttpServletResponse response, CalDavConnector connector,
-                           CalendarSearchCriteria criteria) throws IOException {
+  private static int parseCount(REQUEST_PARAMS name, RequestParameter parameter) throws InvalidParameterException {
+    try {
+      int count = Integer.parseInt(parameter.getString().trim());
+      if (count >= 0) {
+        return count;
+      }
+    } catch (NumberFormatException ignored) {
+      // reported below
+    }
+    throw new InvalidParameterException("Invalid " + name + " passed: " + parameter.getString() +
+        "; expected a whole number of at least 0");
+  }
+
+  /**
+   * A request parameter the client got wrong, answered with 400 Bad Request.
+   */
+  protected static class InvalidParameterException extends Exception {
+    private static final long serialVersionUID = 3172904551826447187L;
+
+    InvalidParameterException(String message) {
+      super(message);
+    }
+  }
+
+  protected void handleGet(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                           CalDavConnector connector, CalendarSearchCriteria criteria) throws IOException {
     List<CalendarWrapper> calendars;
+    CalendarSearchResult page = null;
     boolean hasOverdue = false;
 
     try {
 
       long begin = System.currentTimeMillis();
-      calendars = connector.searchByDate(criteria);
+      if (criteria.getType().equals(CalendarSearchCriteria.TYPE.VTODO)) {
+        // Tasks come with the overdue flag, which the combined operation answers in the same search.
+        CalendarDashboard dashboard = connector.getDashboard(null, criteria);
+        page = dashboard.getTasks();
+        calendars = page.getResults();
+        hasOverdue = dashboard.hasOverdueTasks();
+        if (!criteria.isPaged()) {
+          page = null;
+        }
+      } else if (criteria.isPaged()) {
+        page = connector.searchPage(criteria);
+        calendars = page.getResults();
+      } else {
+        calendars = connector.searchByDate(criteria);
+      }
       long end = System.currentTimeMillis();
       LOGGER.info("Got " + calendars.size() + " calendar records in " + (end - begin) + "ms");
 
+    } catch (CalDavUnavailableException e) {
+      LOGGER.warn("Calendar server unavailable: " + e.getMessage());
+      response.sendError(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      return;
+    } catch (CalDavException e) {
+      LOGGER.error("Exception fetching calendars", e);
+      response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    boolean tidy = hasSelector(request, TIDY_SELECTOR);
+    Writer out = openWriter(request, response, calendars.size());
+    try {
+      JSONWriter writer = new JSONWriter(out);
+      writer.setTidy(tidy);
+      writer.object();
+      writer.key("results");
+      writeResults(writer, calendars, tidy);
+      if (page != null) {
+        writer.key("total");
+        writer.value(page.getTotal());
+        if (page.getNextOffset() >= 0) {
+          writer.key("nextOffset");
+          writer.value(page.getNextOffset());
+        }
+      }
       if (criteria.getType().equals(CalendarSearchCriteria.TYPE.VTODO)) {
-        begin = System.currentTimeMillis();
-        hasOverdue = connector.hasOverdueTasks();
-        end = System.currentTimeMillis();
-        LOGGER.info("Got overdue-task result in " + (end - begin) + "ms");
+        writer.key("hasOverdueTasks");
+        writer.value(hasOverdue);
       }
+      writer.endObject();
+    } catch (JSONException e) {
+      LOGGER.error("Failed to convert calendar to JSON", e);
+    } finally {
+      out.close();
+    }
 
+  }
+
+  /**
+   * Events, tasks and the overdue flag in one response, so the dashboard needs a single call.
+   */
+  protected void handleDashboard(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                 CalDavConnector connector, CalendarSearchCriteria eventCriteria,
+                                 CalendarSearchCriteria taskCriteria) throws IOException {
+    CalendarDashboard dashboard;
+    try {
+      long begin = System.currentTimeMillis();
+      dashboard = connector.getDashboard(eventCriteria, taskCriteria);
+      LOGGER.info("Got dashboard in " + (System.currentTimeMillis() - begin) + "ms");
+    } catch (CalDavUnavailableException e) {
+      LOGGER.warn("Calendar server unavailable: " + e.getMessage());
+      response.sendError(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      return;
     } catch (CalDavException e) {
-      LOGGER.error("Exception fetching calendars", e);
+      LOGGER.error("Exception fetching dashboard", e);
       response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR);
       return;
     }
 
+    boolean tidy = hasSelector(request, TIDY_SELECTOR);
+    Writer out = openWriter(request, response,
+        dashboard.getEvents().getResults().size() + dashboard.getTasks().getResults().size());
+    try {
+      JSONWriter writer = new JSONWriter(out);
+      writer.setTidy(tidy);
+      writer.object();
+      writer.key("events");
+      writeSection(writer, dashboard.getEvents(), tidy);
+      writer.key("tasks");
+      writeSection(writer, dashboard.getTasks(), tidy);
+      writer.key("hasOverdueTasks");
+      writer.value(dashboard.hasOverdueTasks());
+      writer.endObject();
+    } catch (JSONException e) {
+      LOGGER.error("Failed to convert calendar to JSON", e);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Just the per-user counts and overdue flag, for badges.
+   */
+  protected void handleSummary(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                               CalDavConnector connector) throws IOException {
+    CalendarSummary summary;
+    try {
+      summary = connector.getSummary();
+    } catch (CalDavUnavailableException e) {
+      LOGGER.warn("Calendar server unavailable: " + e.getMessage());
+      response.sendError(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      return;
+    } catch (CalDavException e) {
+      LOGGER.error("Exception fetching calendar summary", e);
+      response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+    Writer out = openWriter(request, response, 0);
+    try {
+      JSONWriter writer = new JSONWriter(out);
+      writer.setTidy(hasSelector(request, TIDY_SELECTOR));
+      writeJSON(writer, summary.toJSON(System.currentTimeMillis()));
+    } catch (JSONException e) {
+      LOGGER.error("Failed to convert calendar summary to JSON", e);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Set up a JSON response, compressed if it is expected to be large and the client accepts gzip.
+   */
+  private static Writer openWriter(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                   int resultCount) throws IOException {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
+    response.addHeader("Vary", "Accept-Encoding");
+    if (resultCount >= GZIP_MIN_RESULTS && acceptsGzip(request)) {
+      response.setHeader("Content-Encoding", "gzip");
+      return new OutputStreamWriter(new GZIPOutputStream(response.getOutputStream()), "UTF-8");
+    }
+    return response.getWriter();
+  }
 
-    try {
-      JSONObject json = new JSONObject();
-      JSONArray results = new JSONArray();
-      for (CalendarWrapper wrapper : calendars) {
-        results.put(wrapper.toJSON());
+  private static boolean acceptsGzip(SlingHttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+  }
+
+  private static void writeSection(JSONWriter writer, CalendarSearchResult section, boolean tidy)
+      throws JSONException {
+    writer.object();
+    writer.key("results");
+    writeResults(writer, section.getResults(), tidy);
+    writer.key("total");
+    writer.value(section.getTotal());
+    if (section.getNextOffset() >= 0) {
+      writer.key("nextOffset");
+      writer.value(section.getNextOffset());
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Each calendar is written as soon as it is converted, so no JSON tree of the whole response is
+   * built. The calendars themselves are still held in a list, because the connector sorts and pages
+   * them before returning; callers that need bounded memory should pass a limit. Unless the output
+   * is tidied, calendars read from stored JSON are written out as they were stored.
+   */
+  private static void writeResults(JSONWriter writer, List<CalendarWrapper> calendars, boolean tidy)
+      throws JSONException {
+    writer.array();
+    for (CalendarWrapper wrapper : calendars) {
+      if (tidy) {
+        writeJSON(writer, wrapper.toJSON());
+      } else {
+        writer.value(new JSONText(wrapper.toJSONString()));
       }
-      json.put("results", results);
-      if (criteria.getType().equals(CalendarSearchCriteria.TYPE.VTODO)) {
-        json.put("hasOverdueTasks", hasOverdue);
+    }
+    writer.endArray();
+  }
+
+  /**
+   * Write the object through the writer, so that the writer's indentation applies to it.
+   */
+  private static void writeJSON(JSONWriter writer, Object value) throws JSONException {
+    if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject) value;
+      writer.object();
+      Iterator<String> keys = json.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        writer.key(key);
+        writeJSON(writer, json.get(key));
       }
+      writer.endObject();
+    } else if (value instanceof JSONArray) {
+      JSONArray json = (JSONArray) value;
+      writer.array();
+      for (int i = 0; i < json.length(); i++) {
+        writeJSON(writer, json.get(i));
+      }
+      writer.endArray();
+    } else {
+      writer.value(value);
+    }
+  }
 
-      response.getWriter().write(json.toString(2));
+  /**
+   * JSON text which the writer copies through unchanged.
+   */
+  private static class JSONText implements JSONString {
+    private final String text;
 
-    } catch (JSONException e) {
-      LOGGER.error("Failed to convert calendar to JSON", e);
+    JSONText(String text) {
+      this.text = text;
     }
 
+    public String toJSONString() {
+      return this.text;
+    }
   }
 
   protected JSONArray getCalendars(SlingHttpServletRequest request) throws JSONException {
@@ -215,28 +578,12 @@ public class CalDavProxyServlet extends SlingAllMethodsServlet {
   protected void updateCalendars(SlingHttpServletRequest request, CalDavConnector connector)
           throws JSONException, CalDavException, IOException {
 
-    List<CalendarURI> uris = new ArrayList<CalendarURI>();
     JSONArray calendars = getCalendars(request);
-
-    for (int i = 0; i < calendars.length(); i++) {
-      String uriString = ((JSONObject) calendars.get(i)).getString("uri");
-      CalendarURI uri = new CalendarURI(new URI(uriString, false), new DateTime());
-      uris.add(uri);
-    }
-
-    List<CalendarWrapper> wrappers = connector.getCalendars(uris);
-    Map<CalendarURI, CalendarWrapper> wrapperMap = new HashMap<CalendarURI, CalendarWrapper>();
-    for (CalendarWrapper wrapper : wrappers) {
-      wrapperMap.put(wrapper.getUri(), wrapper);
-    }
-
+    List<CalendarPatch> patches = new ArrayList<CalendarPatch>(calendars.length());
     for (int i = 0; i < calendars.length(); i++) {
-      JSONObject thisItem = (JSONObject) calendars.get(i);
-      String uriString = thisItem.getString("uri");
-      CalendarURI uri = new CalendarURI(new URI(uriString, false), new DateTime());
-      CalendarWrapper wrapper = wrapperMap.get(uri);
-      wrapper.applyJsonState(thisItem);
-      connector.modifyCalendar(wrapper.getUri(), wrapper.getCalendar());
+      patches.add(CalendarPatch.fromJSON((JSONObject) calendars.get(i)));
     }
+    List<CalendarURI> patched = connector.patchCalendars(patches);
+    LOGGER.info("Updated {} of {} calendars", patched.size(), patches.size());
   }
 }
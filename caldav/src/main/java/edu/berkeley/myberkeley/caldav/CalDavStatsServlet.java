@@ -0,0 +1,105 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.api.index.IndexStatsSource;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reports the counters of all registered CalDavStatsSource and IndexStatsSource services, so that
+ * connection pools, caches and queues can be sized against real load.
+ */
+@SlingServlet(methods = { "GET" }, paths = {"/system/myberkeley/caldavStats"},
+    generateService = true, generateComponent = true)
+public class CalDavStatsServlet extends SlingSafeMethodsServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalDavStatsServlet.class);
+  private static final long serialVersionUID = -6279236522040593117L;
+
+  @Reference(referenceInterface = CalDavStatsSource.class, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE,
+      policy = ReferencePolicy.DYNAMIC, bind = "bindStatsSource", unbind = "unbindStatsSource")
+  private final List<CalDavStatsSource> statsSources = new CopyOnWriteArrayList<CalDavStatsSource>();
+
+  @Reference(referenceInterface = IndexStatsSource.class, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE,
+      policy = ReferencePolicy.DYNAMIC, bind = "bindIndexStatsSource", unbind = "unbindIndexStatsSource")
+  private final List<IndexStatsSource> indexStatsSources = new CopyOnWriteArrayList<IndexStatsSource>();
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!"admin".equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONObject json = new JSONObject();
+      for (CalDavStatsSource statsSource : this.statsSources) {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, Object> entry : statsSource.getStats().entrySet()) {
+          stats.put(entry.getKey(), entry.getValue());
+        }
+        json.put(statsSource.getStatsName(), stats);
+      }
+      for (IndexStatsSource statsSource : this.indexStatsSources) {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, Object> entry : statsSource.getStats().entrySet()) {
+          stats.put(entry.getKey(), entry.getValue());
+        }
+        json.put(statsSource.getStatsName(), stats);
+      }
+      response.getWriter().write(json.toString(2));
+    } catch (JSONException e) {
+      LOGGER.error("Failed to convert stats to JSON", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  protected void bindStatsSource(CalDavStatsSource statsSource) {
+    this.statsSources.add(statsSource);
+  }
+
+  protected void unbindStatsSource(CalDavStatsSource statsSource) {
+    this.statsSources.remove(statsSource);
+  }
+
+  protected void bindIndexStatsSource(IndexStatsSource statsSource) {
+    this.indexStatsSources.add(statsSource);
+  }
+
+  protected void unbindIndexStatsSource(IndexStatsSource statsSource) {
+    this.indexStatsSources.remove(statsSource);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of parsed calendar entries, keyed by href and valid only for the ETag they were
+ * parsed from. Sizes are estimates based on the length of the iCalendar source. Cached wrappers are shared
+ * between callers, so they must only be used for read-only results.
+ */
+public class CalendarCache {
+
+  /**
+   * Rough ratio of parsed ical4j object graph size to iCalendar source length.
+   */
+  static final int PARSED_BYTES_PER_CHAR = 10;
+
+  private final long maxBytes;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+  private long currentBytes;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  public CalendarCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the cached entry for the href, or null if there is none or it was parsed from a different ETag
+   */
+  public synchronized CalendarWrapper get(String href, String etag) {
+    Entry entry = this.entries.get(href);
+    if (entry != null && entry.etag.equals(etag)) {
+      this.hits++;
+      return entry.wrapper;
+    }
+    if (entry != null) {
+      remove(href);
+    }
+    this.misses++;
+    return null;
+  }
+
+  public synchronized void put(String href, String etag, CalendarWrapper wrapper, int sourceLength) {
+    if (etag == null) {
+      return;
+    }
+    long size = (long) sourceLength * PARSED_BYTES_PER_CHAR;
+    if (size > this.maxBytes) {
+      return;
+    }
+    remove(href);
+    this.entries.put(href, new Entry(etag, wrapper, size));
+    this.currentBytes += size;
+    Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+    while (this.currentBytes > this.maxBytes && iterator.hasNext()) {
+      this.currentBytes -= iterator.next().getValue().size;
+      iterator.remove();
+      this.evictions++;
+    }
+  }
+
+  public synchronized void clear() {
+    this.entries.clear();
+    this.currentBytes = 0;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("entries", this.entries.size());
+    stats.put("bytes", this.currentBytes);
+    stats.put("maxBytes", this.maxBytes);
+    stats.put("hits", this.hits);
+    stats.put("misses", this.misses);
+    stats.put("evictions", this.evictions);
+    return stats;
+  }
+
+  private void remove(String href) {
+    Entry old = this.entries.remove(href);
+    if (old != null) {
+      this.currentBytes -= old.size;
+    }
+  }
+
+  private static final class Entry {
+    private final String etag;
+    private final CalendarWrapper wrapper;
+    private final long size;
+
+    private Entry(String etag, CalendarWrapper wrapper, long size) {
+      this.etag = etag;
+      this.wrapper = wrapper;
+      this.size = size;
+    }
+  }
+}
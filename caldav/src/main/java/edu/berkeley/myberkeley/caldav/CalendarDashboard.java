@@ -0,0 +1,69 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+
+import java.io.IOException;
+
+/**
+ * Everything the dashboard widgets show: a page of events, a page of tasks, and whether any
+ * task is overdue. Either section is null if it was not asked for.
+ */
+public class CalendarDashboard {
+
+  private final CalendarSearchResult events;
+
+  private final CalendarSearchResult tasks;
+
+  private final boolean hasOverdueTasks;
+
+  public CalendarDashboard(CalendarSearchResult events, CalendarSearchResult tasks, boolean hasOverdueTasks) {
+    this.events = events;
+    this.tasks = tasks;
+    this.hasOverdueTasks = hasOverdueTasks;
+  }
+
+  /**
+   * Assemble a dashboard from separate searches, for connectors which cannot answer it in one request.
+   */
+  public static CalendarDashboard load(CalDavConnector connector, CalendarSearchCriteria eventCriteria,
+                                       CalendarSearchCriteria taskCriteria) throws CalDavException, IOException {
+    CalendarSearchResult events = (eventCriteria == null) ? null : connector.searchPage(eventCriteria);
+    CalendarSearchResult tasks = null;
+    boolean hasOverdueTasks = false;
+    if (taskCriteria != null) {
+      tasks = connector.searchPage(taskCriteria);
+      hasOverdueTasks = connector.hasOverdueTasks();
+    }
+    return new CalendarDashboard(events, tasks, hasOverdueTasks);
+  }
+
+  public CalendarSearchResult getEvents() {
+    return this.events;
+  }
+
+  public CalendarSearchResult getTasks() {
+    return this.tasks;
+  }
+
+  public boolean hasOverdueTasks() {
+    return this.hasOverdueTasks;
+  }
+}
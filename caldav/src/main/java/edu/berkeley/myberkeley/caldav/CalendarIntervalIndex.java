@@ -0,0 +1,190 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Dur;
+import net.fortuna.ical4j.model.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A per-user time index over the calendar store, so that date range searches need only read the
+ * entries which might fall in the range. Each entry's interval runs from the earliest to the latest of
+ * its DTSTART, DUE, DTEND and DTSTART + DURATION, padded by a day on either side to allow for floating
+ * and all-day dates. Entries whose occurrences cannot be bounded that way (recurrences, or no dates at
+ * all) are candidates for every range. Candidates still have to be checked against the criteria.
+ * <p>
+ * Intervals are kept sorted by start. Since no interval is longer than the longest one in the index,
+ * a range search only has to scan from (range start - longest interval) to the range end.
+ * <p>
+ * EmbeddedCalDav stores each entry's bounds, as given by {@link #getBounds}, on a small node of its own,
+ * so that a write only touches its own entry. It loads the index from those nodes when the store
+ * version has moved on since it was last loaded, and otherwise shares the loaded one through
+ * TimeIndexCache, so an index which is in that cache is never changed.
+ */
+public class CalendarIntervalIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalendarIntervalIndex.class);
+  static final long PADDING_MILLIS = 24L * 60 * 60 * 1000;
+
+  private final List<Interval> intervals = new ArrayList<Interval>();
+  private final Map<String, Interval> byName = new HashMap<String, Interval>();
+  private final Set<String> unbounded = new LinkedHashSet<String>();
+  private long longest;
+
+  /**
+   * Add or replace the entry for a stored calendar.
+   */
+  public void put(String name, CalendarWrapper wrapper) {
+    long[] bounds = getBounds(name, wrapper);
+    if (bounds == null) {
+      putUnbounded(name);
+    } else {
+      put(name, bounds[0], bounds[1]);
+    }
+  }
+
+  /**
+   * Add or replace an entry whose padded interval is already known.
+   */
+  public void put(String name, long start, long end) {
+    remove(name);
+    Interval interval = new Interval(name, start, end);
+    int position = Collections.binarySearch(this.intervals, interval, BY_START);
+    this.intervals.add((position < 0) ? -(position + 1) : position, interval);
+    this.byName.put(name, interval);
+    this.longest = Math.max(this.longest, interval.end - interval.start);
+  }
+
+  /**
+   * Add or replace an entry which is a candidate for every range.
+   */
+  public void putUnbounded(String name) {
+    remove(name);
+    this.unbounded.add(name);
+  }
+
+  /**
+   * The padded start and end millis of a calendar, or null if its occurrences cannot be bounded.
+   *
+   * @param name only used in log messages
+   */
+  public static long[] getBounds(String name, CalendarWrapper wrapper) {
+    if (wrapper.getPropertyValue(Property.RRULE) != null || wrapper.getPropertyValue(Property.RDATE) != null) {
+      return null;
+    }
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    for (long time : new long[] {wrapper.getStartTime(), wrapper.getDueTime(), wrapper.getEndTime()}) {
+      if (time != 0) {
+        start = Math.min(start, time);
+        end = Math.max(end, time);
+      }
+    }
+    String duration = wrapper.getPropertyValue(Property.DURATION);
+    if (duration != null && start <= end) {
+      try {
+        end = Math.max(end, new Dur(duration).getTime(new Date(wrapper.getStartTime())).getTime());
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unreadable DURATION {} on {}", duration, name);
+        start = Long.MAX_VALUE;
+      }
+    }
+    if (start > end) {
+      return null;
+    }
+    return new long[] {start - PADDING_MILLIS, end + PADDING_MILLIS};
+  }
+
+  public void remove(String name) {
+    if (this.unbounded.remove(name)) {
+      return;
+    }
+    Interval interval = this.byName.remove(name);
+    if (interval != null) {
+      this.intervals.remove(interval);
+      // longest is left as it is; it only has to be an upper bound.
+    }
+  }
+
+  /**
+   * @return names of the entries which may have an occurrence between start and end, in start order
+   *         followed by the unbounded entries
+   */
+  public List<String> getCandidates(long start, long end) {
+    List<String> candidates = new ArrayList<String>();
+    int first = firstStartingAtOrAfter(start - this.longest);
+    for (int i = first; i < this.intervals.size(); i++) {
+      Interval interval = this.intervals.get(i);
+      if (interval.start > end) {
+        break;
+      }
+      if (interval.end >= start) {
+        candidates.add(interval.name);
+      }
+    }
+    candidates.addAll(this.unbounded);
+    return candidates;
+  }
+
+  public int size() {
+    return this.intervals.size() + this.unbounded.size();
+  }
+
+  private int firstStartingAtOrAfter(long time) {
+    int low = 0;
+    int high = this.intervals.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (this.intervals.get(middle).start < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static final Comparator<Interval> BY_START = new Comparator<Interval>() {
+    public int compare(Interval a, Interval b) {
+      return (a.start < b.start) ? -1 : ((a.start == b.start) ? 0 : 1);
+    }
+  };
+
+  private static class Interval {
+    private final String name;
+    private final long start;
+    private final long end;
+
+    private Interval(String name, long start, long end) {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import edu.berkeley.myberkeley.caldav.report.Comp;
+import edu.berkeley.myberkeley.caldav.report.Filter;
+import edu.berkeley.myberkeley.caldav.report.Prop;
+import edu.berkeley.myberkeley.caldav.report.PropFilter;
+import edu.berkeley.myberkeley.caldav.report.RequestCalendarData;
+import edu.berkeley.myberkeley.caldav.report.TextMatch;
+import edu.berkeley.myberkeley.caldav.report.TimeRange;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Property;
+
+import java.util.Arrays;
+
+/**
+ * Builds calendar-query filters from search criteria. When server-side filtering is enabled, category
+ * conditions that can be expressed exactly are sent to the server so that non-matching entries are never
+ * transferred. Only positive matches are pushed down: a negated text-match on CATEGORIES matches any entry
+ * with some other category, and a negated match on STATUS misses entries with no STATUS at all. Results must
+ * still go through CalendarResultProcessor, which applies the full conditions in memory.
+ */
+public class CalendarQueryBuilder {
+
+  private final boolean serverSideFilters;
+
+  public CalendarQueryBuilder(boolean serverSideFilters) {
+    this.serverSideFilters = serverSideFilters;
+  }
+
+  public Filter buildSearchFilter(CalendarSearchCriteria criteria) {
+    Filter subcomponent = new Filter(criteria.getType().toString());
+    subcomponent.setTimeRange(new TimeRange(criteria.getStart(), criteria.getEnd()));
+    if (this.serverSideFilters) {
+      switch (criteria.getMode()) {
+        case REQUIRED:
+          subcomponent.getPropFilter().add(categoryFilter(CalDavConnector.MYBERKELEY_REQUIRED.getValue()));
+          break;
+        case ALL_ARCHIVED:
+          subcomponent.getPropFilter().add(categoryFilter(CalDavConnector.MYBERKELEY_ARCHIVED.getValue()));
+          break;
+        default:
+          break;
+      }
+    }
+    return wrap(subcomponent);
+  }
+
+  public Filter buildOverdueFilter(DateTime endTime) {
+    Filter subcomponent = new Filter(Component.VTODO);
+    subcomponent.setTimeRange(new TimeRange(new DateTime(0), endTime));
+    return wrap(subcomponent);
+  }
+
+  /**
+   * The calendar data needed to decide whether a task is overdue. With server-side filtering this is
+   * limited to the properties CalendarWrapper checks, rather than the full entry.
+   */
+  public RequestCalendarData buildOverdueCalendarData() {
+    RequestCalendarData calendarData = new RequestCalendarData();
+    if (this.serverSideFilters) {
+      Comp vcalendar = new Comp("VCALENDAR");
+      vcalendar.getProp().add(new Prop(Property.VERSION));
+      Comp vtimezone = new Comp(Component.VTIMEZONE);
+      vtimezone.setAllProp(true);
+      vtimezone.setAllComp(true);
+      Comp vtodo = new Comp(Component.VTODO);
+      vtodo.getProp().add(new Prop(Property.UID));
+      vtodo.getProp().add(new Prop(Property.DTSTART));
+      vtodo.getProp().add(new Prop(Property.DUE));
+      vtodo.getProp().add(new Prop(Property.STATUS));
+      vtodo.getProp().add(new Prop(Property.CATEGORIES));
+      vcalendar.getComp().add(vtimezone);
+      vcalendar.getComp().add(vtodo);
+      calendarData.setComp(vcalendar);
+    }
+    return calendarData;
+  }
+
+  private PropFilter categoryFilter(String category) {
+    PropFilter propFilter = new PropFilter(Property.CATEGORIES);
+    propFilter.setTextMatch(new TextMatch(category));
+    return propFilter;
+  }
+
+  private Filter wrap(Filter subcomponent) {
+    Filter vcalComp = new Filter("VCALENDAR");
+    vcalComp.setCompFilter(Arrays.asList(subcomponent));
+    return vcalComp;
+  }
+}
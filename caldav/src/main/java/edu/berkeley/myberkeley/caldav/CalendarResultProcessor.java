@@ -43,8 +43,8 @@ public class CalendarResultProcessor {
     return this.results;
   }
 
-  // filter in memory for now because Bedework has bugs searching on categories.
-  // TODO do the searching on the Bedework side if bugs get fixed.
+  // always filter in memory, because Bedework has bugs searching on categories, and because
+  // CalendarQueryBuilder only sends the server the conditions it can express exactly.
   private void filter() {
     List<CalendarWrapper> filteredResults = new ArrayList<CalendarWrapper>(this.results.size());
     for (CalendarWrapper wrapper : this.results) {
@@ -22,11 +22,7 @@ package edu.berkeley.myberkeley.caldav;
 
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
 import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.Date;
 import net.fortuna.ical4j.model.DateTime;
-import net.fortuna.ical4j.model.Property;
-import net.fortuna.ical4j.model.component.VEvent;
-import net.fortuna.ical4j.model.component.VToDo;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -78,18 +74,22 @@ public class CalendarSearchCriteria {
 
       public int compare(CalendarWrapper a, CalendarWrapper b) {
         int result = 0;
-        Component compA = a.getComponent();
-        Component compB = b.getComponent();
-        if (compA != null && compB != null && compA instanceof VToDo && compB instanceof VToDo) {
-          result = ((VToDo) compA).getDue().getDate().compareTo(((VToDo) compB).getDue().getDate());
-        } else if (compA != null && compB != null && compA instanceof VEvent && compB instanceof VEvent) {
-          result = ((VEvent) compA).getStartDate().getDate().compareTo(((VEvent) compB).getStartDate().getDate());
+        String typeA = a.getComponentName();
+        String typeB = b.getComponentName();
+        if (Component.VTODO.equals(typeA) && Component.VTODO.equals(typeB)) {
+          result = compareTimes(a.getDueTime(), b.getDueTime());
+        } else if (Component.VEVENT.equals(typeA) && Component.VEVENT.equals(typeB)) {
+          result = compareTimes(a.getStartTime(), b.getStartTime());
         }
         if (this.ascending) {
           return result;
         }
         return -1 * result;
       }
+
+      private static int compareTimes(long a, long b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+      }
     }
 
     private static class SummaryComparator implements Comparator<CalendarWrapper> {
@@ -101,14 +101,10 @@ public class CalendarSearchCriteria {
 
       public int compare(CalendarWrapper a, CalendarWrapper b) {
         int result = 0;
-        Component compA = a.getComponent();
-        Component compB = b.getComponent();
-        if (compA != null && compB != null) {
-          Property summaryA = compA.getProperty(Property.SUMMARY);
-          Property summaryB = compB.getProperty(Property.SUMMARY);
-          if (summaryA != null && summaryB != null) {
-            result = summaryA.getValue().compareTo(summaryB.getValue());
-          }
+        String summaryA = a.getSummary();
+        String summaryB = b.getSummary();
+        if (summaryA != null && summaryB != null) {
+          result = summaryA.compareTo(summaryB);
         }
         if (this.ascending) {
           return result;
@@ -179,6 +175,10 @@ public class CalendarSearchCriteria {
 
   private DateTime end = new DateTime();
 
+  private int offset = 0;
+
+  private int limit = 0;
+
   public TYPE getType() {
     return this.type;
   }
@@ -219,6 +219,29 @@ public class CalendarSearchCriteria {
     this.sort = sort;
   }
 
+  public int getOffset() {
+    return this.offset;
+  }
+
+  public void setOffset(int offset) {
+    this.offset = Math.max(0, offset);
+  }
+
+  /**
+   * The maximum number of results in a page; 0 means no limit.
+   */
+  public int getLimit() {
+    return this.limit;
+  }
+
+  public void setLimit(int limit) {
+    this.limit = Math.max(0, limit);
+  }
+
+  public boolean isPaged() {
+    return this.limit > 0;
+  }
+
   @Override
   public String toString() {
     return "CalendarSearchCriteria{" +
@@ -227,6 +250,8 @@ public class CalendarSearchCriteria {
             ", sort=" + this.sort +
             ", start=" + this.start +
             ", end=" + this.end +
+            ", offset=" + this.offset +
+            ", limit=" + this.limit +
             '}';
   }
   
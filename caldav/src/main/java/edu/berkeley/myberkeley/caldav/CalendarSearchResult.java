@@ -0,0 +1,67 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of search results, with the number of matches across all pages and the offset at which
+ * the next page starts.
+ */
+public class CalendarSearchResult {
+
+  private final List<CalendarWrapper> results;
+
+  private final int total;
+
+  private final int nextOffset;
+
+  public CalendarSearchResult(List<CalendarWrapper> results, int total, int nextOffset) {
+    this.results = results;
+    this.total = total;
+    this.nextOffset = nextOffset;
+  }
+
+  /**
+   * Cut the requested page out of a complete, already sorted result list.
+   */
+  public static CalendarSearchResult page(List<CalendarWrapper> sorted, CalendarSearchCriteria criteria) {
+    int total = sorted.size();
+    int from = Math.min(criteria.getOffset(), total);
+    int to = criteria.isPaged() ? Math.min(from + criteria.getLimit(), total) : total;
+    return new CalendarSearchResult(new ArrayList<CalendarWrapper>(sorted.subList(from, to)), total, to);
+  }
+
+  public List<CalendarWrapper> getResults() {
+    return this.results;
+  }
+
+  public int getTotal() {
+    return this.total;
+  }
+
+  /**
+   * The offset of the following page, or -1 if this is the last one.
+   */
+  public int getNextOffset() {
+    return (this.nextOffset < this.total) ? this.nextOffset : -1;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Component;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-user counts of calendar entries by state, plus the earliest due date of any incomplete task,
+ * so that badges and the overdue flag need no search. Counts are adjusted as single entries are
+ * added, removed and replaced; when the task holding the earliest due date goes away, the next one can
+ * only be found by a search, so the summary is then marked stale until the maintenance reindex rebuilds it.
+ */
+public class CalendarSummary {
+
+  public enum COUNTS {
+    total,
+    events,
+    tasks,
+    unread,
+    required,
+    requiredIncomplete,
+    archived,
+    completed,
+    incomplete
+  }
+
+  public static final String EARLIEST_INCOMPLETE_DUE = "earliestIncompleteDue";
+
+  public static final String EARLIEST_DUE_STALE = "earliestDueStale";
+
+  private final Map<COUNTS, Long> counts = new EnumMap<COUNTS, Long>(COUNTS.class);
+
+  /**
+   * Millisecond timestamp, or 0 if there is no incomplete task with a due date.
+   */
+  private long earliestIncompleteDue;
+
+  private boolean earliestDueStale;
+
+  public CalendarSummary() {
+    for (COUNTS count : COUNTS.values()) {
+      this.counts.put(count, 0L);
+    }
+  }
+
+  public static CalendarSummary fromProperties(Map<String, Object> properties) {
+    CalendarSummary summary = new CalendarSummary();
+    for (COUNTS count : COUNTS.values()) {
+      Object value = properties.get(count.toString());
+      if (value instanceof Number) {
+        summary.counts.put(count, ((Number) value).longValue());
+      }
+    }
+    Object earliest = properties.get(EARLIEST_INCOMPLETE_DUE);
+    if (earliest instanceof Number) {
+      summary.earliestIncompleteDue = ((Number) earliest).longValue();
+    }
+    summary.earliestDueStale = Boolean.TRUE.equals(properties.get(EARLIEST_DUE_STALE));
+    return summary;
+  }
+
+  public Map<String, Object> toProperties() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Map.Entry<COUNTS, Long> entry : this.counts.entrySet()) {
+      properties.put(entry.getKey().toString(), entry.getValue());
+    }
+    properties.put(EARLIEST_INCOMPLETE_DUE, this.earliestIncompleteDue);
+    properties.put(EARLIEST_DUE_STALE, this.earliestDueStale);
+    return properties;
+  }
+
+  public JSONObject toJSON(long now) throws JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<COUNTS, Long> entry : this.counts.entrySet()) {
+      json.put(entry.getKey().toString(), entry.getValue());
+    }
+    if (this.earliestIncompleteDue > 0) {
+      json.put(EARLIEST_INCOMPLETE_DUE, this.earliestIncompleteDue);
+    }
+    json.put("hasOverdueTasks", hasOverdueTasks(now));
+    return json;
+  }
+
+  public void add(CalendarWrapper wrapper) {
+    add(Entry.of(wrapper));
+  }
+
+  public void add(Entry entry) {
+    adjust(entry, 1);
+    long due = entry.incompleteDue;
+    if (due > 0 && (this.earliestIncompleteDue == 0 || due < this.earliestIncompleteDue)) {
+      this.earliestIncompleteDue = due;
+    }
+  }
+
+  public void remove(CalendarWrapper wrapper) {
+    remove(Entry.of(wrapper));
+  }
+
+  public void remove(Entry entry) {
+    adjust(entry, -1);
+    if (getCount(COUNTS.incomplete) == 0) {
+      this.earliestIncompleteDue = 0;
+      this.earliestDueStale = false;
+    } else if (entry.incompleteDue == this.earliestIncompleteDue && this.earliestIncompleteDue > 0) {
+      this.earliestDueStale = true;
+    }
+  }
+
+  /**
+   * An entry changed in place. The earliest due date only goes stale if this entry held it and its
+   * due date moved later or it stopped being an incomplete task.
+   */
+  public void replace(CalendarWrapper removed, CalendarWrapper added) {
+    replace(Entry.of(removed), Entry.of(added));
+  }
+
+  /**
+   * As replace with wrappers, for a caller which changes one wrapper in place and so takes an Entry of
+   * it before the change.
+   */
+  public void replace(Entry removed, Entry added) {
+    long removedDue = removed.incompleteDue;
+    long addedDue = added.incompleteDue;
+    adjust(removed, -1);
+    adjust(added, 1);
+    if (getCount(COUNTS.incomplete) == 0) {
+      this.earliestIncompleteDue = 0;
+      this.earliestDueStale = false;
+      return;
+    }
+    if (removedDue == addedDue) {
+      return;
+    }
+    if (removedDue > 0 && removedDue == this.earliestIncompleteDue && (addedDue == 0 || addedDue > removedDue)) {
+      this.earliestDueStale = true;
+    }
+    if (addedDue > 0 && (this.earliestIncompleteDue == 0 || addedDue < this.earliestIncompleteDue)) {
+      this.earliestIncompleteDue = addedDue;
+    }
+  }
+
+  /**
+   * Fill in an earliest due date found by a search, for a summary which was stale. Only the copy in
+   * hand is corrected; the saved summary stays stale until it is rebuilt.
+   */
+  public void resolveEarliestIncompleteDue(long earliestIncompleteDue) {
+    this.earliestIncompleteDue = earliestIncompleteDue;
+    this.earliestDueStale = false;
+  }
+
+  public long getCount(COUNTS count) {
+    return this.counts.get(count);
+  }
+
+  public long getEarliestIncompleteDue() {
+    return this.earliestIncompleteDue;
+  }
+
+  public boolean isStale() {
+    return this.earliestDueStale;
+  }
+
+  public boolean hasOverdueTasks(long now) {
+    return this.earliestIncompleteDue > 0 && this.earliestIncompleteDue <= now;
+  }
+
+  private void adjust(Entry entry, int delta) {
+    increment(COUNTS.total, delta);
+    if (entry.task) {
+      increment(COUNTS.tasks, delta);
+      if (entry.completed) {
+        increment(COUNTS.completed, delta);
+      } else {
+        increment(COUNTS.incomplete, delta);
+        if (entry.required && !entry.archived) {
+          increment(COUNTS.requiredIncomplete, delta);
+        }
+      }
+    } else if (entry.event) {
+      increment(COUNTS.events, delta);
+    }
+    if (!entry.read) {
+      increment(COUNTS.unread, delta);
+    }
+    if (entry.required) {
+      increment(COUNTS.required, delta);
+    }
+    if (entry.archived) {
+      increment(COUNTS.archived, delta);
+    }
+  }
+
+  private void increment(COUNTS count, int delta) {
+    this.counts.put(count, Math.max(0, this.counts.get(count) + delta));
+  }
+
+  /**
+   * What the summary counts of one calendar entry.
+   */
+  public static final class Entry {
+    private final boolean event;
+    private final boolean task;
+    private final boolean completed;
+    private final boolean required;
+    private final boolean archived;
+    private final boolean read;
+
+    /**
+     * The due date of an incomplete task, otherwise 0.
+     */
+    private final long incompleteDue;
+
+    private Entry(CalendarWrapper wrapper) {
+      String componentName = wrapper.getComponentName();
+      this.event = Component.VEVENT.equals(componentName);
+      this.task = Component.VTODO.equals(componentName);
+      this.completed = wrapper.isCompleted();
+      this.required = wrapper.isRequired();
+      this.archived = wrapper.isArchived();
+      this.read = wrapper.isRead();
+      this.incompleteDue = (this.task && !this.completed) ? wrapper.getDueTime() : 0;
+    }
+
+    public static Entry of(CalendarWrapper wrapper) {
+      return new Entry(wrapper);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-user WebDAV sync state kept between sync-collection reports: the server's last sync token and
+ * the href and ETag of every member it has reported. Callers synchronize on the state while syncing.
+ */
+public class CalendarSyncState {
+
+  private String syncToken;
+
+  private final Map<String, String> etags = new LinkedHashMap<String, String>();
+
+  /**
+   * @return the token to send next, or null if a full sync is needed
+   */
+  public String getSyncToken() {
+    return this.syncToken;
+  }
+
+  public void reset() {
+    this.syncToken = null;
+    this.etags.clear();
+  }
+
+  /**
+   * Record the result of a sync-collection report.
+   *
+   * @param newSyncToken the token returned by the server
+   * @param changed hrefs and ETags of added or changed members
+   * @param removed hrefs of removed members
+   */
+  public void apply(String newSyncToken, Map<String, String> changed, Collection<String> removed) {
+    if (this.syncToken == null) {
+      this.etags.clear();
+    }
+    for (String href : removed) {
+      this.etags.remove(href);
+    }
+    this.etags.putAll(changed);
+    this.syncToken = newSyncToken;
+  }
+
+  public Map<String, String> getEtags() {
+    return Collections.unmodifiableMap(this.etags);
+  }
+}
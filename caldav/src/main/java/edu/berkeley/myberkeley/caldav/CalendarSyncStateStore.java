@@ -0,0 +1,89 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of CalendarSyncState per user calendar home. Losing a state only costs a full sync.
+ * If the server turns out not to support sync-collection, the store is switched off for good.
+ */
+public class CalendarSyncStateStore {
+
+  private final LinkedHashMap<String, CalendarSyncState> states;
+
+  private volatile boolean unsupported;
+
+  private long incrementalSyncs;
+
+  private long fullSyncs;
+
+  private long rejectedTokens;
+
+  public CalendarSyncStateStore(final int maxUsers) {
+    this.states = new LinkedHashMap<String, CalendarSyncState>(256, 0.75f, true) {
+      private static final long serialVersionUID = 3254712906834425163L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CalendarSyncState> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  public synchronized CalendarSyncState getState(String userHome) {
+    CalendarSyncState state = this.states.get(userHome);
+    if (state == null) {
+      state = new CalendarSyncState();
+      this.states.put(userHome, state);
+    }
+    return state;
+  }
+
+  public boolean isUnsupported() {
+    return this.unsupported;
+  }
+
+  public synchronized void markUnsupported() {
+    this.unsupported = true;
+    this.states.clear();
+  }
+
+  public synchronized void recordSync(boolean incremental) {
+    if (incremental) {
+      this.incrementalSyncs++;
+    } else {
+      this.fullSyncs++;
+    }
+  }
+
+  public synchronized void recordRejectedToken() {
+    this.rejectedTokens++;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("users", this.states.size());
+    stats.put("supported", !this.unsupported);
+    stats.put("incrementalSyncs", this.incrementalSyncs);
+    stats.put("fullSyncs", this.fullSyncs);
+    stats.put("rejectedTokens", this.rejectedTokens);
+    return stats;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over calendar entries fetched in fixed-size chunks. With an executor, up to maxInFlight chunks
+ * are fetched ahead of the consumer in parallel; without one, each chunk is fetched when it is reached.
+ * Either way, entries come back in the order of the URIs and only the chunks in flight are held in memory.
+ * Fetch failures surface from next() or hasNext() as an IllegalStateException wrapping the cause.
+ */
+public class ChunkedCalendarIterator implements Iterator<CalendarWrapper> {
+
+  public interface ChunkLoader {
+    List<CalendarWrapper> load(List<CalendarURI> chunk) throws CalDavException, IOException;
+  }
+
+  private final List<CalendarURI> uris;
+
+  private final int chunkSize;
+
+  private final int maxInFlight;
+
+  private final ExecutorService executor;
+
+  private final ChunkLoader loader;
+
+  private final LinkedList<Future<List<CalendarWrapper>>> inFlight = new LinkedList<Future<List<CalendarWrapper>>>();
+
+  private int nextChunkStart;
+
+  private Iterator<CalendarWrapper> current = Collections.<CalendarWrapper>emptyList().iterator();
+
+  public ChunkedCalendarIterator(List<CalendarURI> uris, int chunkSize, int maxInFlight, ExecutorService executor,
+                                 ChunkLoader loader) {
+    this.uris = uris;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.executor = executor;
+    this.loader = loader;
+    if (this.executor != null) {
+      fillWindow();
+    }
+  }
+
+  public boolean hasNext() {
+    while (!this.current.hasNext()) {
+      if (this.executor == null) {
+        if (this.nextChunkStart >= this.uris.size()) {
+          return false;
+        }
+        this.current = load(nextChunk()).iterator();
+      } else {
+        if (this.inFlight.isEmpty()) {
+          return false;
+        }
+        this.current = await(this.inFlight.removeFirst()).iterator();
+        fillWindow();
+      }
+    }
+    return true;
+  }
+
+  public CalendarWrapper next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return this.current.next();
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private void fillWindow() {
+    while (this.inFlight.size() < this.maxInFlight && this.nextChunkStart < this.uris.size()) {
+      final List<CalendarURI> chunk = nextChunk();
+      this.inFlight.add(this.executor.submit(new Callable<List<CalendarWrapper>>() {
+        public List<CalendarWrapper> call() throws Exception {
+          return loader.load(chunk);
+        }
+      }));
+    }
+  }
+
+  private List<CalendarURI> nextChunk() {
+    int end = Math.min(this.uris.size(), this.nextChunkStart + this.chunkSize);
+    List<CalendarURI> chunk = this.uris.subList(this.nextChunkStart, end);
+    this.nextChunkStart = end;
+    return chunk;
+  }
+
+  private List<CalendarWrapper> load(List<CalendarURI> chunk) {
+    try {
+      return this.loader.load(chunk);
+    } catch (CalDavException e) {
+      throw new IllegalStateException("Failed to fetch calendars", e);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to fetch calendars", e);
+    }
+  }
+
+  private List<CalendarWrapper> await(Future<List<CalendarWrapper>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      cancelAll();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted fetching calendars", e);
+    } catch (ExecutionException e) {
+      cancelAll();
+      throw new IllegalStateException("Failed to fetch calendars", e.getCause());
+    }
+  }
+
+  private void cancelAll() {
+    for (Future<List<CalendarWrapper>> future : this.inFlight) {
+      future.cancel(true);
+    }
+    this.inFlight.clear();
+    this.nextChunkStart = this.uris.size();
+  }
+}
@@ -20,16 +20,20 @@ package edu.berkeley.myberkeley.caldav;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
 import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
 import edu.berkeley.myberkeley.caldav.api.CalendarURI;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapperCodec;
 import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Property;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -52,6 +56,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -61,25 +66,112 @@ public class EmbeddedCalDav implements CalDavConnector {
   public static final String RESOURCETYPE = "myberkeley/calcomponent";
   public static final String STORE_NAME = "_myberkeley_calstore";
   public static final String STORE_RESOURCETYPE = "myberkeley/calstore";
+  /**
+   * The version of the write which produced a stored calendar, and on the summary node, the version of the
+   * user's latest write or delete.
+   */
+  public static final String STORE_VERSION_PROPERTY = "calstoreVersion";
+  public static final String INDEX_FORMAT_PROPERTY = "calIndexFormat";
+  public static final String INDEX_REQUESTED_PROPERTY = "calIndexRequested";
+  public static final String SUMMARY_NAME = "_myberkeley_calsummary";
+  public static final String SUMMARY_RESOURCETYPE = "myberkeley/calsummary";
+  /**
+   * The time index node, a sibling of the store with one child per stored calendar, of the same name,
+   * holding that calendar's CalendarIntervalIndex bounds.
+   */
+  public static final String TIME_INDEX_NAME = "_myberkeley_caltimeindex";
+  public static final String TIME_INDEX_RESOURCETYPE = "myberkeley/caltimeindex";
+  /**
+   * Padded interval bounds of a time index entry, in millis; both are missing for an unbounded entry.
+   */
+  public static final String INTERVAL_START_PROPERTY = "calIntervalStart";
+  public static final String INTERVAL_END_PROPERTY = "calIntervalEnd";
+
+  /**
+   * Guard the read-modify-write of a user's summary.
+   */
+  private static final Object[] USER_LOCKS = new Object[64];
+  static {
+    for (int i = 0; i < USER_LOCKS.length; i++) {
+      USER_LOCKS[i] = new Object();
+    }
+  }
 
   public enum JSON_PROPERTIES {
     component,
     etag,
-    calendarWrapper
+    calendarWrapper,
+    /**
+     * The CalendarWrapperCodec form, which replaces the calendarWrapper JSON when an item is written.
+     */
+    calendarWrapperData
   }
 
   protected final String userId;
   protected final Session session;
   protected final String storePath;
   protected final String storeResourcePath;
+  protected final String summaryPath;
+  protected final String timeIndexPath;
+
+  /**
+   * Takes the session back on close; null if the caller looks after the session.
+   */
+  private SessionRelease sessionRelease;
+
+  private KnownStoreCache knownStores;
+
+  private TimeIndexCache timeIndexes;
+
+  protected RecentWritesOverlay recentWrites;
+
+  /**
+   * How a session lent to a connector is given back.
+   */
+  interface SessionRelease {
+    void release(Session session);
+  }
 
   public EmbeddedCalDav(String userId, Session session) {
     this.userId = userId;
     this.session = session;
     this.storePath = StorageClientUtils.newPath(LitePersonalUtils.getHomePath(userId), STORE_NAME);
+    this.summaryPath = StorageClientUtils.newPath(LitePersonalUtils.getHomePath(userId), SUMMARY_NAME);
+    this.timeIndexPath = StorageClientUtils.newPath(LitePersonalUtils.getHomePath(userId), TIME_INDEX_NAME);
     this.storeResourcePath = StorageClientUtils.newPath(LitePersonalUtils.getHomeResourcePath(userId), STORE_NAME);
   }
 
+  void setSessionRelease(SessionRelease sessionRelease) {
+    this.sessionRelease = sessionRelease;
+  }
+
+  void setKnownStores(KnownStoreCache knownStores) {
+    this.knownStores = knownStores;
+  }
+
+  void setTimeIndexes(TimeIndexCache timeIndexes) {
+    this.timeIndexes = timeIndexes;
+  }
+
+  /**
+   * Record writes and deletes here, for searches whose index may lag behind storage.
+   */
+  void setRecentWrites(RecentWritesOverlay recentWrites) {
+    this.recentWrites = recentWrites;
+  }
+
+  /**
+   * Give back the session if it was lent by the provider. Closing twice does nothing more.
+   */
+  @Override
+  public void close() {
+    SessionRelease release = this.sessionRelease;
+    this.sessionRelease = null;
+    if (release != null) {
+      release.release(this.session);
+    }
+  }
+
   @Override
   public CalendarURI putCalendar(Calendar calendar) throws CalDavException, IOException {
     return modifyCalendar(null, calendar);
@@ -95,31 +187,125 @@ public class EmbeddedCalDav implements CalDavConnector {
       }
       final ContentManager contentManager = session.getContentManager();
       final String calendarContentPath = calResourcePathToStoragePath(uri.getPath());
-      Content content = contentManager.get(calendarContentPath);
-      if (content == null) {
-        if (isCreate) {
-          content = new Content(calendarContentPath, null);
-        } else {
-          throw new IOException("Existing calendar not found at " + uri);
+      final CalendarWrapper calendarWrapper = new CalendarWrapper(calendar, uri, null);
+      final long version;
+      synchronized (getUserLock()) {
+        if (!contentManager.exists(storePath)) {
+          // Known to exist when this write began, but removed since.
+          if (knownStores != null) {
+            knownStores.forget(storePath);
+          }
+          ensureCalendarStoreInternal();
+        }
+        // Read under the lock, so that a calendar deleted meanwhile is not written back.
+        Content content = contentManager.get(calendarContentPath);
+        if (content == null) {
+          if (isCreate) {
+            content = new Content(calendarContentPath, null);
+          } else {
+            throw new IOException("Existing calendar not found at " + uri);
+          }
+        } else if (isCreate) {
+          throw new IOException("Existing calendar found at " + uri);
+        }
+        final CalendarWrapper previousWrapper = isCreate ? null : new CalendarWrapper(content);
+        content.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, RESOURCETYPE);
+        final Content summaryContent = contentManager.get(summaryPath);
+        version = nextVersion(summaryContent, content);
+        uri = withEtag(uri, version);
+        calendarWrapper.setUri(uri);
+        setStoredWrapper(content, calendarWrapper);
+        content.setProperty(STORE_VERSION_PROPERTY, version);
+        content.setProperty(INDEX_FORMAT_PROPERTY, EmbeddedCalDavIndexingHandler.INDEX_FORMAT);
+        LOGGER.info("Writing calendar at {}", calendarContentPath);
+        contentManager.update(content);
+        if (contentManager.exists(timeIndexPath)) {
+          putTimeIndexEntry(contentManager, StorageClientUtils.getObjectName(calendarContentPath), calendarWrapper);
         }
-      } else if (isCreate) {
-        throw new IOException("Existing calendar found at " + uri);
+        updateSummary(contentManager, summaryContent, previousWrapper, calendarWrapper, version);
+      }
+      if (recentWrites != null) {
+        recentWrites.recordWrite(userId, calendarWrapper, version);
       }
-      final CalendarWrapper calendarWrapper = new CalendarWrapper(calendar, uri, null);
-      content.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, RESOURCETYPE);
-      JSONObject calendarJson = calendarWrapper.toJSON();
-      content.setProperty(JSON_PROPERTIES.calendarWrapper.toString(), calendarJson.toString());
-      LOGGER.info("Writing calendar at {}", calendarContentPath);
-      contentManager.update(content);
     } catch (StorageClientException e) {
       throw new IOException(e);
     } catch (AccessDeniedException e) {
       throw new IOException(e);
-    } catch (JSONException e) {
-      throw new CalDavException(e.getMessage(), e);
     }
     return uri;
   }
+
+  /**
+   * Flags are set on the stored form without building a Calendar, and the whole batch shares one summary
+   * update and no store or time index update, since dates are not touched. Entries whose flags already
+   * match are not written, so they are not reindexed either.
+   */
+  @Override
+  public List<CalendarURI> patchCalendars(List<CalendarPatch> patches) throws CalDavException, IOException {
+    List<CalendarURI> patched = new ArrayList<CalendarURI>(patches.size());
+    try {
+      ContentManager contentManager = session.getContentManager();
+      synchronized (getUserLock()) {
+        Content store = contentManager.get(storePath);
+        if (store == null) {
+          return patched;
+        }
+        Content summaryContent = contentManager.get(summaryPath);
+        CalendarSummary summary = (summaryContent != null) ?
+            CalendarSummary.fromProperties(summaryContent.getProperties()) : null;
+        long latestVersion = 0;
+        for (CalendarPatch patch : patches) {
+          String contentPath = calResourcePathToStoragePath(patch.getUri().getPath());
+          Content content = contentManager.get(contentPath);
+          if (content == null) {
+            LOGGER.warn("Skipping update of missing calendar {}", patch.getUri());
+            continue;
+          }
+          CalendarWrapper calendarWrapper = new CalendarWrapper(content);
+          if (calendarWrapper.getUri() == null || !patch.changes(calendarWrapper)) {
+            continue;
+          }
+          CalendarSummary.Entry previous = CalendarSummary.Entry.of(calendarWrapper);
+          patch.applyTo(calendarWrapper);
+          if (summary != null) {
+            summary.replace(previous, CalendarSummary.Entry.of(calendarWrapper));
+          }
+          long version = Math.max(nextVersion(summaryContent, content), latestVersion);
+          latestVersion = version;
+          calendarWrapper.setUri(withEtag(calendarWrapper.getUri(), version));
+          setStoredWrapper(content, calendarWrapper);
+          content.setProperty(STORE_VERSION_PROPERTY, version);
+          content.setProperty(INDEX_FORMAT_PROPERTY, EmbeddedCalDavIndexingHandler.INDEX_FORMAT);
+          contentManager.update(content);
+          patched.add(calendarWrapper.getUri());
+          if (recentWrites != null) {
+            recentWrites.recordWrite(userId, calendarWrapper, version);
+          }
+        }
+        if (!patched.isEmpty()) {
+          if (summary != null) {
+            summaryContent.setProperty(STORE_VERSION_PROPERTY, latestVersion);
+            writeSummary(contentManager, summaryContent, summary);
+          }
+          LOGGER.info("Patched {} of {} calendars in {}", new Object[] {patched.size(), patches.size(), storePath});
+        }
+      }
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (JSONException e) {
+      throw new CalDavException("Could not apply calendar patches", e);
+    }
+    return patched;
+  }
+
+  private static void setStoredWrapper(Content content, CalendarWrapper calendarWrapper) throws CalDavException {
+    content.setProperty(JSON_PROPERTIES.calendarWrapperData.toString(), CalendarWrapperCodec.encode(calendarWrapper));
+    if (content.hasProperty(JSON_PROPERTIES.calendarWrapper.toString())) {
+      content.removeProperty(JSON_PROPERTIES.calendarWrapper.toString());
+    }
+  }
   
   private CalendarURI createCalendarPath() throws CalDavException {
     final CalendarURI uri;
@@ -136,27 +322,62 @@ public class EmbeddedCalDav implements CalDavConnector {
 
   @Override
   public List<CalendarWrapper> getCalendars(List<CalendarURI> uris) throws CalDavException, IOException {
-    List<CalendarWrapper> calendarWrappers = Lists.newArrayListWithExpectedSize(uris.size());
+    return fetchCalendars(uris).getFound();
+  }
+
+  /**
+   * Resolve all of the URIs to storage paths in one pass and read each distinct path once, with no
+   * separate existence check. Entries which are not stored (or not readable) come back in the missing list.
+   */
+  public CalendarBatch fetchCalendars(List<CalendarURI> uris) throws CalDavException, IOException {
+    Map<String, CalendarURI> pathToUri = Maps.newLinkedHashMap();
+    for (CalendarURI uri : uris) {
+      pathToUri.put(calResourcePathToStoragePath(uri.getPath()), uri);
+    }
+    CalendarBatch batch = new CalendarBatch(pathToUri.size());
     try {
       ContentManager contentManager = session.getContentManager();
-      for (CalendarURI uri : uris) {
-        final String contentPath = calResourcePathToStoragePath(uri.getPath());
-        if (contentManager.exists(contentPath)) {
-          final Content content = contentManager.get(contentPath);
-          if (content != null) {
-            final CalendarWrapper calendarWrapper = new CalendarWrapper(content);
-            if (calendarWrapper != null) {
-              calendarWrappers.add(calendarWrapper);
-            }
-          }
+      for (Map.Entry<String, CalendarURI> entry : pathToUri.entrySet()) {
+        Content content;
+        try {
+          content = contentManager.get(entry.getKey());
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("Cannot read calendar at {}: {}", entry.getKey(), e.getMessage());
+          content = null;
+        }
+        if (content == null) {
+          batch.missing.add(entry.getValue());
+        } else {
+          batch.found.add(new CalendarWrapper(content));
         }
       }
     } catch (StorageClientException e) {
-      LOGGER.error(e.getMessage(), e);
-    } catch (AccessDeniedException e) {
-      LOGGER.error(e.getMessage(), e);
+      throw new IOException(e.getMessage(), e);
+    }
+    return batch;
+  }
+
+  public static class CalendarBatch {
+    private final List<CalendarWrapper> found;
+    private final List<CalendarURI> missing;
+
+    CalendarBatch(int expectedSize) {
+      this.found = Lists.newArrayListWithExpectedSize(expectedSize);
+      this.missing = new ArrayList<CalendarURI>();
+    }
+
+    public List<CalendarWrapper> getFound() {
+      return found;
+    }
+
+    public List<CalendarURI> getMissing() {
+      return missing;
     }
-    return calendarWrappers;
+  }
+
+  @Override
+  public Iterator<CalendarWrapper> iterateCalendars(List<CalendarURI> uris) throws CalDavException, IOException {
+    return getCalendars(uris).iterator();
   }
 
   @Override
@@ -166,6 +387,17 @@ public class EmbeddedCalDav implements CalDavConnector {
     return calendarWrappers;
   }
 
+  @Override
+  public CalendarSearchResult searchPage(CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    return CalendarSearchResult.page(searchByDate(criteria), criteria);
+  }
+
+  @Override
+  public CalendarDashboard getDashboard(CalendarSearchCriteria eventCriteria, CalendarSearchCriteria taskCriteria)
+      throws CalDavException, IOException {
+    return CalendarDashboard.load(this, eventCriteria, taskCriteria);
+  }
+
   @Override
   public boolean hasOverdueTasks() throws CalDavException, IOException {
     CalendarSearchCriteria criteria = new CalendarSearchCriteria();
@@ -197,7 +429,26 @@ public class EmbeddedCalDav implements CalDavConnector {
     final String contentPath = calResourcePathToStoragePath(uri.getPath());
     try {
       ContentManager contentManager = session.getContentManager();
-      contentManager.delete(contentPath);
+      final long version;
+      String timeIndexEntryPath = StorageClientUtils.newPath(timeIndexPath, StorageClientUtils.getObjectName(contentPath));
+      synchronized (getUserLock()) {
+        // A second delete of the same calendar finds nothing and leaves the summary alone.
+        final Content content = contentManager.get(contentPath);
+        if (content != null) {
+          contentManager.delete(contentPath);
+        }
+        if (contentManager.exists(timeIndexEntryPath)) {
+          contentManager.delete(timeIndexEntryPath);
+        }
+        final Content summaryContent = contentManager.get(summaryPath);
+        version = nextVersion(summaryContent, content);
+        if (content != null) {
+          updateSummary(contentManager, summaryContent, new CalendarWrapper(content), null, version);
+        }
+      }
+      if (recentWrites != null) {
+        recentWrites.recordDelete(userId, uri.toString(), version);
+      }
     } catch (StorageClientException e) {
       throw new IOException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
@@ -216,34 +467,531 @@ public class EmbeddedCalDav implements CalDavConnector {
     }
   }
 
+  /**
+   * The version of the most recent write to this user's store, as a millisecond timestamp, or 0 if
+   * nothing has been written since versions were introduced or the user has no summary yet. It is kept
+   * on the summary node, which each write updates anyway. Each stored calendar carries the version of
+   * the write which produced it.
+   */
+  @Override
+  public long getStoreVersion() throws IOException {
+    try {
+      Content summaryContent = session.getContentManager().get(summaryPath);
+      return getStoreVersion(summaryContent);
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Touch every calendar in the store which was last indexed in an older format, so that the
+   * indexer picks it up again. Calendar contents and the store version are left alone.
+   *
+   * @return the number of calendars queued for reindexing
+   */
+  public int reindex(int indexFormat) throws IOException {
+    int count = 0;
+    try {
+      ContentManager contentManager = session.getContentManager();
+      if (!contentManager.exists(storePath)) {
+        return 0;
+      }
+      List<String> stale = new ArrayList<String>();
+      Iterator<Content> children = contentManager.listChildren(storePath);
+      while (children.hasNext()) {
+        Content child = children.next();
+        if (isIndexedBefore(child, indexFormat)) {
+          stale.add(child.getPath());
+        }
+      }
+      for (String path : stale) {
+        // Read again under the lock, so that a write made since the listing is not undone.
+        synchronized (getUserLock()) {
+          Content content = contentManager.get(path);
+          if (content == null || !isIndexedBefore(content, indexFormat)) {
+            continue;
+          }
+          content.setProperty(INDEX_FORMAT_PROPERTY, indexFormat);
+          contentManager.update(content);
+          count++;
+        }
+      }
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return count;
+  }
+
+  private static boolean isIndexedBefore(Content content, int indexFormat) {
+    Object format = content.getProperty(INDEX_FORMAT_PROPERTY);
+    return !(format instanceof Number) || ((Number) format).intValue() < indexFormat;
+  }
+
+  /**
+   * Touch every recurring calendar in the store so that the indexer expands its occurrences again
+   * around the current date. Run it at least once a term, since each expansion only reaches as far as
+   * the indexing handler's occurrence horizon.
+   *
+   * @return the number of calendars queued for reindexing
+   */
+  public int reindexRecurring() throws IOException {
+    int count = 0;
+    try {
+      ContentManager contentManager = session.getContentManager();
+      if (!contentManager.exists(storePath)) {
+        return 0;
+      }
+      List<String> recurring = new ArrayList<String>();
+      Iterator<Content> children = contentManager.listChildren(storePath);
+      while (children.hasNext()) {
+        Content child = children.next();
+        if (isRecurring(new CalendarWrapper(child))) {
+          recurring.add(child.getPath());
+        }
+      }
+      for (String path : recurring) {
+        // Read again under the lock, so that a write made since the listing is not undone.
+        synchronized (getUserLock()) {
+          Content content = contentManager.get(path);
+          if (content == null || !isRecurring(new CalendarWrapper(content))) {
+            continue;
+          }
+          content.setProperty(INDEX_REQUESTED_PROPERTY, System.currentTimeMillis());
+          contentManager.update(content);
+          count++;
+        }
+      }
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return count;
+  }
+
+  private static boolean isRecurring(CalendarWrapper calendarWrapper) {
+    return calendarWrapper.getPropertyValue(Property.RRULE) != null ||
+        calendarWrapper.getPropertyValue(Property.RDATE) != null;
+  }
+
+  /**
+   * Rewrite every calendar which is still stored as calendarWrapper JSON in the CalendarWrapperCodec
+   * form, pausing after each batch so that the indexer and other writers can keep up. Calendar contents
+   * and the store version are left alone.
+   *
+   * @return the number of calendars rewritten
+   */
+  public int recode(int batchSize, long pauseMillis) throws IOException {
+    int count = 0;
+    try {
+      ContentManager contentManager = session.getContentManager();
+      if (!contentManager.exists(storePath)) {
+        return 0;
+      }
+      int paused = 0;
+      List<String> legacy = new ArrayList<String>();
+      Iterator<Content> children = contentManager.listChildren(storePath);
+      while (children.hasNext()) {
+        Content child = children.next();
+        if (isLegacy(child)) {
+          legacy.add(child.getPath());
+        }
+      }
+      for (String path : legacy) {
+        // Read again under the lock, so that a write made since the listing, or during a pause, is not
+        // overwritten by the listed copy.
+        synchronized (getUserLock()) {
+          Content content = contentManager.get(path);
+          if (content == null || !isLegacy(content)) {
+            continue;
+          }
+          CalendarWrapper calendarWrapper = new CalendarWrapper(content);
+          if (calendarWrapper.getUri() == null) {
+            LOGGER.warn("Leaving unreadable calendar at {} as it is", path);
+            continue;
+          }
+          try {
+            setStoredWrapper(content, calendarWrapper);
+          } catch (CalDavException e) {
+            LOGGER.warn("Leaving unreadable calendar at {} as it is: {}", path, e.getMessage());
+            continue;
+          }
+          contentManager.update(content);
+          count++;
+        }
+        if (count > paused && count % batchSize == 0 && pauseMillis > 0) {
+          paused = count;
+          Thread.sleep(pauseMillis);
+        }
+      }
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.info("Recoding of {} interrupted after {} calendars", storePath, count);
+    }
+    return count;
+  }
+
+  private static boolean isLegacy(Content content) {
+    return !content.hasProperty(JSON_PROPERTIES.calendarWrapperData.toString()) &&
+        content.hasProperty(JSON_PROPERTIES.calendarWrapper.toString());
+  }
+
+  /**
+   * Each write gives the entry a new etag, taken from its version, so that clients holding the old one
+   * see the change.
+   */
+  private static CalendarURI withEtag(CalendarURI uri, long version) throws URIException {
+    return new CalendarURI(uri, new DateTime(version));
+  }
+
+  static long getStoreVersion(Content content) {
+    if (content != null) {
+      Object version = content.getProperty(STORE_VERSION_PROPERTY);
+      if (version instanceof Number) {
+        return ((Number) version).longValue();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * A millisecond timestamp later than both the user's latest write and the calendar's own version.
+   */
+  private static long nextVersion(Content summaryContent, Content content) {
+    long previous = Math.max(getStoreVersion(summaryContent), getStoreVersion(content));
+    return Math.max(System.currentTimeMillis(), previous + 1);
+  }
+
   protected List<CalendarWrapper> internalFetchByDate(CalendarSearchCriteria criteria) throws CalDavException, IOException {
     return Lists.newArrayList(getCalendarIterator(criteria));
   }
 
   private void ensureCalendarStoreInternal() throws StorageClientException, AccessDeniedException {
+    if (knownStores != null && knownStores.contains(storePath)) {
+      return;
+    }
     ContentManager contentManager = session.getContentManager();
     if (!contentManager.exists(storePath)) {
       LOGGER.info("Will create a new read-only notification store for user at path " + storePath);
       contentManager.update(new Content(storePath, ImmutableMap.of(
-          JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-          (Object) STORE_RESOURCETYPE)));
-      List<AclModification> modifications = new ArrayList<AclModification>();
-      AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
-      AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
-      AclModification.addAcl(true, Permissions.CAN_READ, userId, modifications);
-      AccessControlManager accessControlManager = session.getAccessControlManager();
-      accessControlManager.setAcl(Security.ZONE_CONTENT, storePath, modifications.toArray(new AclModification[modifications.size()]));
+          JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, (Object) STORE_RESOURCETYPE)));
+      setOwnerReadOnly(storePath);
+      if (!contentManager.exists(timeIndexPath)) {
+        contentManager.update(new Content(timeIndexPath, ImmutableMap.of(
+            JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, (Object) TIME_INDEX_RESOURCETYPE)));
+        setOwnerReadOnly(timeIndexPath);
+      }
+      if (!contentManager.exists(summaryPath)) {
+        // A new store is empty, so neither its summary nor its time index needs building.
+        Content summaryContent = new Content(summaryPath, ImmutableMap.of(
+            JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, (Object) SUMMARY_RESOURCETYPE));
+        writeSummary(contentManager, summaryContent, new CalendarSummary());
+        setOwnerReadOnly(summaryPath);
+      }
+    }
+    if (knownStores != null) {
+      knownStores.add(storePath);
+    }
+  }
+
+  private void setOwnerReadOnly(String path) throws StorageClientException, AccessDeniedException {
+    List<AclModification> modifications = new ArrayList<AclModification>();
+    AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+    AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+    AclModification.addAcl(true, Permissions.CAN_READ, userId, modifications);
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    accessControlManager.setAcl(Security.ZONE_CONTENT, path, modifications.toArray(new AclModification[modifications.size()]));
+  }
+
+  /**
+   * The user's summary counts. Nothing is written here: a missing summary is counted from the store
+   * without being saved, and a stale one has its earliest due date looked up by
+   * {@link #findEarliestIncompleteDue()}. The maintenance reindex saves both, see {@link #ensureSummary()}.
+   */
+  public CalendarSummary getSummary() throws CalDavException, IOException {
+    CalendarSummary summary = getStoredSummary();
+    if (summary == null) {
+      LOGGER.info("No calendar summary at {} yet, counting the store", summaryPath);
+      summary = countSummary();
+    } else if (summary.isStale()) {
+      summary.resolveEarliestIncompleteDue(findEarliestIncompleteDue());
+    }
+    return summary;
+  }
+
+  /**
+   * The saved summary, or null if there is none.
+   */
+  protected CalendarSummary getStoredSummary() throws IOException {
+    try {
+      Content content = session.getContentManager().get(summaryPath);
+      return (content == null) ? null : CalendarSummary.fromProperties(content.getProperties());
+    } catch (StorageClientException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The earliest due date of any incomplete task, or 0 if there is none. This reads every stored
+   * calendar; subclasses with an index answer it with a search.
+   */
+  protected long findEarliestIncompleteDue() throws IOException {
+    long earliest = 0;
+    Iterator<CalendarWrapper> calendars = getCalendarIterator(null);
+    while (calendars.hasNext()) {
+      CalendarWrapper wrapper = calendars.next();
+      if (Component.VTODO.equals(wrapper.getComponentName()) && !wrapper.isCompleted()) {
+        long due = wrapper.getDueTime();
+        if (due > 0 && (earliest == 0 || due < earliest)) {
+          earliest = due;
+        }
+      }
+    }
+    return earliest;
+  }
+
+  /**
+   * Build the saved summary if it is missing or its earliest due date is stale.
+   *
+   * @return true if it was rebuilt
+   */
+  public boolean ensureSummary() throws IOException {
+    synchronized (getUserLock()) {
+      CalendarSummary summary = getStoredSummary();
+      if (summary != null && !summary.isStale()) {
+        return false;
+      }
+      rebuildSummary();
+      return true;
+    }
+  }
+
+  private CalendarSummary countSummary() throws IOException {
+    CalendarSummary summary = new CalendarSummary();
+    Iterator<CalendarWrapper> calendars = getCalendarIterator(null);
+    while (calendars.hasNext()) {
+      summary.add(calendars.next());
+    }
+    return summary;
+  }
+
+  /**
+   * Recount the summary from every calendar in the store and save it.
+   */
+  public CalendarSummary rebuildSummary() throws IOException {
+    synchronized (getUserLock()) {
+      CalendarSummary summary = countSummary();
+      try {
+        ContentManager contentManager = session.getContentManager();
+        Content content = contentManager.get(summaryPath);
+        if (content == null) {
+          content = new Content(summaryPath, ImmutableMap.of(
+              JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, (Object) SUMMARY_RESOURCETYPE));
+          writeSummary(contentManager, content, summary);
+          setOwnerReadOnly(summaryPath);
+        } else {
+          writeSummary(contentManager, content, summary);
+        }
+      } catch (StorageClientException e) {
+        throw new IOException(e.getMessage(), e);
+      } catch (AccessDeniedException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+      LOGGER.info("Rebuilt calendar summary at {}", summaryPath);
+      return summary;
+    }
+  }
+
+  /**
+   * Adjust the saved summary for a single write and record the write's version on it. If there is no
+   * saved summary yet, it is left for the maintenance reindex to build.
+   */
+  private static void updateSummary(ContentManager contentManager, Content content, CalendarWrapper removed,
+                                    CalendarWrapper added, long version)
+      throws StorageClientException, AccessDeniedException {
+    if (content == null) {
+      return;
+    }
+    CalendarSummary summary = CalendarSummary.fromProperties(content.getProperties());
+    if (removed != null && added != null) {
+      summary.replace(removed, added);
+    } else if (removed != null) {
+      summary.remove(removed);
+    } else if (added != null) {
+      summary.add(added);
+    }
+    content.setProperty(STORE_VERSION_PROPERTY, version);
+    writeSummary(contentManager, content, summary);
+  }
+
+  private static void writeSummary(ContentManager contentManager, Content content, CalendarSummary summary)
+      throws StorageClientException, AccessDeniedException {
+    for (Map.Entry<String, Object> property : summary.toProperties().entrySet()) {
+      content.setProperty(property.getKey(), property.getValue());
+    }
+    contentManager.update(content);
+  }
+
+  private Object getUserLock() {
+    return USER_LOCKS[(userId.hashCode() & 0x7fffffff) % USER_LOCKS.length];
+  }
+
+  /**
+   * Write or replace one calendar's entry in the time index. Entries are independent, so a write
+   * touches only its own.
+   */
+  private void putTimeIndexEntry(ContentManager contentManager, String name, CalendarWrapper calendarWrapper)
+      throws StorageClientException, AccessDeniedException {
+    String entryPath = StorageClientUtils.newPath(timeIndexPath, name);
+    Content entry = contentManager.get(entryPath);
+    if (entry == null) {
+      entry = new Content(entryPath, null);
     }
+    long[] bounds = CalendarIntervalIndex.getBounds(name, calendarWrapper);
+    if (bounds == null) {
+      entry.removeProperty(INTERVAL_START_PROPERTY);
+      entry.removeProperty(INTERVAL_END_PROPERTY);
+    } else {
+      entry.setProperty(INTERVAL_START_PROPERTY, bounds[0]);
+      entry.setProperty(INTERVAL_END_PROPERTY, bounds[1]);
+    }
+    contentManager.update(entry);
   }
 
+  /**
+   * The time index, from the cache if it was loaded at the current store version, or else loaded from
+   * its entries. The version is read before the entries, so a write made while they are listed only
+   * makes the cached index newer than its version. Without a summary there is no store version to go
+   * by, and the index is loaded every time. Nothing is built here; a store without a time index is
+   * searched by reading every calendar until the repairTimeIndex maintenance action builds one.
+   *
+   * @return null if the store has no time index
+   */
+  CalendarIntervalIndex getTimeIndex() throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    if (!contentManager.exists(timeIndexPath)) {
+      return null;
+    }
+    long version = 0;
+    if (timeIndexes != null) {
+      version = getStoreVersion(contentManager.get(summaryPath));
+      if (version > 0) {
+        CalendarIntervalIndex cached = timeIndexes.get(userId, version);
+        if (cached != null) {
+          return cached;
+        }
+      }
+    }
+    CalendarIntervalIndex timeIndex = new CalendarIntervalIndex();
+    Iterator<Content> entries = contentManager.listChildren(timeIndexPath);
+    while (entries.hasNext()) {
+      Content entry = entries.next();
+      String name = StorageClientUtils.getObjectName(entry.getPath());
+      Object start = entry.getProperty(INTERVAL_START_PROPERTY);
+      Object end = entry.getProperty(INTERVAL_END_PROPERTY);
+      if (start instanceof Number && end instanceof Number) {
+        timeIndex.put(name, ((Number) start).longValue(), ((Number) end).longValue());
+      } else {
+        timeIndex.putUnbounded(name);
+      }
+    }
+    if (version > 0) {
+      timeIndexes.put(userId, version, timeIndex);
+    }
+    return timeIndex;
+  }
+
+  /**
+   * Write a time index entry for every calendar in the store and drop entries whose calendar is gone.
+   *
+   * @return the rebuilt index, or null if there is no store
+   */
+  public CalendarIntervalIndex rebuildTimeIndex() throws StorageClientException, AccessDeniedException {
+    synchronized (getUserLock()) {
+      ContentManager contentManager = session.getContentManager();
+      if (!contentManager.exists(storePath)) {
+        return null;
+      }
+      if (!contentManager.exists(timeIndexPath)) {
+        contentManager.update(new Content(timeIndexPath, ImmutableMap.of(
+            JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, (Object) TIME_INDEX_RESOURCETYPE)));
+        setOwnerReadOnly(timeIndexPath);
+      }
+      CalendarIntervalIndex timeIndex = new CalendarIntervalIndex();
+      Iterator<Content> children = contentManager.listChildren(storePath);
+      while (children.hasNext()) {
+        Content child = children.next();
+        String name = StorageClientUtils.getObjectName(child.getPath());
+        CalendarWrapper calendarWrapper = new CalendarWrapper(child);
+        putTimeIndexEntry(contentManager, name, calendarWrapper);
+        timeIndex.put(name, calendarWrapper);
+      }
+      List<String> orphans = new ArrayList<String>();
+      Iterator<Content> entries = contentManager.listChildren(timeIndexPath);
+      while (entries.hasNext()) {
+        String name = StorageClientUtils.getObjectName(entries.next().getPath());
+        if (!contentManager.exists(StorageClientUtils.newPath(storePath, name))) {
+          orphans.add(name);
+        }
+      }
+      for (String name : orphans) {
+        contentManager.delete(StorageClientUtils.newPath(timeIndexPath, name));
+      }
+      // Advance the store version, so that no server goes on using an index it loaded before the repair.
+      Content summaryContent = contentManager.get(summaryPath);
+      if (summaryContent != null) {
+        summaryContent.setProperty(STORE_VERSION_PROPERTY, nextVersion(summaryContent, null));
+        contentManager.update(summaryContent);
+      }
+      LOGGER.info("Built time index of {} calendars at {}", timeIndex.size(), timeIndexPath);
+      return timeIndex;
+    }
+  }
+
+  /**
+   * Date range searches read only the calendars which the time index says may overlap the range;
+   * listing every calendar, or searching a store which has no time index yet, walks the whole store.
+   */
   private Iterator<CalendarWrapper> getCalendarIterator(CalendarSearchCriteria criteria) {
     try {
       ContentManager contentManager = session.getContentManager();
-      if (contentManager.exists(storePath)) {
-        return new EmbeddedCalFilter(contentManager.listChildren(storePath), criteria);
+      if (criteria == null) {
+        if (contentManager.exists(storePath)) {
+          return new EmbeddedCalFilter(contentManager.listChildren(storePath), criteria);
+        }
+        return Iterators.emptyIterator();
+      }
+      CalendarIntervalIndex timeIndex = getTimeIndex();
+      if (timeIndex == null) {
+        if (contentManager.exists(storePath)) {
+          return new EmbeddedCalFilter(contentManager.listChildren(storePath), criteria);
+        }
+        return Iterators.emptyIterator();
       }
+      List<String> candidates = timeIndex.getCandidates(criteria.getStart().getTime(), criteria.getEnd().getTime());
+      List<Content> contents = new ArrayList<Content>(candidates.size());
+      for (String name : candidates) {
+        Content content = contentManager.get(StorageClientUtils.newPath(storePath, name));
+        if (content != null) {
+          contents.add(content);
+        }
+      }
+      LOGGER.debug("Time index gave {} candidates out of {}", contents.size(), timeIndex.size());
+      return new EmbeddedCalFilter(contents.iterator(), criteria);
     } catch (StorageClientException e) {
       LOGGER.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
     }
     return Iterators.emptyIterator();
   }
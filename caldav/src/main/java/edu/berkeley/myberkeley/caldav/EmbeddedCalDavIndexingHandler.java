@@ -19,18 +19,25 @@ package edu.berkeley.myberkeley.caldav;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import edu.berkeley.myberkeley.api.index.CoalescingIndexQueue;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.property.DtStart;
-import net.fortuna.ical4j.model.property.Due;
-import net.fortuna.ical4j.model.property.Uid;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -39,94 +46,353 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Documents are built from the stored icalData without parsing it into an ical4j Calendar, except to
+ * expand the occurrences of recurring tasks and events. Full text covers only SUMMARY, DESCRIPTION and
+ * LOCATION. Writes which leave every indexed field as it was last indexed are not sent to Solr again.
+ * <p/>
  * Sample queries:
  * <ul>
- *   <li>resourceType:myberkeley/calcomponent AND content:"BEGIN:VTODO" AND due_tdt:[* TO NOW]</li>
- *   <li>resourceType:myberkeley/calcomponent AND content:"BEGIN:VEVENT" AND dtstart_tdt:[NOW TO *]
- *       AND content:"CATEGORIES:MyBerkeley-Required" AND path:"a:211159/_myberkeley_calstore"</li>
+ *   <li>resourceType:myberkeley/calcomponent AND myb-component:VTODO AND due_tdt:[* TO NOW]</li>
+ *   <li>resourceType:myberkeley/calcomponent AND myb-component:VEVENT AND dtstart_tdt:[NOW TO *]
+ *       AND myb-required:true AND myb-owner:211159</li>
  * </ul>
  *
  */
-@Component(immediate = true)
-public class EmbeddedCalDavIndexingHandler implements IndexingHandler {
+@Component(immediate = true, metatype = true)
+@Service(value = {CalDavStatsSource.class, EmbeddedCalDavIndexingHandler.class})
+public class EmbeddedCalDavIndexingHandler implements IndexingHandler, CalDavStatsSource,
+    CoalescingIndexQueue.DocumentBuilder {
   private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCalDavIndexingHandler.class);
 
   public enum INDEXED_FIELDS {
+    /**
+     * Full text of the SUMMARY, DESCRIPTION and LOCATION.
+     */
     content,
     dtstart_tdt,
     due_tdt
   }
 
+  /**
+   * Stored, unindexed copy of the calendar wrapper JSON, so that searches need not load the content.
+   */
+  public static final String STORED_WRAPPER_FIELD = "myb-calwrapper";
+
+  /**
+   * The store version of the write which produced the indexed content.
+   */
+  public static final String STORED_VERSION_FIELD = "myb-calversion";
+
+  /**
+   * Untokenized summary, for sorting.
+   */
+  public static final String SORTABLE_SUMMARY_FIELD = "myb-summary";
+
+  /**
+   * Typed calendar state, so that searches can use cacheable filter queries instead of phrase
+   * queries on the iCalendar text.
+   */
+  public static final String COMPONENT_FIELD = "myb-component";
+  public static final String REQUIRED_FIELD = "myb-required";
+  public static final String ARCHIVED_FIELD = "myb-archived";
+  public static final String READ_FIELD = "myb-read";
+  public static final String COMPLETED_FIELD = "myb-completed";
+  public static final String OWNER_FIELD = "myb-owner";
+
+  /**
+   * Start of every occurrence: DTSTART for a single event or task, and each instance of a recurring
+   * one (RRULE or RDATE) within the occurrence horizon, so that date range searches match instances
+   * without expanding recurrences at query time.
+   */
+  public static final String OCCURRENCES_FIELD = "myb-occurrences";
+
+  /**
+   * Bumped whenever the indexed fields change, so that the maintenance servlet can tell which
+   * calendars still need to be reindexed.
+   */
+  public static final int INDEX_FORMAT = 4;
+
+  /**
+   * The only properties whose text is indexed for full text search.
+   */
+  static final String[] FULL_TEXT_PROPERTIES = {Property.SUMMARY, Property.DESCRIPTION, Property.LOCATION};
+
+  static final int DEFAULT_OCCURRENCE_PAST_DAYS = 180;
+  static final int DEFAULT_OCCURRENCE_FUTURE_DAYS = 365;
+  static final int MAX_OCCURRENCES = 1000;
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  @org.apache.felix.scr.annotations.Property(intValue = DEFAULT_OCCURRENCE_PAST_DAYS,
+      label = "Occurrence Horizon (past days)",
+      description = "Recurring events and tasks are expanded from this many days before they are indexed")
+  protected static final String PROP_OCCURRENCE_PAST_DAYS = "embeddedcaldav.occurrences.pastdays";
+
+  @org.apache.felix.scr.annotations.Property(intValue = DEFAULT_OCCURRENCE_FUTURE_DAYS,
+      label = "Occurrence Horizon (future days)",
+      description = "Recurring events and tasks are expanded up to this many days after they are indexed; " +
+          "cover at least the current and next term")
+  protected static final String PROP_OCCURRENCE_FUTURE_DAYS = "embeddedcaldav.occurrences.futuredays";
+
+  @org.apache.felix.scr.annotations.Property(boolValue = false, label = "Batched Indexing",
+      description = "Queue calendar writes and index them in batches with fewer Solr commits, for " +
+          "notification fan-outs")
+  protected static final String PROP_BATCHED = "embeddedcaldav.indexing.batched";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CoalescingIndexQueue.DEFAULT_WINDOW_MILLIS,
+      label = "Batch Window (ms)", description = "How long a write may wait for others to join its batch")
+  protected static final String PROP_WINDOW_MILLIS = "embeddedcaldav.indexing.windowmillis";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CoalescingIndexQueue.DEFAULT_BATCH_SIZE,
+      label = "Batch Size")
+  protected static final String PROP_BATCH_SIZE = "embeddedcaldav.indexing.batchsize";
+
+  @org.apache.felix.scr.annotations.Property(longValue = CoalescingIndexQueue.DEFAULT_COMMIT_MILLIS,
+      label = "Commit Interval (ms)")
+  protected static final String PROP_COMMIT_MILLIS = "embeddedcaldav.indexing.commitmillis";
+
+  @org.apache.felix.scr.annotations.Property(intValue = CoalescingIndexQueue.DEFAULT_COMMIT_SIZE,
+      label = "Commit Size", description = "Commit sooner once this many documents are uncommitted")
+  protected static final String PROP_COMMIT_SIZE = "embeddedcaldav.indexing.commitsize";
+
+  private int occurrencePastDays = DEFAULT_OCCURRENCE_PAST_DAYS;
+  private int occurrenceFutureDays = DEFAULT_OCCURRENCE_FUTURE_DAYS;
+
+  private final AtomicLong indexed = new AtomicLong();
+
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  private Repository repository;
+
+  @Reference
+  private SolrServerService solrServerService;
+
+  private volatile CoalescingIndexQueue indexQueue;
+
   @Activate
   protected void activate(Map<?, ?> props) {
+    modified(props);
     resourceIndexingService.addHandler(EmbeddedCalDav.RESOURCETYPE, this);
   }
+
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    this.occurrencePastDays = PropertiesUtil.toInteger(props.get(PROP_OCCURRENCE_PAST_DAYS),
+        DEFAULT_OCCURRENCE_PAST_DAYS);
+    this.occurrenceFutureDays = PropertiesUtil.toInteger(props.get(PROP_OCCURRENCE_FUTURE_DAYS),
+        DEFAULT_OCCURRENCE_FUTURE_DAYS);
+    CoalescingIndexQueue queue = null;
+    if (PropertiesUtil.toBoolean(props.get(PROP_BATCHED), false)) {
+      queue = new CoalescingIndexQueue("Calendar", repository, solrServerService, this,
+          PropertiesUtil.toLong(props.get(PROP_WINDOW_MILLIS), CoalescingIndexQueue.DEFAULT_WINDOW_MILLIS),
+          PropertiesUtil.toInteger(props.get(PROP_BATCH_SIZE), CoalescingIndexQueue.DEFAULT_BATCH_SIZE),
+          PropertiesUtil.toLong(props.get(PROP_COMMIT_MILLIS), CoalescingIndexQueue.DEFAULT_COMMIT_MILLIS),
+          PropertiesUtil.toInteger(props.get(PROP_COMMIT_SIZE), CoalescingIndexQueue.DEFAULT_COMMIT_SIZE));
+      queue.start();
+    }
+    CoalescingIndexQueue oldQueue = this.indexQueue;
+    this.indexQueue = queue;
+    if (oldQueue != null) {
+      oldQueue.shutdown();
+    }
+  }
+
   @Deactivate
   protected void deactivate(Map<?, ?> props) {
     resourceIndexingService.removeHandler(EmbeddedCalDav.RESOURCETYPE, this);
+    CoalescingIndexQueue oldQueue = this.indexQueue;
+    this.indexQueue = null;
+    if (oldQueue != null) {
+      oldQueue.shutdown();
+    }
   }
 
+  /**
+   * With batched indexing, the path is only queued here, and indexed later by the queue.
+   */
   @Override
   public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
-    List<SolrInputDocument> documents = Lists.newArrayList();
-    if (path != null) {
-      Session session = repositorySession.adaptTo(Session.class);
-      ContentManager contentManager;
-      try {
-        contentManager = session.getContentManager();
-        final Content content = contentManager.get(path);
-        if (content != null) {
-          documents.add(getSolrInputFromContent(content));
-        }
-      } catch (AccessDeniedException e) {
-        LOGGER.error(e.getMessage(), e);
-      } catch (StorageClientException e) {
-        LOGGER.error(e.getMessage(), e);
-      }
+    if (path == null) {
+      return Collections.emptyList();
+    }
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue != null) {
+      queue.add(path);
+      return Collections.emptyList();
+    }
+    Collection<SolrInputDocument> documents = Collections.emptyList();
+    try {
+      documents = buildDocuments(repositorySession.adaptTo(Session.class), path);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
     }
     LOGGER.debug("For path {}, got documents {}", path, documents);
     return documents;
   }
 
+  public Collection<SolrInputDocument> buildDocuments(Session session, String path)
+      throws StorageClientException, AccessDeniedException {
+    List<SolrInputDocument> documents = Lists.newArrayList();
+    ContentManager contentManager = session.getContentManager();
+    final Content content = contentManager.get(path);
+    if (content != null) {
+      this.indexed.incrementAndGet();
+      documents.add(getSolrInputFromContent(content));
+    }
+    return documents;
+  }
+
+  /**
+   * Queue again the calendars which batched indexing gave up on.
+   *
+   * @return the number of calendars queued, which is always zero without batching
+   */
+  public int retryAbandoned() {
+    CoalescingIndexQueue queue = this.indexQueue;
+    return (queue == null) ? 0 : queue.retryAbandoned();
+  }
+
   @Override
   public Collection<String> getDeleteQueries(RepositorySession repositorySession, Event event) {
     LOGGER.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty("path");
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue != null) {
+      queue.remove(path);
+    }
     return ImmutableList.of(FIELD_ID + ":" + ClientUtils.escapeQueryChars(path));
   }
 
-  private SolrInputDocument getSolrInputFromContent(Content content) {
+  SolrInputDocument getSolrInputFromContent(Content content) {
     SolrInputDocument doc = new SolrInputDocument();
     doc.addField(_DOC_SOURCE_OBJECT, content);
+    doc.addField(STORED_VERSION_FIELD, EmbeddedCalDav.getStoreVersion(content));
     final CalendarWrapper calendarWrapper = new CalendarWrapper(content);
-    if (calendarWrapper != null) {
-      net.fortuna.ical4j.model.Component component = calendarWrapper.getComponent();
-      doc.addField(INDEXED_FIELDS.content.toString(), component.toString());
-      Uid uid = (Uid) component.getProperty(Property.UID);
+    if (calendarWrapper.getUri() != null) {
+      try {
+        doc.addField(STORED_WRAPPER_FIELD, calendarWrapper.toJSONString());
+      } catch (JSONException e) {
+        LOGGER.warn("Could not store calendar JSON for " + content.getPath(), e);
+      }
+      StringBuilder fullText = new StringBuilder();
+      for (String name : FULL_TEXT_PROPERTIES) {
+        String value = calendarWrapper.getPropertyValue(name);
+        if (value != null) {
+          if (fullText.length() > 0) {
+            fullText.append('\n');
+          }
+          fullText.append(value);
+        }
+      }
+      doc.addField(INDEXED_FIELDS.content.toString(), fullText.toString());
+      doc.addField(COMPONENT_FIELD, calendarWrapper.getComponentName());
+      doc.addField(REQUIRED_FIELD, calendarWrapper.isRequired());
+      doc.addField(ARCHIVED_FIELD, calendarWrapper.isArchived());
+      doc.addField(READ_FIELD, calendarWrapper.isRead());
+      doc.addField(COMPLETED_FIELD, calendarWrapper.isCompleted());
+      String owner = getOwner(content.getPath());
+      if (owner != null) {
+        doc.addField(OWNER_FIELD, owner);
+      }
+      String uid = calendarWrapper.getPropertyValue(Property.UID);
       if (uid != null) {
-        doc.addField(FIELD_ID, uid.getValue());
+        doc.addField(FIELD_ID, uid);
       }
-      DtStart dtStart = (DtStart) component.getProperty(Property.DTSTART);
-      if (dtStart != null) {
-        doc.addField(INDEXED_FIELDS.dtstart_tdt.toString(), dtStart.getDate());
+      String summary = calendarWrapper.getSummary();
+      if (summary != null) {
+        doc.addField(SORTABLE_SUMMARY_FIELD, summary);
       }
-      Due due = (Due) component.getProperty(Property.DUE);
-      if (due != null) {
-        doc.addField(INDEXED_FIELDS.due_tdt.toString(), due.getDate());
+      long start = calendarWrapper.getStartTime();
+      if (start != 0) {
+        doc.addField(INDEXED_FIELDS.dtstart_tdt.toString(), new Date(start));
+      }
+      if (calendarWrapper.getPropertyValue(Property.RRULE) != null ||
+          calendarWrapper.getPropertyValue(Property.RDATE) != null) {
+        long now = System.currentTimeMillis();
+        for (Date occurrence : getOccurrences(calendarWrapper.getComponent(), now - occurrencePastDays * DAY_MILLIS,
+            now + occurrenceFutureDays * DAY_MILLIS)) {
+          doc.addField(OCCURRENCES_FIELD, occurrence);
+        }
+      } else if (start != 0) {
+        doc.addField(OCCURRENCES_FIELD, new Date(start));
+      }
+      long due = calendarWrapper.getDueTime();
+      if (due != 0) {
+        doc.addField(INDEXED_FIELDS.due_tdt.toString(), new Date(due));
       }
     }
     return doc;
   }
+
+  public String getStatsName() {
+    return "embeddedCalDavIndexing";
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("indexed", this.indexed.get());
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue != null) {
+      for (Map.Entry<String, Object> entry : queue.getStats().entrySet()) {
+        stats.put("queue." + entry.getKey(), entry.getValue());
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * The DTSTART of a single event or task, or the start of each instance of a recurring one between
+   * from and until, up to MAX_OCCURRENCES.
+   */
+  static List<Date> getOccurrences(net.fortuna.ical4j.model.Component component, long from, long until) {
+    List<Date> occurrences = new ArrayList<Date>();
+    if (component.getProperty(Property.RRULE) == null && component.getProperty(Property.RDATE) == null) {
+      DtStart dtStart = (DtStart) component.getProperty(Property.DTSTART);
+      if (dtStart != null && dtStart.getDate() != null) {
+        occurrences.add(dtStart.getDate());
+      }
+      return occurrences;
+    }
+    PeriodList periods = component.calculateRecurrenceSet(new Period(new DateTime(from), new DateTime(until)));
+    for (Object period : periods) {
+      if (occurrences.size() >= MAX_OCCURRENCES) {
+        LOGGER.info("Indexed only the first {} occurrences of {}", MAX_OCCURRENCES, component.getProperty(Property.UID));
+        break;
+      }
+      occurrences.add(((Period) period).getStart());
+    }
+    return occurrences;
+  }
+
+  /**
+   * Storage paths look like "a:userId/_myberkeley_calstore/uuid".
+   */
+  static String getOwner(String path) {
+    if (path != null && path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      int end = path.indexOf('/');
+      if (end > LitePersonalUtils.PATH_AUTHORIZABLE.length()) {
+        return path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(), end);
+      }
+    }
+    return null;
+  }
 }
@@ -19,51 +19,187 @@ package edu.berkeley.myberkeley.caldav;
 
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnectorProvider;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @Component(label = "MyBerkeley :: EmbeddedCalDavProvider",
     description = "Provider for embedded CalDav emulation",
     immediate = true, metatype = true)
-@Service(value = CalDavConnectorProvider.class)
-public class EmbeddedCalDavProvider implements CalDavConnectorProvider {
+@Service(value = {CalDavConnectorProvider.class, CalDavStatsSource.class})
+public class EmbeddedCalDavProvider implements CalDavConnectorProvider, CalDavStatsSource {
+  private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCalDavProvider.class);
+
+  @Property(boolValue = false, label = "Structured Queries",
+      description = "Search only the typed calendar state fields, with cacheable filter queries. Turn on once " +
+          "the maintenance reindex has nothing left to queue and Solr has caught up")
+  protected static final String PROP_STRUCTURED_QUERIES = "embeddedcaldavprovider.structuredqueries";
+
+  @Property(intValue = AdminSessionPool.DEFAULT_MAX_IDLE, label = "Idle Admin Sessions",
+      description = "Administrative sessions kept for reuse between connectors")
+  protected static final String PROP_SESSION_MAX_IDLE = "embeddedcaldavprovider.sessionmaxidle";
+
+  @Property(intValue = AdminSessionPool.DEFAULT_MAX_LENT, label = "Lent Admin Sessions",
+      description = "Most administrative sessions lent to connectors at once; zero for no limit")
+  protected static final String PROP_SESSION_MAX_LENT = "embeddedcaldavprovider.sessionmaxlent";
+
+  @Property(longValue = AdminSessionPool.DEFAULT_WAIT_MILLIS, label = "Session Wait (ms)",
+      description = "How long a connector waits for a session when all are lent, before the request fails")
+  protected static final String PROP_SESSION_WAIT_MILLIS = "embeddedcaldavprovider.sessionwaitmillis";
+
+  @Property(longValue = AdminSessionPool.DEFAULT_LEAK_MILLIS, label = "Session Leak Threshold (ms)",
+      description = "Admin sessions lent for longer than this are reported as leaked")
+  protected static final String PROP_SESSION_LEAK_MILLIS = "embeddedcaldavprovider.sessionleakmillis";
+
+  @Property(intValue = KnownStoreCache.DEFAULT_MAX_ENTRIES, label = "Known Store Cache Size",
+      description = "Calendar stores remembered as existing, so writes need not check for them")
+  protected static final String PROP_KNOWN_STORES = "embeddedcaldavprovider.knownstores";
+
+  @Property(intValue = TimeIndexCache.DEFAULT_MAX_ENTRIES, label = "Time Index Cache Size",
+      description = "Users whose loaded time index is kept, so date range searches read only the calendars in range")
+  protected static final String PROP_TIME_INDEXES = "embeddedcaldavprovider.timeindexes";
+
+  @Property(longValue = RecentWritesOverlay.DEFAULT_WINDOW_MILLIS, label = "Recent Writes Window (ms)",
+      description = "How long searches show a calendar write before Solr has it; cover the Solr commit interval. " +
+          "Zero turns the overlay off")
+  protected static final String PROP_RECENT_WRITES_MILLIS = "embeddedcaldavprovider.recentwritesmillis";
+
+  @Property(intValue = RecentWritesOverlay.DEFAULT_MAX_ENTRIES, label = "Recent Writes Kept",
+      description = "Most calendar writes kept for searches across all users")
+  protected static final String PROP_RECENT_WRITES_MAX = "embeddedcaldavprovider.recentwritesmax";
+
   @Reference
   Repository repository;
 
   @Reference
   SolrServerService solrSearchService;
 
+  private boolean structuredQueries;
+
+  private volatile AdminSessionPool sessionPool;
+
+  private volatile KnownStoreCache knownStores;
+
+  private volatile TimeIndexCache timeIndexes;
+
+  private volatile RecentWritesOverlay recentWrites;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    this.structuredQueries = PropertiesUtil.toBoolean(props.get(PROP_STRUCTURED_QUERIES), false);
+    AdminSessionPool oldPool = this.sessionPool;
+    this.sessionPool = new AdminSessionPool(this.repository,
+        PropertiesUtil.toInteger(props.get(PROP_SESSION_MAX_IDLE), AdminSessionPool.DEFAULT_MAX_IDLE),
+        PropertiesUtil.toInteger(props.get(PROP_SESSION_MAX_LENT), AdminSessionPool.DEFAULT_MAX_LENT),
+        PropertiesUtil.toLong(props.get(PROP_SESSION_WAIT_MILLIS), AdminSessionPool.DEFAULT_WAIT_MILLIS),
+        PropertiesUtil.toLong(props.get(PROP_SESSION_LEAK_MILLIS), AdminSessionPool.DEFAULT_LEAK_MILLIS));
+    if (oldPool != null) {
+      oldPool.shutdown();
+    }
+    this.knownStores = new KnownStoreCache(
+        PropertiesUtil.toInteger(props.get(PROP_KNOWN_STORES), KnownStoreCache.DEFAULT_MAX_ENTRIES));
+    this.timeIndexes = new TimeIndexCache(
+        PropertiesUtil.toInteger(props.get(PROP_TIME_INDEXES), TimeIndexCache.DEFAULT_MAX_ENTRIES));
+    long recentWritesMillis = PropertiesUtil.toLong(props.get(PROP_RECENT_WRITES_MILLIS),
+        RecentWritesOverlay.DEFAULT_WINDOW_MILLIS);
+    this.recentWrites = (recentWritesMillis > 0) ? new RecentWritesOverlay(recentWritesMillis,
+        PropertiesUtil.toInteger(props.get(PROP_RECENT_WRITES_MAX), RecentWritesOverlay.DEFAULT_MAX_ENTRIES)) : null;
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    AdminSessionPool oldPool = this.sessionPool;
+    this.sessionPool = null;
+    if (oldPool != null) {
+      oldPool.shutdown();
+    }
+  }
+
+  /**
+   * The returned connector borrows a pooled administrative session, which goes back to the pool
+   * when the connector is closed.
+   */
   @Override
   public CalDavConnector getAdminConnector(String owner) throws IOException {
+    AdminSessionPool pool = this.sessionPool;
+    if (pool == null) {
+      throw new IOException("Embedded calendar provider is not active");
+    }
     final Session adminSession;
     try {
-      adminSession = repository.loginAdministrative();
+      adminSession = pool.borrow();
     } catch (StorageClientException e) {
       throw new IOException(e);
     } catch (AccessDeniedException e) {
       throw new IOException(e);
     }
-    return new EmbeddedCalDavSolr(owner, adminSession, solrSearchService);
+    boolean lent = false;
+    try {
+      EmbeddedCalDavSolr connector = newConnector(owner, adminSession);
+      connector.setSessionRelease(pool);
+      lent = true;
+      return connector;
+    } finally {
+      if (!lent) {
+        pool.release(adminSession);
+      }
+    }
   }
 
-  @Override
-  public CalDavConnector getConnector(String username) throws IOException {
-    final Session session;
-    try {
-      session = repository.loginAdministrative(username);
-    } catch (StorageClientException e) {
-      throw new IOException(e);
-    } catch (AccessDeniedException e) {
-      throw new IOException(e);
+  public String getStatsName() {
+    return "embeddedCalDavProvider";
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    AdminSessionPool currentPool = this.sessionPool;
+    if (currentPool != null) {
+      putStats(stats, "sessions.", currentPool.getStats());
+    }
+    KnownStoreCache currentStores = this.knownStores;
+    if (currentStores != null) {
+      putStats(stats, "stores.", currentStores.getStats());
+    }
+    TimeIndexCache currentTimeIndexes = this.timeIndexes;
+    if (currentTimeIndexes != null) {
+      putStats(stats, "timeIndexes.", currentTimeIndexes.getStats());
+    }
+    RecentWritesOverlay currentRecentWrites = this.recentWrites;
+    if (currentRecentWrites != null) {
+      putStats(stats, "recentWrites.", currentRecentWrites.getStats());
     }
-    return new EmbeddedCalDavSolr(username, session, solrSearchService);
+    return stats;
+  }
+
+  private void putStats(Map<String, Object> stats, String prefix, Map<String, Object> source) {
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      stats.put(prefix + entry.getKey(), entry.getValue());
+    }
+  }
+
+  private EmbeddedCalDavSolr newConnector(String userId, Session session) {
+    EmbeddedCalDavSolr connector = new EmbeddedCalDavSolr(userId, session, solrSearchService);
+    connector.setStructuredQueries(this.structuredQueries);
+    connector.setKnownStores(this.knownStores);
+    connector.setTimeIndexes(this.timeIndexes);
+    connector.setRecentWrites(this.recentWrites);
+    return connector;
   }
 }
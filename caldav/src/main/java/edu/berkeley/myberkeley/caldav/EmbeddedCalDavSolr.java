@@ -21,10 +21,12 @@ import edu.berkeley.myberkeley.caldav.api.CalDavException;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
 import net.fortuna.ical4j.model.DateTime;
 import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.sling.commons.json.JSONException;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -32,6 +34,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +44,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.security.AccessControlException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 public class EmbeddedCalDavSolr extends EmbeddedCalDav {
@@ -50,8 +56,14 @@ public class EmbeddedCalDavSolr extends EmbeddedCalDav {
       FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss'Z'", TimeZone.getTimeZone("UTC"));
   private static final Integer SOLR_PAGE_SIZE = 20000;
 
+  private static final String DASHBOARD_FILTER_TAG = "dashboard";
+
+  private static final String[] SEARCH_FIELDS = {"path", EmbeddedCalDavIndexingHandler.STORED_WRAPPER_FIELD,
+      EmbeddedCalDavIndexingHandler.STORED_VERSION_FIELD};
+
   private SolrServerService solrSearchService;
   private final String basicSolrQuery;
+  private boolean structuredQueries;
 
   public EmbeddedCalDavSolr(String userId, Session session, SolrServerService solrSearchService) {
     super(userId, session);
@@ -60,26 +72,142 @@ public class EmbeddedCalDavSolr extends EmbeddedCalDav {
         " AND path:\"a:" + userId + "/" + STORE_NAME + "\"";
   }
 
+  /**
+   * Query only the typed state fields, as cacheable filter queries. Otherwise each restriction matches
+   * either the iCalendar text of documents indexed before index format 4 or the typed field of those
+   * indexed since, which is slower but right while a reindex is under way.
+   */
+  public void setStructuredQueries(boolean structuredQueries) {
+    this.structuredQueries = structuredQueries;
+  }
+
   @Override
   protected List<CalendarWrapper> internalFetchByDate(CalendarSearchCriteria criteria) throws CalDavException, IOException {
     List<CalendarWrapper> matches = new ArrayList<CalendarWrapper>();
     try {
-      String solrQueryString = getSolrQueryForCriteria(criteria);
-      SolrDocumentList resultList = findSolrDocumentList(solrQueryString, SOLR_PAGE_SIZE);
-      ContentManager contentManager = session.getContentManager();
+      SolrDocumentList resultList = findSolrDocumentList(buildSolrQuery(criteria), 0, SOLR_PAGE_SIZE, SEARCH_FIELDS,
+          null);
       if (resultList.size() >= SOLR_PAGE_SIZE) {
         LOGGER.warn("AT PAGE SIZE LIMIT!");
       }
+      Map<String, Long> indexedVersions = new HashMap<String, Long>();
+      matches = toCalendarWrappers(resultList, indexedVersions, criteria);
+      if (recentWrites != null) {
+        matches = recentWrites.merge(userId, matches, indexedVersions, criteria);
+      }
+    } catch (AccessControlException e) {
+      LOGGER.warn("Could not perform query=" + criteria, e);
+    }
+    return matches;
+  }
+
+  /**
+   * Fetch only the requested page from Solr, sorted there. Sorts which have no Solr field fall
+   * back to sorting the whole result set in memory.
+   */
+  @Override
+  public CalendarSearchResult searchPage(CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    // Recent writes could move entries between Solr's pages, so page them in memory for a while.
+    if (getSolrSort(criteria) == null || (recentWrites != null && recentWrites.hasRecent(userId))) {
+      return super.searchPage(criteria);
+    }
+    try {
+      return toSearchResult(querySection(buildSolrQuery(criteria), criteria).getResults(), criteria);
+    } catch (AccessControlException e) {
+      LOGGER.warn("Could not perform query=" + criteria, e);
+      return new CalendarSearchResult(new ArrayList<CalendarWrapper>(), 0, 0);
+    }
+  }
+
+  /**
+   * The page Solr can sort and slice for these criteria, or null if they are unpaged or sorted by
+   * something which has no Solr field.
+   */
+  private static SortField getSolrSort(CalendarSearchCriteria criteria) {
+    String sortField = getSolrSortField(criteria);
+    if (!criteria.isPaged() || sortField == null) {
+      return null;
+    }
+    SolrQuery.ORDER order = criteria.getSort().name().endsWith("_DESC") ? SolrQuery.ORDER.desc : SolrQuery.ORDER.asc;
+    return new SortField(sortField, order);
+  }
+
+  /**
+   * Run one search, asking Solr for just the requested page when it can sort it, and otherwise for
+   * everything, to be sorted and paged by {@link #toSearchResult}.
+   */
+  private QueryResponse querySection(SolrQuery solrQuery, CalendarSearchCriteria criteria) throws IOException {
+    SortField sort = getSolrSort(criteria);
+    if (sort != null) {
+      return querySolr(solrQuery, criteria.getOffset(), criteria.getLimit(), SEARCH_FIELDS, sort);
+    }
+    QueryResponse response = querySolr(solrQuery, 0, SOLR_PAGE_SIZE, SEARCH_FIELDS, null);
+    if (response.getResults().size() >= SOLR_PAGE_SIZE) {
+      LOGGER.warn("AT PAGE SIZE LIMIT!");
+    }
+    return response;
+  }
+
+  private CalendarSearchResult toSearchResult(SolrDocumentList resultList, CalendarSearchCriteria criteria)
+      throws IOException {
+    List<CalendarWrapper> wrappers = toCalendarWrappers(resultList, new HashMap<String, Long>(), criteria);
+    if (getSolrSort(criteria) != null) {
+      return new CalendarSearchResult(wrappers, (int) resultList.getNumFound(),
+          criteria.getOffset() + resultList.size());
+    }
+    criteria.sortCalendarWrappers(wrappers);
+    return CalendarSearchResult.page(wrappers, criteria);
+  }
+
+  /**
+   * Results are built from the stored wrapper of each document. Only documents indexed before the wrapper
+   * was stored are read from content, and kept only if they still match one of the criteria. Writes which
+   * the index has not caught up with are left to the recent writes overlay, which compares each
+   * document's indexed version with the version it wrote.
+   *
+   * @param indexedVersions filled in with the version of each result, by calendar URI
+   */
+  private List<CalendarWrapper> toCalendarWrappers(SolrDocumentList resultList, Map<String, Long> indexedVersions,
+                                                   CalendarSearchCriteria... criteria) throws IOException {
+    List<CalendarWrapper> matches = new ArrayList<CalendarWrapper>(resultList.size());
+    try {
+      ContentManager contentManager = null;
+      int contentReads = 0;
       for (SolrDocument solrDocument : resultList) {
-        LOGGER.debug("  solrDocument=" + solrDocument.getFieldValuesMap());
         String path = (String) solrDocument.getFirstValue("path");
-        LOGGER.debug("path = {}", path);
+        String wrapperJson = (String) solrDocument.getFirstValue(EmbeddedCalDavIndexingHandler.STORED_WRAPPER_FIELD);
+        Number docVersion = (Number) solrDocument.getFirstValue(EmbeddedCalDavIndexingHandler.STORED_VERSION_FIELD);
+        if (wrapperJson != null) {
+          try {
+            CalendarWrapper calendarWrapper = CalendarWrapper.fromJSONString(wrapperJson);
+            if (docVersion != null && calendarWrapper.getUri() != null) {
+              indexedVersions.put(calendarWrapper.getUri().toString(), docVersion.longValue());
+            }
+            matches.add(calendarWrapper);
+            continue;
+          } catch (JSONException e) {
+            LOGGER.warn("Unreadable stored calendar for " + path + ", loading content", e);
+          }
+        }
+        if (contentManager == null) {
+          contentManager = session.getContentManager();
+        }
+        contentReads++;
         Content content = contentManager.get(path);
+        if (content == null) {
+          LOGGER.debug("Indexed calendar at {} has been deleted", path);
+          continue;
+        }
         CalendarWrapper calendarWrapper = new CalendarWrapper(content);
-        matches.add(calendarWrapper);
+        // The index may not have caught up with this write yet, so check it against the criteria again.
+        if (matchesAny(calendarWrapper, criteria)) {
+          if (calendarWrapper.getUri() != null) {
+            indexedVersions.put(calendarWrapper.getUri().toString(), EmbeddedCalDav.getStoreVersion(content));
+          }
+          matches.add(calendarWrapper);
+        }
       }
-    } catch (AccessControlException e) {
-      LOGGER.warn("Could not perform query=" + criteria, e);
+      LOGGER.debug("Built {} results with {} content reads", matches.size(), contentReads);
     } catch (StorageClientException e) {
       throw new IOException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
@@ -88,70 +216,300 @@ public class EmbeddedCalDavSolr extends EmbeddedCalDav {
     return matches;
   }
 
+  private static boolean matchesAny(CalendarWrapper calendarWrapper, CalendarSearchCriteria... criteria) {
+    for (CalendarSearchCriteria oneCriteria : criteria) {
+      if (EmbeddedCalFilter.isMatch(calendarWrapper, oneCriteria)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Each section is its own Solr search, so that Solr sorts and pages it. The overdue check rides on
+   * the task search as a facet query which excludes that section's tagged filter, so it counts across
+   * all of the user's tasks rather than only those in the date range.
+   */
+  @Override
+  public CalendarDashboard getDashboard(CalendarSearchCriteria eventCriteria, CalendarSearchCriteria taskCriteria)
+      throws CalDavException, IOException {
+    CalendarSearchResult events = (eventCriteria == null) ? null : searchPage(eventCriteria);
+    CalendarSearchResult tasks = null;
+    boolean hasOverdueTasks = false;
+    if (taskCriteria != null) {
+      if (recentWrites != null && recentWrites.hasRecent(userId)) {
+        // Neither Solr's pages nor its facet may count recent writes yet; the overlay and summary do.
+        tasks = super.searchPage(taskCriteria);
+        hasOverdueTasks = hasOverdueTasks();
+      } else {
+        SolrQuery solrQuery;
+        if (this.structuredQueries) {
+          solrQuery = new SolrQuery("*:*");
+          addOwnerFilters(solrQuery);
+        } else {
+          solrQuery = new SolrQuery(basicSolrQuery);
+        }
+        solrQuery.addFilterQuery("{!tag=" + DASHBOARD_FILTER_TAG + "}" + getSectionClause(taskCriteria));
+        String overdueFacet = "{!ex=" + DASHBOARD_FILTER_TAG + "}" + getOverdueClause();
+        solrQuery.setFacet(true);
+        solrQuery.addFacetQuery(overdueFacet);
+        try {
+          QueryResponse response = querySection(solrQuery, taskCriteria);
+          tasks = toSearchResult(response.getResults(), taskCriteria);
+          Map<String, Integer> facetCounts = response.getFacetQuery();
+          Integer overdueCount = (facetCounts == null) ? null : facetCounts.get(overdueFacet);
+          hasOverdueTasks = (overdueCount != null) && (overdueCount > 0);
+        } catch (AccessControlException e) {
+          LOGGER.warn("Could not perform dashboard query for " + userId, e);
+          tasks = new CalendarSearchResult(new ArrayList<CalendarWrapper>(), 0, 0);
+        }
+      }
+    }
+    return new CalendarDashboard(events, tasks, hasOverdueTasks);
+  }
+
+  /**
+   * One search as a single boolean clause, leaving out the owner filters which all searches share.
+   */
+  private String getSectionClause(CalendarSearchCriteria criteria) {
+    SolrQuery section = buildSolrQuery(criteria);
+    StringBuilder clause = new StringBuilder("(").append(section.getQuery());
+    String[] filterQueries = section.getFilterQueries();
+    if (filterQueries != null) {
+      List<String> ownerFilters = getOwnerFilters();
+      for (String filterQuery : filterQueries) {
+        if (!ownerFilters.contains(filterQuery)) {
+          clause.append(" AND ").append(filterQuery);
+        }
+      }
+    }
+    return clause.append(")").toString();
+  }
+
+  /**
+   * Answered from the saved summary's earliest incomplete due date without a search, unless the summary
+   * is missing or stale; then Solr finds the earliest due date. Nothing is written either way.
+   */
   @Override
   public boolean hasOverdueTasks() throws CalDavException, IOException {
-    String solrQueryString = basicSolrQuery + " AND due_tdt:[* TO NOW] AND -content:\"STATUS:COMPLETED\"";
-    SolrDocumentList solrDocumentList = findSolrDocumentList(solrQueryString, 0);
-    return (solrDocumentList.getNumFound() > 0);
+    long now = System.currentTimeMillis();
+    CalendarSummary summary = getStoredSummary();
+    if (summary != null && !summary.isStale()) {
+      return summary.hasOverdueTasks(now);
+    }
+    long earliestDue = findEarliestIncompleteDue();
+    return earliestDue > 0 && earliestDue <= now;
+  }
+
+  /**
+   * One row from Solr, sorted by due date. A write which Solr has not caught up with yet is not seen.
+   */
+  @Override
+  protected long findEarliestIncompleteDue() throws IOException {
+    SolrQuery solrQuery;
+    if (this.structuredQueries) {
+      solrQuery = new SolrQuery(getIncompleteDueClause("*"));
+      addOwnerFilters(solrQuery);
+    } else {
+      solrQuery = new SolrQuery(basicSolrQuery + " AND " + getIncompleteDueClause("*"));
+    }
+    String dueField = EmbeddedCalDavIndexingHandler.INDEXED_FIELDS.due_tdt.toString();
+    try {
+      SolrDocumentList resultList = findSolrDocumentList(solrQuery, 0, 1, new String[] {dueField},
+          new SortField(dueField, SolrQuery.ORDER.asc));
+      if (!resultList.isEmpty()) {
+        Object due = resultList.get(0).getFirstValue(dueField);
+        if (due instanceof Date) {
+          return ((Date) due).getTime();
+        }
+      }
+    } catch (AccessControlException e) {
+      LOGGER.warn("Could not find earliest due task of " + userId, e);
+    }
+    return 0;
   }
   
-  private SolrDocumentList findSolrDocumentList(String queryString, Integer rows) throws IOException {
+  private SolrDocumentList findSolrDocumentList(SolrQuery solrQuery, int start, int rows, String[] fields,
+                                                SortField sort) throws IOException {
+    return querySolr(solrQuery, start, rows, fields, sort).getResults();
+  }
+
+  private QueryResponse querySolr(SolrQuery solrQuery, int start, int rows, String[] fields, SortField sort)
+      throws IOException {
     try {
       SolrServer solrServer = solrSearchService.getServer();
-      SolrQuery solrQuery = new SolrQuery(queryString);
+      solrQuery.setStart(start);
       solrQuery.setRows(rows);
+      if (fields != null) {
+        solrQuery.setFields(fields);
+      }
+      if (sort != null) {
+        solrQuery.addSortField(sort.name, sort.order);
+        // Break ties the same way every time, so that pages neither overlap nor skip entries.
+        solrQuery.addSortField(IndexingHandler.FIELD_ID, SolrQuery.ORDER.asc);
+      }
       try {
         LOGGER.debug("Performing Query {} ", URLDecoder.decode(solrQuery.toString(), "UTF-8"));
       } catch (UnsupportedEncodingException ignored) {
       }
       QueryResponse response = solrServer.query(solrQuery);
-      SolrDocumentList resultList = response.getResults();
-      LOGGER.info("Got {} hits in {} ms", resultList.size(), response.getElapsedTime());
-      return resultList;
+      LOGGER.info("Got {} hits in {} ms", response.getResults().size(), response.getElapsedTime());
+      return response;
     } catch (SolrServerException e) {
       throw new IOException(e.getMessage(), e);
     }
   }
   
+  private static String getSolrSortField(CalendarSearchCriteria criteria) {
+    switch (criteria.getSort()) {
+      case DATE_ASC:
+      case DATE_DESC:
+        return (criteria.getType() == CalendarSearchCriteria.TYPE.VTODO) ?
+            EmbeddedCalDavIndexingHandler.INDEXED_FIELDS.due_tdt.toString() :
+            EmbeddedCalDavIndexingHandler.INDEXED_FIELDS.dtstart_tdt.toString();
+      case SUMMARY_ASC:
+      case SUMMARY_DESC:
+        return EmbeddedCalDavIndexingHandler.SORTABLE_SUMMARY_FIELD;
+      default:
+        return null;
+    }
+  }
+
+  private static class SortField {
+    private final String name;
+    private final SolrQuery.ORDER order;
+
+    private SortField(String name, SolrQuery.ORDER order) {
+      this.name = name;
+      this.order = order;
+    }
+  }
+
+  /**
+   * Matches documents in either index format: old ones by their iCalendar text, new ones, which have
+   * only the summary, description and location as text, by their typed fields.
+   */
   private String getSolrQueryForCriteria(CalendarSearchCriteria criteria) {
     StringBuilder sb = new StringBuilder(basicSolrQuery);
     if (criteria != null) {
+      String notArchived = getNotClause("CATEGORIES:MyBerkeley-Archived", EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD);
       switch (criteria.getMode()) {
         case REQUIRED:
-          sb.append(" AND -content:\"CATEGORIES:MyBerkeley-Archived\"");
-          sb.append(" AND content:\"CATEGORIES:MyBerkeley-Required\"");
+          sb.append(" AND ").append(notArchived);
+          sb.append(" AND ").append(getClause("CATEGORIES:MyBerkeley-Required",
+              EmbeddedCalDavIndexingHandler.REQUIRED_FIELD + ":true"));
           break;
         case UNREQUIRED:
-          sb.append(" AND -content:\"CATEGORIES:MyBerkeley-Archived\"");
-          sb.append(" AND -content:\"CATEGORIES:MyBerkeley-Required\"");
+          sb.append(" AND ").append(notArchived);
+          sb.append(" AND ").append(getNotClause("CATEGORIES:MyBerkeley-Required",
+              EmbeddedCalDavIndexingHandler.REQUIRED_FIELD));
           break;
         case ALL_UNARCHIVED:
-          sb.append(" AND -content:\"CATEGORIES:MyBerkeley-Archived\"");
+          sb.append(" AND ").append(notArchived);
           break;
         case ALL_ARCHIVED:
-          sb.append(" AND content:\"CATEGORIES:MyBerkeley-Archived\"");
+          sb.append(" AND ").append(getClause("CATEGORIES:MyBerkeley-Archived",
+              EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":true"));
           break;
       }
-      switch (criteria.getType()) {
-        case VEVENT:
-          sb.append(" AND content:\"BEGIN:VEVENT\"");
+      String component = criteria.getType().toString();
+      sb.append(" AND ").append(getClause("BEGIN:" + component,
+          EmbeddedCalDavIndexingHandler.COMPONENT_FIELD + ":" + component));
+      String dateRange = getDateRangeClause(criteria);
+      if (dateRange != null) {
+        sb.append(" AND ").append(dateRange);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * With structured queries, the owner, type and state restrictions become separate filter queries on
+   * the typed index fields. Those are the same for every dashboard load, so Solr can answer them from
+   * its filterCache. Only the date range, which changes from request to request, stays in the main query.
+   */
+  SolrQuery buildSolrQuery(CalendarSearchCriteria criteria) {
+    if (!this.structuredQueries) {
+      return new SolrQuery(getSolrQueryForCriteria(criteria));
+    }
+    String dateRange = (criteria == null) ? null : getDateRangeClause(criteria);
+    SolrQuery solrQuery = new SolrQuery((dateRange == null) ? "*:*" : dateRange);
+    addOwnerFilters(solrQuery);
+    if (criteria != null) {
+      switch (criteria.getMode()) {
+        case REQUIRED:
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":false");
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.REQUIRED_FIELD + ":true");
           break;
-        case VTODO:
-          sb.append(" AND content:\"BEGIN:VTODO\"");
+        case UNREQUIRED:
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":false");
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.REQUIRED_FIELD + ":false");
+          break;
+        case ALL_UNARCHIVED:
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":false");
+          break;
+        case ALL_ARCHIVED:
+          solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":true");
           break;
       }
-      if ((criteria.getStart() != null) && (criteria.getEnd() != null)) {
-        DateTime start = criteria.getStart();
-        start.setUtc(true);
-        DateTime end = criteria.getEnd();
-        end.setUtc(true);
-        sb.append(" AND dtstart_tdt:[").
-            append(SOLR_DATE_FORMAT.format(start)).
-            append(" TO ").
-            append(SOLR_DATE_FORMAT.format(end)).
-            append("]");
-      }
+      solrQuery.addFilterQuery(EmbeddedCalDavIndexingHandler.COMPONENT_FIELD + ":" + criteria.getType().toString());
     }
-    return sb.toString();
+    return solrQuery;
+  }
+
+  private String getOverdueClause() {
+    return getIncompleteDueClause("NOW");
+  }
+
+  private String getIncompleteDueClause(String dueBy) {
+    if (!this.structuredQueries) {
+      return "due_tdt:[* TO " + dueBy + "] AND " + getNotClause("STATUS:COMPLETED",
+          EmbeddedCalDavIndexingHandler.COMPLETED_FIELD);
+    }
+    return "due_tdt:[* TO " + dueBy + "] AND " + EmbeddedCalDavIndexingHandler.COMPLETED_FIELD + ":false";
+  }
+
+  /**
+   * The iCalendar text phrase, or the typed field value.
+   */
+  private static String getClause(String icalPhrase, String typedClause) {
+    return "(content:\"" + icalPhrase + "\" OR " + typedClause + ")";
+  }
+
+  /**
+   * Neither the iCalendar text phrase nor the typed flag. Both are kept top level negations, since a
+   * purely negative group would match nothing.
+   */
+  private static String getNotClause(String icalPhrase, String typedFlag) {
+    return "-content:\"" + icalPhrase + "\" AND -" + typedFlag + ":true";
+  }
+
+  private List<String> getOwnerFilters() {
+    List<String> filters = new ArrayList<String>(2);
+    filters.add("resourceType:" + ClientUtils.escapeQueryChars(RESOURCETYPE));
+    filters.add(EmbeddedCalDavIndexingHandler.OWNER_FIELD + ":" + ClientUtils.escapeQueryChars(userId));
+    return filters;
+  }
+
+  private void addOwnerFilters(SolrQuery solrQuery) {
+    for (String filter : getOwnerFilters()) {
+      solrQuery.addFilterQuery(filter);
+    }
+  }
+
+  /**
+   * A recurring event matches if any of its indexed occurrences falls in the range. The DTSTART clause
+   * stays for calendars indexed before occurrences were.
+   */
+  private static String getDateRangeClause(CalendarSearchCriteria criteria) {
+    if ((criteria.getStart() != null) && (criteria.getEnd() != null)) {
+      DateTime start = criteria.getStart();
+      start.setUtc(true);
+      DateTime end = criteria.getEnd();
+      end.setUtc(true);
+      String range = "[" + SOLR_DATE_FORMAT.format(start) + " TO " + SOLR_DATE_FORMAT.format(end) + "]";
+      return "(" + EmbeddedCalDavIndexingHandler.OCCURRENCES_FIELD + ":" + range + " OR dtstart_tdt:" + range + ")";
+    }
+    return null;
   }
 }
@@ -43,11 +43,13 @@ public class EmbeddedCalFilter implements Iterator<CalendarWrapper> {
   private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCalFilter.class);
   private final Iterator<Content> contentIterator;
   private final CalendarSearchCriteria criteria;
+  private final Filter dateFilter;
   private CalendarWrapper next;
 
   public EmbeddedCalFilter(Iterator<Content> contentIterator, CalendarSearchCriteria criteria) {
     this.contentIterator = contentIterator;
     this.criteria = criteria;
+    this.dateFilter = (criteria != null) ? getDateFilter(criteria) : null;
     fetchNext();
   }
 
@@ -75,7 +77,7 @@ public class EmbeddedCalFilter implements Iterator<CalendarWrapper> {
     next = null;
     while (contentIterator.hasNext() && (next == null)) {
       final CalendarWrapper candidate = new CalendarWrapper(contentIterator.next());
-      if (isMatch(candidate, criteria)) {
+      if (isMatch(candidate, criteria, dateFilter)) {
         next = candidate;
       }
     }
@@ -85,6 +87,13 @@ public class EmbeddedCalFilter implements Iterator<CalendarWrapper> {
     if (criteria == null) {
       return true;
     }
+    return isMatch(calendarWrapper, criteria, getDateFilter(criteria));
+  }
+
+  private static boolean isMatch(CalendarWrapper calendarWrapper, CalendarSearchCriteria criteria, Filter dateFilter) {
+    if (criteria == null) {
+      return true;
+    }
     
     switch (criteria.getMode()) {
       case REQUIRED:
@@ -109,13 +118,8 @@ public class EmbeddedCalFilter implements Iterator<CalendarWrapper> {
         break;
     }
 
-    final Component component = calendarWrapper.getComponent();
-    final String componentName;
-    if (component != null) {
-      componentName = component.getName();
-    } else {
-      componentName = "";
-    }
+    final String componentName = (calendarWrapper.getComponentName() != null) ?
+        calendarWrapper.getComponentName() : "";
     switch (criteria.getType()) {
       case VEVENT:
         if (!componentName.equals(Component.VEVENT)) {
@@ -129,10 +133,15 @@ public class EmbeddedCalFilter implements Iterator<CalendarWrapper> {
         break;
     }
     
+    // Only the date check needs the ical4j component, which handles recurrence.
+    final Component component = calendarWrapper.getComponent();
+    Object[] dateMatches = dateFilter.filter(new Object[]{component});
+    return (dateMatches.length > 0);
+  }
+
+  private static Filter getDateFilter(CalendarSearchCriteria criteria) {
     final Period period = new Period(new DateTime(criteria.getStart()), new DateTime(criteria.getEnd()));
     final Rule periodRule = new PeriodRule(period);
-    final Filter filter = new Filter(new Rule[] {periodRule}, Filter.MATCH_ALL);
-    Object[] dateMatches = filter.filter(new Object[]{component});
-    return (dateMatches.length > 0);
+    return new Filter(new Rule[] {periodRule}, Filter.MATCH_ALL);
   }
 }
@@ -0,0 +1,73 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU set of calendar store paths which are known to exist, so that writes need not check
+ * for the store every time. Stores are never deleted in normal operation; a connector which finds a
+ * listed store missing forgets it and creates it again.
+ */
+public class KnownStoreCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final LinkedHashMap<String, Boolean> paths;
+
+  private long hits;
+
+  private long misses;
+
+  public KnownStoreCache(final int maxEntries) {
+    this.paths = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+      private static final long serialVersionUID = 3171394263508624409L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public synchronized boolean contains(String storePath) {
+    if (this.paths.get(storePath) != null) {
+      this.hits++;
+      return true;
+    }
+    this.misses++;
+    return false;
+  }
+
+  public synchronized void add(String storePath) {
+    this.paths.put(storePath, Boolean.TRUE);
+  }
+
+  public synchronized void forget(String storePath) {
+    this.paths.remove(storePath);
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("entries", this.paths.size());
+    stats.put("hits", this.hits);
+    stats.put("misses", this.misses);
+    return stats;
+  }
+}
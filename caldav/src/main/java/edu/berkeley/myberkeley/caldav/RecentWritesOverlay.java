@@ -0,0 +1,259 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import org.apache.sling.commons.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calendar writes and deletes made through this server in the last windowMillis, by owner, so that
+ * Solr-backed searches show them before the index has caught up. Entries are kept as stored JSON and
+ * read back as new wrappers, so callers cannot change them. At most maxEntries are kept; when there are
+ * more, the users whose entries were least recently touched are dropped first.
+ */
+public class RecentWritesOverlay {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecentWritesOverlay.class);
+
+  public static final long DEFAULT_WINDOW_MILLIS = 2 * 60 * 1000;
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  static class Entry {
+    private final long time;
+
+    /**
+     * The store version of the write or delete.
+     */
+    final long version;
+
+    /**
+     * Null if the calendar was deleted.
+     */
+    final String json;
+
+    private Entry(long time, long version, String json) {
+      this.time = time;
+      this.version = version;
+      this.json = json;
+    }
+  }
+
+  private final long windowMillis;
+
+  private final int maxEntries;
+
+  /**
+   * Per user, entries by calendar URI in the order they were recorded; users in access order.
+   */
+  private final LinkedHashMap<String, LinkedHashMap<String, Entry>> users =
+      new LinkedHashMap<String, LinkedHashMap<String, Entry>>(256, 0.75f, true);
+
+  private int entryCount;
+
+  private long writes;
+  private long deletes;
+  private long replaced;
+  private long added;
+  private long dropped;
+
+  public RecentWritesOverlay(long windowMillis, int maxEntries) {
+    this.windowMillis = windowMillis;
+    this.maxEntries = maxEntries;
+  }
+
+  public void recordWrite(String userId, CalendarWrapper calendarWrapper, long version) {
+    String uri = calendarWrapper.getUri().toString();
+    String json;
+    try {
+      json = calendarWrapper.toJSONString();
+    } catch (JSONException e) {
+      LOGGER.warn("Not overlaying unserializable calendar " + uri, e);
+      forget(userId, uri);
+      return;
+    }
+    synchronized (this) {
+      this.writes++;
+      record(userId, uri, version, json);
+    }
+  }
+
+  public synchronized void recordDelete(String userId, String uri, long version) {
+    this.deletes++;
+    record(userId, uri, version, null);
+  }
+
+  /**
+   * Apply the user's recent writes to search results: results whose indexed version is older than a
+   * recent write are replaced by the written version if it still matches any of the criteria and dropped
+   * if not, deleted results are dropped, and writes which match but are missing from the results are added.
+   * The list is not sorted.
+   *
+   * @param indexedVersions the store version each result was indexed at, by calendar URI; results without
+   * one are taken to be older than any recent write
+   */
+  public List<CalendarWrapper> merge(String userId, List<CalendarWrapper> results, Map<String, Long> indexedVersions,
+                                     CalendarSearchCriteria... criteria) {
+    Map<String, Entry> recent = getRecent(userId);
+    if (recent.isEmpty()) {
+      return results;
+    }
+    int replacedCount = 0;
+    int addedCount = 0;
+    int droppedCount = 0;
+    List<CalendarWrapper> merged = new ArrayList<CalendarWrapper>(results.size() + recent.size());
+    Set<String> seen = new HashSet<String>();
+    for (CalendarWrapper result : results) {
+      String uri = result.getUri().toString();
+      Entry entry = recent.get(uri);
+      Long indexedVersion = indexedVersions.get(uri);
+      if (entry != null) {
+        seen.add(uri);
+      }
+      if (entry == null || (indexedVersion != null && indexedVersion >= entry.version)) {
+        merged.add(result);
+        continue;
+      }
+      CalendarWrapper latest = readMatching(entry.json, criteria);
+      if (latest != null) {
+        merged.add(latest);
+        replacedCount++;
+      } else {
+        droppedCount++;
+      }
+    }
+    for (Map.Entry<String, Entry> entry : recent.entrySet()) {
+      if (!seen.contains(entry.getKey())) {
+        CalendarWrapper latest = readMatching(entry.getValue().json, criteria);
+        if (latest != null) {
+          merged.add(latest);
+          addedCount++;
+        }
+      }
+    }
+    synchronized (this) {
+      this.replaced += replacedCount;
+      this.added += addedCount;
+      this.dropped += droppedCount;
+    }
+    return merged;
+  }
+
+  public synchronized boolean hasRecent(String userId) {
+    return !getRecent(userId).isEmpty();
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("users", this.users.size());
+    stats.put("entries", this.entryCount);
+    stats.put("writes", this.writes);
+    stats.put("deletes", this.deletes);
+    stats.put("replaced", this.replaced);
+    stats.put("added", this.added);
+    stats.put("dropped", this.dropped);
+    return stats;
+  }
+
+  /**
+   * The user's unexpired entries, by calendar URI; deleted calendars have no JSON.
+   */
+  synchronized Map<String, Entry> getRecent(String userId) {
+    LinkedHashMap<String, Entry> entries = this.users.get(userId);
+    if (entries == null) {
+      return new LinkedHashMap<String, Entry>();
+    }
+    expire(userId, entries, System.currentTimeMillis());
+    return new LinkedHashMap<String, Entry>(entries);
+  }
+
+  private void record(String userId, String uri, long version, String json) {
+    long now = System.currentTimeMillis();
+    LinkedHashMap<String, Entry> entries = this.users.get(userId);
+    if (entries == null) {
+      entries = new LinkedHashMap<String, Entry>();
+      this.users.put(userId, entries);
+    } else if (entries.remove(uri) != null) {
+      this.entryCount--;
+    }
+    entries.put(uri, new Entry(now, version, json));
+    this.entryCount++;
+    expire(userId, entries, now);
+    Iterator<Map.Entry<String, LinkedHashMap<String, Entry>>> leastRecent = this.users.entrySet().iterator();
+    while (this.entryCount > this.maxEntries && leastRecent.hasNext()) {
+      Map.Entry<String, LinkedHashMap<String, Entry>> user = leastRecent.next();
+      if (user.getKey().equals(userId)) {
+        continue;
+      }
+      this.entryCount -= user.getValue().size();
+      leastRecent.remove();
+    }
+  }
+
+  private synchronized void forget(String userId, String uri) {
+    LinkedHashMap<String, Entry> entries = this.users.get(userId);
+    if (entries != null && entries.remove(uri) != null) {
+      this.entryCount--;
+      if (entries.isEmpty()) {
+        this.users.remove(userId);
+      }
+    }
+  }
+
+  /**
+   * Entries are in the order they were recorded, so the expired ones are at the front.
+   */
+  private void expire(String userId, LinkedHashMap<String, Entry> entries, long now) {
+    Iterator<Entry> oldest = entries.values().iterator();
+    while (oldest.hasNext() && now - oldest.next().time > this.windowMillis) {
+      oldest.remove();
+      this.entryCount--;
+    }
+    if (entries.isEmpty()) {
+      this.users.remove(userId);
+    }
+  }
+
+  private static CalendarWrapper readMatching(String json, CalendarSearchCriteria... criteria) {
+    if (json == null) {
+      return null;
+    }
+    try {
+      CalendarWrapper calendarWrapper = CalendarWrapper.fromJSONString(json);
+      for (CalendarSearchCriteria oneCriteria : criteria) {
+        if (EmbeddedCalFilter.isMatch(calendarWrapper, oneCriteria)) {
+          return calendarWrapper;
+        }
+      }
+    } catch (JSONException e) {
+      LOGGER.warn("Unreadable overlay entry", e);
+    } catch (CalDavException e) {
+      LOGGER.warn("Unreadable overlay entry", e);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Calendar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs every call of a remote CalDavConnector through a shared CalDavCallGuard, so that a slow
+ * calendar server cannot tie up request threads.
+ */
+public class ResilientCalDavConnector implements CalDavConnector {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResilientCalDavConnector.class);
+
+  private final CalDavConnector delegate;
+
+  private final CalDavCallGuard guard;
+
+  private final long readTimeout;
+
+  private final long writeTimeout;
+
+  public ResilientCalDavConnector(CalDavConnector delegate, CalDavCallGuard guard, long readTimeout,
+                                  long writeTimeout) {
+    this.delegate = delegate;
+    this.guard = guard;
+    this.readTimeout = readTimeout;
+    this.writeTimeout = writeTimeout;
+  }
+
+  public CalendarURI putCalendar(final Calendar calendar) throws CalDavException, IOException {
+    return this.guard.call("putCalendar", new Callable<CalendarURI>() {
+      public CalendarURI call() throws Exception {
+        return delegate.putCalendar(calendar);
+      }
+    }, this.writeTimeout);
+  }
+
+  public CalendarURI modifyCalendar(final CalendarURI uri, final Calendar calendar) throws CalDavException, IOException {
+    return this.guard.call("modifyCalendar", new Callable<CalendarURI>() {
+      public CalendarURI call() throws Exception {
+        return delegate.modifyCalendar(uri, calendar);
+      }
+    }, this.writeTimeout);
+  }
+
+  public List<CalendarURI> patchCalendars(final List<CalendarPatch> patches) throws CalDavException, IOException {
+    return this.guard.call("patchCalendars", new Callable<List<CalendarURI>>() {
+      public List<CalendarURI> call() throws Exception {
+        return delegate.patchCalendars(patches);
+      }
+    }, this.writeTimeout);
+  }
+
+  public List<CalendarWrapper> getCalendars(final List<CalendarURI> uris) throws CalDavException, IOException {
+    return this.guard.call("getCalendars", new Callable<List<CalendarWrapper>>() {
+      public List<CalendarWrapper> call() throws Exception {
+        return delegate.getCalendars(uris);
+      }
+    }, this.readTimeout);
+  }
+
+  /**
+   * Bulk iteration is used for migration rather than on request threads, and its chunks are fetched
+   * lazily, so it is not run under the guard.
+   */
+  public Iterator<CalendarWrapper> iterateCalendars(List<CalendarURI> uris) throws CalDavException, IOException {
+    return this.delegate.iterateCalendars(uris);
+  }
+
+  public List<CalendarWrapper> searchByDate(final CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    return this.guard.call("searchByDate", new Callable<List<CalendarWrapper>>() {
+      public List<CalendarWrapper> call() throws Exception {
+        return delegate.searchByDate(criteria);
+      }
+    }, this.readTimeout);
+  }
+
+  public CalendarSearchResult searchPage(final CalendarSearchCriteria criteria) throws CalDavException, IOException {
+    return this.guard.call("searchPage", new Callable<CalendarSearchResult>() {
+      public CalendarSearchResult call() throws Exception {
+        return delegate.searchPage(criteria);
+      }
+    }, this.readTimeout);
+  }
+
+  public boolean hasOverdueTasks() throws CalDavException, IOException {
+    return this.guard.call("hasOverdueTasks", new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return delegate.hasOverdueTasks();
+      }
+    }, this.readTimeout);
+  }
+
+  public CalendarDashboard getDashboard(final CalendarSearchCriteria eventCriteria,
+                                        final CalendarSearchCriteria taskCriteria) throws CalDavException, IOException {
+    return this.guard.call("getDashboard", new Callable<CalendarDashboard>() {
+      public CalendarDashboard call() throws Exception {
+        return delegate.getDashboard(eventCriteria, taskCriteria);
+      }
+    }, this.readTimeout);
+  }
+
+  public CalendarSummary getSummary() throws CalDavException, IOException {
+    return this.guard.call("getSummary", new Callable<CalendarSummary>() {
+      public CalendarSummary call() throws Exception {
+        return delegate.getSummary();
+      }
+    }, this.readTimeout);
+  }
+
+  /**
+   * Answered without contacting the server, so it is not run under the guard.
+   */
+  public long getStoreVersion() throws CalDavException, IOException {
+    return this.delegate.getStoreVersion();
+  }
+
+  public List<CalendarURI> getCalendarUris() throws CalDavException, IOException {
+    return this.guard.call("getCalendarUris", new Callable<List<CalendarURI>>() {
+      public List<CalendarURI> call() throws Exception {
+        return delegate.getCalendarUris();
+      }
+    }, this.readTimeout);
+  }
+
+  public void deleteCalendar(final CalendarURI uri) throws CalDavException, IOException {
+    this.guard.call("deleteCalendar", new Callable<Void>() {
+      public Void call() throws Exception {
+        delegate.deleteCalendar(uri);
+        return null;
+      }
+    }, this.writeTimeout);
+  }
+
+  public void ensureCalendarStore() {
+    try {
+      this.guard.call("ensureCalendarStore", new Callable<Void>() {
+        public Void call() throws Exception {
+          delegate.ensureCalendarStore();
+          return null;
+        }
+      }, this.writeTimeout);
+    } catch (CalDavException e) {
+      LOGGER.error("Could not ensure calendar store: " + e.getMessage());
+    } catch (IOException e) {
+      LOGGER.error("Could not ensure calendar store: " + e.getMessage());
+    }
+  }
+
+  public void close() {
+    this.delegate.close();
+  }
+}
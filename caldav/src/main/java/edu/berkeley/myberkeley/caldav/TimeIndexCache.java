@@ -0,0 +1,88 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of loaded time indexes, by user, each tagged with the store version it was
+ * loaded at. Every write which moves a time index entry also advances the store version, so an index
+ * loaded at the current version is still right, and a search needs to read only its candidates.
+ * Cached indexes are shared between connectors and must not be changed.
+ */
+public class TimeIndexCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private static class Loaded {
+    private final long version;
+    private final CalendarIntervalIndex index;
+
+    private Loaded(long version, CalendarIntervalIndex index) {
+      this.version = version;
+      this.index = index;
+    }
+  }
+
+  private final LinkedHashMap<String, Loaded> indexes;
+
+  private long hits;
+
+  private long misses;
+
+  public TimeIndexCache(final int maxEntries) {
+    this.indexes = new LinkedHashMap<String, Loaded>(256, 0.75f, true) {
+      private static final long serialVersionUID = -5271950427741335236L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return the user's index if it was loaded at this store version, or null
+   */
+  public synchronized CalendarIntervalIndex get(String userId, long version) {
+    Loaded loaded = this.indexes.get(userId);
+    if (loaded != null && loaded.version == version) {
+      this.hits++;
+      return loaded.index;
+    }
+    this.misses++;
+    return null;
+  }
+
+  public synchronized void put(String userId, long version, CalendarIntervalIndex index) {
+    Loaded loaded = this.indexes.get(userId);
+    // Keep a later load which another connector may have put meanwhile.
+    if (loaded == null || loaded.version <= version) {
+      this.indexes.put(userId, new Loaded(version, index));
+    }
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("entries", this.indexes.size());
+    stats.put("hits", this.hits);
+    stats.put("misses", this.misses);
+    return stats;
+  }
+}
@@ -26,13 +26,27 @@ public class BadRequestException extends CalDavException {
 
   private int statusCode;
 
+  private String errorCondition;
+
   public BadRequestException(String message, int statusCode) {
     super(message, null);
     this.statusCode = statusCode;
   }
 
+  public BadRequestException(String message, int statusCode, String errorCondition) {
+    this(message, statusCode);
+    this.errorCondition = errorCondition;
+  }
+
   public int getStatusCode() {
     return this.statusCode;
   }
 
+  /**
+   * @return the DAV:error condition the server gave, such as "valid-sync-token", or null
+   */
+  public String getErrorCondition() {
+    return this.errorCondition;
+  }
+
 }
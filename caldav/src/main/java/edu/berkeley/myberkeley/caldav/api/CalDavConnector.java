@@ -20,11 +20,15 @@
 
 package edu.berkeley.myberkeley.caldav.api;
 
+import edu.berkeley.myberkeley.caldav.CalendarDashboard;
 import edu.berkeley.myberkeley.caldav.CalendarSearchCriteria;
+import edu.berkeley.myberkeley.caldav.CalendarSearchResult;
+import edu.berkeley.myberkeley.caldav.CalendarSummary;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.property.Categories;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 public interface CalDavConnector {
@@ -36,16 +40,61 @@ public interface CalDavConnector {
 
   CalendarURI modifyCalendar(CalendarURI uri, Calendar calendar) throws CalDavException, IOException;
 
+  /**
+   * Set the completed, archived and read flags of a batch of entries, without rewriting anything else.
+   * Entries which are missing, or whose flags already match, are left alone.
+   *
+   * @return the URIs of the entries which were changed
+   */
+  List<CalendarURI> patchCalendars(List<CalendarPatch> patches) throws CalDavException, IOException;
+
   List<CalendarWrapper> getCalendars(List<CalendarURI> uris) throws CalDavException, IOException;
 
+  /**
+   * Like getCalendars, but entries are fetched in batches as the iterator is consumed, so that very
+   * large sets need not be held in memory at once. Fetch failures during iteration are thrown as
+   * IllegalStateException wrapping the cause.
+   */
+  Iterator<CalendarWrapper> iterateCalendars(List<CalendarURI> uris) throws CalDavException, IOException;
+
   List<CalendarWrapper> searchByDate(CalendarSearchCriteria criteria) throws CalDavException, IOException;
 
+  /**
+   * Like searchByDate, but returns only the page selected by the criteria's offset and limit,
+   * along with the total number of matches.
+   */
+  CalendarSearchResult searchPage(CalendarSearchCriteria criteria) throws CalDavException, IOException;
+
   boolean hasOverdueTasks() throws CalDavException, IOException;
 
+  /**
+   * Search events and tasks, and check for overdue tasks, all at once. Either criteria may be null to
+   * leave that section out; the overdue check is only made along with tasks.
+   */
+  CalendarDashboard getDashboard(CalendarSearchCriteria eventCriteria, CalendarSearchCriteria taskCriteria)
+      throws CalDavException, IOException;
+
+  /**
+   * Counts of the user's entries by state, and the earliest incomplete due date.
+   */
+  CalendarSummary getSummary() throws CalDavException, IOException;
+
+  /**
+   * A number which grows with every write to the user's entries, or 0 if the backend keeps no such
+   * version. It can be read without searching.
+   */
+  long getStoreVersion() throws CalDavException, IOException;
+
   List<CalendarURI> getCalendarUris() throws CalDavException, IOException;
 
   void deleteCalendar(CalendarURI uri) throws CalDavException, IOException;
 
   void ensureCalendarStore();
 
+  /**
+   * Release whatever the connector holds for its caller, such as a repository session. The connector
+   * must not be used afterwards. Every connector obtained from a CalDavConnectorProvider should be closed.
+   */
+  void close();
+
 }
@@ -27,6 +27,4 @@ import java.io.IOException;
 
 public interface CalDavConnectorProvider {
   CalDavConnector getAdminConnector(String owner) throws IOException;
-
-  CalDavConnector getConnector(String username) throws IOException;
 }
@@ -0,0 +1,36 @@
+/*
+
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+
+ */
+
+
+package edu.berkeley.myberkeley.caldav.api;
+
+/**
+ * The calendar server cannot take the call right now: it is failing or slow, too many calls are
+ * already in progress, or the call took too long. Callers should report this as temporary.
+ */
+public class CalDavUnavailableException extends CalDavException {
+
+  private static final long serialVersionUID = -3195822651379236520L;
+
+  public CalDavUnavailableException(String message, Throwable t) {
+    super(message, t);
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav.api;
+
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+/**
+ * Changes to the user-settable flags of one calendar entry. Flags which are left null are not changed.
+ */
+public class CalendarPatch {
+
+  private final CalendarURI uri;
+
+  private Boolean completed;
+
+  private Boolean archived;
+
+  private Boolean read;
+
+  public CalendarPatch(CalendarURI uri) {
+    this.uri = uri;
+  }
+
+  /**
+   * @param json as posted to CalDavProxyServlet, with a uri and any of isCompleted, isArchived and isRead
+   */
+  public static CalendarPatch fromJSON(JSONObject json) throws JSONException, URIException {
+    CalendarURI uri = new CalendarURI(new URI(json.getString(CalendarWrapper.JSON_PROPERTY_NAMES.uri.toString()), false),
+        new DateTime());
+    CalendarPatch patch = new CalendarPatch(uri);
+    String isCompleted = CalendarWrapper.JSON_PROPERTY_NAMES.isCompleted.toString();
+    if (json.has(isCompleted)) {
+      patch.setCompleted(json.getBoolean(isCompleted));
+    }
+    String isArchived = CalendarWrapper.JSON_PROPERTY_NAMES.isArchived.toString();
+    if (json.has(isArchived)) {
+      patch.setArchived(json.getBoolean(isArchived));
+    }
+    String isRead = CalendarWrapper.JSON_PROPERTY_NAMES.isRead.toString();
+    if (json.has(isRead)) {
+      patch.setRead(json.getBoolean(isRead));
+    }
+    return patch;
+  }
+
+  public CalendarURI getUri() {
+    return uri;
+  }
+
+  public Boolean getCompleted() {
+    return completed;
+  }
+
+  public void setCompleted(Boolean completed) {
+    this.completed = completed;
+  }
+
+  public Boolean getArchived() {
+    return archived;
+  }
+
+  public void setArchived(Boolean archived) {
+    this.archived = archived;
+  }
+
+  public Boolean getRead() {
+    return read;
+  }
+
+  public void setRead(Boolean read) {
+    this.read = read;
+  }
+
+  /**
+   * Whether applying the patch would change the wrapper. Only tasks can be completed.
+   */
+  public boolean changes(CalendarWrapper wrapper) {
+    return (this.completed != null && Component.VTODO.equals(wrapper.getComponentName()) &&
+        this.completed != wrapper.isCompleted()) ||
+        (this.archived != null && this.archived != wrapper.isArchived()) ||
+        (this.read != null && this.read != wrapper.isRead());
+  }
+
+  /**
+   * Set the patched flags on the wrapper.
+   *
+   * @return false if nothing needed to change
+   */
+  public boolean applyTo(CalendarWrapper wrapper) throws JSONException {
+    if (!changes(wrapper)) {
+      return false;
+    }
+    wrapper.applyJsonState(toJsonState());
+    return true;
+  }
+
+  /**
+   * The patched flags in the form taken by CalendarWrapper.applyJsonState.
+   */
+  public JSONObject toJsonState() throws JSONException {
+    JSONObject json = new JSONObject();
+    if (this.completed != null) {
+      json.put(CalendarWrapper.JSON_PROPERTY_NAMES.isCompleted.toString(), this.completed.booleanValue());
+    }
+    if (this.archived != null) {
+      json.put(CalendarWrapper.JSON_PROPERTY_NAMES.isArchived.toString(), this.archived.booleanValue());
+    }
+    if (this.read != null) {
+      json.put(CalendarWrapper.JSON_PROPERTY_NAMES.isRead.toString(), this.read.booleanValue());
+    }
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    return "CalendarPatch{uri=" + this.uri + ", completed=" + this.completed + ", archived=" + this.archived +
+        ", read=" + this.read + "}";
+  }
+}
@@ -38,9 +38,12 @@ public class CalendarURI extends URI implements Serializable {
 
   private Date etag;
 
+  private String entityTag;
+
   private enum JSON_PROPERTIES {
     uri,
-    etag
+    etag,
+    entityTag
   }
 
   public CalendarURI(URI uri, Date etag) throws URIException {
@@ -62,12 +65,16 @@ public class CalendarURI extends URI implements Serializable {
   public CalendarURI(JSONObject json) throws JSONException, URIException {
     super(json.getString(JSON_PROPERTIES.uri.toString()), false);
     this.etag = new DateTime(new ISO8601Date(json.getString(JSON_PROPERTIES.etag.toString())).getTime());
+    this.entityTag = json.optString(JSON_PROPERTIES.entityTag.toString(), null);
   }
 
   public JSONObject toJSON() throws JSONException, URIException {
     JSONObject json = new JSONObject();
     json.put(JSON_PROPERTIES.uri.toString(), getURI());
     json.put(JSON_PROPERTIES.etag.toString(), DateUtils.iso8601(getEtag()));
+    if (this.entityTag != null) {
+      json.put(JSON_PROPERTIES.entityTag.toString(), this.entityTag);
+    }
     return json;
   }
 
@@ -75,4 +82,15 @@ public class CalendarURI extends URI implements Serializable {
     return this.etag;
   }
 
+  /**
+   * The ETag exactly as the server sent it, suitable for an If-Match header, or null if unknown.
+   */
+  public String getEntityTag() {
+    return this.entityTag;
+  }
+
+  public void setEntityTag(String entityTag) {
+    this.entityTag = entityTag;
+  }
+
 }
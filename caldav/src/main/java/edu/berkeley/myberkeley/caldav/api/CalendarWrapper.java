@@ -31,7 +31,6 @@ import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyFactory;
 import net.fortuna.ical4j.model.PropertyFactoryRegistry;
 import net.fortuna.ical4j.model.PropertyList;
-import net.fortuna.ical4j.model.TimeZoneRegistry;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.component.VTimeZone;
 import net.fortuna.ical4j.model.component.VToDo;
@@ -56,6 +55,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URISyntaxException;
 import java.text.ParseException;
@@ -63,10 +63,20 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
 
+/**
+ * A task or event with its location and etag. Wrappers read back from storage keep the stored
+ * icalData JSON and answer state, dates and summary from it; the ical4j Calendar is only built when
+ * getCalendar or getComponent is called, and from then on the Calendar is the only copy.
+ */
 public class CalendarWrapper implements Serializable {
   private static final long serialVersionUID = -5997627557793464309L;
   private static final Logger LOGGER = LoggerFactory.getLogger(CalendarWrapper.class);
 
+  /**
+   * Stateless, so one registry serves every wrapper.
+   */
+  private static final PropertyFactory PROPERTY_FACTORY = new PropertyFactoryRegistry();
+
   public enum JSON_PROPERTY_NAMES {
     uri,
     etag,
@@ -96,7 +106,18 @@ public class CalendarWrapper implements Serializable {
 
   private Component component;
 
-  private PropertyFactory propertyFactory = new PropertyFactoryRegistry();
+  /**
+   * Set until the Calendar is built. Values are as written by toJSON. Cleared only once the Calendar
+   * and Component are complete, so a reader which finds it null sees both.
+   */
+  private transient volatile JSONObject icalData;
+
+  private transient String componentName;
+
+  /**
+   * The JSON text this wrapper was read from, kept until anything might change it.
+   */
+  private transient String storedJson;
 
   private CalendarWrapper() {
   }
@@ -128,10 +149,48 @@ public class CalendarWrapper implements Serializable {
     jsonToCalendarWrapper(json);
   }
 
+  /**
+   * A wrapper over JSON text as written by toJSON, which toJSONString returns as it is while the
+   * wrapper is unchanged.
+   */
+  public static CalendarWrapper fromJSONString(String json) throws JSONException, CalDavException {
+    CalendarWrapper wrapper = new CalendarWrapper(new JSONObject(json));
+    if (wrapper.icalData != null) {
+      wrapper.storedJson = json;
+    }
+    return wrapper;
+  }
+
+  /**
+   * A wrapper over stored icalData, as read by CalendarWrapperCodec.
+   */
+  CalendarWrapper(CalendarURI calendarUri, String componentName, JSONObject icalData) {
+    this.calendarUri = calendarUri;
+    this.componentName = componentName;
+    this.icalData = icalData;
+    if (!icalData.has(Property.UID)) {
+      materialize();
+    }
+  }
+
   public CalendarWrapper(Content content) {
     if (content.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY).equals(EmbeddedCalDav.RESOURCETYPE)) {
       Map<String, Object> props = content.getProperties();
       LOGGER.debug("Content {} props = {}", content, props);
+      Object encoded = props.get(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapperData.toString());
+      if (encoded != null) {
+        try {
+          CalendarWrapper decoded = CalendarWrapperCodec.decode((String) encoded);
+          this.calendarUri = decoded.calendarUri;
+          this.componentName = decoded.componentName;
+          this.icalData = decoded.icalData;
+          this.calendar = decoded.calendar;
+          this.component = decoded.component;
+          return;
+        } catch (CalDavException e) {
+          LOGGER.error("Unreadable calendarWrapperData at " + content.getPath() + ", trying calendarWrapper", e);
+        }
+      }
       Object calendarWrapperJson = props.get(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapper.toString());
       if (calendarWrapperJson != null) {
         try {
@@ -172,34 +231,54 @@ public class CalendarWrapper implements Serializable {
       throw new CalDavException("Exception parsing uri '" + uri + "'", uie);
     }
 
-    // build the ical Calendar object itself
-    CalendarBuilder builder = new CalendarBuilder();
-    this.calendar = new Calendar();
-    this.calendar.getProperties().add(new ProdId("-//Ben Fortuna//iCal4j 1.0//EN"));
-    this.calendar.getProperties().add(Version.VERSION_2_0);
-    this.calendar.getProperties().add(CalScale.GREGORIAN);
-    TimeZoneRegistry registry = builder.getRegistry();
-    VTimeZone tz = registry.getTimeZone("America/Los_Angeles").getVTimeZone();
-    this.calendar.getComponents().add(tz);
-
-    if (Component.VEVENT.equals(componentName)) {
-      this.component = new VEvent();
-    } else if (Component.VTODO.equals(componentName)) {
-      this.component = new VToDo();
-    } else {
+    if (!Component.VEVENT.equals(componentName) && !Component.VTODO.equals(componentName)) {
       throw new CalDavException("Unsupported component type " + componentName, null);
     }
+    this.componentName = componentName;
+    this.icalData = icalData;
+    if (!icalData.has(Property.UID)) {
+      // A new UID has to be generated, which is a change to the Calendar.
+      materialize();
+    }
+  }
+
+  /**
+   * Build the ical4j Calendar from the stored icalData and drop the JSON view. Wrappers in the
+   * CalendarCache are shared between requests, so the Calendar is built once under the lock and
+   * published by clearing icalData.
+   */
+  private synchronized void materialize() {
+    JSONObject data = this.icalData;
+    if (data == null) {
+      return;
+    }
+    Calendar calendar = new Calendar();
+    calendar.getProperties().add(new ProdId("-//Ben Fortuna//iCal4j 1.0//EN"));
+    calendar.getProperties().add(Version.VERSION_2_0);
+    calendar.getProperties().add(CalScale.GREGORIAN);
+    calendar.getComponents().add(PacificTimeZone.copy());
+
+    Component component;
+    if (Component.VEVENT.equals(this.componentName)) {
+      component = new VEvent();
+    } else {
+      component = new VToDo();
+    }
 
-    jsonToCalendarProperties(icalData, this.component.getProperties());
+    jsonToCalendarProperties(data, component.getProperties());
 
     // Ensure a UID.
-    Property uidProperty = this.component.getProperty(Property.UID);
+    Property uidProperty = component.getProperty(Property.UID);
     if (uidProperty == null) {
       String uid = UUID.randomUUID().toString();
-      this.component.getProperties().add(new Uid(uid));
+      component.getProperties().add(new Uid(uid));
     }
 
-    this.calendar.getComponents().add(this.component);
+    calendar.getComponents().add(component);
+    this.calendar = calendar;
+    this.component = component;
+    this.storedJson = null;
+    this.icalData = null;
   }
 
   private void jsonToCalendarProperties(JSONObject icalData, PropertyList calendarProperties) {
@@ -226,7 +305,7 @@ public class CalendarWrapper implements Serializable {
   }
   
   private void jsonToCalendarProperty(String key, String value, PropertyList calendarProperties) {
-    Property property = propertyFactory.createProperty(key);
+    Property property = PROPERTY_FACTORY.createProperty(key);
     if (property instanceof DateProperty) {
       if (property instanceof DtStamp) {
         // ical4j sets the DTSTAMP of new Calendar instances to the datetime of the instance's creation.
@@ -253,6 +332,19 @@ public class CalendarWrapper implements Serializable {
   }
 
   public JSONObject toJSON() throws JSONException {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      JSONObject json = new JSONObject();
+      json.put(JSON_PROPERTY_NAMES.uri.toString(), getUri().toString());
+      json.put(JSON_PROPERTY_NAMES.etag.toString(), DateUtils.iso8601(getEtag()));
+      json.put(JSON_PROPERTY_NAMES.component.toString(), this.componentName);
+      json.put(JSON_PROPERTY_NAMES.isRequired.toString(), isRequired());
+      json.put(JSON_PROPERTY_NAMES.isArchived.toString(), isArchived());
+      json.put(JSON_PROPERTY_NAMES.isCompleted.toString(), isCompleted());
+      json.put(JSON_PROPERTY_NAMES.isRead.toString(), isRead());
+      json.put(JSON_PROPERTY_NAMES.icalData.toString(), new JSONObject(data, getNames(data)));
+      return json;
+    }
     JSONObject icalData = new JSONObject();
     boolean isRequired = false;
     boolean isArchived = false;
@@ -299,12 +391,28 @@ public class CalendarWrapper implements Serializable {
     return json;
   }
 
+  /**
+   * The same as toJSON().toString(), without building the JSON when the wrapper was read from
+   * unchanged JSON text.
+   */
+  public String toJSONString() throws JSONException {
+    if (this.storedJson != null) {
+      return this.storedJson;
+    }
+    return toJSON().toString();
+  }
+
   /**
    * Apply specified settings to the wrapped Component.
    * @param jsonState in a format similar to that produced by the toJSON method
    * @throws org.apache.sling.commons.json.JSONException
    */
   public void applyJsonState(JSONObject jsonState) throws JSONException {
+    if (this.icalData != null) {
+      this.storedJson = null;
+      applyJsonStateToIcalData(jsonState);
+      return;
+    }
     PropertyList propertyList = this.component.getProperties();
     if (jsonState.has(JSON_PROPERTY_NAMES.isCompleted.toString())) {
       boolean isCompleted = jsonState.getBoolean(JSON_PROPERTY_NAMES.isCompleted.toString());
@@ -337,19 +445,130 @@ public class CalendarWrapper implements Serializable {
     }
   }
 
+  /**
+   * The same changes as applyJsonState makes to the Component, made to the stored icalData so that
+   * flags can be set without building the Calendar.
+   */
+  private void applyJsonStateToIcalData(JSONObject jsonState) throws JSONException {
+    if (jsonState.has(JSON_PROPERTY_NAMES.isCompleted.toString())) {
+      boolean isCompleted = jsonState.getBoolean(JSON_PROPERTY_NAMES.isCompleted.toString());
+      if (Component.VTODO.equals(this.componentName)) {
+        // Enforce only one Status.
+        this.icalData.remove(Property.STATUS);
+        this.icalData.put(Property.STATUS,
+            isCompleted ? Status.VTODO_COMPLETED.getValue() : Status.VTODO_NEEDS_ACTION.getValue());
+      }
+    }
+    if (jsonState.has(JSON_PROPERTY_NAMES.isArchived.toString())) {
+      boolean isArchived = jsonState.getBoolean(JSON_PROPERTY_NAMES.isArchived.toString());
+      // At most one.
+      removeJsonValue(Property.CATEGORIES, CalDavConnector.MYBERKELEY_ARCHIVED.getValue());
+      if (isArchived) {
+        this.icalData.accumulate(Property.CATEGORIES, CalDavConnector.MYBERKELEY_ARCHIVED.getValue());
+      }
+    }
+    if (jsonState.has(JSON_PROPERTY_NAMES.isRead.toString())) {
+      boolean isRead = jsonState.getBoolean(JSON_PROPERTY_NAMES.isRead.toString());
+      // At most one.
+      removeJsonValue(Property.CATEGORIES, CalDavConnector.MYBERKELEY_READ.getValue());
+      if (isRead) {
+        this.icalData.accumulate(Property.CATEGORIES, CalDavConnector.MYBERKELEY_READ.getValue());
+      }
+    }
+  }
+
+  /**
+   * Drop every copy of the value from the icalData, keeping the key's other values in order.
+   */
+  private void removeJsonValue(String key, String value) throws JSONException {
+    Object rawValue = this.icalData.opt(key);
+    if (rawValue == null) {
+      return;
+    }
+    this.icalData.remove(key);
+    if (rawValue instanceof JSONArray) {
+      JSONArray values = (JSONArray) rawValue;
+      for (int i = 0; i < values.length(); i++) {
+        if (!value.equals(values.optString(i))) {
+          this.icalData.accumulate(key, values.get(i));
+        }
+      }
+    } else if (!value.equals(rawValue.toString())) {
+      this.icalData.put(key, rawValue);
+    }
+  }
+
   public void generateNewUID() {
     // give component a new UID so it will be unique in Bedework
     ((Uid) this.getComponent().getProperties().getProperty(Property.UID)).setValue(UUID.randomUUID().toString());
   }
 
   public Calendar getCalendar() {
+    materialize();
     return this.calendar;
   }
 
   public Component getComponent() {
+    materialize();
     return this.component;
   }
 
+  /**
+   * VEVENT or VTODO.
+   */
+  public String getComponentName() {
+    if (this.componentName != null) {
+      return this.componentName;
+    }
+    return (this.component != null) ? this.component.getName() : null;
+  }
+
+  public String getSummary() {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      return data.optString(Property.SUMMARY, null);
+    }
+    Property summary = (this.component != null) ? this.component.getProperty(Property.SUMMARY) : null;
+    return (summary != null) ? summary.getValue() : null;
+  }
+
+  /**
+   * @return millis of the DTSTART, or 0 if there is none
+   */
+  public long getStartTime() {
+    return getDateProperty(Property.DTSTART);
+  }
+
+  /**
+   * @return millis of the DUE, or 0 if there is none
+   */
+  public long getDueTime() {
+    return getDateProperty(Property.DUE);
+  }
+
+  /**
+   * @return millis of the DTEND, or 0 if there is none
+   */
+  public long getEndTime() {
+    return getDateProperty(Property.DTEND);
+  }
+
+  /**
+   * @return the value of the first property with this name, or null if there is none
+   */
+  public String getPropertyValue(String name) {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      Object rawValue = data.opt(name);
+      if (rawValue instanceof JSONArray) {
+        return ((JSONArray) rawValue).optString(0, null);
+      }
+      return (rawValue != null) ? rawValue.toString() : null;
+    }
+    Property property = (this.component != null) ? this.component.getProperty(name) : null;
+    return (property != null) ? property.getValue() : null;
+  }
+
   public CalendarURI getUri() {
     return this.calendarUri;
   }
@@ -358,25 +577,88 @@ public class CalendarWrapper implements Serializable {
     return this.calendarUri.getEtag();
   }
 
+  /**
+   * Point the wrapper at a new URI, as when a write gives the entry a new etag.
+   */
+  public void setUri(CalendarURI calendarUri) {
+    this.calendarUri = calendarUri;
+    this.storedJson = null;
+  }
+
   public boolean isCompleted() {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      return hasJsonValue(data, Property.STATUS, Status.VTODO_COMPLETED.getValue());
+    }
     PropertyList propList = this.component.getProperties(Property.STATUS);
     return propList != null && propList.contains(Status.VTODO_COMPLETED);
   }
 
   public boolean isRequired() {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      return hasJsonValue(data, Property.CATEGORIES, CalDavConnector.MYBERKELEY_REQUIRED.getValue());
+    }
     PropertyList propList = this.component.getProperties(Property.CATEGORIES);
     return propList != null && propList.contains(CalDavConnector.MYBERKELEY_REQUIRED);
   }
 
   public boolean isArchived() {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      return hasJsonValue(data, Property.CATEGORIES, CalDavConnector.MYBERKELEY_ARCHIVED.getValue());
+    }
     PropertyList propList = this.component.getProperties(Property.CATEGORIES);
     return propList != null && propList.contains(CalDavConnector.MYBERKELEY_ARCHIVED);
   }
 
   public boolean isRead() {
-      PropertyList propList = this.component.getProperties(Property.CATEGORIES);
-      return propList != null && propList.contains(CalDavConnector.MYBERKELEY_READ);
+    JSONObject data = this.icalData;
+    if (data != null) {
+      return hasJsonValue(data, Property.CATEGORIES, CalDavConnector.MYBERKELEY_READ.getValue());
     }
+    PropertyList propList = this.component.getProperties(Property.CATEGORIES);
+    return propList != null && propList.contains(CalDavConnector.MYBERKELEY_READ);
+  }
+
+  /**
+   * Whether the icalData has the value, either alone or as one of several values for the key.
+   */
+  private static boolean hasJsonValue(JSONObject data, String key, String value) {
+    Object rawValue = data.opt(key);
+    if (rawValue instanceof JSONArray) {
+      JSONArray values = (JSONArray) rawValue;
+      for (int i = 0; i < values.length(); i++) {
+        if (value.equals(values.optString(i))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return rawValue != null && value.equals(rawValue.toString());
+  }
+
+  private long getDateProperty(String name) {
+    JSONObject data = this.icalData;
+    if (data != null) {
+      String value = data.optString(name, null);
+      return (value != null) ? new ISO8601Date(value).getTimeInMillis() : 0;
+    }
+    Property property = (this.component != null) ? this.component.getProperty(name) : null;
+    if (property instanceof DateProperty && ((DateProperty) property).getDate() != null) {
+      return ((DateProperty) property).getDate().getTime();
+    }
+    return 0;
+  }
+
+  private static String[] getNames(JSONObject json) {
+    String[] names = new String[json.length()];
+    Iterator<String> keys = json.keys();
+    for (int i = 0; keys.hasNext(); i++) {
+      names[i] = keys.next();
+    }
+    return names;
+  }
 
   private DateTime getDateTimeFromJSON(String json) {
     ISO8601Date dateISO8601 = new ISO8601Date(json);
@@ -388,10 +670,11 @@ public class CalendarWrapper implements Serializable {
 
   @Override
   public String toString() {
+    JSONObject data = this.icalData;
     return "CalendarWrapper{" +
             "uri='" + getUri().toString() + '\'' +
             "etag=" + getUri().getEtag() +
-            ",calendar=" + this.calendar +
+            ",calendar=" + ((data != null) ? data : this.calendar) +
             '}';
   }
 
@@ -400,6 +683,8 @@ public class CalendarWrapper implements Serializable {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     CalendarWrapper that = (CalendarWrapper) o;
+    materialize();
+    that.materialize();
     return !(this.calendar != null ? !this.calendar.equals(that.calendar) : that.calendar != null)
             && !(this.calendarUri != null ? !this.calendarUri.equals(that.calendarUri) : that.calendarUri != null)
             && !(this.component != null ? !this.component.equals(that.component) : that.component != null);
@@ -407,9 +692,36 @@ public class CalendarWrapper implements Serializable {
 
   @Override
   public int hashCode() {
+    materialize();
     int result = this.calendar != null ? this.calendar.hashCode() : 0;
     result = 31 * result + (this.calendarUri != null ? this.calendarUri.hashCode() : 0);
     result = 31 * result + (this.component != null ? this.component.hashCode() : 0);
     return result;
   }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    materialize();
+    out.defaultWriteObject();
+  }
+
+  /**
+   * The zone every stored wrapper is given. Loaded once on first use; each Calendar gets its own
+   * copy, since ical4j components are mutable.
+   */
+  private static class PacificTimeZone {
+    private static final VTimeZone VTIMEZONE =
+        new CalendarBuilder().getRegistry().getTimeZone("America/Los_Angeles").getVTimeZone();
+
+    private static VTimeZone copy() {
+      try {
+        return (VTimeZone) VTIMEZONE.copy();
+      } catch (ParseException e) {
+        throw new IllegalStateException("Could not copy " + VTIMEZONE, e);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not copy " + VTIMEZONE, e);
+      } catch (URISyntaxException e) {
+        throw new IllegalStateException("Could not copy " + VTIMEZONE, e);
+      }
+    }
+  }
 }
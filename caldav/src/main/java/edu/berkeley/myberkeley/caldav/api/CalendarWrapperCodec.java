@@ -0,0 +1,223 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav.api;
+
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Property;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.URI;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.util.DateUtils;
+import org.sakaiproject.nakamura.util.ISO8601Date;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact storage form of a CalendarWrapper, Base64 encoded so that it can be kept in a string property.
+ * <pre>
+ * byte    format version
+ * string  uri
+ * long    etag, epoch millis
+ * byte    component: 0 = VEVENT, 1 = VTODO
+ * short   number of values, then for each value:
+ *   byte    index of the property name in NAMES, or -1 followed by the name as a string
+ *   byte    VALUE_STRING followed by a string, or VALUE_DATE followed by epoch millis as a long
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes. A property with several values (such as
+ * CATEGORIES) is written once per value. New names may only ever be appended to NAMES; any other
+ * change to the layout needs a new FORMAT_VERSION, with the old one still readable.
+ */
+public final class CalendarWrapperCodec {
+
+  public static final int FORMAT_VERSION = 1;
+
+  private static final List<String> NAMES = Arrays.asList(
+      Property.DTSTAMP,
+      Property.DTSTART,
+      Property.DTEND,
+      Property.DUE,
+      Property.SUMMARY,
+      Property.DESCRIPTION,
+      Property.CATEGORIES,
+      Property.STATUS,
+      Property.UID,
+      Property.LOCATION,
+      Property.URL,
+      Property.COMPLETED,
+      Property.CREATED,
+      Property.LAST_MODIFIED,
+      Property.DURATION,
+      Property.RRULE,
+      Property.PRIORITY,
+      Property.SEQUENCE,
+      Property.CLASS,
+      Property.TRANSP
+  );
+
+  private static final Map<String, Integer> NAME_INDEX = new HashMap<String, Integer>();
+  static {
+    for (int i = 0; i < NAMES.size(); i++) {
+      NAME_INDEX.put(NAMES.get(i), i);
+    }
+  }
+
+  /**
+   * Properties whose JSON values are ISO8601 dates.
+   */
+  private static final Set<String> DATE_NAMES = new HashSet<String>(Arrays.asList(
+      Property.DTSTAMP, Property.DTSTART, Property.DTEND, Property.DUE, Property.COMPLETED,
+      Property.CREATED, Property.LAST_MODIFIED, Property.RECURRENCE_ID));
+
+  private static final byte VALUE_STRING = 0;
+  private static final byte VALUE_DATE = 1;
+  private static final byte OTHER_NAME = -1;
+  private static final String CHARSET = "UTF-8";
+
+  private CalendarWrapperCodec() {
+  }
+
+  public static String encode(CalendarWrapper wrapper) throws CalDavException {
+    try {
+      JSONObject json = wrapper.toJSON();
+      JSONObject icalData = json.getJSONObject(CalendarWrapper.JSON_PROPERTY_NAMES.icalData.toString());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(FORMAT_VERSION);
+      writeString(out, wrapper.getUri().toString());
+      out.writeLong(wrapper.getEtag().getTime());
+      out.writeByte(Component.VTODO.equals(wrapper.getComponentName()) ? 1 : 0);
+
+      int valueCount = 0;
+      Iterator<String> keys = icalData.keys();
+      while (keys.hasNext()) {
+        Object value = icalData.get(keys.next());
+        valueCount += (value instanceof JSONArray) ? ((JSONArray) value).length() : 1;
+      }
+      out.writeShort(valueCount);
+      keys = icalData.keys();
+      while (keys.hasNext()) {
+        String name = keys.next();
+        Object value = icalData.get(name);
+        if (value instanceof JSONArray) {
+          JSONArray values = (JSONArray) value;
+          for (int i = 0; i < values.length(); i++) {
+            writeValue(out, name, values.getString(i));
+          }
+        } else {
+          writeValue(out, name, value.toString());
+        }
+      }
+      out.flush();
+      return new String(Base64.encodeBase64(bytes.toByteArray()), "US-ASCII");
+    } catch (JSONException e) {
+      throw new CalDavException("Could not encode " + wrapper.getUri(), e);
+    } catch (IOException e) {
+      throw new CalDavException("Could not encode " + wrapper.getUri(), e);
+    }
+  }
+
+  public static CalendarWrapper decode(String encoded) throws CalDavException {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(encoded.getBytes("US-ASCII"))));
+      int version = in.readUnsignedByte();
+      if (version != FORMAT_VERSION) {
+        throw new CalDavException("Unsupported stored calendar format " + version, null);
+      }
+      CalendarURI uri = new CalendarURI(new URI(readString(in), false), new DateTime(in.readLong()));
+      String componentName = (in.readByte() == 1) ? Component.VTODO : Component.VEVENT;
+      int valueCount = in.readUnsignedShort();
+      JSONObject icalData = new JSONObject();
+      for (int i = 0; i < valueCount; i++) {
+        byte nameIndex = in.readByte();
+        String name = (nameIndex == OTHER_NAME) ? readString(in) : NAMES.get(nameIndex);
+        String value;
+        if (in.readByte() == VALUE_DATE) {
+          DateTime date = new DateTime(in.readLong());
+          date.setUtc(true);
+          value = DateUtils.iso8601(date);
+        } else {
+          value = readString(in);
+        }
+        icalData.accumulate(name, value);
+      }
+      return new CalendarWrapper(uri, componentName, icalData);
+    } catch (IOException e) {
+      throw new CalDavException("Unreadable stored calendar", e);
+    } catch (JSONException e) {
+      throw new CalDavException("Unreadable stored calendar", e);
+    } catch (IndexOutOfBoundsException e) {
+      throw new CalDavException("Unreadable stored calendar", e);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, String name, String value) throws IOException {
+    Integer nameIndex = NAME_INDEX.get(name);
+    if (nameIndex != null) {
+      out.writeByte(nameIndex);
+    } else {
+      out.writeByte(OTHER_NAME);
+      writeString(out, name);
+    }
+    Long millis = DATE_NAMES.contains(name) ? parseDate(value) : null;
+    if (millis != null) {
+      out.writeByte(VALUE_DATE);
+      out.writeLong(millis);
+    } else {
+      out.writeByte(VALUE_STRING);
+      writeString(out, value);
+    }
+  }
+
+  private static Long parseDate(String value) {
+    try {
+      return new ISO8601Date(value).getTimeInMillis();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(CHARSET);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Bad string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+}
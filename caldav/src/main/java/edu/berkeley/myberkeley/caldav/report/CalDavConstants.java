@@ -61,6 +61,7 @@ public final class CalDavConstants {
   public static final String CALDAV_XML_IS_NOT_DEFINED = "is-not-defined";
   public static final String CALDAV_XML_TIME_RANGE = "time-range";
   public static final String CALDAV_XML_PROP_FILTER = "prop-filter";
+  public static final String CALDAV_XML_PROP_FILTER_NAME = "name";
   public static final String CALDAV_XML_TEXT_MATCH = "text-match";
   public static final String CALDAV_XML_COLLATION = "collation";
   public static final String CALDAV_XML_NEGATE_CONDITION = "negate-condition";
@@ -68,6 +69,11 @@ public final class CalDavConstants {
   public static final String CALDAV_XML_PARAM_FILTER_NAME = "name";
   public static final String CALDAV_XML_TIMEZONE = "timezone";
 
+  //---< WebDAV Sync (RFC 6578), in the DAV: namespace >----------------------
+  public static final String DAV_XML_SYNC_COLLECTION = "sync-collection";
+  public static final String DAV_XML_SYNC_TOKEN = "sync-token";
+  public static final String DAV_XML_SYNC_LEVEL = "sync-level";
+
   //-------------------------------------------------< PropFind Constants >---
   public static final int PROPFIND_NONE = -1;
 
@@ -57,8 +57,10 @@ public class CalendarQueryReportInfo extends ReportInfo {
             DavConstants.NAMESPACE.getURI());
     // append props
     Element prop = getPropertyNameSet().toXml(document);
-    // append calendar-data request info
-    prop.appendChild(calendarData.toXml(document));
+    // append calendar-data request info; without it only the requested properties are returned
+    if (calendarData != null) {
+      prop.appendChild(calendarData.toXml(document));
+    }
     // append prop to calendarMultiGet
     calendarQuery.appendChild(prop);
     // append filter
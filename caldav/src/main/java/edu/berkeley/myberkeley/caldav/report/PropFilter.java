@@ -96,6 +96,7 @@ public class PropFilter implements XmlSerializable {
   public Element toXml(Document factory) {
     Element e = DomUtil.createElement(factory,
             CalDavConstants.CALDAV_XML_PROP_FILTER, CalDavConstants.CALDAV_NAMESPACE);
+    e.setAttribute(CalDavConstants.CALDAV_XML_PROP_FILTER_NAME, name);
     if (isNotDefined) {
       // is-not-defined
       e.appendChild(DomUtil.createElement(factory,
@@ -112,7 +113,7 @@ public class PropFilter implements XmlSerializable {
       }
       // param-filter
       for (ParamFilter pf : paramFilter) {
-        pf.toXml(factory);
+        e.appendChild(pf.toXml(factory));
       }
     }
     return e;
@@ -0,0 +1,56 @@
+/*
+
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+
+ */
+
+
+package edu.berkeley.myberkeley.caldav.report;
+
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.version.report.ReportInfo;
+import org.apache.jackrabbit.webdav.xml.DomUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Request body of a sync-collection report (RFC 6578). An empty sync token asks for the full
+ * membership of the collection and a token to use next time; otherwise only members added, changed
+ * or removed since the token was issued are returned.
+ */
+public class SyncCollectionReportInfo extends ReportInfo {
+
+  private final String syncToken;
+
+  public SyncCollectionReportInfo(String syncToken) {
+    super(SyncCollectionReport.SYNC_COLLECTION, DavConstants.DEPTH_0, CalDavConstants.ETAG);
+    this.syncToken = syncToken;
+  }
+
+  @Override
+  public Element toXml(Document document) {
+    Element syncCollection = DomUtil.createElement(document,
+            CalDavConstants.DAV_XML_SYNC_COLLECTION, DavConstants.NAMESPACE);
+    syncCollection.appendChild(DomUtil.createElement(document,
+            CalDavConstants.DAV_XML_SYNC_TOKEN, DavConstants.NAMESPACE, (syncToken == null) ? "" : syncToken));
+    syncCollection.appendChild(DomUtil.createElement(document,
+            CalDavConstants.DAV_XML_SYNC_LEVEL, DavConstants.NAMESPACE, "1"));
+    syncCollection.appendChild(getPropertyNameSet().toXml(document));
+    return syncCollection;
+  }
+
+}
@@ -82,7 +82,7 @@ public class TextMatch implements XmlSerializable {
     // negate-condition
     if (isNegateCondition()) {
       // ony if yes
-      e.setAttribute(CalDavConstants.CALDAV_XML_NEGATE_CONDITION, collation);
+      e.setAttribute(CalDavConstants.CALDAV_XML_NEGATE_CONDITION, negateCondition);
     }
     // set the value
     e.setTextContent(value);
@@ -0,0 +1,144 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AdminSessionPoolTest extends CalDavTests {
+
+  private Repository repository;
+
+  private Session first;
+
+  private Session second;
+
+  @Before
+  public void setup() throws Exception {
+    this.repository = mock(Repository.class);
+    this.first = mock(Session.class);
+    this.second = mock(Session.class);
+    when(this.repository.loginAdministrative()).thenReturn(this.first, this.second);
+  }
+
+  @Test
+  public void reusesReleasedSessions() throws Exception {
+    AdminSessionPool pool = new AdminSessionPool(this.repository, 1, AdminSessionPool.DEFAULT_LEAK_MILLIS);
+    Session session = pool.borrow();
+    assertSame(this.first, session);
+    assertEquals(1, pool.getStats().get("leased"));
+    pool.release(session);
+    assertSame(this.first, pool.borrow());
+    verify(this.repository, times(1)).loginAdministrative();
+    verify(this.first, never()).logout();
+    assertEquals(1L, pool.getStats().get("logins"));
+    assertEquals(2L, pool.getStats().get("loans"));
+  }
+
+  @Test
+  public void logsOutSessionsBeyondMaxIdle() throws Exception {
+    AdminSessionPool pool = new AdminSessionPool(this.repository, 1, AdminSessionPool.DEFAULT_LEAK_MILLIS);
+    Session one = pool.borrow();
+    Session two = pool.borrow();
+    assertNotSame(one, two);
+    pool.release(one);
+    pool.release(two);
+    verify(this.first, never()).logout();
+    verify(this.second).logout();
+    assertEquals(0, pool.getStats().get("leased"));
+    assertEquals(1, pool.getStats().get("idle"));
+
+    // Only lent sessions are taken back.
+    pool.release(two);
+    assertEquals(1, pool.getStats().get("idle"));
+
+    pool.shutdown();
+    verify(this.first).logout();
+    assertEquals(0, pool.getStats().get("idle"));
+  }
+
+  @Test
+  public void refusesLoansBeyondMaxLent() throws Exception {
+    AdminSessionPool pool = new AdminSessionPool(this.repository, 1, 1, 0L, AdminSessionPool.DEFAULT_LEAK_MILLIS);
+    Session session = pool.borrow();
+    try {
+      pool.borrow();
+      fail("Expected the second loan to be refused");
+    } catch (StorageClientException e) {
+      // expected
+    }
+    verify(this.repository, times(1)).loginAdministrative();
+    assertEquals(1L, pool.getStats().get("refusals"));
+    pool.release(session);
+    assertSame(this.first, pool.borrow());
+  }
+
+  @Test
+  public void waitsForALentSession() throws Exception {
+    final AdminSessionPool pool = new AdminSessionPool(this.repository, 1, 1, 10000L,
+        AdminSessionPool.DEFAULT_LEAK_MILLIS);
+    final Session session = pool.borrow();
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException ignored) {
+        }
+        pool.release(session);
+      }
+    };
+    releaser.start();
+    assertSame(this.first, pool.borrow());
+    releaser.join();
+    assertEquals(1L, pool.getStats().get("waits"));
+    assertEquals(0L, pool.getStats().get("refusals"));
+  }
+
+  @Test
+  public void reportsUnreleasedSessions() throws Exception {
+    AdminSessionPool pool = new AdminSessionPool(this.repository, 1, 0L);
+    Session session = pool.borrow();
+    Thread.sleep(5);
+    assertEquals(1, pool.getStats().get("overdue"));
+    assertEquals(1L, pool.getStats().get("leaks"));
+    pool.release(session);
+    assertEquals(0, pool.getStats().get("overdue"));
+    assertEquals(1L, pool.getStats().get("leaks"));
+  }
+
+  @Test
+  public void connectorClosesOnce() throws Exception {
+    AdminSessionPool pool = new AdminSessionPool(this.repository, 0, AdminSessionPool.DEFAULT_LEAK_MILLIS);
+    EmbeddedCalDav connector = new EmbeddedCalDav("joe", pool.borrow());
+    connector.setSessionRelease(pool);
+    connector.close();
+    connector.close();
+    verify(this.first, times(1)).logout();
+    assertEquals(0, pool.getStats().get("leased"));
+  }
+}
@@ -0,0 +1,247 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.BadRequestException;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalDavUnavailableException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+public class CalDavCallGuardTest extends CalDavTests {
+
+  private CalDavCallGuard guard;
+
+  @After
+  public void tearDown() {
+    if (this.guard != null) {
+      this.guard.shutdown();
+    }
+  }
+
+  @Test
+  public void opensAfterFailuresAndFailsFast() throws Exception {
+    this.guard = new CalDavCallGuard(2, 4, 4, 50, 10000, 60000);
+    for (int i = 0; i < 2; i++) {
+      assertEquals("ok", this.guard.call("test", succeeding(), 1000));
+      try {
+        this.guard.call("test", failing(), 1000);
+        fail();
+      } catch (IOException expected) {
+        // counts against the server
+      }
+    }
+    assertEquals(CalDavCallGuard.State.OPEN, this.guard.getState());
+    try {
+      this.guard.call("test", succeeding(), 1000);
+      fail();
+    } catch (CalDavUnavailableException expected) {
+      assertEquals(1L, this.guard.getStats().get("rejectedOpen"));
+    }
+  }
+
+  @Test
+  public void clientErrorsDoNotOpen() throws Exception {
+    this.guard = new CalDavCallGuard(2, 2, 2, 50, 10000, 60000);
+    for (int i = 0; i < 4; i++) {
+      try {
+        this.guard.call("test", new Callable<String>() {
+          public String call() throws Exception {
+            throw new BadRequestException("not found", 404);
+          }
+        }, 1000);
+        fail();
+      } catch (BadRequestException expected) {
+        assertEquals(404, expected.getStatusCode());
+      }
+    }
+    assertEquals(CalDavCallGuard.State.CLOSED, this.guard.getState());
+  }
+
+  @Test
+  public void halfOpenProbeCloses() throws Exception {
+    this.guard = new CalDavCallGuard(2, 2, 2, 50, 10000, 50);
+    for (int i = 0; i < 2; i++) {
+      try {
+        this.guard.call("test", failing(), 1000);
+      } catch (IOException expected) {
+        // counts against the server
+      }
+    }
+    assertEquals(CalDavCallGuard.State.OPEN, this.guard.getState());
+    Thread.sleep(100);
+    assertEquals(CalDavCallGuard.State.HALF_OPEN, this.guard.getState());
+    assertEquals("ok", this.guard.call("test", succeeding(), 1000));
+    assertEquals(CalDavCallGuard.State.CLOSED, this.guard.getState());
+  }
+
+  @Test
+  public void onlyTheProbeDecidesHalfOpen() throws Exception {
+    this.guard = new CalDavCallGuard(3, 2, 2, 50, 10000, 50);
+    CountDownLatch lateStarted = new CountDownLatch(1);
+    CountDownLatch releaseLate = new CountDownLatch(1);
+    Thread late = callInBackground("late", lateStarted, releaseLate);
+    lateStarted.await();
+    openWithFailures(2);
+    Thread.sleep(100);
+    CountDownLatch probeStarted = new CountDownLatch(1);
+    CountDownLatch releaseProbe = new CountDownLatch(1);
+    Thread probe = callInBackground("probe", probeStarted, releaseProbe);
+    probeStarted.await();
+    releaseLate.countDown();
+    late.join();
+    assertEquals(CalDavCallGuard.State.HALF_OPEN, this.guard.getState());
+    try {
+      this.guard.call("test", succeeding(), 1000);
+      fail();
+    } catch (CalDavUnavailableException expected) {
+      // the probe is still in flight
+    }
+    releaseProbe.countDown();
+    probe.join();
+    assertEquals(CalDavCallGuard.State.CLOSED, this.guard.getState());
+  }
+
+  @Test
+  public void interruptedProbeLetsAnotherThrough() throws Exception {
+    this.guard = new CalDavCallGuard(2, 2, 2, 50, 10000, 50);
+    openWithFailures(2);
+    Thread.sleep(100);
+    CountDownLatch probeStarted = new CountDownLatch(1);
+    CountDownLatch releaseProbe = new CountDownLatch(1);
+    Thread probe = callInBackground("probe", probeStarted, releaseProbe);
+    probeStarted.await();
+    probe.interrupt();
+    probe.join();
+    releaseProbe.countDown();
+    assertEquals(CalDavCallGuard.State.HALF_OPEN, this.guard.getState());
+    assertEquals("ok", this.guard.call("test", succeeding(), 1000));
+    assertEquals(CalDavCallGuard.State.CLOSED, this.guard.getState());
+  }
+
+  @Test
+  public void timesOut() throws Exception {
+    this.guard = new CalDavCallGuard(2, 10, 10, 50, 10000, 60000);
+    try {
+      this.guard.call("test", sleeping(2000), 50);
+      fail();
+    } catch (CalDavUnavailableException expected) {
+      assertEquals(1L, this.guard.getStats().get("timeouts"));
+    }
+  }
+
+  @Test
+  public void bulkheadRejects() throws Exception {
+    this.guard = new CalDavCallGuard(1, 10, 10, 50, 10000, 60000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread blocker = new Thread() {
+      @Override
+      public void run() {
+        try {
+          guard.call("blocker", new Callable<String>() {
+            public String call() throws Exception {
+              started.countDown();
+              release.await();
+              return "ok";
+            }
+          }, 5000);
+        } catch (CalDavException ignored) {
+          // not under test
+        } catch (IOException ignored) {
+          // not under test
+        }
+      }
+    };
+    blocker.start();
+    started.await();
+    try {
+      this.guard.call("test", succeeding(), 1000);
+      fail();
+    } catch (CalDavUnavailableException expected) {
+      assertEquals(1L, this.guard.getStats().get("rejectedBulkhead"));
+    } finally {
+      release.countDown();
+      blocker.join();
+    }
+  }
+
+  private void openWithFailures(int count) throws CalDavException {
+    for (int i = 0; i < count; i++) {
+      try {
+        this.guard.call("test", failing(), 1000);
+      } catch (IOException expected) {
+        // counts against the server
+      }
+    }
+    assertEquals(CalDavCallGuard.State.OPEN, this.guard.getState());
+  }
+
+  private Thread callInBackground(final String operation, final CountDownLatch started,
+                                  final CountDownLatch release) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          guard.call(operation, new Callable<String>() {
+            public String call() throws Exception {
+              started.countDown();
+              release.await();
+              return "ok";
+            }
+          }, 5000);
+        } catch (CalDavException ignored) {
+          // not under test
+        } catch (IOException ignored) {
+          // not under test
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private Callable<String> succeeding() {
+    return new Callable<String>() {
+      public String call() {
+        return "ok";
+      }
+    };
+  }
+
+  private Callable<String> failing() {
+    return new Callable<String>() {
+      public String call() throws Exception {
+        throw new IOException("connection refused");
+      }
+    };
+  }
+
+  private Callable<String> sleeping(final long millis) {
+    return new Callable<String>() {
+      public String call() throws Exception {
+        Thread.sleep(millis);
+        return "ok";
+      }
+    };
+  }
+}
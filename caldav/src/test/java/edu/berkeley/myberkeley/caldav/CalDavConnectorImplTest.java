@@ -43,6 +43,7 @@ import net.fortuna.ical4j.model.property.ProdId;
 import net.fortuna.ical4j.model.property.Status;
 import net.fortuna.ical4j.model.property.Uid;
 import net.fortuna.ical4j.model.property.Version;
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.lang.time.DateUtils;
@@ -297,6 +298,32 @@ public class CalDavConnectorImplTest extends CalDavTests {
 
   }
 
+  @Test
+  public void modifyWithStaleEtag() throws CalDavException, ParseException, URIException {
+    try {
+      CalendarURI uri = this.adminConnector.putCalendar(buildVevent("Created by CalDavTests"));
+      String originalEtag = (uri.getEntityTag() != null) ? uri.getEntityTag() : "\"stale-etag\"";
+      this.adminConnector.modifyCalendar(uri, buildVevent("Concurrent change"));
+
+      uri.setEntityTag(originalEtag);
+      try {
+        this.adminConnector.modifyCalendar(uri, buildVevent("Stale change"));
+        fail("A write based on a stale ETag should be refused");
+      } catch (BadRequestException e) {
+        assertEquals(HttpStatus.SC_PRECONDITION_FAILED, e.getStatusCode());
+      }
+
+      List<CalendarURI> uris = new ArrayList<CalendarURI>();
+      uris.add(new CalendarURI(uri, RANDOM_ETAG));
+      List<CalendarWrapper> calendars = this.adminConnector.getCalendars(uris);
+      assertEquals(1, calendars.size());
+      VEvent vevent = (VEvent) calendars.get(0).getCalendar().getComponent(Component.VEVENT);
+      assertEquals("Concurrent change", vevent.getSummary().getValue());
+    } catch (IOException ioe) {
+      LOGGER.error("Trouble contacting server", ioe);
+    }
+  }
+
   @Test(expected = BadRequestException.class)
   public void modifyNonExistent() throws CalDavException, URIException, ParseException {
     try {
@@ -0,0 +1,68 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CalDavConnectorProviderImplTest extends CalDavTests {
+
+  private CalDavConnectorProviderImpl newProvider() {
+    CalDavConnectorProviderImpl provider = new CalDavConnectorProviderImpl();
+    provider.adminUsername = "admin";
+    provider.adminPassword = "bedework";
+    provider.calDavServerRoot = "http://localhost:8080";
+    return provider;
+  }
+
+  @Test
+  public void noConnectorsAfterShutdown() throws Exception {
+    CalDavConnectorProviderImpl provider = newProvider();
+    provider.getAdminConnector("mtwain").close();
+    provider.shutdown();
+    try {
+      provider.getAdminConnector("mtwain");
+      fail("Expected the shut down provider to refuse connectors");
+    } catch (IOException expected) {
+    }
+    assertNull(provider.getStats().get("transport.leased"));
+  }
+
+  @Test
+  public void transportIsIdleOnceConnectorsAreClosed() throws Exception {
+    CalDavConnectorProviderImpl provider = newProvider();
+    CalDavHttpTransport transport = provider.getTransport();
+    CalDavConnector connector = provider.getAdminConnector("mtwain");
+    assertFalse(transport.awaitIdle(50));
+    connector.close();
+    connector.close();
+    assertTrue(transport.awaitIdle(50));
+    provider.shutdown();
+  }
+
+  @Test
+  public void deactivateShutsDownTheSharedTransport() throws Exception {
+    CalDavConnectorProviderImpl provider = newProvider();
+    CalDavHttpTransport shared = CalDavHttpTransport.getShared();
+    provider.deactivate(null);
+    assertNotSame(shared, CalDavHttpTransport.getShared());
+    CalDavHttpTransport.shutdownShared();
+  }
+}
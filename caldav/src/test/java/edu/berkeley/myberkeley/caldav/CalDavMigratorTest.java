@@ -41,6 +41,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -76,6 +77,7 @@ public class CalDavMigratorTest extends CalDavTests {
     makeMinimalUser(OWNER, adminSession);
     EmbeddedCalDavProvider embeddedCalDavProvider = new EmbeddedCalDavProvider();
     embeddedCalDavProvider.repository = repository;
+    embeddedCalDavProvider.activate(Collections.emptyMap());
 
     adminConnector = calDavConnectorProvider.getAdminConnector(OWNER);
     embeddedCalDav = embeddedCalDavProvider.getAdminConnector(OWNER);
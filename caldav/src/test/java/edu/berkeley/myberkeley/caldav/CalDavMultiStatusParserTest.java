@@ -0,0 +1,136 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CalDavMultiStatusParserTest extends CalDavTests {
+
+  private static final String MULTISTATUS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<D:multistatus xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\">" +
+      "<D:response><D:href>/ucaldav/user/mtwain/calendar/1.ics</D:href>" +
+      "<D:propstat><D:prop><D:getetag>\"" + RANDOM_ETAG + "\"</D:getetag>" +
+      "<C:calendar-data>BEGIN:VCALENDAR\r\nEND:VCALENDAR</C:calendar-data></D:prop>" +
+      "<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>" +
+      "<D:response><D:href>/ucaldav/user/mtwain/calendar/2.ics</D:href>" +
+      "<D:status>HTTP/1.1 404 Not Found</D:status></D:response>" +
+      "<D:response><D:href>/ucaldav/user/mtwain/calendar/3.ics</D:href>" +
+      "<D:propstat><D:prop><D:getetag>\"" + MONTH_AFTER_RANDOM_ETAG + "\"</D:getetag></D:prop>" +
+      "<D:status>HTTP/1.1 200 OK</D:status></D:propstat>" +
+      "<D:propstat><D:prop><C:calendar-data/></D:prop>" +
+      "<D:status>HTTP/1.1 404 Not Found</D:status></D:propstat></D:response>" +
+      "</D:multistatus>";
+
+  @Test
+  public void parse() throws CalDavException, IOException {
+    final List<String> hrefs = new ArrayList<String>();
+    final List<Integer> statuses = new ArrayList<Integer>();
+    final List<String> etags = new ArrayList<String>();
+    final List<String> calendarData = new ArrayList<String>();
+    boolean completed = new CalDavMultiStatusParser().parse(new ByteArrayInputStream(MULTISTATUS.getBytes("UTF-8")),
+        new CalDavMultiStatusParser.ResponseHandler() {
+          public boolean handleResponse(String href, int status, String etag, String data) {
+            hrefs.add(href);
+            statuses.add(status);
+            etags.add(etag);
+            calendarData.add(data);
+            return true;
+          }
+        });
+    assertTrue(completed);
+    assertEquals(3, hrefs.size());
+    assertEquals("/ucaldav/user/mtwain/calendar/1.ics", hrefs.get(0));
+    assertEquals(200, statuses.get(0).intValue());
+    assertEquals("\"" + RANDOM_ETAG + "\"", etags.get(0));
+    assertTrue(calendarData.get(0).startsWith("BEGIN:VCALENDAR"));
+
+    assertEquals(404, statuses.get(1).intValue());
+    assertNull(etags.get(1));
+    assertNull(calendarData.get(1));
+
+    assertEquals(200, statuses.get(2).intValue());
+    assertEquals("\"" + MONTH_AFTER_RANDOM_ETAG + "\"", etags.get(2));
+    assertNull(calendarData.get(2));
+  }
+
+  @Test
+  public void stopEarly() throws CalDavException, IOException {
+    final List<String> hrefs = new ArrayList<String>();
+    boolean completed = new CalDavMultiStatusParser().parse(new ByteArrayInputStream(MULTISTATUS.getBytes("UTF-8")),
+        new CalDavMultiStatusParser.ResponseHandler() {
+          public boolean handleResponse(String href, int status, String etag, String data) {
+            hrefs.add(href);
+            return false;
+          }
+        });
+    assertFalse(completed);
+    assertEquals(1, hrefs.size());
+  }
+
+  @Test
+  public void syncToken() throws CalDavException, IOException {
+    String body = "<D:multistatus xmlns:D=\"DAV:\">" +
+        "<D:response><D:href>/ucaldav/user/mtwain/calendar/gone.ics</D:href>" +
+        "<D:status>HTTP/1.1 404 Not Found</D:status></D:response>" +
+        "<D:sync-token>http://example.com/sync/42</D:sync-token></D:multistatus>";
+    final List<Integer> statuses = new ArrayList<Integer>();
+    CalDavMultiStatusParser parser = new CalDavMultiStatusParser();
+    parser.parse(new ByteArrayInputStream(body.getBytes("UTF-8")), new CalDavMultiStatusParser.ResponseHandler() {
+      public boolean handleResponse(String href, int status, String etag, String data) {
+        statuses.add(status);
+        return true;
+      }
+    });
+    assertEquals(1, statuses.size());
+    assertEquals(404, statuses.get(0).intValue());
+    assertEquals("http://example.com/sync/42", parser.getSyncToken());
+  }
+
+  @Test(expected = CalDavException.class)
+  public void malformed() throws CalDavException, IOException {
+    new CalDavMultiStatusParser().parse(new ByteArrayInputStream("<D:multistatus xmlns:D=\"DAV:\"><D:response>".getBytes("UTF-8")),
+        new CalDavMultiStatusParser.ResponseHandler() {
+          public boolean handleResponse(String href, int status, String etag, String data) {
+            return true;
+          }
+        });
+  }
+
+  @Test
+  public void parseStatusLine() {
+    assertEquals(200, CalDavMultiStatusParser.parseStatusLine("HTTP/1.1 200 OK"));
+    assertEquals(404, CalDavMultiStatusParser.parseStatusLine(" HTTP/1.1 404 Not Found "));
+    assertEquals(0, CalDavMultiStatusParser.parseStatusLine("garbage"));
+  }
+
+  @Test
+  public void parseErrorCondition() throws IOException {
+    assertEquals("valid-sync-token", CalDavMultiStatusParser.parseErrorCondition(new ByteArrayInputStream(
+        "<?xml version=\"1.0\"?><D:error xmlns:D=\"DAV:\">\n  <D:valid-sync-token/>\n</D:error>".getBytes("UTF-8"))));
+    assertNull(CalDavMultiStatusParser.parseErrorCondition(new ByteArrayInputStream(
+        "<D:multistatus xmlns:D=\"DAV:\"/>".getBytes("UTF-8"))));
+    assertNull(CalDavMultiStatusParser.parseErrorCondition(new ByteArrayInputStream(
+        "Service Unavailable".getBytes("UTF-8"))));
+  }
+}
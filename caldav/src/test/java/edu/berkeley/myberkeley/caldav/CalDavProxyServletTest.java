@@ -21,7 +21,10 @@
 package edu.berkeley.myberkeley.caldav;
 
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import edu.berkeley.myberkeley.caldav.api.CalDavConnectorProvider;
 import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalDavUnavailableException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
 import edu.berkeley.myberkeley.caldav.api.CalendarURI;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
 import net.fortuna.ical4j.model.Calendar;
@@ -29,15 +32,18 @@ import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.property.Status;
 import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 import org.sakaiproject.nakamura.api.user.UserConstants;
@@ -47,13 +53,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static org.mockito.Mockito.*;
 
@@ -130,12 +140,201 @@ public class CalDavProxyServletTest extends CalDavTests {
 
     CalendarSearchCriteria criteria = new CalendarSearchCriteria();
     when(connector.searchByDate(criteria)).thenReturn(calendars);
-    this.servlet.handleGet(response, connector, criteria);
+    this.servlet.handleGet(request, response, connector, criteria);
 
   }
 
   @Test
-  public void getCalendarSearchCriteria() throws ServletException, ParseException {
+  public void handleGetWhenServerUnavailable() throws ServletException, IOException, CalDavException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    CalDavConnector connector = mock(CalDavConnector.class);
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    when(connector.searchByDate(criteria)).thenThrow(new CalDavUnavailableException("circuit open", null));
+    this.servlet.handleGet(request, response, connector, criteria);
+    verify(response).sendError(Mockito.eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), Mockito.anyString());
+  }
+
+  @Test
+  public void handleGetPaged() throws IOException, CalDavException, JSONException, URIException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    CalDavConnector connector = mock(CalDavConnector.class);
+    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
+    calendars.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/url1", false), RANDOM_ETAG));
+    calendars.add(new CalendarWrapper(buildVevent("Test 2"), new URI("/url2", false), RANDOM_ETAG));
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setOffset(10);
+    criteria.setLimit(2);
+    when(connector.searchPage(criteria)).thenReturn(new CalendarSearchResult(calendars, 25, 12));
+    this.servlet.handleGet(request, response, connector, criteria);
+    verify(connector, never()).searchByDate(criteria);
+    JSONObject json = new JSONObject(body.toString());
+    assertEquals(2, json.getJSONArray("results").length());
+    assertEquals(25, json.getInt("total"));
+    assertEquals(12, json.getInt("nextOffset"));
+  }
+
+  @Test
+  public void handleGetTasksInOneOperation() throws IOException, CalDavException, JSONException, URIException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    CalDavConnector connector = mock(CalDavConnector.class);
+    List<CalendarWrapper> tasks = new ArrayList<CalendarWrapper>();
+    tasks.add(new CalendarWrapper(buildVTodo("Todo 1"), new URI("/url1", false), RANDOM_ETAG));
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+    criteria.setLimit(1);
+    when(connector.getDashboard(null, criteria)).thenReturn(new CalendarDashboard(null,
+        new CalendarSearchResult(tasks, 3, 1), true));
+    this.servlet.handleGet(request, response, connector, criteria);
+    verify(connector, never()).hasOverdueTasks();
+    verify(connector, never()).searchPage(criteria);
+    JSONObject json = new JSONObject(body.toString());
+    assertEquals(1, json.getJSONArray("results").length());
+    assertEquals(3, json.getInt("total"));
+    assertEquals(1, json.getInt("nextOffset"));
+    assertTrue(json.getBoolean("hasOverdueTasks"));
+  }
+
+  @Test
+  public void handleGetWritesStoredJsonUnchanged() throws IOException, CalDavException, JSONException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    CalDavConnector connector = mock(CalDavConnector.class);
+    String stored = new CalendarWrapper(buildVevent("Test 1"), new URI("/url1", false), RANDOM_ETAG).toJSON().toString();
+    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
+    calendars.add(CalendarWrapper.fromJSONString(stored));
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    when(connector.searchByDate(criteria)).thenReturn(calendars);
+    this.servlet.handleGet(request, response, connector, criteria);
+    assertEquals("{\"results\":[" + stored + "]}", body.toString());
+
+    // Tidy output is indented, and says the same.
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    when(pathInfo.getSelectors()).thenReturn(new String[] {CalDavProxyServlet.TIDY_SELECTOR});
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    StringWriter tidyBody = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(tidyBody));
+    this.servlet.handleGet(request, response, connector, criteria);
+    assertTrue(tidyBody.toString().contains("\n"));
+    assertEquals(new JSONObject(stored).toString(),
+        new JSONObject(tidyBody.toString()).getJSONArray("results").getJSONObject(0).toString());
+  }
+
+  @Test
+  public void handleGetGzipsLargeResponses() throws IOException, CalDavException, JSONException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        compressed.write(b);
+      }
+    });
+    CalDavConnector connector = mock(CalDavConnector.class);
+    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
+    for (int i = 0; i < CalDavProxyServlet.GZIP_MIN_RESULTS; i++) {
+      calendars.add(new CalendarWrapper(buildVevent("Test " + i), new URI("/url" + i, false), RANDOM_ETAG));
+    }
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    when(connector.searchByDate(criteria)).thenReturn(calendars);
+    this.servlet.handleGet(request, response, connector, criteria);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response, never()).getWriter();
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+    JSONObject json = new JSONObject(IOUtils.readFully(in, "utf-8"));
+    assertEquals(CalDavProxyServlet.GZIP_MIN_RESULTS, json.getJSONArray("results").length());
+  }
+
+  @Test
+  public void conditionalGet() throws ServletException, IOException, CalDavException {
+    CalDavConnector connector = mock(CalDavConnector.class);
+    when(connector.getStoreVersion()).thenReturn(1000L);
+    when(connector.searchByDate(Matchers.<CalendarSearchCriteria>any())).thenReturn(new ArrayList<CalendarWrapper>());
+    CalDavConnectorProvider provider = mock(CalDavConnectorProvider.class);
+    when(provider.getAdminConnector("joe")).thenReturn(connector);
+    this.servlet.calDavConnectorProvider = provider;
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn("joe");
+    when(request.getQueryString()).thenReturn("type=VEVENT");
+
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    this.servlet.doGet(request, response);
+    ArgumentCaptor<String> entityTag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(Mockito.eq("ETag"), entityTag.capture());
+
+    when(request.getHeader("If-None-Match")).thenReturn(entityTag.getValue());
+    response = mock(SlingHttpServletResponse.class);
+    this.servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getWriter();
+    verify(connector, times(1)).searchByDate(Matchers.<CalendarSearchCriteria>any());
+    assertEquals(0.5, (Double) this.servlet.getStats().get("notModifiedRatio"), 0.001);
+
+    // A write changes the ETag.
+    when(connector.getStoreVersion()).thenReturn(2000L);
+    response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    this.servlet.doGet(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(connector, times(2)).searchByDate(Matchers.<CalendarSearchCriteria>any());
+  }
+
+  @Test
+  public void handleDashboard() throws IOException, CalDavException, JSONException, URIException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    CalDavConnector connector = mock(CalDavConnector.class);
+    List<CalendarWrapper> events = new ArrayList<CalendarWrapper>();
+    events.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/url1", false), RANDOM_ETAG));
+    List<CalendarWrapper> tasks = new ArrayList<CalendarWrapper>();
+    tasks.add(new CalendarWrapper(buildVTodo("Todo Test 2"), new URI("/url2", false), RANDOM_ETAG));
+    tasks.add(new CalendarWrapper(buildVTodo("Todo Test 3"), new URI("/url3", false), RANDOM_ETAG));
+    CalendarSearchCriteria eventCriteria = new CalendarSearchCriteria();
+    CalendarSearchCriteria taskCriteria = new CalendarSearchCriteria();
+    taskCriteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+    when(connector.getDashboard(eventCriteria, taskCriteria)).thenReturn(new CalendarDashboard(
+        new CalendarSearchResult(events, 1, 1), new CalendarSearchResult(tasks, 2, 2), true));
+    this.servlet.handleDashboard(request, response, connector, eventCriteria, taskCriteria);
+    verify(connector, never()).hasOverdueTasks();
+    JSONObject json = new JSONObject(body.toString());
+    assertEquals(1, json.getJSONObject("events").getJSONArray("results").length());
+    assertEquals(2, json.getJSONObject("tasks").getJSONArray("results").length());
+    assertEquals(2, json.getJSONObject("tasks").getInt("total"));
+    assertTrue(json.getBoolean("hasOverdueTasks"));
+  }
+
+  @Test
+  public void handleSummary() throws IOException, CalDavException, JSONException, URIException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter body = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+    CalDavConnector connector = mock(CalDavConnector.class);
+    CalendarSummary summary = new CalendarSummary();
+    summary.add(new CalendarWrapper(buildOverdueTask("Overdue"), new URI("/url1", false), RANDOM_ETAG));
+    when(connector.getSummary()).thenReturn(summary);
+    this.servlet.handleSummary(request, response, connector);
+    JSONObject json = new JSONObject(body.toString());
+    assertEquals(1, json.getInt(CalendarSummary.COUNTS.tasks.toString()));
+    assertTrue(json.getBoolean("hasOverdueTasks"));
+  }
+
+  @Test
+  public void getCalendarSearchCriteria() throws ServletException, ParseException,
+          CalDavProxyServlet.InvalidParameterException {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
     when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.type.toString())).thenReturn(
             new ContainerRequestParameter("VTODO", "utf-8"));
@@ -154,13 +353,53 @@ public class CalDavProxyServletTest extends CalDavTests {
   }
 
   @Test
-  public void getDefaultSearchCriteria() throws ServletException {
+  public void getPagedSearchCriteria() throws ServletException, CalDavProxyServlet.InvalidParameterException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.offset.toString())).thenReturn(
+            new ContainerRequestParameter("40", "utf-8"));
+    when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.limit.toString())).thenReturn(
+            new ContainerRequestParameter("20", "utf-8"));
+    CalendarSearchCriteria criteria = this.servlet.getCalendarSearchCriteria(request);
+    assertEquals(40, criteria.getOffset());
+    assertEquals(20, criteria.getLimit());
+    assertTrue(criteria.isPaged());
+  }
+
+  @Test(expected = CalDavProxyServlet.InvalidParameterException.class)
+  public void bogusLimit() throws ServletException, CalDavProxyServlet.InvalidParameterException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.limit.toString())).thenReturn(
+            new ContainerRequestParameter("lots", "utf-8"));
+    this.servlet.getCalendarSearchCriteria(request);
+  }
+
+  @Test(expected = CalDavProxyServlet.InvalidParameterException.class)
+  public void negativeOffset() throws ServletException, CalDavProxyServlet.InvalidParameterException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.offset.toString())).thenReturn(
+            new ContainerRequestParameter("-20", "utf-8"));
+    this.servlet.getCalendarSearchCriteria(request);
+  }
+
+  @Test
+  public void bogusOffsetIsBadRequest() throws ServletException, IOException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(request.getRemoteUser()).thenReturn("joe");
+    when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.offset.toString())).thenReturn(
+            new ContainerRequestParameter("abc", "utf-8"));
+    this.servlet.doGet(request, response);
+    verify(response).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST), Mockito.anyString());
+  }
+
+  @Test
+  public void getDefaultSearchCriteria() throws ServletException, CalDavProxyServlet.InvalidParameterException {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
     this.servlet.getCalendarSearchCriteria(request);
   }
 
   @Test(expected = ServletException.class)
-  public void bogusStartDate() throws ServletException {
+  public void bogusStartDate() throws ServletException, CalDavProxyServlet.InvalidParameterException {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
     when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.start_date.toString())).thenReturn(
             new ContainerRequestParameter("not a date", "utf-8"));
@@ -169,7 +408,7 @@ public class CalDavProxyServletTest extends CalDavTests {
   }
 
   @Test(expected = ServletException.class)
-  public void bogusEndDate() throws ServletException {
+  public void bogusEndDate() throws ServletException, CalDavProxyServlet.InvalidParameterException {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
     when(request.getRequestParameter(CalDavProxyServlet.REQUEST_PARAMS.end_date.toString())).thenReturn(
             new ContainerRequestParameter("not a date either", "utf-8"));
@@ -200,13 +439,17 @@ public class CalDavProxyServletTest extends CalDavTests {
     assertNotNull(batch);
 
     CalDavConnector connector = mock(CalDavConnector.class);
-    List<CalendarWrapper> calendars = new ArrayList<CalendarWrapper>();
-    calendars.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/cal1", false), RANDOM_ETAG));
-    calendars.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/cal2", false), RANDOM_ETAG));
-    calendars.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/cal3", false), RANDOM_ETAG));
-    calendars.add(new CalendarWrapper(buildVevent("Test 1"), new URI("/cal4", false), RANDOM_ETAG));
-    when(connector.getCalendars(Matchers.<List<CalendarURI>>any())).thenReturn(calendars);
+    when(connector.patchCalendars(Matchers.<List<CalendarPatch>>any())).thenReturn(new ArrayList<CalendarURI>());
     this.servlet.updateCalendars(request, connector);
 
+    ArgumentCaptor<List> patches = ArgumentCaptor.forClass(List.class);
+    verify(connector).patchCalendars(patches.capture());
+    verify(connector, never()).modifyCalendar(Matchers.<CalendarURI>any(), Matchers.<Calendar>any());
+    assertEquals(4, patches.getValue().size());
+    CalendarPatch first = (CalendarPatch) patches.getValue().get(0);
+    assertEquals("/cal1", first.getUri().toString());
+    assertEquals(Boolean.TRUE, first.getCompleted());
+    assertEquals(Boolean.TRUE, first.getArchived());
+    assertEquals(Boolean.FALSE, first.getRead());
   }
 }
@@ -0,0 +1,65 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+
+public class CalendarCacheTest extends CalDavTests {
+
+  private static final int ENTRY_LENGTH = 100;
+
+  private static final long ENTRY_BYTES = ENTRY_LENGTH * CalendarCache.PARSED_BYTES_PER_CHAR;
+
+  @Test
+  public void hitOnlyAtSameEtag() {
+    CalendarCache cache = new CalendarCache(10 * ENTRY_BYTES);
+    CalendarWrapper wrapper = mock(CalendarWrapper.class);
+    cache.put("/1.ics", RANDOM_ETAG, wrapper, ENTRY_LENGTH);
+    assertSame(wrapper, cache.get("/1.ics", RANDOM_ETAG));
+    assertNull(cache.get("/1.ics", MONTH_AFTER_RANDOM_ETAG));
+    assertNull(cache.get("/1.ics", RANDOM_ETAG));
+    assertEquals(1L, cache.getStats().get("hits"));
+    assertEquals(2L, cache.getStats().get("misses"));
+    assertEquals(0L, cache.getStats().get("bytes"));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    CalendarCache cache = new CalendarCache(2 * ENTRY_BYTES);
+    cache.put("/1.ics", RANDOM_ETAG, mock(CalendarWrapper.class), ENTRY_LENGTH);
+    cache.put("/2.ics", RANDOM_ETAG, mock(CalendarWrapper.class), ENTRY_LENGTH);
+    assertNotNull(cache.get("/1.ics", RANDOM_ETAG));
+    cache.put("/3.ics", RANDOM_ETAG, mock(CalendarWrapper.class), ENTRY_LENGTH);
+    assertNotNull(cache.get("/1.ics", RANDOM_ETAG));
+    assertNull(cache.get("/2.ics", RANDOM_ETAG));
+    assertNotNull(cache.get("/3.ics", RANDOM_ETAG));
+    assertEquals(1L, cache.getStats().get("evictions"));
+    assertEquals(2 * ENTRY_BYTES, cache.getStats().get("bytes"));
+  }
+
+  @Test
+  public void skipsOversizedAndUntaggedEntries() {
+    CalendarCache cache = new CalendarCache(ENTRY_BYTES);
+    cache.put("/big.ics", RANDOM_ETAG, mock(CalendarWrapper.class), 2 * ENTRY_LENGTH);
+    cache.put("/untagged.ics", null, mock(CalendarWrapper.class), ENTRY_LENGTH);
+    assertEquals(0, cache.getStats().get("entries"));
+  }
+}
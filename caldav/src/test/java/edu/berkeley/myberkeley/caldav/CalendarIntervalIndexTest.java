@@ -0,0 +1,97 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Recur;
+import net.fortuna.ical4j.model.property.RRule;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.List;
+
+public class CalendarIntervalIndexTest extends CalDavTests {
+  private static final long DAY = CalendarIntervalIndex.PADDING_MILLIS;
+
+  private CalendarWrapper wrap(Calendar calendar) throws CalDavException, URIException {
+    return new CalendarWrapper(calendar, new URI("/url", false), RANDOM_ETAG);
+  }
+
+  @Test
+  public void onlyOverlappingCandidates() throws CalDavException, URIException {
+    CalendarIntervalIndex index = new CalendarIntervalIndex();
+    CalendarWrapper past = wrap(buildPastEvent("Past"));
+    CalendarWrapper upcoming = wrap(buildVTodo("Upcoming"));
+    index.put("past", past);
+    index.put("upcoming", upcoming);
+
+    long now = System.currentTimeMillis();
+    List<String> candidates = index.getCandidates(now + 2 * DAY, now + 40 * DAY);
+    assertFalse(candidates.contains("past"));
+    candidates = index.getCandidates(past.getStartTime(), past.getStartTime());
+    assertTrue(candidates.contains("past"));
+    assertEquals(2, index.getCandidates(0, Long.MAX_VALUE).size());
+  }
+
+  @Test
+  public void recurringAlwaysCandidates() throws CalDavException, URIException, ParseException {
+    CalendarIntervalIndex index = new CalendarIntervalIndex();
+    Calendar weekly = buildPastEvent("Weekly");
+    weekly.getComponent(Component.VEVENT).getProperties().add(new RRule(new Recur("FREQ=WEEKLY")));
+    index.put("weekly", wrap(weekly));
+    long farFuture = System.currentTimeMillis() + 365 * DAY;
+    assertTrue(index.getCandidates(farFuture, farFuture + DAY).contains("weekly"));
+  }
+
+  @Test
+  public void putReplacesAndRemoveForgets() throws CalDavException, URIException {
+    CalendarIntervalIndex index = new CalendarIntervalIndex();
+    index.put("item", wrap(buildPastEvent("Past")));
+    index.put("item", wrap(buildVTodo("Upcoming")));
+    assertEquals(1, index.size());
+    // The upcoming task is due no earlier than today, so nothing overlaps three days ago or before.
+    assertTrue(index.getCandidates(0, System.currentTimeMillis() - 3 * DAY).isEmpty());
+    index.remove("item");
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void boundsRebuildTheSameIndex() throws CalDavException, URIException, ParseException {
+    CalendarIntervalIndex index = new CalendarIntervalIndex();
+    CalendarWrapper task = wrap(buildOverdueTask("Overdue"));
+    index.put("task", task);
+    Calendar weekly = buildVevent("Weekly");
+    weekly.getComponent(Component.VEVENT).getProperties().add(new RRule(new Recur("FREQ=WEEKLY")));
+    CalendarWrapper weeklyWrapper = wrap(weekly);
+    index.put("weekly", weeklyWrapper);
+
+    CalendarIntervalIndex copy = new CalendarIntervalIndex();
+    long[] taskBounds = CalendarIntervalIndex.getBounds("task", task);
+    copy.put("task", taskBounds[0], taskBounds[1]);
+    assertNull(CalendarIntervalIndex.getBounds("weekly", weeklyWrapper));
+    copy.putUnbounded("weekly");
+    assertEquals(index.size(), copy.size());
+    long now = System.currentTimeMillis();
+    assertEquals(index.getCandidates(now - 30 * DAY, now), copy.getCandidates(now - 30 * DAY, now));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.report.Filter;
+import net.fortuna.ical4j.model.DateTime;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+public class CalendarQueryBuilderTest extends CalDavTests {
+
+  private static final String CALDAV_NAMESPACE = "urn:ietf:params:xml:ns:caldav";
+
+  @Test
+  public void requiredPushedDown() throws ParserConfigurationException {
+    NodeList textMatches = toXml(new CalendarQueryBuilder(true).buildSearchFilter(
+        criteria(CalendarSearchCriteria.MODE.REQUIRED))).getElementsByTagNameNS(CALDAV_NAMESPACE, "text-match");
+    assertEquals(1, textMatches.getLength());
+    Element textMatch = (Element) textMatches.item(0);
+    assertEquals("MyBerkeley-Required", textMatch.getTextContent());
+    assertEquals("", textMatch.getAttribute("negate-condition"));
+    assertEquals("CATEGORIES", ((Element) textMatch.getParentNode()).getAttribute("name"));
+  }
+
+  @Test
+  public void unrequiredNotPushedDown() throws ParserConfigurationException {
+    Element filter = toXml(new CalendarQueryBuilder(true).buildSearchFilter(
+        criteria(CalendarSearchCriteria.MODE.UNREQUIRED)));
+    assertEquals(0, filter.getElementsByTagNameNS(CALDAV_NAMESPACE, "prop-filter").getLength());
+  }
+
+  @Test
+  public void nothingPushedDownWhenDisabled() throws ParserConfigurationException {
+    Element filter = toXml(new CalendarQueryBuilder(false).buildSearchFilter(
+        criteria(CalendarSearchCriteria.MODE.ALL_ARCHIVED)));
+    assertEquals(0, filter.getElementsByTagNameNS(CALDAV_NAMESPACE, "prop-filter").getLength());
+    assertEquals(1, filter.getElementsByTagNameNS(CALDAV_NAMESPACE, "time-range").getLength());
+  }
+
+  @Test
+  public void overdueCalendarDataIsPartial() throws ParserConfigurationException {
+    Document document = newDocument();
+    Element calendarData = new CalendarQueryBuilder(true).buildOverdueCalendarData().toXml(document);
+    assertTrue(calendarData.getElementsByTagNameNS(CALDAV_NAMESPACE, "prop").getLength() > 0);
+    calendarData = new CalendarQueryBuilder(false).buildOverdueCalendarData().toXml(document);
+    assertEquals(0, calendarData.getElementsByTagNameNS(CALDAV_NAMESPACE, "comp").getLength());
+  }
+
+  private CalendarSearchCriteria criteria(CalendarSearchCriteria.MODE mode) {
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setStart(new DateTime(0));
+    criteria.setEnd(new DateTime());
+    criteria.setMode(mode);
+    return criteria;
+  }
+
+  private Element toXml(Filter filter) throws ParserConfigurationException {
+    return filter.toXml(newDocument());
+  }
+
+  private Document newDocument() throws ParserConfigurationException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().newDocument();
+  }
+}
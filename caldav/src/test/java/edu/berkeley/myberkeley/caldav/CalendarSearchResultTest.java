@@ -0,0 +1,74 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+public class CalendarSearchResultTest extends CalDavTests {
+
+  private List<CalendarWrapper> sorted(int count) {
+    List<CalendarWrapper> wrappers = new ArrayList<CalendarWrapper>();
+    for (int i = 0; i < count; i++) {
+      wrappers.add(mock(CalendarWrapper.class));
+    }
+    return wrappers;
+  }
+
+  @Test
+  public void unpagedReturnsEverything() {
+    List<CalendarWrapper> all = sorted(5);
+    CalendarSearchResult result = CalendarSearchResult.page(all, new CalendarSearchCriteria());
+    assertEquals(all, result.getResults());
+    assertEquals(5, result.getTotal());
+    assertEquals(-1, result.getNextOffset());
+  }
+
+  @Test
+  public void pages() {
+    List<CalendarWrapper> all = sorted(25);
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setLimit(10);
+    criteria.setOffset(10);
+    CalendarSearchResult result = CalendarSearchResult.page(all, criteria);
+    assertEquals(all.subList(10, 20), result.getResults());
+    assertEquals(25, result.getTotal());
+    assertEquals(20, result.getNextOffset());
+
+    criteria.setOffset(20);
+    result = CalendarSearchResult.page(all, criteria);
+    assertEquals(all.subList(20, 25), result.getResults());
+    assertEquals(-1, result.getNextOffset());
+  }
+
+  @Test
+  public void offsetPastTheEnd() {
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setLimit(10);
+    criteria.setOffset(100);
+    CalendarSearchResult result = CalendarSearchResult.page(sorted(3), criteria);
+    assertTrue(result.getResults().isEmpty());
+    assertEquals(3, result.getTotal());
+    assertEquals(-1, result.getNextOffset());
+  }
+}
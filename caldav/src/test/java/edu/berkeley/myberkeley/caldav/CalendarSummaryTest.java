@@ -0,0 +1,133 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.property.Status;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.sling.commons.json.JSONException;
+import org.junit.Test;
+
+public class CalendarSummaryTest extends CalDavTests {
+
+  private CalendarWrapper wrap(Calendar calendar) throws CalDavException, URIException {
+    return new CalendarWrapper(calendar, new URI("/url", false), RANDOM_ETAG);
+  }
+
+  @Test
+  public void countsByState() throws CalDavException, URIException {
+    CalendarSummary summary = new CalendarSummary();
+    summary.add(wrap(buildVevent("Event")));
+    CalendarWrapper overdue = wrap(buildOverdueTask("Overdue"));
+    summary.add(overdue);
+    Calendar completed = buildOverdueTask("Completed");
+    completed.getComponent(Component.VTODO).getProperties().remove(Status.VTODO_NEEDS_ACTION);
+    completed.getComponent(Component.VTODO).getProperties().add(Status.VTODO_COMPLETED);
+    summary.add(wrap(completed));
+
+    assertEquals(3, summary.getCount(CalendarSummary.COUNTS.total));
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.events));
+    assertEquals(2, summary.getCount(CalendarSummary.COUNTS.tasks));
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.completed));
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.requiredIncomplete));
+    assertTrue(summary.hasOverdueTasks(System.currentTimeMillis()));
+    assertFalse(summary.hasOverdueTasks(0));
+
+    summary.remove(overdue);
+    assertEquals(0, summary.getCount(CalendarSummary.COUNTS.incomplete));
+    assertFalse(summary.hasOverdueTasks(System.currentTimeMillis()));
+    assertFalse(summary.isStale());
+  }
+
+  @Test
+  public void removingTheEarliestDueTaskMarksStale() throws CalDavException, URIException {
+    CalendarSummary summary = new CalendarSummary();
+    CalendarWrapper first = wrap(buildOverdueTask("First"));
+    CalendarWrapper second = wrap(buildVTodo("Second"));
+    summary.add(first);
+    summary.add(second);
+    // The overdue task is due in the past, the other one today or later.
+    summary.remove(first);
+    assertTrue(summary.isStale());
+    summary.remove(second);
+    assertFalse(summary.isStale());
+    assertEquals(0, summary.getEarliestIncompleteDue());
+  }
+
+  @Test
+  public void replacingKeepsAnUnchangedDueDate() throws CalDavException, URIException, JSONException {
+    CalendarSummary summary = new CalendarSummary();
+    CalendarWrapper first = wrap(buildOverdueTask("First"));
+    summary.add(first);
+    summary.add(wrap(buildVTodo("Second")));
+    long earliest = summary.getEarliestIncompleteDue();
+
+    CalendarWrapper archived = CalendarWrapper.fromJSONString(first.toJSON().toString());
+    CalendarPatch archive = new CalendarPatch(first.getUri());
+    archive.setArchived(true);
+    archive.applyTo(archived);
+    summary.replace(first, archived);
+    assertFalse(summary.isStale());
+    assertEquals(earliest, summary.getEarliestIncompleteDue());
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.archived));
+
+    CalendarWrapper completed = CalendarWrapper.fromJSONString(archived.toJSON().toString());
+    CalendarPatch complete = new CalendarPatch(first.getUri());
+    complete.setCompleted(true);
+    complete.applyTo(completed);
+    summary.replace(archived, completed);
+    assertTrue(summary.isStale());
+  }
+
+  @Test
+  public void entryIsTakenBeforeAnInPlaceChange() throws CalDavException, URIException, JSONException {
+    CalendarSummary summary = new CalendarSummary();
+    CalendarWrapper task = wrap(buildVTodo("Task"));
+    summary.add(task);
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.unread));
+
+    CalendarSummary.Entry previous = CalendarSummary.Entry.of(task);
+    CalendarPatch read = new CalendarPatch(task.getUri());
+    read.setRead(true);
+    read.applyTo(task);
+    summary.replace(previous, CalendarSummary.Entry.of(task));
+    assertEquals(0, summary.getCount(CalendarSummary.COUNTS.unread));
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.incomplete));
+    assertFalse(summary.isStale());
+  }
+
+  @Test
+  public void survivesProperties() throws CalDavException, URIException {
+    CalendarSummary summary = new CalendarSummary();
+    summary.add(wrap(buildOverdueTask("Overdue")));
+    CalendarWrapper archived = wrap(buildVTodo("Archived"));
+    archived.getComponent().getProperties().add(CalDavConnector.MYBERKELEY_ARCHIVED);
+    summary.add(archived);
+    CalendarSummary copy = CalendarSummary.fromProperties(summary.toProperties());
+    for (CalendarSummary.COUNTS count : CalendarSummary.COUNTS.values()) {
+      assertEquals(summary.getCount(count), copy.getCount(count));
+    }
+    assertEquals(summary.getEarliestIncompleteDue(), copy.getEarliestIncompleteDue());
+  }
+}
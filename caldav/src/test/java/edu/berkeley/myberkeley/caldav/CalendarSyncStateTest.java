@@ -0,0 +1,68 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CalendarSyncStateTest extends CalDavTests {
+
+  @Test
+  public void applyChanges() {
+    CalendarSyncState state = new CalendarSyncState();
+    assertNull(state.getSyncToken());
+    Map<String, String> initial = new HashMap<String, String>();
+    initial.put("/1.ics", RANDOM_ETAG);
+    initial.put("/2.ics", RANDOM_ETAG);
+    state.apply("token-1", initial, Collections.<String>emptyList());
+    assertEquals("token-1", state.getSyncToken());
+    assertEquals(2, state.getEtags().size());
+
+    Map<String, String> changed = new HashMap<String, String>();
+    changed.put("/2.ics", MONTH_AFTER_RANDOM_ETAG);
+    changed.put("/3.ics", RANDOM_ETAG);
+    state.apply("token-2", changed, Arrays.asList("/1.ics"));
+    assertEquals("token-2", state.getSyncToken());
+    assertEquals(2, state.getEtags().size());
+    assertFalse(state.getEtags().containsKey("/1.ics"));
+    assertEquals(MONTH_AFTER_RANDOM_ETAG, state.getEtags().get("/2.ics"));
+  }
+
+  @Test
+  public void fullSyncReplacesMembers() {
+    CalendarSyncState state = new CalendarSyncState();
+    state.apply("token-1", Collections.singletonMap("/1.ics", RANDOM_ETAG), Collections.<String>emptyList());
+    state.reset();
+    state.apply("token-2", Collections.singletonMap("/2.ics", RANDOM_ETAG), Collections.<String>emptyList());
+    assertEquals(Collections.singleton("/2.ics"), state.getEtags().keySet());
+  }
+
+  @Test
+  public void storeIsBounded() {
+    CalendarSyncStateStore store = new CalendarSyncStateStore(2);
+    CalendarSyncState first = store.getState("/a/");
+    store.getState("/b/");
+    store.getState("/c/");
+    assertNotSame(first, store.getState("/a/"));
+    assertEquals(2, store.getStats().get("users"));
+  }
+}
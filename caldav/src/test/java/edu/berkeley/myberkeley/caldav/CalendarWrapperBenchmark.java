@@ -0,0 +1,127 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapperCodec;
+import org.apache.commons.httpclient.URI;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures bytes allocated per search result when a stored wrapper is turned back into JSON, with and
+ * without building the ical4j Calendar, and compares the size and decode time of the JSON and
+ * CalendarWrapperCodec storage forms. Relies on the HotSpot per-thread allocation counter. Not run
+ * as part of the build; remove the @Ignore to run it by hand.
+ */
+@Ignore
+public class CalendarWrapperBenchmark extends CalDavTests {
+  private static final int RESULTS = 1000;
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int MEASURED_ROUNDS = 20;
+
+  @Test
+  public void compareAllocationPerResult() throws Exception {
+    List<String> stored = new ArrayList<String>(RESULTS);
+    for (int i = 0; i < RESULTS; i++) {
+      CalendarWrapper wrapper = new CalendarWrapper((i % 2 == 0) ? buildVevent("Benchmark event " + i) :
+          buildVTodo("Benchmark task " + i), new URI("/benchmark/" + i, false), RANDOM_ETAG);
+      stored.add(wrapper.toJSON().toString());
+    }
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      render(stored, true);
+      render(stored, false);
+    }
+    long materializedBytes = 0;
+    long lazyBytes = 0;
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      materializedBytes += render(stored, true);
+      lazyBytes += render(stored, false);
+    }
+    long perMaterialized = materializedBytes / MEASURED_ROUNDS / RESULTS;
+    long perLazy = lazyBytes / MEASURED_ROUNDS / RESULTS;
+    LOGGER.info("Bytes allocated per result: with Calendar {}, from stored JSON {} ({}x)", new Object[] {
+        perMaterialized, perLazy, (perLazy > 0) ? (perMaterialized / perLazy) : "n/a"});
+  }
+
+  @Test
+  public void compareStoredFormats() throws Exception {
+    List<String> json = new ArrayList<String>(RESULTS);
+    List<String> encoded = new ArrayList<String>(RESULTS);
+    long jsonBytes = 0;
+    long encodedBytes = 0;
+    for (int i = 0; i < RESULTS; i++) {
+      CalendarWrapper wrapper = new CalendarWrapper((i % 2 == 0) ? buildVevent("Benchmark event " + i) :
+          buildVTodo("Benchmark task " + i), new URI("/benchmark/" + i, false), RANDOM_ETAG);
+      json.add(wrapper.toJSON().toString());
+      encoded.add(CalendarWrapperCodec.encode(wrapper));
+      jsonBytes += json.get(i).length();
+      encodedBytes += encoded.get(i).length();
+    }
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      decode(json, encoded);
+    }
+    long jsonNanos = 0;
+    long encodedNanos = 0;
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      long[] nanos = decode(json, encoded);
+      jsonNanos += nanos[0];
+      encodedNanos += nanos[1];
+    }
+    LOGGER.info("Stored bytes per item: JSON {}, encoded {}", jsonBytes / RESULTS, encodedBytes / RESULTS);
+    LOGGER.info("Decode ns per item: JSON {}, encoded {}", jsonNanos / MEASURED_ROUNDS / RESULTS,
+        encodedNanos / MEASURED_ROUNDS / RESULTS);
+  }
+
+  private long[] decode(List<String> json, List<String> encoded) throws Exception {
+    long start = System.nanoTime();
+    for (String one : json) {
+      new CalendarWrapper(new JSONObject(one)).isRequired();
+    }
+    long jsonNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (String one : encoded) {
+      CalendarWrapperCodec.decode(one).isRequired();
+    }
+    return new long[] {jsonNanos, System.nanoTime() - start};
+  }
+
+  /**
+   * @return bytes allocated by this thread while rendering every stored wrapper
+   */
+  private long render(List<String> stored, boolean buildCalendar) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (String json : stored) {
+      CalendarWrapper wrapper = new CalendarWrapper(new JSONObject(json));
+      if (buildCalendar) {
+        wrapper.getCalendar();
+      }
+      wrapper.toJSON().toString();
+    }
+    return threads.getThreadAllocatedBytes(threadId) - before;
+  }
+}
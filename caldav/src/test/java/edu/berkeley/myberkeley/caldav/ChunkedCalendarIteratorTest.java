@@ -0,0 +1,138 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+
+public class ChunkedCalendarIteratorTest extends CalDavTests {
+
+  private final List<CalendarURI> uris = new ArrayList<CalendarURI>();
+
+  private final Map<CalendarURI, CalendarWrapper> wrappers = new HashMap<CalendarURI, CalendarWrapper>();
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private void makeUris(int count) {
+    for (int i = 0; i < count; i++) {
+      CalendarURI uri = mock(CalendarURI.class);
+      this.uris.add(uri);
+      this.wrappers.put(uri, mock(CalendarWrapper.class));
+    }
+  }
+
+  private ChunkedCalendarIterator.ChunkLoader loader(final int failOnLoad) {
+    return new ChunkedCalendarIterator.ChunkLoader() {
+      public List<CalendarWrapper> load(List<CalendarURI> chunk) throws CalDavException, IOException {
+        int load = loads.incrementAndGet();
+        if (failOnLoad < 0 || load == failOnLoad) {
+          throw new IOException("Server went away");
+        }
+        List<CalendarWrapper> loaded = new ArrayList<CalendarWrapper>();
+        for (CalendarURI uri : chunk) {
+          loaded.add(wrappers.get(uri));
+        }
+        return loaded;
+      }
+    };
+  }
+
+  private void assertInOrder(Iterator<CalendarWrapper> iterator) {
+    for (CalendarURI uri : this.uris) {
+      assertTrue(iterator.hasNext());
+      assertSame(this.wrappers.get(uri), iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void sequential() {
+    makeUris(25);
+    assertInOrder(new ChunkedCalendarIterator(this.uris, 10, 1, null, loader(0)));
+    assertEquals(3, this.loads.get());
+  }
+
+  @Test
+  public void parallelKeepsOrder() {
+    makeUris(95);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertInOrder(new ChunkedCalendarIterator(this.uris, 10, 4, executor, loader(0)));
+      assertEquals(10, this.loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void empty() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertFalse(new ChunkedCalendarIterator(this.uris, 10, 4, executor, loader(0)).hasNext());
+      assertEquals(0, this.loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void sequentialFailure() {
+    makeUris(25);
+    Iterator<CalendarWrapper> iterator = new ChunkedCalendarIterator(this.uris, 10, 1, null, loader(2));
+    for (int i = 0; i < 10; i++) {
+      iterator.next();
+    }
+    try {
+      iterator.next();
+      fail("Expected the second chunk to fail");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void parallelFailure() {
+    makeUris(25);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Iterator<CalendarWrapper> iterator = new ChunkedCalendarIterator(this.uris, 10, 2, executor, loader(-1));
+      try {
+        iterator.hasNext();
+        fail("Expected a failed chunk to surface");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
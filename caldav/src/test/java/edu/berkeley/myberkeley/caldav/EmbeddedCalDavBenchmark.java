@@ -0,0 +1,101 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import com.google.common.collect.ImmutableMap;
+import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares EmbeddedCalDav's batch read against the old exists-then-get lookup for 10, 100 and 1000
+ * URIs. Not run as part of the build; remove the @Ignore to run it by hand.
+ */
+@Ignore
+public class EmbeddedCalDavBenchmark extends CalDavTests {
+  private static final String OWNER = "benchmarker";
+  private static final int[] SIZES = {10, 100, 1000};
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURED_ROUNDS = 20;
+
+  @Test
+  public void compareBatchWithExistsThenGet() throws Exception {
+    Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    String homePath = LitePersonalUtils.getHomePath(OWNER);
+    contentManager.update(new Content(homePath, ImmutableMap.of("sling:resourceType", (Object) "sakai/user-home")));
+    EmbeddedCalDav calDav = new EmbeddedCalDav(OWNER, session);
+    calDav.ensureCalendarStore();
+
+    List<CalendarURI> allUris = new ArrayList<CalendarURI>();
+    for (int i = 0; i < SIZES[SIZES.length - 1]; i++) {
+      allUris.add(calDav.putCalendar(buildVevent("Benchmark event " + i)));
+    }
+
+    for (int size : SIZES) {
+      List<CalendarURI> uris = allUris.subList(0, size);
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        existsThenGet(contentManager, uris);
+        calDav.fetchCalendars(uris);
+      }
+      long legacyNanos = 0;
+      long batchNanos = 0;
+      for (int i = 0; i < MEASURED_ROUNDS; i++) {
+        long start = System.nanoTime();
+        existsThenGet(contentManager, uris);
+        legacyNanos += System.nanoTime() - start;
+        start = System.nanoTime();
+        calDav.fetchCalendars(uris);
+        batchNanos += System.nanoTime() - start;
+      }
+      LOGGER.info("{} URIs: exists-then-get {} us, batch {} us", new Object[] {size,
+          legacyNanos / MEASURED_ROUNDS / 1000, batchNanos / MEASURED_ROUNDS / 1000});
+    }
+  }
+
+  /**
+   * The per-item lookup getCalendars used before the batch read.
+   */
+  private List<CalendarWrapper> existsThenGet(ContentManager contentManager, List<CalendarURI> uris)
+      throws CalDavException, IOException, StorageClientException, AccessDeniedException {
+    List<CalendarWrapper> wrappers = new ArrayList<CalendarWrapper>();
+    for (CalendarURI uri : uris) {
+      String contentPath = EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath());
+      if (contentManager.exists(contentPath)) {
+        Content content = contentManager.get(contentPath);
+        if (content != null) {
+          wrappers.add(new CalendarWrapper(content));
+        }
+      }
+    }
+    return wrappers;
+  }
+}
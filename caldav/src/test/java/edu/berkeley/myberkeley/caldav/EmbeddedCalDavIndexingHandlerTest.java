@@ -0,0 +1,130 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import com.google.common.collect.ImmutableMap;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.Recur;
+import net.fortuna.ical4j.model.property.DtStart;
+import net.fortuna.ical4j.model.property.RRule;
+import net.fortuna.ical4j.model.property.Location;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+
+public class EmbeddedCalDavIndexingHandlerTest extends CalDavTests {
+  private static final long DAY = 24L * 60 * 60 * 1000;
+  private static final String OWNER = "sclemens";
+
+  private EmbeddedCalDav newCalDav() throws Exception {
+    Session adminSession = new BaseMemoryRepository().getRepository().loginAdministrative();
+    adminSession.getContentManager().update(new Content(LitePersonalUtils.getHomePath(OWNER),
+        ImmutableMap.of("sling:resourceType", (Object) "sakai/user-home")));
+    EmbeddedCalDav calDav = new EmbeddedCalDav(OWNER, adminSession);
+    calDav.ensureCalendarStore();
+    return calDav;
+  }
+
+  private Content getContent(EmbeddedCalDav calDav, CalendarURI uri) throws Exception {
+    ContentManager contentManager = calDav.session.getContentManager();
+    return contentManager.get(EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath()));
+  }
+
+  @Test
+  public void documentHasStoredFieldsAndOnlyTextProperties() throws Exception {
+    EmbeddedCalDav calDav = newCalDav();
+    Calendar calendar = buildVevent("Office hours");
+    Component vevent = calendar.getComponent(Component.VEVENT);
+    vevent.getProperties().add(new Location("Sproul Hall"));
+    CalendarURI uri = calDav.putCalendar(calendar);
+
+    SolrInputDocument doc = new EmbeddedCalDavIndexingHandler().getSolrInputFromContent(getContent(calDav, uri));
+    String content = (String) doc.getFieldValue(EmbeddedCalDavIndexingHandler.INDEXED_FIELDS.content.toString());
+    assertTrue(content.contains("Office hours"));
+    assertTrue(content.contains("Sproul Hall"));
+    assertFalse(content.contains("BEGIN:"));
+    assertFalse(content.contains("CATEGORIES"));
+    assertEquals("VEVENT", doc.getFieldValue(EmbeddedCalDavIndexingHandler.COMPONENT_FIELD));
+    assertEquals(OWNER, doc.getFieldValue(EmbeddedCalDavIndexingHandler.OWNER_FIELD));
+    assertEquals(vevent.getProperty(Property.UID).getValue(), doc.getFieldValue(IndexingHandler.FIELD_ID));
+    Date start = ((DtStart) vevent.getProperty(Property.DTSTART)).getDate();
+    assertEquals(start, doc.getFieldValue(EmbeddedCalDavIndexingHandler.INDEXED_FIELDS.dtstart_tdt.toString()));
+    assertEquals(start, doc.getFieldValue(EmbeddedCalDavIndexingHandler.OCCURRENCES_FIELD));
+    assertEquals(Boolean.FALSE, doc.getFieldValue(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD));
+  }
+
+  @Test
+  public void rewriteIsIndexedWithTheNewStoreVersion() throws Exception {
+    EmbeddedCalDav calDav = newCalDav();
+    Calendar calendar = buildVevent("Office hours");
+    CalendarURI uri = calDav.putCalendar(calendar);
+    EmbeddedCalDavIndexingHandler handler = new EmbeddedCalDavIndexingHandler();
+    Object version = handler.getSolrInputFromContent(getContent(calDav, uri))
+        .getFieldValue(EmbeddedCalDavIndexingHandler.STORED_VERSION_FIELD);
+
+    // Rewritten as it was, under a new store version which Solr must get.
+    calDav.modifyCalendar(uri, calendar);
+    Object rewritten = handler.getSolrInputFromContent(getContent(calDav, uri))
+        .getFieldValue(EmbeddedCalDavIndexingHandler.STORED_VERSION_FIELD);
+    assertFalse(version.equals(rewritten));
+  }
+
+  @Test
+  public void singleEventHasItsStart() {
+    Component vevent = buildVevent("Single").getComponent(Component.VEVENT);
+    long now = System.currentTimeMillis();
+    List<Date> occurrences = EmbeddedCalDavIndexingHandler.getOccurrences(vevent, now - DAY, now + DAY);
+    assertEquals(1, occurrences.size());
+    assertEquals(((DtStart) vevent.getProperty(Property.DTSTART)).getDate(), occurrences.get(0));
+  }
+
+  @Test
+  public void recurringEventExpandedWithinHorizon() throws ParseException {
+    Calendar weekly = buildPastEvent("Weekly");
+    Component vevent = weekly.getComponent(Component.VEVENT);
+    vevent.getProperties().add(new RRule(new Recur("FREQ=WEEKLY")));
+    long now = System.currentTimeMillis();
+    List<Date> occurrences = EmbeddedCalDavIndexingHandler.getOccurrences(vevent, now, now + 70 * DAY);
+    assertTrue(occurrences.size() >= 9 && occurrences.size() <= 11);
+    for (Date occurrence : occurrences) {
+      assertTrue(occurrence.getTime() >= now - DAY && occurrence.getTime() <= now + 70 * DAY);
+    }
+  }
+
+  @Test
+  public void expansionIsCapped() throws ParseException {
+    Calendar hourly = buildPastEvent("Hourly");
+    Component vevent = hourly.getComponent(Component.VEVENT);
+    vevent.getProperties().add(new RRule(new Recur("FREQ=HOURLY")));
+    long now = System.currentTimeMillis();
+    List<Date> occurrences = EmbeddedCalDavIndexingHandler.getOccurrences(vevent, now, now + 365 * DAY);
+    assertEquals(EmbeddedCalDavIndexingHandler.MAX_OCCURRENCES, occurrences.size());
+  }
+}
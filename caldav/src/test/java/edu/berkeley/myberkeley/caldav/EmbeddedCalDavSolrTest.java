@@ -0,0 +1,299 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import com.google.common.collect.ImmutableMap;
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Recur;
+import net.fortuna.ical4j.model.property.RRule;
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EmbeddedCalDavSolrTest extends CalDavTests {
+  private static final String OWNER = "mtwain";
+
+  private EmbeddedCalDavSolr calDav;
+
+  private ContentManager contentManager;
+
+  private final SolrDocumentList results = new SolrDocumentList();
+
+  private SolrServer solrServer;
+
+  private QueryResponse queryResponse;
+
+  @Before
+  public void setup() throws Exception {
+    Session adminSession = new BaseMemoryRepository().getRepository().loginAdministrative();
+    this.contentManager = adminSession.getContentManager();
+    this.contentManager.update(new Content(LitePersonalUtils.getHomePath(OWNER),
+        ImmutableMap.of("sling:resourceType", (Object) "sakai/user-home")));
+    this.solrServer = mock(SolrServer.class);
+    this.queryResponse = mock(QueryResponse.class);
+    when(this.queryResponse.getResults()).thenReturn(this.results);
+    when(this.solrServer.query(Matchers.<SolrParams>any())).thenReturn(this.queryResponse);
+    SolrServerService solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(this.solrServer);
+    this.calDav = new EmbeddedCalDavSolr(OWNER, adminSession, solrServerService);
+    this.calDav.ensureCalendarStore();
+  }
+
+  private SolrDocument indexedDocument(CalendarURI uri, String path) throws Exception {
+    Content content = this.contentManager.get(EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath()));
+    SolrDocument doc = new SolrDocument();
+    doc.setField("path", path);
+    doc.setField(EmbeddedCalDavIndexingHandler.STORED_WRAPPER_FIELD, new CalendarWrapper(content).toJSON().toString());
+    doc.setField(EmbeddedCalDavIndexingHandler.STORED_VERSION_FIELD, EmbeddedCalDav.getStoreVersion(content));
+    return doc;
+  }
+
+  private CalendarSearchCriteria wideCriteria() {
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setStart(new DateTime(0));
+    criteria.setEnd(new DateTime(DateUtils.addDays(new Date(), 60)));
+    return criteria;
+  }
+
+  @Test
+  public void storeVersionAdvancesOnWrite() throws Exception {
+    long before = this.calDav.getStoreVersion();
+    CalendarURI uri = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    long afterPut = this.calDav.getStoreVersion();
+    assertTrue(afterPut > before);
+    this.calDav.deleteCalendar(uri);
+    assertTrue(this.calDav.getStoreVersion() > afterPut);
+  }
+
+  @Test
+  public void currentDocumentsNeedNoContentRead() throws Exception {
+    CalendarURI uri = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    // Point the document at nothing, so that a content read would drop it.
+    this.results.add(indexedDocument(uri, "a:" + OWNER + "/nowhere"));
+    List<CalendarWrapper> found = this.calDav.internalFetchByDate(wideCriteria());
+    assertEquals(1, found.size());
+    assertEquals(uri, found.get(0).getUri());
+  }
+
+  @Test
+  public void staleDocumentsAreCorrectedByRecentWrites() throws Exception {
+    this.calDav.setRecentWrites(new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES));
+    CalendarURI uri = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    // Indexed at the version of the put, so the recent write needs no overlay.
+    this.results.add(indexedDocument(uri, "a:" + OWNER + "/nowhere"));
+    assertEquals(1, this.calDav.internalFetchByDate(wideCriteria()).size());
+    assertEquals(0L, this.calDav.recentWrites.getStats().get("replaced"));
+
+    this.calDav.deleteCalendar(uri);
+    List<CalendarWrapper> found = this.calDav.internalFetchByDate(wideCriteria());
+    assertTrue(found.isEmpty());
+  }
+
+  @Test
+  public void documentsWithoutStoredWrapperFallBackToContent() throws Exception {
+    CalendarURI uri = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    SolrDocument doc = new SolrDocument();
+    doc.setField("path", EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath()));
+    this.results.add(doc);
+    List<CalendarWrapper> found = this.calDav.internalFetchByDate(wideCriteria());
+    assertEquals(1, found.size());
+    assertEquals(uri, found.get(0).getUri());
+  }
+
+  @Test
+  public void recentWritesShowBeforeTheIndexCatchesUp() throws Exception {
+    this.calDav.setRecentWrites(new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES));
+    CalendarURI deleted = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    this.results.add(indexedDocument(deleted, "a:" + OWNER + "/nowhere"));
+    this.calDav.deleteCalendar(deleted);
+    CalendarURI created = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    List<CalendarWrapper> found = this.calDav.internalFetchByDate(wideCriteria());
+    assertEquals(1, found.size());
+    assertEquals(created, found.get(0).getUri());
+  }
+
+  @Test
+  public void pagesAreSortedAndSlicedBySolr() throws Exception {
+    CalendarURI uri = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    this.results.add(indexedDocument(uri, "a:" + OWNER + "/nowhere"));
+    this.results.setNumFound(31);
+    CalendarSearchCriteria criteria = wideCriteria();
+    criteria.setSort(CalendarSearchCriteria.SORT.DATE_DESC);
+    criteria.setOffset(30);
+    criteria.setLimit(10);
+    CalendarSearchResult page = this.calDav.searchPage(criteria);
+    assertEquals(1, page.getResults().size());
+    assertEquals(31, page.getTotal());
+    assertEquals(-1, page.getNextOffset());
+
+    ArgumentCaptor<SolrParams> query = ArgumentCaptor.forClass(SolrParams.class);
+    verify(this.solrServer).query(query.capture());
+    assertEquals("30", query.getValue().get(CommonParams.START));
+    assertEquals("10", query.getValue().get(CommonParams.ROWS));
+    assertTrue(query.getValue().get(CommonParams.SORT).startsWith("dtstart_tdt desc"));
+  }
+
+  @Test
+  public void recurringEventIsFoundByALaterOccurrence() throws Exception {
+    Calendar weekly = buildPastEvent("Weekly section");
+    weekly.getComponent(Component.VEVENT).getProperties().add(new RRule(new Recur("FREQ=WEEKLY")));
+    CalendarURI uri = this.calDav.putCalendar(weekly);
+    Content content = this.contentManager.get(EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath()));
+    final SolrInputDocument indexed = new EmbeddedCalDavIndexingHandler().getSolrInputFromContent(content);
+    SolrDocumentList matching = new SolrDocumentList();
+    matching.add(indexedDocument(uri, "a:" + OWNER + "/nowhere"));
+    final QueryResponse matchingResponse = mock(QueryResponse.class);
+    when(matchingResponse.getResults()).thenReturn(matching);
+    final QueryResponse emptyResponse = mock(QueryResponse.class);
+    when(emptyResponse.getResults()).thenReturn(new SolrDocumentList());
+    // Stands in for Solr: match the document if an indexed occurrence is in the queried range.
+    when(this.solrServer.query(Matchers.<SolrParams>any())).thenAnswer(new Answer<QueryResponse>() {
+      public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+        String q = ((SolrParams) invocation.getArguments()[0]).get(CommonParams.Q);
+        Matcher range = Pattern.compile(Pattern.quote(EmbeddedCalDavIndexingHandler.OCCURRENCES_FIELD) +
+            ":\\[(\\S+) TO (\\S+)\\]").matcher(q);
+        if (range.find()) {
+          SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+          format.setTimeZone(TimeZone.getTimeZone("UTC"));
+          Date from = format.parse(range.group(1));
+          Date to = format.parse(range.group(2));
+          for (Object occurrence : indexed.getFieldValues(EmbeddedCalDavIndexingHandler.OCCURRENCES_FIELD)) {
+            if (!((Date) occurrence).before(from) && !((Date) occurrence).after(to)) {
+              return matchingResponse;
+            }
+          }
+        }
+        return emptyResponse;
+      }
+    });
+
+    // The first instance is in the past; later weekly ones are in the next two weeks.
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setStart(new DateTime(new Date()));
+    criteria.setEnd(new DateTime(DateUtils.addDays(new Date(), 14)));
+    List<CalendarWrapper> found = this.calDav.internalFetchByDate(criteria);
+    assertEquals(1, found.size());
+    assertEquals(uri, found.get(0).getUri());
+  }
+
+  @Test
+  public void structuredQueriesUseFilterQueries() {
+    CalendarSearchCriteria criteria = wideCriteria();
+    criteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+    criteria.setMode(CalendarSearchCriteria.MODE.REQUIRED);
+    String query = this.calDav.buildSolrQuery(criteria).getQuery();
+    assertTrue(query.contains("(content:\"CATEGORIES:MyBerkeley-Required\" OR " +
+        EmbeddedCalDavIndexingHandler.REQUIRED_FIELD + ":true)"));
+    assertTrue(query.contains("-" + EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":true"));
+    assertTrue(query.contains(EmbeddedCalDavIndexingHandler.COMPONENT_FIELD + ":VTODO"));
+    assertNull(this.calDav.buildSolrQuery(criteria).getFilterQueries());
+
+    this.calDav.setStructuredQueries(true);
+    SolrQuery solrQuery = this.calDav.buildSolrQuery(criteria);
+    assertTrue(solrQuery.getQuery().startsWith("(" + EmbeddedCalDavIndexingHandler.OCCURRENCES_FIELD + ":["));
+    assertTrue(solrQuery.getQuery().contains(" OR dtstart_tdt:["));
+    List<String> filters = Arrays.asList(solrQuery.getFilterQueries());
+    assertTrue(filters.contains(EmbeddedCalDavIndexingHandler.OWNER_FIELD + ":" + OWNER));
+    assertTrue(filters.contains(EmbeddedCalDavIndexingHandler.COMPONENT_FIELD + ":VTODO"));
+    assertTrue(filters.contains(EmbeddedCalDavIndexingHandler.REQUIRED_FIELD + ":true"));
+    assertTrue(filters.contains(EmbeddedCalDavIndexingHandler.ARCHIVED_FIELD + ":false"));
+  }
+
+  @Test
+  public void dashboardSectionsArePagedBySolr() throws Exception {
+    CalendarURI event = this.calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    CalendarURI task = this.calDav.putCalendar(buildVTodo("Created by CalDavTests"));
+    this.results.add(indexedDocument(event, "a:" + OWNER + "/nowhere"));
+    this.results.setNumFound(1);
+    SolrDocumentList taskResults = new SolrDocumentList();
+    taskResults.add(indexedDocument(task, "a:" + OWNER + "/nowhere"));
+    taskResults.setNumFound(12);
+    QueryResponse taskResponse = mock(QueryResponse.class);
+    when(taskResponse.getResults()).thenReturn(taskResults);
+    when(taskResponse.getFacetQuery()).thenReturn(ImmutableMap.of(
+        "{!ex=dashboard}due_tdt:[* TO NOW] AND " + EmbeddedCalDavIndexingHandler.COMPLETED_FIELD + ":false", 3));
+    when(this.solrServer.query(Matchers.<SolrParams>any())).thenReturn(this.queryResponse, taskResponse);
+    this.calDav.setStructuredQueries(true);
+    CalendarSearchCriteria eventCriteria = wideCriteria();
+    eventCriteria.setLimit(5);
+    CalendarSearchCriteria taskCriteria = wideCriteria();
+    taskCriteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+    taskCriteria.setOffset(10);
+    taskCriteria.setLimit(5);
+
+    ArgumentCaptor<SolrParams> query = ArgumentCaptor.forClass(SolrParams.class);
+    CalendarDashboard dashboard = this.calDav.getDashboard(eventCriteria, taskCriteria);
+    verify(this.solrServer, times(2)).query(query.capture());
+
+    assertEquals(1, dashboard.getEvents().getResults().size());
+    assertEquals(event, dashboard.getEvents().getResults().get(0).getUri());
+    assertEquals(1, dashboard.getTasks().getResults().size());
+    assertEquals(task, dashboard.getTasks().getResults().get(0).getUri());
+    assertEquals(12, dashboard.getTasks().getTotal());
+    assertTrue(dashboard.hasOverdueTasks());
+
+    SolrParams eventQuery = query.getAllValues().get(0);
+    assertEquals("5", eventQuery.get(CommonParams.ROWS));
+    assertNull(eventQuery.getParams(FacetParams.FACET_QUERY));
+    SolrParams taskQuery = query.getAllValues().get(1);
+    assertEquals("10", taskQuery.get(CommonParams.START));
+    assertEquals("5", taskQuery.get(CommonParams.ROWS));
+    assertTrue(taskQuery.get(CommonParams.SORT).startsWith("due_tdt asc"));
+    String[] facetQueries = taskQuery.getParams(FacetParams.FACET_QUERY);
+    assertEquals(1, facetQueries.length);
+    assertTrue(facetQueries[0].startsWith("{!ex=dashboard}"));
+  }
+}
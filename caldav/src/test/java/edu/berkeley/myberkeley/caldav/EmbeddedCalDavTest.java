@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableMap;
 import edu.berkeley.myberkeley.caldav.api.BadRequestException;
 import edu.berkeley.myberkeley.caldav.api.CalDavConnector;
 import edu.berkeley.myberkeley.caldav.api.CalDavException;
+import edu.berkeley.myberkeley.caldav.api.CalendarPatch;
 import edu.berkeley.myberkeley.caldav.api.CalendarURI;
 import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
 import net.fortuna.ical4j.data.CalendarBuilder;
@@ -61,6 +62,8 @@ import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
@@ -139,6 +142,221 @@ public class EmbeddedCalDavTest extends CalDavTests {
     assertEquals("a:" + segment, EmbeddedCalDav.calResourcePathToStoragePath(resourcePath));
   }
 
+  @Test
+  public void ownerFromStoragePath() {
+    assertEquals("joe", EmbeddedCalDavIndexingHandler.getOwner("a:joe/_myberkeley_calstore/SOMEUUID"));
+    assertNull(EmbeddedCalDavIndexingHandler.getOwner("/var/search/SOMETHING"));
+  }
+
+  @Test
+  public void reindexTouchesOnlyOlderFormats() throws CalDavException, IOException, StorageClientException,
+      AccessDeniedException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    CalendarURI uri = calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    assertEquals(0, calDav.reindex(EmbeddedCalDavIndexingHandler.INDEX_FORMAT));
+
+    ContentManager contentManager = repository.loginAdministrative().getContentManager();
+    Content content = contentManager.get(EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath()));
+    content.removeProperty(EmbeddedCalDav.INDEX_FORMAT_PROPERTY);
+    contentManager.update(content);
+    assertEquals(1, calDav.reindex(EmbeddedCalDavIndexingHandler.INDEX_FORMAT));
+    assertEquals(0, calDav.reindex(EmbeddedCalDavIndexingHandler.INDEX_FORMAT));
+  }
+
+  @Test
+  public void summaryFollowsWrites() throws CalDavException, IOException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    assertEquals(0, calDav.getSummary().getCount(CalendarSummary.COUNTS.total));
+    calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    CalendarURI task = calDav.putCalendar(buildOverdueTask("Overdue test task"));
+    CalendarSummary summary = calDav.getSummary();
+    assertEquals(2, summary.getCount(CalendarSummary.COUNTS.total));
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.requiredIncomplete));
+    assertTrue(summary.hasOverdueTasks(System.currentTimeMillis()));
+
+    Calendar archived = calDav.getCalendars(Collections.singletonList(task)).get(0).getCalendar();
+    archived.getComponent(Component.VTODO).getProperties().add(CalDavConnector.MYBERKELEY_ARCHIVED);
+    calDav.modifyCalendar(task, archived);
+    summary = calDav.getSummary();
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.archived));
+    assertEquals(0, summary.getCount(CalendarSummary.COUNTS.requiredIncomplete));
+
+    calDav.deleteCalendar(task);
+    // As from a double-submitted delete; the summary is only adjusted once.
+    calDav.deleteCalendar(task);
+    summary = calDav.getSummary();
+    assertEquals(1, summary.getCount(CalendarSummary.COUNTS.total));
+    assertFalse(summary.hasOverdueTasks(System.currentTimeMillis()));
+    CalendarSummary rebuilt = calDav.rebuildSummary();
+    for (CalendarSummary.COUNTS count : CalendarSummary.COUNTS.values()) {
+      assertEquals(rebuilt.getCount(count), summary.getCount(count));
+    }
+  }
+
+  @Test
+  public void missingSummaryIsBuiltByMaintenanceOnly() throws CalDavException, IOException, StorageClientException,
+      AccessDeniedException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    ContentManager contentManager = repository.loginAdministrative().getContentManager();
+    contentManager.delete(calDav.summaryPath);
+    calDav.putCalendar(buildOverdueTask("Overdue test task"));
+
+    assertEquals(2, calDav.getSummary().getCount(CalendarSummary.COUNTS.total));
+    assertFalse(contentManager.exists(calDav.summaryPath));
+    assertTrue(calDav.ensureSummary());
+    assertTrue(contentManager.exists(calDav.summaryPath));
+    assertFalse(calDav.ensureSummary());
+    assertTrue(calDav.getSummary().hasOverdueTasks(System.currentTimeMillis()));
+  }
+
+  @Test
+  public void patchCalendarsSetsOnlyChangedFlags() throws CalDavException, IOException, StorageClientException,
+      AccessDeniedException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    CalendarURI event = calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    CalendarURI task = calDav.putCalendar(buildOverdueTask("Overdue test task"));
+    CalendarURI missing = new CalendarURI(new URI(task.toString().replace(".ics", "-gone.ics"), false), RANDOM_ETAG);
+    assertEquals(1, calDav.getSummary().getCount(CalendarSummary.COUNTS.requiredIncomplete));
+    long versionBefore = calDav.getStoreVersion();
+
+    CalendarPatch completeTask = new CalendarPatch(task);
+    completeTask.setCompleted(true);
+    completeTask.setRead(true);
+    CalendarPatch readEvent = new CalendarPatch(event);
+    readEvent.setRead(false);
+    List<CalendarURI> patched = calDav.patchCalendars(Arrays.asList(completeTask, readEvent, new CalendarPatch(missing)));
+    assertEquals(1, patched.size());
+    assertEquals(task.toString(), patched.get(0).toString());
+    assertTrue(calDav.getStoreVersion() > versionBefore);
+
+    CalendarWrapper patchedTask = calDav.getCalendars(Collections.singletonList(task)).get(0);
+    assertFalse(task.getEtag().equals(patchedTask.getEtag()));
+    assertEquals(patched.get(0).getEtag(), patchedTask.getEtag());
+    assertTrue(patchedTask.isCompleted());
+    assertTrue(patchedTask.isRead());
+    assertTrue(patchedTask.isRequired());
+    assertEquals("Overdue test task", patchedTask.getSummary());
+    CalendarSummary summary = calDav.getSummary();
+    assertEquals(0, summary.getCount(CalendarSummary.COUNTS.requiredIncomplete));
+    assertFalse(summary.hasOverdueTasks(System.currentTimeMillis()));
+    CalendarSummary rebuilt = calDav.rebuildSummary();
+    for (CalendarSummary.COUNTS count : CalendarSummary.COUNTS.values()) {
+      assertEquals(rebuilt.getCount(count), summary.getCount(count));
+    }
+
+    // Nothing left to change.
+    long versionAfter = calDav.getStoreVersion();
+    assertTrue(calDav.patchCalendars(Collections.singletonList(completeTask)).isEmpty());
+    assertEquals(versionAfter, calDav.getStoreVersion());
+  }
+
+  @Test
+  public void knownStoreIsRecreatedIfRemoved() throws CalDavException, IOException, StorageClientException,
+      AccessDeniedException {
+    Session adminSession = repository.loginAdministrative();
+    EmbeddedCalDav calDav = new EmbeddedCalDav(OWNER, adminSession);
+    KnownStoreCache knownStores = new KnownStoreCache(10);
+    calDav.setKnownStores(knownStores);
+    calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    calDav.putCalendar(buildVevent("Created by CalDavTests"));
+    assertEquals(1L, knownStores.getStats().get("misses"));
+    assertEquals(1L, knownStores.getStats().get("hits"));
+
+    adminSession.getContentManager().delete(calDav.storePath);
+    calDav.putCalendar(buildOverdueTask("Overdue test task"));
+    assertTrue(adminSession.getContentManager().exists(calDav.storePath));
+    assertEquals(1, calDav.getSummary().getCount(CalendarSummary.COUNTS.requiredIncomplete));
+  }
+
+  @Test
+  public void recodeRewritesLegacyJson() throws CalDavException, IOException, JSONException, StorageClientException,
+      AccessDeniedException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    CalendarURI uri = calDav.putCalendar(buildVTodo("Created by CalDavTests"));
+    CalendarWrapper written = calDav.getCalendars(Collections.singletonList(uri)).get(0);
+
+    ContentManager contentManager = repository.loginAdministrative().getContentManager();
+    String path = EmbeddedCalDav.calResourcePathToStoragePath(uri.getPath());
+    Content content = contentManager.get(path);
+    assertFalse(content.hasProperty(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapper.toString()));
+    content.removeProperty(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapperData.toString());
+    content.setProperty(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapper.toString(), written.toJSON().toString());
+    contentManager.update(content);
+    assertEquals(written, calDav.getCalendars(Collections.singletonList(uri)).get(0));
+
+    assertEquals(1, calDav.recode(10, 0));
+    assertEquals(0, calDav.recode(10, 0));
+    content = contentManager.get(path);
+    assertTrue(content.hasProperty(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapperData.toString()));
+    assertFalse(content.hasProperty(EmbeddedCalDav.JSON_PROPERTIES.calendarWrapper.toString()));
+    assertEquals(written, calDav.getCalendars(Collections.singletonList(uri)).get(0));
+  }
+
+  @Test
+  public void timeIndexFollowsWrites() throws CalDavException, IOException, StorageClientException,
+      AccessDeniedException {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    CalendarURI past = calDav.putCalendar(buildPastEvent("Past event"));
+    CalendarURI upcoming = calDav.putCalendar(buildVevent("Upcoming event"));
+    assertEquals(2, calDav.getTimeIndex().size());
+
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setStart(new DateTime(DateUtils.addDays(new java.util.Date(), -30)));
+    criteria.setEnd(new DateTime(DateUtils.addDays(new java.util.Date(), -1)));
+    List<CalendarWrapper> found = calDav.searchByDate(criteria);
+    assertEquals(1, found.size());
+    assertEquals(past.toString(), found.get(0).getUri().toString());
+
+    calDav.deleteCalendar(past);
+    assertEquals(1, calDav.getTimeIndex().size());
+    assertTrue(calDav.searchByDate(criteria).isEmpty());
+
+    // A store created before the time index existed is searched in full, and only maintenance builds one.
+    ContentManager contentManager = repository.loginAdministrative().getContentManager();
+    contentManager.delete(calDav.timeIndexPath);
+    criteria.setEnd(new DateTime(DateUtils.addDays(new java.util.Date(), 30)));
+    assertEquals(1, calDav.searchByDate(criteria).size());
+    assertEquals(upcoming.toString(), calDav.searchByDate(criteria).get(0).getUri().toString());
+    assertNull(calDav.getTimeIndex());
+    assertFalse(contentManager.exists(calDav.timeIndexPath));
+    assertEquals(1, calDav.rebuildTimeIndex().size());
+    assertEquals(1, calDav.getTimeIndex().size());
+    assertEquals(1, calDav.searchByDate(criteria).size());
+  }
+
+  @Test
+  public void timeIndexIsReusedUntilTheStoreChanges() throws Exception {
+    EmbeddedCalDav calDav = (EmbeddedCalDav) this.adminConnector;
+    calDav.setTimeIndexes(new TimeIndexCache(TimeIndexCache.DEFAULT_MAX_ENTRIES));
+    calDav.putCalendar(buildVevent("Upcoming event"));
+    CalendarIntervalIndex loaded = calDav.getTimeIndex();
+    assertSame(loaded, calDav.getTimeIndex());
+
+    calDav.putCalendar(buildPastEvent("Past event"));
+    CalendarIntervalIndex reloaded = calDav.getTimeIndex();
+    assertNotSame(loaded, reloaded);
+    assertEquals(2, reloaded.size());
+
+    calDav.rebuildTimeIndex();
+    assertNotSame(reloaded, calDav.getTimeIndex());
+  }
+
+  @Test
+  public void fetchCalendarsReportsMissing() throws CalDavException, IOException, ParseException {
+    CalendarURI stored = this.adminConnector.putCalendar(buildVevent("Created by CalDavTests"));
+    CalendarURI missing = new CalendarURI(new URI(stored.toString().replace(".ics", "-gone.ics"), false), RANDOM_ETAG);
+    List<CalendarURI> uris = new ArrayList<CalendarURI>();
+    uris.add(stored);
+    uris.add(missing);
+    uris.add(stored);
+    EmbeddedCalDav.CalendarBatch batch = ((EmbeddedCalDav) this.adminConnector).fetchCalendars(uris);
+    assertEquals(1, batch.getFound().size());
+    assertEquals(stored, batch.getFound().get(0).getUri());
+    assertEquals(1, batch.getMissing().size());
+    assertEquals(missing, batch.getMissing().get(0));
+  }
+
   // The methods below are slavishly copied from CalDavConnectorImplTest,
   // minus the restrictions on a user's ability to update their own store.
 
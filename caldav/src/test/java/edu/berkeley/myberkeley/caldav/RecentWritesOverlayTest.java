@@ -0,0 +1,142 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav;
+
+import edu.berkeley.myberkeley.caldav.api.CalendarURI;
+import edu.berkeley.myberkeley.caldav.api.CalendarWrapper;
+import net.fortuna.ical4j.model.DateTime;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public class RecentWritesOverlayTest extends CalDavTests {
+  private static final String OWNER = "mtwain";
+
+  private static final long WRITE_VERSION = 2000L;
+
+  private static final Map<String, Long> NOT_INDEXED = Collections.emptyMap();
+
+  private CalendarWrapper wrapper(String name, String summary) throws Exception {
+    CalendarURI uri = new CalendarURI(new URI("/_user/m/mtwain/_myberkeley_calstore/" + name + ".ics", false),
+        RANDOM_ETAG);
+    return new CalendarWrapper(buildVevent(summary), uri, null);
+  }
+
+  private CalendarSearchCriteria eventCriteria() {
+    CalendarSearchCriteria criteria = new CalendarSearchCriteria();
+    criteria.setStart(new DateTime(0));
+    criteria.setEnd(new DateTime(DateUtils.addDays(new Date(), 60)));
+    return criteria;
+  }
+
+  private List<CalendarWrapper> listOf(CalendarWrapper... wrappers) {
+    List<CalendarWrapper> list = new ArrayList<CalendarWrapper>();
+    for (CalendarWrapper wrapper : wrappers) {
+      list.add(wrapper);
+    }
+    return list;
+  }
+
+  @Test
+  public void staleResultsAreReplaced() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES);
+    CalendarWrapper indexed = wrapper("one", "Before");
+    CalendarWrapper untouched = wrapper("two", "Untouched");
+    overlay.recordWrite(OWNER, wrapper("one", "After"), WRITE_VERSION);
+    List<CalendarWrapper> merged = overlay.merge(OWNER, listOf(indexed, untouched), NOT_INDEXED, eventCriteria());
+    assertEquals(2, merged.size());
+    assertEquals(indexed.getUri(), merged.get(0).getUri());
+    assertEquals("After", merged.get(0).getPropertyValue("SUMMARY"));
+    assertSame(untouched, merged.get(1));
+    assertEquals(1L, overlay.getStats().get("replaced"));
+  }
+
+  @Test
+  public void resultsIndexedSinceTheWriteAreKept() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES);
+    CalendarWrapper indexed = wrapper("one", "Indexed");
+    overlay.recordWrite(OWNER, wrapper("one", "Written"), WRITE_VERSION);
+    Map<String, Long> indexedVersions = Collections.singletonMap(indexed.getUri().toString(), WRITE_VERSION);
+    List<CalendarWrapper> merged = overlay.merge(OWNER, listOf(indexed), indexedVersions, eventCriteria());
+    assertEquals(1, merged.size());
+    assertSame(indexed, merged.get(0));
+    assertEquals(0L, overlay.getStats().get("replaced"));
+    assertEquals(0L, overlay.getStats().get("added"));
+  }
+
+  @Test
+  public void deletedAndNonMatchingResultsAreDropped() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES);
+    CalendarWrapper deleted = wrapper("one", "Deleted");
+    CalendarWrapper event = wrapper("two", "Still an event");
+    overlay.recordDelete(OWNER, deleted.getUri().toString(), WRITE_VERSION);
+    overlay.recordWrite(OWNER, event, WRITE_VERSION);
+    assertTrue(overlay.merge(OWNER, listOf(deleted), NOT_INDEXED, eventCriteria()).isEmpty());
+
+    CalendarSearchCriteria taskCriteria = eventCriteria();
+    taskCriteria.setType(CalendarSearchCriteria.TYPE.VTODO);
+    assertTrue(overlay.merge(OWNER, listOf(event), NOT_INDEXED, taskCriteria).isEmpty());
+    assertEquals(2L, overlay.getStats().get("dropped"));
+  }
+
+  @Test
+  public void missingMatchesAreAddedForTheirOwnerOnly() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS,
+        RecentWritesOverlay.DEFAULT_MAX_ENTRIES);
+    CalendarWrapper created = wrapper("one", "Not yet indexed");
+    overlay.recordWrite(OWNER, created, WRITE_VERSION);
+    List<CalendarWrapper> merged = overlay.merge(OWNER, new ArrayList<CalendarWrapper>(), NOT_INDEXED, eventCriteria());
+    assertEquals(1, merged.size());
+    assertEquals(created.getUri(), merged.get(0).getUri());
+    assertNotSame(created, merged.get(0));
+    assertTrue(overlay.merge("someoneelse", new ArrayList<CalendarWrapper>(), NOT_INDEXED, eventCriteria()).isEmpty());
+    assertFalse(overlay.hasRecent("someoneelse"));
+  }
+
+  @Test
+  public void entriesExpire() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(0, RecentWritesOverlay.DEFAULT_MAX_ENTRIES);
+    overlay.recordWrite(OWNER, wrapper("one", "Soon forgotten"), WRITE_VERSION);
+    Thread.sleep(5);
+    assertFalse(overlay.hasRecent(OWNER));
+    assertTrue(overlay.merge(OWNER, new ArrayList<CalendarWrapper>(), NOT_INDEXED, eventCriteria()).isEmpty());
+    assertEquals(0, overlay.getStats().get("entries"));
+  }
+
+  @Test
+  public void leastRecentUsersAreDroppedFirst() throws Exception {
+    RecentWritesOverlay overlay = new RecentWritesOverlay(RecentWritesOverlay.DEFAULT_WINDOW_MILLIS, 2);
+    overlay.recordWrite("first", wrapper("one", "First"), WRITE_VERSION);
+    overlay.recordWrite("second", wrapper("two", "Second"), WRITE_VERSION);
+    assertTrue(overlay.hasRecent("first"));
+    overlay.recordWrite("third", wrapper("three", "Third"), WRITE_VERSION);
+    assertTrue(overlay.hasRecent("first"));
+    assertFalse(overlay.hasRecent("second"));
+    assertTrue(overlay.hasRecent("third"));
+    assertEquals(2, overlay.getStats().get("entries"));
+  }
+}
@@ -37,6 +37,15 @@ public class CalendarURITest extends CalDavTests {
     CalendarURI deserialized = new CalendarURI(json);
     assertEquals(uri, deserialized);
     assertEquals(uri.getEtag(), deserialized.getEtag());
+    assertNull(deserialized.getEntityTag());
+  }
+
+  @Test
+  public void entityTagSurvivesJSON() throws URIException, JSONException {
+    CalendarURI uri = new CalendarURI(new URI("/foo", false), new Date());
+    uri.setEntityTag("\"20110101T010101Z-0\"");
+    CalendarURI deserialized = new CalendarURI(uri.toJSON());
+    assertEquals(uri.getEntityTag(), deserialized.getEntityTag());
   }
 
 }
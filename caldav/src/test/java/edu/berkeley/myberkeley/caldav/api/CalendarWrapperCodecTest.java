@@ -0,0 +1,78 @@
+/*
+  * Licensed to the Sakai Foundation (SF) under one
+  * or more contributor license agreements. See the NOTICE file
+  * distributed with this work for additional information
+  * regarding copyright ownership. The SF licenses this file
+  * to you under the Apache License, Version 2.0 (the
+  * "License"); you may not use this file except in compliance
+  * with the License. You may obtain a copy of the License at
+  *
+  *     http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing,
+  * software distributed under the License is distributed on an
+  * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  * KIND, either express or implied. See the License for the
+  * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.caldav.api;
+
+import edu.berkeley.myberkeley.caldav.CalDavTests;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.property.XProperty;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.URI;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.sakaiproject.nakamura.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class CalendarWrapperCodecTest extends CalDavTests {
+
+  @Test
+  public void roundTrip() throws Exception {
+    Calendar calendar = buildVTodo("a todo");
+    Component vtodo = calendar.getComponent(Component.VTODO);
+    vtodo.getProperties().add(CalDavConnector.MYBERKELEY_ARCHIVED);
+    vtodo.getProperties().add(new XProperty("X-MYBERKELEY-NOTE", "not one of the interned names"));
+    CalendarWrapper original = new CalendarWrapper(calendar, new URI("/url1", false), RANDOM_ETAG);
+
+    CalendarWrapper decoded = CalendarWrapperCodec.decode(CalendarWrapperCodec.encode(original));
+    assertEquals(original.getUri(), decoded.getUri());
+    assertEquals(original.getEtag().getTime(), decoded.getEtag().getTime());
+    assertEquals(Component.VTODO, decoded.getComponentName());
+    assertTrue(decoded.isRequired());
+    assertTrue(decoded.isArchived());
+    assertEquals("not one of the interned names", decoded.getComponent().getProperty("X-MYBERKELEY-NOTE").getValue());
+    assertEquals(original, decoded);
+  }
+
+  @Test
+  public void smallerThanJson() throws CalDavException, IOException, JSONException {
+    InputStream in = getClass().getClassLoader().getResourceAsStream("calendarWrapper_vevent.json");
+    CalendarWrapper wrapper = new CalendarWrapper(new JSONObject(IOUtils.readFully(in, "utf-8")));
+    String json = wrapper.toJSON().toString();
+    String encoded = CalendarWrapperCodec.encode(wrapper);
+    assertTrue(encoded.length() < json.length());
+    assertEquals(wrapper, CalendarWrapperCodec.decode(encoded));
+  }
+
+  @Test(expected = CalDavException.class)
+  public void unknownVersion() throws Exception {
+    CalendarWrapper original = new CalendarWrapper(buildVevent("an event"), new URI("/url1", false), RANDOM_ETAG);
+    byte[] bytes = Base64.decodeBase64(CalendarWrapperCodec.encode(original).getBytes("US-ASCII"));
+    bytes[0] = (byte) (CalendarWrapperCodec.FORMAT_VERSION + 1);
+    CalendarWrapperCodec.decode(new String(Base64.encodeBase64(bytes), "US-ASCII"));
+  }
+
+  @Test(expected = CalDavException.class)
+  public void truncated() throws Exception {
+    CalendarWrapper original = new CalendarWrapper(buildVevent("an event"), new URI("/url1", false), RANDOM_ETAG);
+    String encoded = CalendarWrapperCodec.encode(original);
+    CalendarWrapperCodec.decode(encoded.substring(0, encoded.length() / 2));
+  }
+}
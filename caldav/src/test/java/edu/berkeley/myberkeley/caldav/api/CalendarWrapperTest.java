@@ -269,6 +269,112 @@ public class CalendarWrapperTest extends CalDavTests {
     assertEquals(original.hashCode(), deserialized.hashCode());
   }
 
+  @Test
+  public void storedWrappersGetTheirOwnTimeZone() throws CalDavException, JSONException, URIException {
+    String json = getWrapper().toJSON().toString();
+    Calendar first = CalendarWrapper.fromJSONString(json).getCalendar();
+    Calendar second = CalendarWrapper.fromJSONString(json).getCalendar();
+    assertNotNull(first.getComponent(Component.VTIMEZONE));
+    assertNotSame(first.getComponent(Component.VTIMEZONE), second.getComponent(Component.VTIMEZONE));
+    assertEquals(first.getComponent(Component.VTIMEZONE), second.getComponent(Component.VTIMEZONE));
+  }
+
+  @Test
+  public void sharedWrapperBuildsOneCalendar() throws Exception {
+    final CalendarWrapper shared = CalendarWrapper.fromJSONString(getWrapper().toJSON().toString());
+    final Calendar[] seen = new Calendar[8];
+    Thread[] threads = new Thread[seen.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int slot = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          assertNotNull(shared.getSummary());
+          seen[slot] = shared.getCalendar();
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Calendar calendar : seen) {
+      assertSame(seen[0], calendar);
+    }
+  }
+
+  @Test
+  public void storedJsonAnswersWithoutCalendar() throws CalDavException, JSONException, URIException {
+    CalendarWrapper original = getWrapper();
+    original.getComponent().getProperties().add(CalDavConnector.MYBERKELEY_ARCHIVED);
+    JSONObject json = original.toJSON();
+    CalendarWrapper stored = new CalendarWrapper(json);
+
+    assertEquals(Component.VTODO, stored.getComponentName());
+    assertEquals("a todo", stored.getSummary());
+    assertEquals(original.getDueTime() / 1000, stored.getDueTime() / 1000);
+    assertEquals(original.isRequired(), stored.isRequired());
+    assertTrue(stored.isArchived());
+    assertFalse(stored.isCompleted());
+    assertFalse(stored.isRead());
+    assertEquals(json.toString(), stored.toJSON().toString());
+
+    // Building the Calendar gives the same answers.
+    assertEquals(original, stored);
+    assertEquals(original.getDueTime() / 1000, stored.getDueTime() / 1000);
+    assertTrue(stored.isArchived());
+  }
+
+  @Test
+  public void storedJsonTakesStateWithoutCalendar() throws CalDavException, JSONException, URIException {
+    CalendarWrapper original = getWrapper();
+    original.getComponent().getProperties().add(new Categories("ACAT"));
+    original.getComponent().getProperties().add(CalDavConnector.MYBERKELEY_READ);
+    CalendarWrapper stored = new CalendarWrapper(original.toJSON());
+
+    JSONObject jsonState = new JSONObject("{\"isCompleted\":true,\"isArchived\":true,\"isRead\":false}");
+    original.applyJsonState(jsonState);
+    stored.applyJsonState(jsonState);
+    assertTrue(stored.isCompleted());
+    assertTrue(stored.isArchived());
+    assertFalse(stored.isRead());
+    assertEquals(original.isRequired(), stored.isRequired());
+
+    CalendarPatch patch = new CalendarPatch(stored.getUri());
+    patch.setArchived(true);
+    assertFalse(patch.applyTo(stored));
+    patch.setCompleted(false);
+    assertTrue(patch.applyTo(stored));
+    assertFalse(stored.isCompleted());
+    assertTrue(stored.isArchived());
+
+    // Building the Calendar gives the same properties as applying the state to it.
+    assertTrue(patch.applyTo(original));
+    Component storedComponent = stored.getComponent();
+    Component originalComponent = original.getComponent();
+    assertEquals(originalComponent.getProperties(Property.STATUS), storedComponent.getProperties(Property.STATUS));
+    PropertyList categories = storedComponent.getProperties(Property.CATEGORIES);
+    assertEquals(originalComponent.getProperties(Property.CATEGORIES).size(), categories.size());
+    assertTrue(categories.contains(new Categories("ACAT")));
+    assertTrue(categories.contains(CalDavConnector.MYBERKELEY_ARCHIVED));
+    assertFalse(categories.contains(CalDavConnector.MYBERKELEY_READ));
+  }
+
+  @Test
+  public void jsonStringPassesThroughUntilChanged() throws CalDavException, JSONException, URIException {
+    String stored = getWrapper().toJSON().toString();
+    CalendarWrapper wrapper = CalendarWrapper.fromJSONString(stored);
+    assertTrue(stored == wrapper.toJSONString());
+    wrapper.applyJsonState(new JSONObject("{\"isArchived\":true}"));
+    JSONObject changed = new JSONObject(wrapper.toJSONString());
+    assertTrue(changed.getBoolean(CalendarWrapper.JSON_PROPERTY_NAMES.isArchived.toString()));
+
+    wrapper = CalendarWrapper.fromJSONString(stored);
+    wrapper.getComponent();
+    assertEquals(new JSONObject(stored).getJSONObject(CalendarWrapper.JSON_PROPERTY_NAMES.icalData.toString()).length(),
+        new JSONObject(wrapper.toJSONString()).getJSONObject(CalendarWrapper.JSON_PROPERTY_NAMES.icalData.toString()).length());
+  }
+
   @Test
   public void generateNewUID() throws CalDavException, IOException, JSONException, ParseException {
     CalendarWrapper wrapper = getWrapper();
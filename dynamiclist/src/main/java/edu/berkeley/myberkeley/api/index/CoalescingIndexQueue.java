@@ -0,0 +1,533 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.api.index;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexes sparse content in batches, instead of one document per storage event. Paths are queued as
+ * their content changes, and a path which is queued again before it has been indexed is indexed once,
+ * from its latest content. A batch is sent when batchSize paths are waiting or the oldest has waited
+ * windowMillis. Solr is committed when commitSize documents are uncommitted or the oldest of them
+ * has waited commitMillis, rather than after every document.
+ * <p/>
+ * Documents go straight to Solr rather than through ResourceIndexingService. The id, path and
+ * resourceType fields are set from the document's _DOC_SOURCE_OBJECT content, but nakamura's reader
+ * fields are not, so only searches which do not filter on readers will find them.
+ * <p/>
+ * Deletes are still made by the indexing handler; call remove so that a queued update does not bring
+ * the document back. A path removed while its batch is in flight is deleted from Solr again once the
+ * batch is done.
+ * <p/>
+ * Paths from a batch which Solr refused MAX_ATTEMPTS times are logged and kept aside until
+ * retryAbandoned is called, rather than dropped.
+ */
+public class CoalescingIndexQueue implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingIndexQueue.class);
+
+  public static final long DEFAULT_WINDOW_MILLIS = 1000;
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  public static final long DEFAULT_COMMIT_MILLIS = 5000;
+  public static final int DEFAULT_COMMIT_SIZE = 2000;
+
+  /**
+   * Times a batch is tried before its paths are given up on.
+   */
+  static final int MAX_ATTEMPTS = 3;
+
+  /**
+   * Most abandoned paths kept for retryAbandoned; older ones are only in the log.
+   */
+  static final int MAX_ABANDONED_PATHS = 10000;
+
+  private static final long SHUTDOWN_MILLIS = 30000;
+
+  public interface DocumentBuilder {
+    /**
+     * @return the documents for the content at path, or none if there is nothing to index
+     */
+    Collection<SolrInputDocument> buildDocuments(Session session, String path)
+        throws StorageClientException, AccessDeniedException;
+  }
+
+  private static class Pending {
+    private final long queuedAt;
+    private final int attempts;
+
+    private Pending(long queuedAt, int attempts) {
+      this.queuedAt = queuedAt;
+      this.attempts = attempts;
+    }
+  }
+
+  private final String name;
+  private final Repository repository;
+  private final SolrServerService solrServerService;
+  private final DocumentBuilder builder;
+  private final long windowMillis;
+  private final int batchSize;
+  private final long commitMillis;
+  private final int commitSize;
+
+  /**
+   * Waiting paths, oldest first. Queueing a path again does not move it.
+   */
+  private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+  /**
+   * Paths in the batch being indexed, and those of them removed since the batch was taken.
+   */
+  private final Set<String> inFlight = new HashSet<String>();
+  private final Set<String> removedInFlight = new HashSet<String>();
+
+  /**
+   * Paths removed while in flight, whose documents are still to be deleted from Solr.
+   */
+  private final Set<String> pendingDeletes = new LinkedHashSet<String>();
+
+  private final Set<String> abandonedPaths = new LinkedHashSet<String>();
+
+  private Thread worker;
+  private boolean running;
+
+  private long uncommitted;
+  private long firstUncommittedAt;
+  private long commitRetryAt;
+
+  private long queued;
+  private long coalesced;
+  private long removed;
+  private long batches;
+  private long documents;
+  private long commits;
+  private long failures;
+  private long abandoned;
+  private long redeleted;
+  private int lastBatchSize;
+  private int maxBatchSize;
+  private long lastLagMillis;
+  private long maxLagMillis;
+
+  public CoalescingIndexQueue(String name, Repository repository, SolrServerService solrServerService,
+                              DocumentBuilder builder, long windowMillis, int batchSize, long commitMillis,
+                              int commitSize) {
+    this.name = name;
+    this.repository = repository;
+    this.solrServerService = solrServerService;
+    this.builder = builder;
+    this.windowMillis = windowMillis;
+    this.batchSize = Math.max(1, batchSize);
+    this.commitMillis = commitMillis;
+    this.commitSize = Math.max(1, commitSize);
+  }
+
+  public synchronized void start() {
+    if (this.worker != null) {
+      return;
+    }
+    this.running = true;
+    this.worker = new Thread(this, this.name + " indexer");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Stop taking paths, and wait a while for those already queued to be indexed and committed.
+   */
+  public void shutdown() {
+    Thread stopping;
+    synchronized (this) {
+      this.running = false;
+      stopping = this.worker;
+      this.worker = null;
+      notifyAll();
+    }
+    if (stopping != null) {
+      try {
+        stopping.join(SHUTDOWN_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        if (!this.pending.isEmpty()) {
+          LOGGER.warn("{} indexer stopped with {} paths unindexed", this.name, this.pending.size());
+        }
+      }
+    }
+  }
+
+  public synchronized void add(String path) {
+    if (path == null) {
+      return;
+    }
+    this.queued++;
+    // Written again, so the document is to be replaced rather than deleted.
+    this.pendingDeletes.remove(path);
+    this.abandonedPaths.remove(path);
+    if (this.pending.containsKey(path)) {
+      this.coalesced++;
+      return;
+    }
+    this.pending.put(path, new Pending(System.currentTimeMillis(), 0));
+    notifyAll();
+  }
+
+  /**
+   * Drop a queued path, as when its content has been deleted. If the path is being indexed, its
+   * document is deleted again after the batch.
+   */
+  public synchronized void remove(String path) {
+    if (path == null) {
+      return;
+    }
+    if (this.pending.remove(path) != null) {
+      this.removed++;
+    }
+    if (this.inFlight.contains(path)) {
+      this.removedInFlight.add(path);
+    }
+    this.abandonedPaths.remove(path);
+  }
+
+  /**
+   * Queue the abandoned paths again, as after Solr has been repaired.
+   *
+   * @return the number of paths queued
+   */
+  public synchronized int retryAbandoned() {
+    int count = 0;
+    long now = System.currentTimeMillis();
+    for (String path : this.abandonedPaths) {
+      if (!this.pending.containsKey(path)) {
+        this.pending.put(path, new Pending(now, 0));
+        count++;
+      }
+    }
+    this.abandonedPaths.clear();
+    if (count > 0) {
+      LOGGER.info("{} indexer queued {} abandoned paths again", this.name, count);
+      notifyAll();
+    }
+    return count;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    long now = System.currentTimeMillis();
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("depth", this.pending.size());
+    stats.put("oldestWaitMillis", this.pending.isEmpty() ? 0 :
+        now - this.pending.values().iterator().next().queuedAt);
+    stats.put("queued", this.queued);
+    stats.put("coalesced", this.coalesced);
+    stats.put("removed", this.removed);
+    stats.put("batches", this.batches);
+    stats.put("documents", this.documents);
+    stats.put("lastBatchSize", this.lastBatchSize);
+    stats.put("maxBatchSize", this.maxBatchSize);
+    stats.put("lastLagMillis", this.lastLagMillis);
+    stats.put("maxLagMillis", this.maxLagMillis);
+    stats.put("uncommitted", this.uncommitted);
+    stats.put("commits", this.commits);
+    stats.put("failures", this.failures);
+    stats.put("abandoned", this.abandoned);
+    stats.put("abandonedPaths", this.abandonedPaths.size());
+    stats.put("redeleted", this.redeleted);
+    return stats;
+  }
+
+  public void run() {
+    while (true) {
+      Map<String, Pending> batch = new LinkedHashMap<String, Pending>();
+      boolean stopping;
+      synchronized (this) {
+        try {
+          waitForWork();
+        } catch (InterruptedException e) {
+          this.running = false;
+        }
+        stopping = !this.running;
+        if (stopping || isBatchDue(System.currentTimeMillis())) {
+          Iterator<Map.Entry<String, Pending>> entries = this.pending.entrySet().iterator();
+          while (entries.hasNext() && batch.size() < this.batchSize) {
+            Map.Entry<String, Pending> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+            this.inFlight.add(entry.getKey());
+            entries.remove();
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        indexBatch(batch);
+        batchDone(batch);
+        deletePending();
+      }
+      boolean drained;
+      synchronized (this) {
+        drained = this.pending.isEmpty();
+      }
+      if ((stopping && drained) || isCommitDue(System.currentTimeMillis())) {
+        deletePending();
+        commit();
+      }
+      if (stopping && drained) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Index one batch. Paths from a batch which Solr refused are queued again, up to MAX_ATTEMPTS.
+   */
+  void indexBatch(Map<String, Pending> batch) {
+    List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(batch.size());
+    Session session = null;
+    try {
+      session = this.repository.loginAdministrative();
+      for (String path : batch.keySet()) {
+        try {
+          for (SolrInputDocument doc : this.builder.buildDocuments(session, path)) {
+            docs.add(toStandalone(doc));
+          }
+        } catch (StorageClientException e) {
+          LOGGER.warn("Not indexing " + path + ": " + e.getMessage(), e);
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("Not indexing " + path + ": " + e.getMessage(), e);
+        }
+      }
+      if (!docs.isEmpty()) {
+        this.solrServerService.getServer().add(docs);
+      }
+      batchIndexed(batch, docs.size());
+    } catch (StorageClientException e) {
+      batchFailed(batch, e);
+    } catch (AccessDeniedException e) {
+      batchFailed(batch, e);
+    } catch (SolrServerException e) {
+      batchFailed(batch, e);
+    } catch (IOException e) {
+      batchFailed(batch, e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the documents of paths which were removed while their batch was in flight, so that the
+   * batch does not bring them back. Deletes which fail are tried again with the next batch or commit.
+   */
+  void deletePending() {
+    List<String> paths;
+    synchronized (this) {
+      if (this.pendingDeletes.isEmpty()) {
+        return;
+      }
+      paths = new ArrayList<String>(this.pendingDeletes);
+    }
+    try {
+      this.solrServerService.getServer().deleteById(paths);
+      synchronized (this) {
+        this.pendingDeletes.removeAll(paths);
+        this.redeleted += paths.size();
+        if (this.uncommitted == 0) {
+          this.firstUncommittedAt = System.currentTimeMillis();
+        }
+        this.uncommitted += paths.size();
+      }
+    } catch (SolrServerException e) {
+      LOGGER.error(this.name + " indexer failed to delete " + paths + " again: " + e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.error(this.name + " indexer failed to delete " + paths + " again: " + e.getMessage(), e);
+    }
+  }
+
+  void commit() {
+    synchronized (this) {
+      if (this.uncommitted == 0) {
+        return;
+      }
+    }
+    try {
+      SolrServer solrServer = this.solrServerService.getServer();
+      solrServer.commit();
+      synchronized (this) {
+        this.uncommitted = 0;
+        this.commits++;
+      }
+    } catch (SolrServerException e) {
+      commitFailed(e);
+    } catch (IOException e) {
+      commitFailed(e);
+    }
+  }
+
+  private void waitForWork() throws InterruptedException {
+    while (this.running) {
+      long now = System.currentTimeMillis();
+      if (isBatchDue(now) || isCommitDue(now)) {
+        return;
+      }
+      long wakeAt = Math.min(getBatchDueAt(), getCommitDueAt());
+      if (wakeAt == Long.MAX_VALUE) {
+        wait();
+      } else {
+        wait(Math.max(1, wakeAt - now));
+      }
+    }
+  }
+
+  private synchronized boolean isBatchDue(long now) {
+    return !this.pending.isEmpty() && (this.pending.size() >= this.batchSize || now >= getBatchDueAt());
+  }
+
+  private synchronized long getBatchDueAt() {
+    return this.pending.isEmpty() ? Long.MAX_VALUE :
+        this.pending.values().iterator().next().queuedAt + this.windowMillis;
+  }
+
+  private synchronized boolean isCommitDue(long now) {
+    if (this.uncommitted == 0 || now < this.commitRetryAt) {
+      return false;
+    }
+    return this.uncommitted >= this.commitSize || now >= getCommitDueAt();
+  }
+
+  private synchronized long getCommitDueAt() {
+    if (this.uncommitted == 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(this.firstUncommittedAt + this.commitMillis, this.commitRetryAt);
+  }
+
+  private synchronized void batchIndexed(Map<String, Pending> batch, int docCount) {
+    long now = System.currentTimeMillis();
+    this.batches++;
+    this.documents += docCount;
+    this.lastBatchSize = batch.size();
+    this.maxBatchSize = Math.max(this.maxBatchSize, batch.size());
+    this.lastLagMillis = now - batch.values().iterator().next().queuedAt;
+    this.maxLagMillis = Math.max(this.maxLagMillis, this.lastLagMillis);
+    if (docCount > 0) {
+      if (this.uncommitted == 0) {
+        this.firstUncommittedAt = now;
+      }
+      this.uncommitted += docCount;
+    }
+  }
+
+  /**
+   * The batch is no longer in flight; paths removed meanwhile still need their documents deleted.
+   */
+  private synchronized void batchDone(Map<String, Pending> batch) {
+    for (String path : batch.keySet()) {
+      this.inFlight.remove(path);
+      if (this.removedInFlight.remove(path)) {
+        this.pendingDeletes.add(path);
+      }
+    }
+  }
+
+  private synchronized void batchFailed(Map<String, Pending> batch, Exception e) {
+    this.failures++;
+    long now = System.currentTimeMillis();
+    int requeued = 0;
+    for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+      String path = entry.getKey();
+      if (this.removedInFlight.contains(path)) {
+        continue;
+      }
+      int attempts = entry.getValue().attempts + 1;
+      if (attempts < MAX_ATTEMPTS) {
+        if (!this.pending.containsKey(path)) {
+          this.pending.put(path, new Pending(now, attempts));
+        }
+        requeued++;
+      } else if (!this.pending.containsKey(path)) {
+        abandon(path);
+      }
+    }
+    LOGGER.error(this.name + " indexer failed a batch of " + batch.size() + " paths, " + requeued +
+        " queued again: " + e.getMessage(), e);
+  }
+
+  private void abandon(String path) {
+    this.abandoned++;
+    this.abandonedPaths.add(path);
+    LOGGER.warn("{} indexer gave up on {} after {} attempts; it is kept for retryAbandoned",
+        new Object[] {this.name, path, MAX_ATTEMPTS});
+    if (this.abandonedPaths.size() > MAX_ABANDONED_PATHS) {
+      Iterator<String> oldest = this.abandonedPaths.iterator();
+      LOGGER.warn("{} indexer no longer keeps abandoned path {}", this.name, oldest.next());
+      oldest.remove();
+    }
+  }
+
+  private synchronized void commitFailed(Exception e) {
+    this.failures++;
+    // Try again after another interval, rather than at once.
+    this.commitRetryAt = System.currentTimeMillis() + this.commitMillis;
+    LOGGER.error(this.name + " indexer failed to commit: " + e.getMessage(), e);
+  }
+
+  /**
+   * Replace the source content, which only ResourceIndexingService understands, by the fields it
+   * would have set from it.
+   */
+  static SolrInputDocument toStandalone(SolrInputDocument doc) {
+    Object source = doc.getFieldValue(IndexingHandler._DOC_SOURCE_OBJECT);
+    if (source instanceof Content) {
+      Content content = (Content) source;
+      doc.removeField(IndexingHandler._DOC_SOURCE_OBJECT);
+      doc.setField(IndexingHandler.FIELD_ID, content.getPath());
+      doc.setField(IndexingHandler.FIELD_PATH, content.getPath());
+      Object resourceType = content.getProperty("sling:resourceType");
+      if (resourceType != null) {
+        doc.setField("resourceType", resourceType);
+      }
+    }
+    return doc;
+  }
+}
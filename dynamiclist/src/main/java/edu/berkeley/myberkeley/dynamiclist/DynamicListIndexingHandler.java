@@ -26,13 +26,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
+import edu.berkeley.myberkeley.api.index.CoalescingIndexQueue;
+import edu.berkeley.myberkeley.api.index.IndexStatsSource;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -41,32 +48,86 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-@Component(immediate = true)
-public class DynamicListIndexingHandler implements IndexingHandler {
+@Component(immediate = true, metatype = true)
+@Service(value = IndexStatsSource.class)
+public class DynamicListIndexingHandler implements IndexingHandler, IndexStatsSource,
+    CoalescingIndexQueue.DocumentBuilder {
   private static final Logger LOGGER = LoggerFactory.getLogger(DynamicListIndexingHandler.class);
   private static final Set<String> DYNAMIC_LIST_PROPS = ImmutableSet.of(DYNAMIC_LIST_CONTEXT_PROP, DYNAMIC_LIST_DEMOGRAPHIC_DATA_PROP);
 
+  @Property(boolValue = false, label = "Batched Indexing",
+      description = "Queue demographic changes and index them in batches, for bulk demographic refreshes")
+  protected static final String PROP_BATCHED = "dynamiclist.indexing.batched";
+
+  @Property(longValue = CoalescingIndexQueue.DEFAULT_WINDOW_MILLIS, label = "Batch Window (ms)",
+      description = "How long a change may wait for others to join its batch")
+  protected static final String PROP_WINDOW_MILLIS = "dynamiclist.indexing.windowmillis";
+
+  @Property(intValue = CoalescingIndexQueue.DEFAULT_BATCH_SIZE, label = "Batch Size")
+  protected static final String PROP_BATCH_SIZE = "dynamiclist.indexing.batchsize";
+
+  @Property(longValue = CoalescingIndexQueue.DEFAULT_COMMIT_MILLIS, label = "Commit Interval (ms)")
+  protected static final String PROP_COMMIT_MILLIS = "dynamiclist.indexing.commitmillis";
+
+  @Property(intValue = CoalescingIndexQueue.DEFAULT_COMMIT_SIZE, label = "Commit Size",
+      description = "Commit sooner once this many documents are uncommitted")
+  protected static final String PROP_COMMIT_SIZE = "dynamiclist.indexing.commitsize";
+
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  private Repository repository;
+
+  @Reference
+  private SolrServerService solrServerService;
+
+  private volatile CoalescingIndexQueue indexQueue;
+
   @Activate
   protected void activate(Map<?, ?> props) {
+    modified(props);
     resourceIndexingService.addHandler(DYNAMIC_LIST_CONTEXT_RT, this);
     resourceIndexingService.addHandler(DYNAMIC_LIST_PERSONAL_DEMOGRAPHIC_RT, this);
   }
 
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    CoalescingIndexQueue queue = null;
+    if (PropertiesUtil.toBoolean(props.get(PROP_BATCHED), false)) {
+      queue = new CoalescingIndexQueue("Dynamic list", repository, solrServerService, this,
+          PropertiesUtil.toLong(props.get(PROP_WINDOW_MILLIS), CoalescingIndexQueue.DEFAULT_WINDOW_MILLIS),
+          PropertiesUtil.toInteger(props.get(PROP_BATCH_SIZE), CoalescingIndexQueue.DEFAULT_BATCH_SIZE),
+          PropertiesUtil.toLong(props.get(PROP_COMMIT_MILLIS), CoalescingIndexQueue.DEFAULT_COMMIT_MILLIS),
+          PropertiesUtil.toInteger(props.get(PROP_COMMIT_SIZE), CoalescingIndexQueue.DEFAULT_COMMIT_SIZE));
+      queue.start();
+    }
+    CoalescingIndexQueue oldQueue = this.indexQueue;
+    this.indexQueue = queue;
+    if (oldQueue != null) {
+      oldQueue.shutdown();
+    }
+  }
+
   @Deactivate
   protected void deactivate(Map<?, ?> props) {
     resourceIndexingService.removeHandler(DYNAMIC_LIST_CONTEXT_RT, this);
     resourceIndexingService.removeHandler(DYNAMIC_LIST_PERSONAL_DEMOGRAPHIC_RT, this);
+    CoalescingIndexQueue oldQueue = this.indexQueue;
+    this.indexQueue = null;
+    if (oldQueue != null) {
+      oldQueue.shutdown();
+    }
   }
 
   /**
@@ -75,38 +136,48 @@ public class DynamicListIndexingHandler implements IndexingHandler {
   public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
       Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
+    if (path == null) {
+      return Collections.emptyList();
+    }
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue != null) {
+      queue.add(path);
+      return Collections.emptyList();
+    }
+    try {
+      return buildDocuments(repositorySession.adaptTo(Session.class), path);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+    return Collections.emptyList();
+  }
+
+  public Collection<SolrInputDocument> buildDocuments(Session session, String path)
+      throws StorageClientException, AccessDeniedException {
     List<SolrInputDocument> documents = Lists.newArrayList();
-    if (path != null) {
-      Session session = repositorySession.adaptTo(Session.class);
-      ContentManager contentManager;
-      try {
-        contentManager = session.getContentManager();
-        Content content = contentManager.get(path);
-        if (content != null) {
-          SolrInputDocument doc = new SolrInputDocument();
-          for (String prop : DYNAMIC_LIST_PROPS) {
-            // Lucene cannot index null values, so no need to call hasProperty.
-            Object rawVal = content.getProperty(prop);
-            if (rawVal != null) {
-              if (rawVal instanceof Object[]) {
-                for (Object val : (Object[])rawVal) {
-                  if (val != null) {
-                    doc.addField(prop, val);
-                  }
-                }
-              } else {
-                doc.addField(prop, rawVal);
+    ContentManager contentManager = session.getContentManager();
+    Content content = contentManager.get(path);
+    if (content != null) {
+      SolrInputDocument doc = new SolrInputDocument();
+      for (String prop : DYNAMIC_LIST_PROPS) {
+        // Lucene cannot index null values, so no need to call hasProperty.
+        Object rawVal = content.getProperty(prop);
+        if (rawVal != null) {
+          if (rawVal instanceof Object[]) {
+            for (Object val : (Object[])rawVal) {
+              if (val != null) {
+                doc.addField(prop, val);
               }
             }
+          } else {
+            doc.addField(prop, rawVal);
           }
-          doc.addField(_DOC_SOURCE_OBJECT, content);
-          documents.add(doc);
         }
-      } catch (StorageClientException e) {
-        LOGGER.warn(e.getMessage(), e);
-      } catch (AccessDeniedException e) {
-        LOGGER.warn(e.getMessage(), e);
       }
+      doc.addField(_DOC_SOURCE_OBJECT, content);
+      documents.add(doc);
     }
     return documents;
   }
@@ -118,7 +189,23 @@ public class DynamicListIndexingHandler implements IndexingHandler {
       Event event) {
     LOGGER.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty("path");
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue != null) {
+      queue.remove(path);
+    }
     return ImmutableList.of(FIELD_ID + ":" + ClientUtils.escapeQueryChars(path));
   }
 
+  public String getStatsName() {
+    return "dynamicListIndexing";
+  }
+
+  public Map<String, Object> getStats() {
+    CoalescingIndexQueue queue = this.indexQueue;
+    if (queue == null) {
+      return Collections.emptyMap();
+    }
+    return queue.getStats();
+  }
+
 }
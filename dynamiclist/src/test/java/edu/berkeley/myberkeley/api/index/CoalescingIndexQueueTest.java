@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package edu.berkeley.myberkeley.api.index;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CoalescingIndexQueueTest extends Assert {
+  private static final long LONG_WAIT = 60000;
+
+  private Repository repository;
+
+  private SolrServer solrServer;
+
+  private SolrServerService solrServerService;
+
+  private final List<String> built = new ArrayList<String>();
+
+  private CoalescingIndexQueue removingQueue;
+
+  private final CoalescingIndexQueue.DocumentBuilder builder = new CoalescingIndexQueue.DocumentBuilder() {
+    public Collection<SolrInputDocument> buildDocuments(Session session, String path) {
+      built.add(path);
+      if (removingQueue != null) {
+        // Deleted while its batch is being built.
+        removingQueue.remove(path);
+      }
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField(IndexingHandler._DOC_SOURCE_OBJECT, new Content(path,
+          ImmutableMap.of("sling:resourceType", (Object) "myberkeley/test")));
+      return Collections.singletonList(doc);
+    }
+  };
+
+  @Before
+  public void setup() throws Exception {
+    this.repository = mock(Repository.class);
+    when(this.repository.loginAdministrative()).thenReturn(mock(Session.class));
+    this.solrServer = mock(SolrServer.class);
+    this.solrServerService = mock(SolrServerService.class);
+    when(this.solrServerService.getServer()).thenReturn(this.solrServer);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void repeatedPathsAreIndexedOnce() throws Exception {
+    CoalescingIndexQueue queue = new CoalescingIndexQueue("Test", this.repository, this.solrServerService,
+        this.builder, LONG_WAIT, 100, LONG_WAIT, 100);
+    queue.add("a:joe/1");
+    queue.add("a:joe/2");
+    queue.add("a:joe/1");
+    queue.add("a:joe/3");
+    queue.remove("a:joe/3");
+    queue.start();
+    queue.shutdown();
+
+    ArgumentCaptor<Collection> docs = ArgumentCaptor.forClass(Collection.class);
+    verify(this.solrServer).add(docs.capture());
+    assertEquals(2, docs.getValue().size());
+    assertEquals(2, this.built.size());
+    verify(this.solrServer, times(1)).commit();
+    assertEquals(1L, queue.getStats().get("coalesced"));
+    assertEquals(1L, queue.getStats().get("removed"));
+    assertEquals(0, queue.getStats().get("depth"));
+    assertEquals(0L, queue.getStats().get("uncommitted"));
+  }
+
+  @Test
+  public void batchesAreLimitedInSize() throws Exception {
+    CoalescingIndexQueue queue = new CoalescingIndexQueue("Test", this.repository, this.solrServerService,
+        this.builder, LONG_WAIT, 2, LONG_WAIT, 100);
+    queue.add("a:joe/1");
+    queue.add("a:joe/2");
+    queue.add("a:joe/3");
+    queue.start();
+    queue.shutdown();
+    verify(this.solrServer, times(2)).add(anyCollectionOf(SolrInputDocument.class));
+    verify(this.solrServer, times(1)).commit();
+    assertEquals(2, queue.getStats().get("maxBatchSize"));
+    assertEquals(3L, queue.getStats().get("documents"));
+  }
+
+  @Test
+  public void failedBatchesAreRetried() throws Exception {
+    when(this.solrServer.add(anyCollectionOf(SolrInputDocument.class)))
+        .thenThrow(new SolrServerException("Solr is restarting")).thenReturn(null);
+    CoalescingIndexQueue queue = new CoalescingIndexQueue("Test", this.repository, this.solrServerService,
+        this.builder, LONG_WAIT, 100, LONG_WAIT, 100);
+    queue.add("a:joe/1");
+    queue.start();
+    queue.shutdown();
+    verify(this.solrServer, times(2)).add(anyCollectionOf(SolrInputDocument.class));
+    assertEquals(2, this.built.size());
+    assertEquals(1L, queue.getStats().get("failures"));
+    assertEquals(1L, queue.getStats().get("documents"));
+    assertEquals(0L, queue.getStats().get("abandoned"));
+  }
+
+  @Test
+  public void abandonedPathsAreKeptForRetry() throws Exception {
+    when(this.solrServer.add(anyCollectionOf(SolrInputDocument.class)))
+        .thenThrow(new SolrServerException("Solr is down"));
+    CoalescingIndexQueue queue = new CoalescingIndexQueue("Test", this.repository, this.solrServerService,
+        this.builder, LONG_WAIT, 100, LONG_WAIT, 100);
+    queue.add("a:joe/1");
+    queue.start();
+    queue.shutdown();
+    verify(this.solrServer, times(CoalescingIndexQueue.MAX_ATTEMPTS)).add(anyCollectionOf(SolrInputDocument.class));
+    assertEquals(1L, queue.getStats().get("abandoned"));
+    assertEquals(1, queue.getStats().get("abandonedPaths"));
+    assertEquals(0, queue.getStats().get("depth"));
+
+    assertEquals(1, queue.retryAbandoned());
+    assertEquals(0, queue.getStats().get("abandonedPaths"));
+    assertEquals(1, queue.getStats().get("depth"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void pathsRemovedInFlightAreDeletedAgain() throws Exception {
+    CoalescingIndexQueue queue = new CoalescingIndexQueue("Test", this.repository, this.solrServerService,
+        this.builder, LONG_WAIT, 100, LONG_WAIT, 100);
+    this.removingQueue = queue;
+    queue.add("a:joe/1");
+    queue.start();
+    queue.shutdown();
+    verify(this.solrServer).add(anyCollectionOf(SolrInputDocument.class));
+    ArgumentCaptor<List> deleted = ArgumentCaptor.forClass(List.class);
+    verify(this.solrServer).deleteById(deleted.capture());
+    assertEquals(Collections.singletonList("a:joe/1"), deleted.getValue());
+    assertEquals(1L, queue.getStats().get("redeleted"));
+    verify(this.solrServer, times(1)).commit();
+  }
+
+  @Test
+  public void documentsGetTheirOwnPathFields() {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField(IndexingHandler.FIELD_ID, "some-uid");
+    doc.addField(IndexingHandler._DOC_SOURCE_OBJECT, new Content("a:joe/1",
+        ImmutableMap.of("sling:resourceType", (Object) "myberkeley/test")));
+    CoalescingIndexQueue.toStandalone(doc);
+    assertNull(doc.getFieldValue(IndexingHandler._DOC_SOURCE_OBJECT));
+    assertEquals("a:joe/1", doc.getFieldValue(IndexingHandler.FIELD_ID));
+    assertEquals("a:joe/1", doc.getFieldValue(IndexingHandler.FIELD_PATH));
+    assertEquals("myberkeley/test", doc.getFieldValue("resourceType"));
+  }
+}
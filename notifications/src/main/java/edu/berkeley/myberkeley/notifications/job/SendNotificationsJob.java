@@ -269,6 +269,8 @@ public class SendNotificationsJob implements Job {
           } else {
             throw e;
           }
+        } finally {
+          connector.close();
         }
       }
     }